@@ -0,0 +1,285 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Backup-protected migration between two non-biometric cipher configurations.
+ * <p>
+ * Every step is safe to interrupt: a later run picks up from the last durable state instead
+ * of starting over.
+ * <ul>
+ *     <li>The backup is a snapshot of the data and key storage files, each written in a
+ *     single commit (see {@link PreferencesSnapshot}). An interrupted backup is taken again;
+ *     the originals are untouched until it is complete.</li>
+ *     <li>Re-encryption commits one chunk at a time together with the migration journal and
+ *     skips everything the journal covers.</li>
+ *     <li>The new wrapped keys are stashed durably before the first chunk is written, so
+ *     data that is already re-encrypted never loses its key.</li>
+ *     <li>The algorithm markers are updated in the same commit that sets the backup status
+ *     to {@link MigrationBackup#STATUS_MIGRATED}. That commit is the point of no return;
+ *     cleanup after it is finished on the next start if it is interrupted.</li>
+ * </ul>
+ */
+final class BackupMigration {
+    private static final String TAG = "BackupMigration";
+    private static final String BACKUP_SUFFIX = "_BACKUP";
+
+    /**
+     * Access to the cipher factory and plugin state the migration needs.
+     */
+    interface Host {
+        /** Creates the cipher the data is currently encrypted with, from the wrapped keys in keyStorage. */
+        StorageCipher getSavedStorageCipher() throws Exception;
+
+        /** Creates the cipher to migrate to, generating a new wrapped key if there is none. */
+        StorageCipher getCurrentStorageCipher() throws Exception;
+
+        /** Moves leftover EncryptedSharedPreferences data over. Best effort, must not throw. */
+        void migrateEncryptedSharedPreferences(StorageCipher currentCipher);
+
+        /** Stages the current algorithm markers into a configSource editor. */
+        void storeCurrentAlgorithms(SharedPreferences.Editor editor);
+
+        /** Deletes the keys of the saved algorithms that are no longer used. */
+        void deleteSavedKeys(StorageCipher savedCipher) throws Exception;
+    }
+
+    private final Host host;
+    private final PreferencesSnapshot dataSnapshot;
+    private final PreferencesSnapshot keySnapshot;
+    private final SharedPreferences dataSource;
+    private final SharedPreferences keyStorage;
+    private final NamespacedConfigSource configSource;
+    private final FlutterSecureStorageConfig config;
+    private final MigrationProgress progress;
+
+    BackupMigration(Host host, PreferencesSnapshot dataSnapshot, PreferencesSnapshot keySnapshot,
+                    NamespacedConfigSource configSource, FlutterSecureStorageConfig config) {
+        this(host, dataSnapshot, keySnapshot, configSource, config, MigrationProgress.NONE);
+    }
+
+    BackupMigration(Host host, PreferencesSnapshot dataSnapshot, PreferencesSnapshot keySnapshot,
+                    NamespacedConfigSource configSource, FlutterSecureStorageConfig config,
+                    MigrationProgress progress) {
+        this.host = host;
+        this.dataSnapshot = dataSnapshot;
+        this.keySnapshot = keySnapshot;
+        this.dataSource = dataSnapshot.getPreferences();
+        this.keyStorage = keySnapshot.getPreferences();
+        this.configSource = configSource;
+        this.config = config;
+        this.progress = progress;
+    }
+
+    /**
+     * Runs, or resumes, the migration.
+     *
+     * @return the current storage cipher, ready to use
+     * @throws Exception if a step fails; everything committed so far is kept for the next run
+     */
+    StorageCipher run() throws Exception {
+        final String keyPrefix = config.getSharedPreferencesKeyPrefix();
+
+        // Step 1: Create backup - snapshots the data and wrapped key files, keeps originals.
+        // Retakes an interrupted snapshot and is a no-op if the backup is already complete.
+        Log.d(TAG, "Step 1/8: Creating backup (snapshot data and key files, keep originals)...");
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, null, configSource, config, keyPrefix, progress);
+
+        // Step 2: Restore wrapped keys from the backup, then initialize old cipher.
+        Log.d(TAG, "Step 2/8: Restoring wrapped keys from backup and initializing saved cipher...");
+        StorageCipher savedCipher = initializeSavedCipher(keyPrefix);
+
+        // Step 3: Decrypt all data FROM the backup (in memory only). Originals may already
+        // be re-encrypted with the new cipher by a prior partial run; the backup never is.
+        Log.d(TAG, "Step 3/8: Decrypting all data from backup...");
+        Map<String, byte[]> decryptedCache = decryptBackups(dataSnapshot, null, savedCipher, keyPrefix, progress);
+
+        // Step 4: Delete original wrapped keys, unless the journal shows they are already new.
+        // The data is overwritten in place by step 6.
+        Log.d(TAG, "Step 4/8: Deleting original wrapped keys (preserving already-migrated)...");
+        MigrationBackup.deleteOriginalKeys(keyStorage, dataSource, configSource, keyPrefix);
+
+        // Step 5: Create new cipher and make its wrapped key durable before using it
+        Log.d(TAG, "Step 5/8: Initializing current cipher with new algorithm...");
+        StorageCipher currentCipher = host.getCurrentStorageCipher();
+        MigrationBackup.stashCurrentKeys(keyStorage);
+
+        // Step 6: Encrypt all data with NEW cipher, one journaled chunk per commit
+        if (decryptedCache.isEmpty()) {
+            Log.i(TAG, "Step 6/8: No data to encrypt, skipping...");
+        } else {
+            Log.d(TAG, "Step 6/8: Encrypting " + decryptedCache.size() + " items with current cipher (chunk journal)...");
+            MigrationBackup.encryptPlaintextsWithJournal(decryptedCache, dataSource, configSource, currentCipher,
+                    keyPrefix, config.getMigrationChunkSize(), progress);
+        }
+
+        // Step 7: Migrate ESP data if present (after algorithm migration complete)
+        Log.d(TAG, "Step 7/8: Checking for ESP data to migrate...");
+        host.migrateEncryptedSharedPreferences(currentCipher);
+
+        // Step 8: Commit point, then cleanup
+        Log.d(TAG, "Step 8/8: Updating markers, then deleting backup, journal and old keys...");
+        SharedPreferences.Editor markers = configSource.edit();
+        host.storeCurrentAlgorithms(markers);
+        MigrationBackup.putBackupStatus(markers, MigrationBackup.STATUS_MIGRATED);
+        if (!markers.commit()) {
+            throw new Exception("Failed to commit algorithm markers to disk - storage may be full or unavailable");
+        }
+        deleteMigrationState(dataSnapshot, keySnapshot, configSource, config);
+
+        try {
+            host.deleteSavedKeys(savedCipher);
+        } catch (Exception deleteError) {
+            Log.w(TAG, "Failed to delete old key from KeyStore (may not exist)", deleteError);
+        }
+
+        Log.i(TAG, "Migrated " + decryptedCache.size() + " data items with new algorithm");
+        return currentCipher;
+    }
+
+    /**
+     * Finishes the cleanup of a migration that was interrupted after its commit point.
+     * Does nothing unless the backup status is {@link MigrationBackup#STATUS_MIGRATED}.
+     *
+     * @return true if leftovers were cleaned up
+     */
+    static boolean finishInterruptedCleanup(PreferencesSnapshot dataSnapshot, PreferencesSnapshot keySnapshot,
+                                            NamespacedConfigSource configSource, FlutterSecureStorageConfig config) {
+        if (!MigrationBackup.STATUS_MIGRATED.equals(MigrationBackup.getBackupStatus(configSource, config))) {
+            return false;
+        }
+        Log.i(TAG, "Finishing cleanup of a completed migration");
+        deleteMigrationState(dataSnapshot, keySnapshot, configSource, config);
+        return true;
+    }
+
+    private static void deleteMigrationState(PreferencesSnapshot dataSnapshot, PreferencesSnapshot keySnapshot,
+                                             NamespacedConfigSource configSource, FlutterSecureStorageConfig config) {
+        final String keyPrefix = config.getSharedPreferencesKeyPrefix();
+        MigrationBackup.deleteMigrationJournal(dataSnapshot.getPreferences());
+        MigrationBackup.deleteMigratedMarkers(configSource, keyPrefix);
+        MigrationBackup.deleteStashedKeys(keySnapshot.getPreferences());
+        // Removes the backup status last, so an interrupted cleanup is retried
+        MigrationBackup.deleteBackup(dataSnapshot, keySnapshot, configSource, config, keyPrefix);
+    }
+
+    /**
+     * Initializes the saved cipher from the backed up key blobs.
+     * <p>
+     * On a first run the originals still exist and restoring them is a no-op. After a crash
+     * at step 4 or later the originals are gone or replaced, and the key storage is put back
+     * from its snapshot in a single commit. If step 6 already ran, the new wrapped key
+     * lives under the same name; it is taken from the stash (or, for journals written before
+     * the stash existed, from keyStorage itself) and put back once the saved cipher holds its
+     * unwrapped key. Backups taken within the file by an earlier version are restored entry
+     * by entry.
+     */
+    private StorageCipher initializeSavedCipher(String keyPrefix) throws Exception {
+        boolean alreadyPartiallyMigrated = MigrationBackup.hasMigrationJournal(dataSource, keyPrefix)
+                || MigrationBackup.hasMigratedMarkers(configSource, keyPrefix);
+
+        if (!alreadyPartiallyMigrated && keySnapshot.exists()) {
+            keySnapshot.restore();
+            return host.getSavedStorageCipher();
+        }
+
+        Map<String, String> newKeyEntries = new HashMap<>();
+        if (alreadyPartiallyMigrated) {
+            newKeyEntries.putAll(MigrationBackup.getStashedKeys(keyStorage));
+            if (newKeyEntries.isEmpty()) {
+                for (Map.Entry<String, ?> entry : keyStorage.getAll().entrySet()) {
+                    if (!entry.getKey().endsWith(BACKUP_SUFFIX) && entry.getValue() instanceof String) {
+                        newKeyEntries.put(entry.getKey(), (String) entry.getValue());
+                    }
+                }
+            }
+            Log.d(TAG, "Migration journal found - keeping " + newKeyEntries.size()
+                    + " new key entries while the saved cipher is initialized");
+        }
+
+        SharedPreferences.Editor restore = keyStorage.edit();
+        for (Map.Entry<String, String> entry : MigrationBackup.readBackup(keySnapshot, null).entrySet()) {
+            restore.putString(entry.getKey(), entry.getValue());
+        }
+        if (!restore.commit()) {
+            throw new Exception("Failed to restore wrapped keys from backup");
+        }
+
+        StorageCipher savedCipher = host.getSavedStorageCipher();
+
+        if (!newKeyEntries.isEmpty()) {
+            SharedPreferences.Editor revert = keyStorage.edit();
+            for (Map.Entry<String, String> entry : newKeyEntries.entrySet()) {
+                revert.putString(entry.getKey(), entry.getValue());
+            }
+            if (!revert.commit()) {
+                throw new Exception("Failed to restore new wrapped keys after initializing saved cipher");
+            }
+            Log.d(TAG, "New wrapped key restored to keyStorage after saved cipher init");
+        }
+        return savedCipher;
+    }
+
+    /**
+     * Decrypts every backed up entry with the saved cipher, keyed by its original name. The
+     * plaintexts are kept as they were stored, so compressed values and pointers to large
+     * value files are re-encrypted as they are. ESP _BACKUP values are plaintext already and
+     * taken as their UTF-8 bytes. Entries that cannot be decrypted are logged and left out.
+     *
+     * @param dataSnapshot Snapshot of the SharedPreferences containing encrypted data
+     * @param espSource EncryptedSharedPreferences with _BACKUP entries (can be null)
+     * @param savedCipher The old storage cipher
+     * @param keyPrefix Prefix to filter data keys
+     */
+    static Map<String, byte[]> decryptBackups(PreferencesSnapshot dataSnapshot, SharedPreferences espSource,
+                                              StorageCipher savedCipher, String keyPrefix,
+                                              MigrationProgress progress) {
+        Map<String, byte[]> decryptedCache = new HashMap<>();
+        int encryptedCount = 0;
+        int espCount = 0;
+
+        Map<String, String> backups = MigrationBackup.readBackup(dataSnapshot, keyPrefix);
+        progress.startPhase(MigrationProgress.PHASE_DECRYPT, backups.size());
+
+        if (espSource != null) {
+            try {
+                for (Map.Entry<String, ?> entry : espSource.getAll().entrySet()) {
+                    String key = entry.getKey();
+                    if (entry.getValue() instanceof String value && key.contains(keyPrefix) && key.endsWith(BACKUP_SUFFIX)) {
+                        // ESP data is already decrypted by ESP (Tink library)
+                        decryptedCache.put(key.substring(0, key.length() - BACKUP_SUFFIX.length()), value.getBytes(StandardCharsets.UTF_8));
+                        espCount++;
+                    }
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to read ESP _BACKUP keys: " + e.getMessage());
+                // Continue with regular backup keys
+            }
+        }
+
+        for (Map.Entry<String, String> entry : backups.entrySet()) {
+            String key = entry.getKey();
+            long bytes = 0;
+            try {
+                byte[] decryptedData = savedCipher.decrypt(ValueEnvelope.parse(entry.getValue()).getCiphertextFor(savedCipher));
+                decryptedCache.put(key, decryptedData);
+                bytes = decryptedData.length;
+                encryptedCount++;
+            } catch (Exception decryptError) {
+                Log.e(TAG, "Failed to decrypt backed up key (skipping): " + key, decryptError);
+            }
+            progress.advance(1, bytes);
+        }
+
+        Log.d(TAG, "Successfully processed " + (encryptedCount + espCount) + " items from backup ("
+                + encryptedCount + " encrypted, " + espCount + " ESP)");
+        return decryptedCache;
+    }
+}
@@ -0,0 +1,137 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.hardware.biometrics.BiometricPrompt;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Biometric prompts in flight, and the executor their callbacks run on.
+ * <p>
+ * The plugin owns one instance for all its storages. Prompt callbacks share a single thread
+ * that exits when idle. When the engine detaches, {@link #close} cancels the prompts still
+ * showing and fails their callbacks, so no initialization waits for a prompt that is gone.
+ */
+final class BiometricAuthentications {
+    private static final String TAG = "BiometricAuthentications";
+    private static final long IDLE_THREAD_SECONDS = 30;
+
+    /** For storages created without the plugin; never closed, its thread exits when idle. */
+    static final BiometricAuthentications SHARED = new BiometricAuthentications();
+
+    private final Set<Authentication> inFlight = new LinkedHashSet<>();
+    private final ThreadPoolExecutor callbackThread;
+    private final Executor executor = this::execute;
+    private boolean closed = false;
+
+    BiometricAuthentications() {
+        callbackThread = new ThreadPoolExecutor(1, 1, IDLE_THREAD_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "com.it_nomads.fluttersecurestorage.biometric");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        callbackThread.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * A prompt in flight. Its callback is notified at most once: by the prompt, or by
+     * {@link #close} if the engine went away first.
+     */
+    final class Authentication {
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        private final SecurePreferencesCallback<BiometricPrompt.AuthenticationResult> callback;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        private Authentication(SecurePreferencesCallback<BiometricPrompt.AuthenticationResult> callback) {
+            this.callback = callback;
+        }
+
+        void succeed(BiometricPrompt.AuthenticationResult result) {
+            if (finish()) {
+                callback.onSuccess(result);
+            }
+        }
+
+        void fail(Exception e) {
+            if (finish()) {
+                callback.onError(e);
+            }
+        }
+
+        private boolean finish() {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            synchronized (BiometricAuthentications.this) {
+                inFlight.remove(this);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Registers a prompt about to be shown, whose outcome is reported to the given callback.
+     *
+     * @throws Exception if the plugin was detached from the engine
+     */
+    synchronized Authentication start(SecurePreferencesCallback<BiometricPrompt.AuthenticationResult> callback) throws Exception {
+        if (closed) {
+            throw new Exception("Biometric authentication unavailable: the plugin was detached from the engine");
+        }
+        final Authentication authentication = new Authentication(callback);
+        inFlight.add(authentication);
+        return authentication;
+    }
+
+    /** Returns the executor to run prompt callbacks on. */
+    Executor getExecutor() {
+        return executor;
+    }
+
+    /* package */ synchronized int inFlightCount() {
+        return inFlight.size();
+    }
+
+    private void execute(Runnable command) {
+        try {
+            callbackThread.execute(command);
+        } catch (RejectedExecutionException e) {
+            // Late callback of a prompt that close() already failed
+            Log.d(TAG, "Dropped biometric callback after close");
+        }
+    }
+
+    /**
+     * Cancels every prompt in flight, fails its callback and stops the callback thread. Prompts
+     * can no longer be started afterwards.
+     */
+    void close() {
+        final List<Authentication> cancelled;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            cancelled = new ArrayList<>(inFlight);
+        }
+        for (Authentication authentication : cancelled) {
+            authentication.cancellationSignal.cancel();
+            authentication.fail(new Exception("Biometric authentication cancelled: the plugin was detached from the engine"));
+        }
+        callbackThread.shutdown();
+        if (!cancelled.isEmpty()) {
+            Log.d(TAG, "Cancelled " + cancelled.size() + " biometric prompts");
+        }
+    }
+}
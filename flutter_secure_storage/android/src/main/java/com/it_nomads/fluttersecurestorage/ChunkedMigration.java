@@ -0,0 +1,352 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.it_nomads.fluttersecurestorage.ciphers.ForkableStorageCipher;
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Bounded-memory re-encryption of stored values from one storage cipher to another.
+ * <p>
+ * Entries are processed in fixed-size chunks: a chunk is decrypted with the saved cipher,
+ * re-encrypted with the current cipher and staged into an editor, after which its
+ * plaintext is wiped. Plaintext is kept as byte arrays (never as Strings) so it can be
+ * zeroed, and at most one chunk of plaintext is on the heap at any time.
+ * <p>
+ * Large stores can be processed by several workers, each taking a contiguous range of keys
+ * with its own fork of both ciphers (see {@link ForkableStorageCipher}). Their results are
+ * staged into the editor in key order once every worker has finished, so the caller still
+ * commits once. Each worker holds at most one chunk of plaintext.
+ */
+public final class ChunkedMigration {
+    private static final String TAG = "ChunkedMigration";
+    // Below this many entries, starting worker threads costs more than it saves
+    static final int PARALLEL_MIN_ENTRIES = 512;
+
+    /** Receives the re-encrypted value of the entry at index in the processed key list. */
+    private interface Sink {
+        void put(int index, String key, String value);
+    }
+
+    private ChunkedMigration() {
+    }
+
+    /**
+     * Outcome of a chunked pass over the stored entries.
+     */
+    public static final class Result {
+        private final int entries;
+        private final int chunks;
+        private final long plaintextBytes;
+        private final long peakPlaintextBytes;
+        private final long elapsedMillis;
+
+        Result(int entries, int chunks, long plaintextBytes, long peakPlaintextBytes, long elapsedMillis) {
+            this.entries = entries;
+            this.chunks = chunks;
+            this.plaintextBytes = plaintextBytes;
+            this.peakPlaintextBytes = peakPlaintextBytes;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /** Number of entries processed. */
+        public int getEntries() { return entries; }
+
+        /** Number of chunks the entries were processed in. */
+        public int getChunks() { return chunks; }
+
+        /** Total plaintext bytes processed. */
+        public long getPlaintextBytes() { return plaintextBytes; }
+
+        /** Largest amount of plaintext held on the heap at once. */
+        public long getPeakPlaintextBytes() { return peakPlaintextBytes; }
+
+        public long getElapsedMillis() { return elapsedMillis; }
+    }
+
+    /**
+     * Returns the keys of all string entries belonging to this storage, in a stable order.
+     *
+     * @param dataSource SharedPreferences containing encrypted data
+     * @param keyPrefix  Prefix identifying entries of this storage
+     */
+    public static List<String> collectKeys(SharedPreferences dataSource, String keyPrefix) {
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : dataSource.getAll().entrySet()) {
+            if (entry.getValue() instanceof String && MigrationBackup.isDataKey(entry.getKey(), keyPrefix)) {
+                keys.add(entry.getKey());
+            }
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Decrypts every entry with the saved cipher and discards the result. Run this before
+     * any destructive migration step so an undecryptable store is detected while the old
+     * keys still exist.
+     *
+     * @throws Exception naming the first entry that cannot be decrypted
+     */
+    public static Result verifyDecryptable(SharedPreferences dataSource, List<String> keys,
+                                           StorageCipher savedCipher, int chunkSize) throws Exception {
+        return verifyDecryptable(dataSource, keys, savedCipher, chunkSize, 1);
+    }
+
+    /**
+     * Like {@link #verifyDecryptable(SharedPreferences, List, StorageCipher, int)}, using up to
+     * parallelism threads when the store is large enough and the cipher can be forked.
+     */
+    public static Result verifyDecryptable(SharedPreferences dataSource, List<String> keys,
+                                           StorageCipher savedCipher, int chunkSize, int parallelism) throws Exception {
+        return verifyDecryptable(dataSource, keys, savedCipher, chunkSize, parallelism, MigrationProgress.NONE);
+    }
+
+    /**
+     * Like {@link #verifyDecryptable(SharedPreferences, List, StorageCipher, int, int)},
+     * reporting each chunk as a {@link MigrationProgress#PHASE_VERIFY} phase.
+     */
+    public static Result verifyDecryptable(SharedPreferences dataSource, List<String> keys,
+                                           StorageCipher savedCipher, int chunkSize, int parallelism,
+                                           MigrationProgress progress) throws Exception {
+        progress.startPhase(MigrationProgress.PHASE_VERIFY, keys.size());
+        int workers = workerCount(keys.size(), chunkSize, parallelism, savedCipher, null);
+        if (workers > 1) {
+            return processInParallel(dataSource, keys, savedCipher, null, null, chunkSize, workers, progress);
+        }
+        return process(dataSource, keys, savedCipher, null, null, chunkSize, progress);
+    }
+
+    /**
+     * Re-encrypts every entry chunk by chunk and stages the new ciphertext into the given
+     * editor. Nothing is written to disk; the caller commits the editor.
+     *
+     * @param dataSource    SharedPreferences containing data encrypted with savedCipher
+     * @param keys          Keys to migrate, see {@link #collectKeys}
+     * @param savedCipher   Cipher the data is currently encrypted with
+     * @param currentCipher Cipher to re-encrypt with
+     * @param staged        Editor receiving the re-encrypted values
+     * @param chunkSize     Number of entries decrypted at a time
+     */
+    public static Result reEncrypt(SharedPreferences dataSource, List<String> keys,
+                                   StorageCipher savedCipher, StorageCipher currentCipher,
+                                   SharedPreferences.Editor staged, int chunkSize) throws Exception {
+        return reEncrypt(dataSource, keys, savedCipher, currentCipher, staged, chunkSize, 1);
+    }
+
+    /**
+     * Like {@link #reEncrypt(SharedPreferences, List, StorageCipher, StorageCipher, SharedPreferences.Editor, int)},
+     * partitioning the keys across up to parallelism threads. Falls back to a single thread
+     * for stores below {@link #PARALLEL_MIN_ENTRIES} entries and when either cipher cannot be
+     * forked, e.g. because its key is bound to biometric authentication.
+     *
+     * @param parallelism Maximum number of worker threads
+     */
+    public static Result reEncrypt(SharedPreferences dataSource, List<String> keys,
+                                   StorageCipher savedCipher, StorageCipher currentCipher,
+                                   SharedPreferences.Editor staged, int chunkSize, int parallelism) throws Exception {
+        return reEncrypt(dataSource, keys, savedCipher, currentCipher, staged, chunkSize, parallelism,
+                MigrationProgress.NONE);
+    }
+
+    /**
+     * Like {@link #reEncrypt(SharedPreferences, List, StorageCipher, StorageCipher, SharedPreferences.Editor, int, int)},
+     * reporting each chunk as a {@link MigrationProgress#PHASE_ENCRYPT} phase.
+     */
+    public static Result reEncrypt(SharedPreferences dataSource, List<String> keys,
+                                   StorageCipher savedCipher, StorageCipher currentCipher,
+                                   SharedPreferences.Editor staged, int chunkSize, int parallelism,
+                                   MigrationProgress progress) throws Exception {
+        progress.startPhase(MigrationProgress.PHASE_ENCRYPT, keys.size());
+        int workers = workerCount(keys.size(), chunkSize, parallelism, savedCipher, currentCipher);
+        if (workers > 1) {
+            return processInParallel(dataSource, keys, savedCipher, currentCipher, staged, chunkSize, workers, progress);
+        }
+        return process(dataSource, keys, savedCipher, currentCipher,
+                (index, key, value) -> staged.putString(key, value), chunkSize, progress);
+    }
+
+    /**
+     * Returns how many workers to use: one per chunk up to parallelism, or 1 if the store is
+     * small or a cipher cannot be forked.
+     */
+    static int workerCount(int entries, int chunkSize, int parallelism,
+                           StorageCipher savedCipher, StorageCipher currentCipher) {
+        if (parallelism <= 1 || entries < PARALLEL_MIN_ENTRIES
+                || !(savedCipher instanceof ForkableStorageCipher)
+                || (currentCipher != null && !(currentCipher instanceof ForkableStorageCipher))) {
+            return 1;
+        }
+        int chunks = (entries + Math.max(1, chunkSize) - 1) / Math.max(1, chunkSize);
+        return Math.max(1, Math.min(parallelism, chunks));
+    }
+
+    private static Result processInParallel(SharedPreferences dataSource, List<String> keys,
+                                            StorageCipher savedCipher, StorageCipher currentCipher,
+                                            SharedPreferences.Editor staged, int chunkSize, int workers,
+                                            MigrationProgress progress) throws Exception {
+        final long startTime = System.currentTimeMillis();
+        final int rangeSize = (keys.size() + workers - 1) / workers;
+        final String[] encrypted = currentCipher != null ? new String[keys.size()] : null;
+        final Result[] results = new Result[workers];
+        final Exception[] errors = new Exception[workers];
+        final CountDownLatch finished = new CountDownLatch(workers);
+
+        // Forks are created up front, so a cipher that cannot be forked fails before any work starts
+        final StorageCipher[] savedForks = new StorageCipher[workers];
+        final StorageCipher[] currentForks = new StorageCipher[workers];
+        for (int w = 0; w < workers; w++) {
+            savedForks[w] = ((ForkableStorageCipher) savedCipher).fork();
+            currentForks[w] = currentCipher != null ? ((ForkableStorageCipher) currentCipher).fork() : null;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "com.it_nomads.fluttersecurestorage.migration");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (int w = 0; w < workers; w++) {
+                final int worker = w;
+                final int from = Math.min(keys.size(), w * rangeSize);
+                final int to = Math.min(keys.size(), from + rangeSize);
+                pool.execute(() -> {
+                    try {
+                        results[worker] = process(dataSource, keys.subList(from, to), savedForks[worker], currentForks[worker],
+                                (index, key, value) -> encrypted[from + index] = value, chunkSize, progress);
+                    } catch (Exception e) {
+                        errors[worker] = e;
+                    } finally {
+                        finished.countDown();
+                    }
+                });
+            }
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Exception("Interrupted while waiting for migration workers", e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // Report the failure of the lowest key range, as a sequential run would have
+        for (Exception error : errors) {
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        // Merge: stage every value in key order into the caller's single editor
+        if (encrypted != null) {
+            for (int i = 0; i < encrypted.length; i++) {
+                if (encrypted[i] != null) {
+                    staged.putString(keys.get(i), encrypted[i]);
+                    encrypted[i] = null;
+                }
+            }
+        }
+
+        int entries = 0;
+        int chunks = 0;
+        long totalBytes = 0;
+        long peakBytes = 0;
+        for (Result result : results) {
+            entries += result.getEntries();
+            chunks += result.getChunks();
+            totalBytes += result.getPlaintextBytes();
+            // Workers run concurrently, so their peaks can coincide
+            peakBytes += result.getPeakPlaintextBytes();
+        }
+        Result merged = new Result(entries, chunks, totalBytes, peakBytes, System.currentTimeMillis() - startTime);
+        Log.d(TAG, (currentCipher != null ? "Re-encrypted " : "Verified ") + merged.getEntries() + " items on "
+                + workers + " threads in " + merged.getElapsedMillis() + "ms (peak plaintext "
+                + merged.getPeakPlaintextBytes() + " of " + merged.getPlaintextBytes() + " bytes)");
+        return merged;
+    }
+
+    private static Result process(SharedPreferences dataSource, List<String> keys,
+                                  StorageCipher savedCipher, StorageCipher currentCipher,
+                                  Sink staged, int chunkSize, MigrationProgress progress) throws Exception {
+        final long startTime = System.currentTimeMillis();
+        final int size = Math.max(1, chunkSize);
+        final byte[][] plaintexts = new byte[size][];
+        long totalBytes = 0;
+        long peakBytes = 0;
+        int processed = 0;
+        int chunks = 0;
+
+        for (int chunkStart = 0; chunkStart < keys.size(); chunkStart += size) {
+            final int chunkEnd = Math.min(chunkStart + size, keys.size());
+            long chunkBytes = 0;
+            try {
+                // Decrypt the chunk
+                for (int i = chunkStart; i < chunkEnd; i++) {
+                    String key = keys.get(i);
+                    try {
+                        String value = dataSource.getString(key, null);
+                        if (value == null) {
+                            continue;
+                        }
+                        byte[] plaintext = savedCipher.decrypt(ValueEnvelope.parse(value).getCiphertextFor(savedCipher));
+                        plaintexts[i - chunkStart] = plaintext;
+                        chunkBytes += plaintext.length;
+                    } catch (Exception e) {
+                        Log.e(TAG, "Failed to decrypt key: " + key, e);
+                        throw new Exception("Failed to decrypt existing data with saved cipher for key: " + key, e);
+                    }
+                }
+                peakBytes = Math.max(peakBytes, chunkBytes);
+
+                // Re-encrypt and stage it
+                if (currentCipher != null) {
+                    for (int i = chunkStart; i < chunkEnd; i++) {
+                        byte[] plaintext = plaintexts[i - chunkStart];
+                        if (plaintext == null) {
+                            continue;
+                        }
+                        String key = keys.get(i);
+                        try {
+                            byte[] encrypted = currentCipher.encrypt(plaintext);
+                            staged.put(i, key, ValueEnvelope.encode(currentCipher, encrypted));
+                        } catch (Exception e) {
+                            Log.e(TAG, "Failed to encrypt key: " + key, e);
+                            throw new Exception("Failed to encrypt data with current cipher for key: " + key, e);
+                        }
+                    }
+                }
+            } finally {
+                wipe(plaintexts);
+            }
+
+            totalBytes += chunkBytes;
+            processed += chunkEnd - chunkStart;
+            chunks++;
+            progress.advance(chunkEnd - chunkStart, chunkBytes);
+        }
+
+        Result result = new Result(processed, chunks, totalBytes, peakBytes, System.currentTimeMillis() - startTime);
+        Log.d(TAG, (currentCipher != null ? "Re-encrypted " : "Verified ") + result.getEntries() + " items in "
+                + result.getChunks() + " chunks of up to " + size + " (peak plaintext " + result.getPeakPlaintextBytes()
+                + " of " + result.getPlaintextBytes() + " bytes) in " + result.getElapsedMillis() + "ms");
+        return result;
+    }
+
+    private static void wipe(byte[][] plaintexts) {
+        for (int i = 0; i < plaintexts.length; i++) {
+            if (plaintexts[i] != null) {
+                Arrays.fill(plaintexts[i], (byte) 0);
+                plaintexts[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Moves entries from EncryptedSharedPreferences into custom cipher storage.
+ * <p>
+ * Every editor commit re-serializes the whole preferences file, and removing an entry
+ * from EncryptedSharedPreferences additionally re-encrypts its key name, so the migration
+ * is done in two batched writes instead of two writes per entry:
+ * <ol>
+ *     <li>all values are encrypted into a single target editor, which is committed once;</li>
+ *     <li>only after that commit succeeded, all migrated entries are removed from the source
+ *     in a single editor.</li>
+ * </ol>
+ * The target commit is the checkpoint. If the process dies before it, nothing has changed;
+ * if it dies after it, the source entries are still present and the next run migrates them
+ * again, overwriting the target with the same values.
+ */
+public class EncryptedPreferencesMigration {
+    private EncryptedPreferencesMigration() {}
+
+    private static final String TAG = "EncryptedPrefsMigration";
+    private static final Charset charset = StandardCharsets.UTF_8;
+
+    /**
+     * Encrypts every prefixed entry of the source with the given cipher, commits them to the
+     * target and then removes them from the source.
+     *
+     * @param source EncryptedSharedPreferences holding the plaintext values
+     * @param target SharedPreferences receiving the values encrypted with cipher
+     * @param cipher Storage cipher to encrypt with
+     * @param keyPrefix Prefix identifying entries of this storage
+     * @return number of migrated entries
+     * @throws Exception if a value cannot be encrypted or the target cannot be written;
+     *                   the source is left untouched in that case
+     */
+    public static int migrate(SharedPreferences source, SharedPreferences target,
+                              StorageCipher cipher, String keyPrefix) throws Exception {
+        return migrate(source, target, cipher, keyPrefix, MigrationProgress.NONE);
+    }
+
+    /**
+     * Like {@link #migrate(SharedPreferences, SharedPreferences, StorageCipher, String)},
+     * reporting the encrypted entries as a
+     * {@link MigrationProgress#PHASE_ENCRYPTED_SHARED_PREFERENCES} phase.
+     */
+    public static int migrate(SharedPreferences source, SharedPreferences target,
+                              StorageCipher cipher, String keyPrefix, MigrationProgress progress) throws Exception {
+        final long startTime = System.currentTimeMillis();
+
+        // Step 1: Encrypt all values into one editor
+        List<String> migratedKeys = new ArrayList<>();
+        SharedPreferences.Editor targetEditor = target.edit();
+        Map<String, ?> all = source.getAll();
+        progress.startPhase(MigrationProgress.PHASE_ENCRYPTED_SHARED_PREFERENCES, all.size());
+        for (Map.Entry<String, ?> entry : all.entrySet()) {
+            Object v = entry.getValue();
+            String key = entry.getKey();
+
+            if (v instanceof String plainValue && key.contains(keyPrefix)) {
+                byte[] plaintext = plainValue.getBytes(charset);
+                byte[] encrypted;
+                try {
+                    encrypted = cipher.encrypt(plaintext);
+                } catch (Exception e) {
+                    throw new Exception("Failed to encrypt data with current cipher for key: " + key, e);
+                }
+                targetEditor.putString(key, ValueEnvelope.encode(cipher, encrypted));
+                migratedKeys.add(key);
+                progress.advance(1, plaintext.length);
+            } else {
+                progress.advance(1, 0);
+            }
+        }
+
+        if (migratedKeys.isEmpty()) {
+            Log.i(TAG, "No EncryptedSharedPreferences entries to migrate");
+            return 0;
+        }
+
+        // Step 2: Commit all target values at once (checkpoint)
+        if (!targetEditor.commit()) {
+            throw new Exception("Failed to commit migrated data to disk - storage may be full or unavailable");
+        }
+        Log.d(TAG, "Committed " + migratedKeys.size() + " migrated items to custom cipher storage");
+
+        // Step 3: Remove the migrated entries from the source at once
+        SharedPreferences.Editor sourceEditor = source.edit();
+        for (String key : migratedKeys) {
+            sourceEditor.remove(key);
+        }
+        if (!sourceEditor.commit()) {
+            // The data is already safe in the target; leftovers in the source are ignored.
+            Log.w(TAG, "Failed to remove " + migratedKeys.size() + " migrated items from EncryptedSharedPreferences");
+        }
+
+        Log.i(TAG, "Migration complete: " + migratedKeys.size() + " items migrated from EncryptedSharedPreferences to custom cipher storage in "
+                + (System.currentTimeMillis() - startTime) + "ms (2 commits)");
+        return migratedKeys.size();
+    }
+}
@@ -6,28 +6,35 @@ import android.content.SharedPreferences;
 import android.hardware.biometrics.BiometricManager;
 import android.hardware.biometrics.BiometricPrompt;
 import android.os.Build;
-import android.os.CancellationSignal;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
-import android.util.Base64;
+import android.security.keystore.UserNotAuthenticatedException;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import com.it_nomads.fluttersecurestorage.ciphers.CipherBenchmark;
+import com.it_nomads.fluttersecurestorage.ciphers.CryptoProviders;
 import com.it_nomads.fluttersecurestorage.ciphers.KeyCipher;
+import com.it_nomads.fluttersecurestorage.ciphers.KeyStoreAccess;
 import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipherAlgorithm;
 import com.it_nomads.fluttersecurestorage.ciphers.StorageCipherFactory;
 import com.it_nomads.fluttersecurestorage.crypto.EncryptedSharedPreferences;
 import com.it_nomads.fluttersecurestorage.crypto.MasterKey;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
 import javax.crypto.Cipher;
 
@@ -42,11 +49,59 @@ public class FlutterSecureStorage {
     private SharedPreferences preferences;
     private StorageCipher storageCipher;
     private StorageCipherFactory storageCipherFactory;
+    // Set while a lazy migration runs; reads, writes and deletes then go through it
+    private volatile LazyMigration lazyMigration;
+    private volatile MigrationProgress.Listener migrationProgressListener;
+    private volatile BiometricAuthentications biometricAuthentications = BiometricAuthentications.SHARED;
+    // Progress of the running migration; NONE while no migration runs
+    private volatile MigrationProgress migrationProgress = MigrationProgress.NONE;
+    // Set when the AUTO storage algorithm was selected by measuring the ciphers in this process
+    private volatile CipherBenchmark cipherBenchmark;
+    // Values of at least the large value threshold, stored in files of their own
+    private LargeValueStore largeValues = LargeValueStore.NONE;
+
+    private enum InitState { UNINITIALIZED, INITIALIZING, READY, FAILED }
+
+    private final Object initLock = new Object();
+    private InitState initState = InitState.UNINITIALIZED;
+    private int initAttempt = 0;
+    private final List<SecurePreferencesCallback<Void>> pendingInitCallbacks = new ArrayList<>();
 
     public FlutterSecureStorage(Context context) {
         this.context = context.getApplicationContext();
     }
 
+    /**
+     * Sets the listener receiving progress events of migrations of this storage, or null to
+     * stop reporting. See {@link MigrationProgress} for the events.
+     */
+    public void setMigrationProgressListener(MigrationProgress.Listener listener) {
+        migrationProgressListener = listener;
+    }
+
+    /**
+     * Sets the prompts in flight that biometric authentications of this storage are registered
+     * with, so that the owner can cancel them. See {@link BiometricAuthentications}.
+     */
+    void setBiometricAuthentications(BiometricAuthentications authentications) {
+        biometricAuthentications = authentications;
+    }
+
+    private void startMigrationProgress() {
+        final MigrationProgress.Listener listener = migrationProgressListener;
+        if (listener == null) {
+            migrationProgress = MigrationProgress.NONE;
+            return;
+        }
+        final String storage = config.hasStorageNamespace() ? config.getStorageNamespace() : config.getSharedPreferencesName();
+        migrationProgress = new MigrationProgress(storage, listener, MigrationProgress.DEFAULT_INTERVAL_MILLIS);
+    }
+
+    private void finishMigrationProgress(Exception error) {
+        migrationProgress.finish(error);
+        migrationProgress = MigrationProgress.NONE;
+    }
+
     public String addPrefixToKey(String key) {
         return config.getSharedPreferencesKeyPrefix() + "_" + key;
     }
@@ -67,11 +122,15 @@ public class FlutterSecureStorage {
     }
 
     private String readUnsafe(String key) throws Exception {
+        LazyMigration lazy = lazyMigration;
+        if (lazy != null) {
+            return lazy.read(key);
+        }
         String rawValue = preferences.getString(key, null);
         if (config.isUseEncryptedSharedPreferences() && !config.shouldMigrateOnAlgorithmChange()) {
             return rawValue;
         }
-        return decodeRawValue(rawValue);
+        return decodeRawValue(key, rawValue);
     }
 
     public Map<String, String> readAll() throws Exception {
@@ -87,18 +146,26 @@ public class FlutterSecureStorage {
 
     @SuppressWarnings("unchecked")
     private Map<String, String> readAllUnsafe() throws Exception {
+        LazyMigration lazy = lazyMigration;
+        if (lazy != null) {
+            Map<String, String> all = new HashMap<>();
+            for (Map.Entry<String, String> entry : lazy.readAll().entrySet()) {
+                all.put(entry.getKey().replaceFirst(config.getSharedPreferencesKeyPrefix() + '_', ""), entry.getValue());
+            }
+            return all;
+        }
         Map<String, String> raw = (Map<String, String>) preferences.getAll();
 
         Map<String, String> all = new HashMap<>();
         for (Map.Entry<String, String> entry : raw.entrySet()) {
             String keyWithPrefix = entry.getKey();
-            if (keyWithPrefix.contains(config.getSharedPreferencesKeyPrefix())) {
+            if (MigrationBackup.isDataKey(keyWithPrefix, config.getSharedPreferencesKeyPrefix())) {
                 String key = entry.getKey().replaceFirst(config.getSharedPreferencesKeyPrefix() + '_', "");
                 if (config.isUseEncryptedSharedPreferences() && !config.shouldMigrateOnAlgorithmChange()) {
                     all.put(key, entry.getValue());
                 } else {
                     String rawValue = entry.getValue();
-                    String value = decodeRawValue(rawValue);
+                    String value = decodeRawValue(keyWithPrefix, rawValue);
 
                     all.put(key, value);
                 }
@@ -120,43 +187,276 @@ public class FlutterSecureStorage {
     }
 
     private void writeUnsafe(String key, String value) throws Exception {
-        SharedPreferences.Editor editor = preferences.edit();
-
+        LazyMigration lazy = lazyMigration;
+        if (lazy != null) {
+            lazy.write(key, value);
+            return;
+        }
         if (config.isUseEncryptedSharedPreferences() && !config.shouldMigrateOnAlgorithmChange()) {
+            SharedPreferences.Editor editor = preferences.edit();
             editor.putString(key, value);
-        } else {
-            byte[] result = storageCipher.encrypt(value.getBytes(charset));
-            editor.putString(key, Base64.encodeToString(result, 0));
+            editor.apply();
+            return;
+        }
+        putPlaintext(key, largeValues.store(key, ValueCompression.encode(value, config.getCompressionThreshold())));
+    }
+
+    /**
+     * Encrypts and stores a plaintext in any of its stored forms, then deletes the files the
+     * key no longer points to.
+     */
+    private void putPlaintext(String key, byte[] plaintext) throws Exception {
+        LazyMigration lazy = lazyMigration;
+        if (lazy != null) {
+            lazy.putPlaintext(key, plaintext);
+            return;
+        }
+        SharedPreferences.Editor editor = preferences.edit();
+        byte[] result = storageCipher.encrypt(plaintext);
+        editor.putString(key, ValueEnvelope.encode(storageCipher, result));
+        if (largeValues.hasFiles(key, plaintext)) {
+            // The entry must point away from the old file on disk before the file is deleted
+            if (!editor.commit()) {
+                throw new Exception("Failed to commit value to disk - storage may be full or unavailable");
+            }
+            largeValues.deleteFiles(key, plaintext);
+            return;
         }
         editor.apply();
     }
 
     public void delete(String key) {
+        LazyMigration lazy = lazyMigration;
+        if (lazy != null) {
+            lazy.delete(key);
+            return;
+        }
         SharedPreferences.Editor editor = preferences.edit();
         editor.remove(key);
+        if (largeValues.hasFiles(key, null)) {
+            if (editor.commit()) {
+                largeValues.deleteFiles(key, null);
+            } else {
+                Log.w(TAG, "Failed to commit delete, keeping large value files of " + key);
+            }
+            return;
+        }
         editor.apply();
     }
 
     public void deleteAll() {
+        LazyMigration lazy = lazyMigration;
+        if (lazy != null) {
+            lazy.deleteAll();
+            return;
+        }
         SharedPreferences.Editor editor = preferences.edit();
         editor.clear();
+        if (largeValues.hasFiles()) {
+            if (editor.commit()) {
+                largeValues.deleteAll();
+            } else {
+                Log.w(TAG, "Failed to commit delete, keeping large value files");
+            }
+            return;
+        }
         editor.apply();
     }
 
+    /**
+     * Opens a stream that writes the value of a key in segments, for values too large to hold
+     * in memory at once. The value is encrypted into a file of its own as it is written and
+     * replaces the previous value of the key once the stream is closed.
+     *
+     * @throws Exception if the values are kept in EncryptedSharedPreferences, which cannot
+     *                   stream, or the file cannot be created
+     */
+    public ValueOutputStream openOutputStream(String key) throws Exception {
+        if (config.isUseEncryptedSharedPreferences() && !config.shouldMigrateOnAlgorithmChange()) {
+            throw new Exception("Streaming is not supported with EncryptedSharedPreferences");
+        }
+        return new ValueOutputStream(key, largeValues.openOutputStream(key));
+    }
+
+    /**
+     * Opens a stream that reads the value of a key. A value written with
+     * {@link #openOutputStream} is decrypted one segment at a time; any other value is
+     * returned as its UTF-8 bytes.
+     *
+     * @return the stream, or null if there is no value for the key
+     */
+    public InputStream openInputStream(String key) throws Exception {
+        if (config.isUseEncryptedSharedPreferences() && !config.shouldMigrateOnAlgorithmChange()) {
+            String value = preferences.getString(key, null);
+            return value == null ? null : new ByteArrayInputStream(value.getBytes(charset));
+        }
+        byte[] plaintext = readPlaintext(key);
+        return plaintext == null ? null : largeValues.openInputStream(key, plaintext);
+    }
+
+    /**
+     * Reads and decrypts the plaintext of a key as it is stored: possibly compressed, or a
+     * pointer to a large value file.
+     *
+     * @return the plaintext, or null if there is no value for the key
+     */
+    private byte[] readPlaintext(String key) throws Exception {
+        LazyMigration lazy = lazyMigration;
+        if (lazy != null) {
+            return lazy.readPlaintext(key);
+        }
+        String rawValue = preferences.getString(key, null);
+        return rawValue == null ? null : decryptRawValue(rawValue);
+    }
+
+    /**
+     * Stream writing the value of a key, see {@link #openOutputStream}. Until it is closed,
+     * and if it is aborted, the key keeps its previous value.
+     */
+    public final class ValueOutputStream extends OutputStream {
+        private final String key;
+        private final LargeValueStore.Output out;
+        private boolean closed = false;
+
+        private ValueOutputStream(String key, LargeValueStore.Output out) {
+            this.key = key;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        /**
+         * Completes the file and stores the value. If storing it fails, the file is left for
+         * the next start to delete, as the entry may already point to it in memory.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            out.close();
+            try {
+                putPlaintext(key, out.getPointer());
+            } catch (Exception e) {
+                throw new IOException("Failed to store streamed value of " + key, e);
+            }
+        }
+
+        /**
+         * Discards everything written so far, keeping the previous value of the key.
+         */
+        public void abort() {
+            if (!closed) {
+                closed = true;
+                out.abort();
+            }
+        }
+    }
+
+    /**
+     * Initializes the storage, running the actual initialization at most once at a time.
+     * <p>
+     * Callers arriving while an initialization is in flight are attached to it and notified
+     * with its outcome, so cipher setup, key unwrapping or a biometric prompt never run twice
+     * concurrently. After a failure the next call starts a fresh attempt.
+     */
     public void initialize(FlutterSecureStorageConfig config, SecurePreferencesCallback<Void> callback) {
-        if (preferences != null) {
+        final int attempt;
+        synchronized (initLock) {
+            switch (initState) {
+                case READY:
+                    attempt = -1;
+                    break;
+                case INITIALIZING:
+                    pendingInitCallbacks.add(callback);
+                    return;
+                case UNINITIALIZED:
+                case FAILED:
+                default:
+                    initState = InitState.INITIALIZING;
+                    attempt = ++initAttempt;
+                    pendingInitCallbacks.add(callback);
+                    break;
+            }
+        }
+
+        if (attempt == -1) {
             callback.onSuccess(null);
             return;
         }
+
+        try {
+            runInitialization(config, new SecurePreferencesCallback<>() {
+                @Override
+                public void onSuccess(Void unused) {
+                    completeInitialization(attempt, null);
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    completeInitialization(attempt, e);
+                }
+            });
+        } catch (Exception e) {
+            completeInitialization(attempt, e);
+        }
+    }
+
+    /**
+     * Moves the in-flight initialization to READY or FAILED and notifies every attached caller.
+     * Outcomes reported after the first one, or by an earlier attempt, are ignored.
+     */
+    private void completeInitialization(int attempt, Exception error) {
+        List<SecurePreferencesCallback<Void>> callbacks;
+        synchronized (initLock) {
+            if (initState != InitState.INITIALIZING || attempt != initAttempt) {
+                Log.w(TAG, "Ignoring stale initialization result", error);
+                return;
+            }
+            if (error == null) {
+                initState = InitState.READY;
+            } else {
+                initState = InitState.FAILED;
+                // Don't leave a half-initialized storage behind for the next attempt
+                preferences = null;
+                storageCipher = null;
+            }
+            callbacks = new ArrayList<>(pendingInitCallbacks);
+            pendingInitCallbacks.clear();
+        }
+
+        for (SecurePreferencesCallback<Void> pending : callbacks) {
+            if (error == null) {
+                pending.onSuccess(null);
+            } else {
+                pending.onError(error);
+            }
+        }
+    }
+
+    /**
+     * Performs the initialization itself. Only called by {@link #initialize} while in the
+     * INITIALIZING state.
+     */
+    void runInitialization(FlutterSecureStorageConfig config, SecurePreferencesCallback<Void> callback) {
         this.config = config;
+        this.largeValues = LargeValueStore.of(context, config);
 
-        SharedPreferences nonEncryptedPreferences = context.getSharedPreferences(
-                config.getEffectiveDataPrefsName(),
-                Context.MODE_PRIVATE
-        );
+        SharedPreferences nonEncryptedPreferences = preloadPreferences(config);
 
         // Use namespaced config with legacy fallback for backwards compatibility
         NamespacedConfigSource configSource = new NamespacedConfigSource(context, config.getEffectiveDataPrefsName());
+        // Serve marker lookups during initialization and migration from memory
+        configSource.takeSnapshot();
 
         Boolean isAlreadyMigrated = getEncryptedPrefsMigrated(configSource);
 
@@ -198,8 +498,9 @@ public class FlutterSecureStorage {
                     }
                     Log.i(TAG, "Migrating data from EncryptedSharedPreferences to selected custom cipher storage...");
 
-                    // Initialize custom cipher for migration target
-                    initializeStorageCipher(configSource, new SecurePreferencesCallback<>() {
+                    // Initialize custom cipher for migration target. The ESP migration writes
+                    // values in the format of the current cipher, so it cannot run lazily.
+                    initializeStorageCipher(configSource, false, new SecurePreferencesCallback<>() {
                         @Override
                         public void onSuccess(Void unused) {
                             try {
@@ -249,22 +550,118 @@ public class FlutterSecureStorage {
                 Log.i(TAG, "Data already migrated, encryptedSharedPreferences ignored and can be safely removed.");
             }
             preferences = nonEncryptedPreferences;
-            initializeStorageCipher(configSource, callback);
+            initializeStorageCipher(configSource, true, new SecurePreferencesCallback<>() {
+                @Override
+                public void onSuccess(Void unused) {
+                    deleteUnreferencedLargeValues(configSource);
+                    callback.onSuccess(null);
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    callback.onError(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Deletes the large value files no entry points to any more. Skipped while a migration is
+     * unfinished, as restoring its backup or reading saved-format values may still need them.
+     */
+    private void deleteUnreferencedLargeValues(NamespacedConfigSource configSource) {
+        if (lazyMigration != null || storageCipher == null || !largeValues.hasFiles()
+                || MigrationBackup.getBackupStatus(configSource, config) != null) {
+            return;
+        }
+        try {
+            largeValues.deleteUnreferenced(preferences.getAll(), storageCipher);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to delete unreferenced large values", e);
+        }
+    }
+
+    /**
+     * Loads the data, key storage and config prefs in parallel instead of one after another.
+     *
+     * @return the data prefs of the given configuration
+     */
+    private SharedPreferences preloadPreferences(FlutterSecureStorageConfig config) {
+        SharedPreferences dataPreferences = null;
+        try {
+            dataPreferences = PreferencesPreloader.start(context, config).await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Interrupted while preloading preferences", e);
         }
+        if (dataPreferences == null) {
+            dataPreferences = context.getSharedPreferences(
+                    config.getEffectiveDataPrefsName(),
+                    Context.MODE_PRIVATE
+            );
+        }
+        return dataPreferences;
     }
 
-    private void initializeStorageCipher(NamespacedConfigSource configSource, SecurePreferencesCallback<Void> callback) {
+    private void initializeStorageCipher(NamespacedConfigSource configSource, boolean allowLazyMigration,
+                                         SecurePreferencesCallback<Void> callback) {
         try {
+            // A backup migration that died after its commit point only has cleanup left
+            BackupMigration.finishInterruptedCleanup(
+                    PreferencesSnapshot.of(context, config.getEffectiveDataPrefsName()),
+                    getKeyStorageSnapshot(),
+                    configSource, config);
+            // So has a key re-wrap; its markers already name the new key algorithm
+            KeyRewrap.install(
+                    context.getSharedPreferences(config.getEffectiveKeyStoragePrefsName(), Context.MODE_PRIVATE),
+                    configSource);
+
             storageCipherFactory = new StorageCipherFactory(configSource, config.getPrefOptionKeyCipherAlgorithm(), config.getPrefOptionStorageCipherAlgorithm(), config);
+            if (storageCipherFactory.getCipherBenchmark() != null) {
+                cipherBenchmark = storageCipherFactory.getCipherBenchmark();
+            }
 
             if (storageCipherFactory.requiresReEncryption()) {
                 Log.w(TAG, "Algorithm changed detected.");
+                if (rewrapKey(configSource)) {
+                    callback.onSuccess(null);
+                    return;
+                }
+                if (allowLazyMigration && startLazyMigration(configSource)) {
+                    callback.onSuccess(null);
+                    return;
+                }
                 handleKeyMismatch(configSource, callback, null, "Algorithm changed detected");
                 return;
             }
 
+            if (storageCipherFactory.derivesCurrentKey()) {
+                // No KeyStore key of this namespace to load; the master key is unwrapped once per process
+                storageCipher = storageCipherFactory.getCurrentStorageCipher(context, null);
+                callback.onSuccess(null);
+                return;
+            }
+
+            // Unlocked within the biometric session window, possibly before the engine was restarted
+            StorageCipher sessionCipher = storageCipherFactory.getSessionStorageCipher(context);
+            if (sessionCipher != null) {
+                Log.d(TAG, "Biometric key unlocked within the session window, not authenticating");
+                storageCipher = sessionCipher;
+                callback.onSuccess(null);
+                return;
+            }
+
             // Check if the current algorithm requires biometric authentication
-            Cipher cipher = storageCipherFactory.getCurrentKeyCipher(context).getCipher(context);
+            Cipher cipher;
+            try {
+                cipher = storageCipherFactory.getCurrentKeyCipher(context).getCipher(context);
+            } catch (UserNotAuthenticatedException e) {
+                // A key bound to the session window with no authentication within it; any
+                // authentication unlocks it, so no CryptoObject is needed
+                Log.d(TAG, "Biometric session expired, authenticating");
+                authenticateStorageCipher(null, callback);
+                return;
+            }
             boolean enforceRequired = config.getEnforceBiometrics();
             boolean deviceHasSecurity = isDeviceSecure();
 
@@ -284,24 +681,7 @@ public class FlutterSecureStorage {
             }
 
             // Biometric authentication required (AES_GCM_NoPadding_BIOMETRIC)
-            authenticateUser(cipher, new SecurePreferencesCallback<>() {
-                @Override
-                public void onSuccess(BiometricPrompt.AuthenticationResult result) {
-                    try {
-                        storageCipher = storageCipherFactory.getCurrentStorageCipher(context, result.getCryptoObject().getCipher());
-                        Log.d(TAG, "Biometric authentication succeeded");
-                    } catch (Exception e) {
-                        Log.e(TAG, "Failed to initialize storage cipher after authentication", e);
-                        callback.onError(e);
-                    }
-                    callback.onSuccess(null);
-                }
-
-                @Override
-                public void onError(Exception e) {
-                    callback.onError(e);
-                }
-            });
+            authenticateStorageCipher(cipher, callback);
         } catch (javax.crypto.BadPaddingException e) {
             // Wrong key/padding for cipher, typically after algorithm change
             handleKeyMismatch(configSource, callback, e, "Bad padding, wrong key for cipher algorithm");
@@ -321,6 +701,179 @@ public class FlutterSecureStorage {
         }
     }
 
+    /**
+     * Shows the biometric prompt, then creates the current storage cipher.
+     *
+     * @param cipher the cipher to authenticate, or null to authenticate without one and
+     *               create the cipher afterwards, for keys bound to the session window
+     */
+    private void authenticateStorageCipher(@Nullable Cipher cipher, SecurePreferencesCallback<Void> callback) throws Exception {
+        authenticateUser(cipher, new SecurePreferencesCallback<>() {
+            @Override
+            public void onSuccess(BiometricPrompt.AuthenticationResult result) {
+                try {
+                    Cipher authenticated = result.getCryptoObject() != null
+                            ? result.getCryptoObject().getCipher()
+                            : storageCipherFactory.getCurrentKeyCipher(context).getCipher(context);
+                    storageCipher = storageCipherFactory.getCurrentStorageCipher(context, authenticated);
+                    Log.d(TAG, "Biometric authentication succeeded");
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to initialize storage cipher after authentication", e);
+                    callback.onError(e);
+                    return;
+                }
+                callback.onSuccess(null);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                callback.onError(e);
+            }
+        });
+    }
+
+    /**
+     * Moves the data key to the current key algorithm by re-wrapping it, if only the key
+     * algorithm changed. The stored values are not touched; see {@link KeyRewrap}.
+     *
+     * @return false if the data has to be migrated instead
+     * @throws Exception if the re-wrap was committed but could not be installed
+     */
+    private boolean rewrapKey(NamespacedConfigSource configSource) throws Exception {
+        if (!config.shouldMigrateOnAlgorithmChange() || storageCipherFactory.getRewrappableKeyEntry() == null) {
+            return false;
+        }
+        if (MigrationBackup.getBackupStatus(configSource, config) != null) {
+            Log.i(TAG, "Backup migration in progress - finishing it first");
+            return false;
+        }
+
+        final SharedPreferences keyStorage = context.getSharedPreferences(
+                config.getEffectiveKeyStoragePrefsName(), Context.MODE_PRIVATE);
+        final KeyCipher savedKeyCipher;
+        try {
+            savedKeyCipher = storageCipherFactory.getSavedKeyCipher(context);
+            KeyRewrap.commit(keyStorage, configSource, storageCipherFactory, savedKeyCipher,
+                    storageCipherFactory.getCurrentKeyCipher(context));
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to re-wrap data key - migrating the data instead", e);
+            return false;
+        }
+
+        // Past the commit point the markers name the current key algorithm. Falling back to
+        // re-encryption now would race the pending key, so failures are left to the next start.
+        KeyRewrap.install(keyStorage, configSource);
+        storageCipherFactory = new StorageCipherFactory(configSource, config.getPrefOptionKeyCipherAlgorithm(),
+                config.getPrefOptionStorageCipherAlgorithm(), config);
+        storageCipher = storageCipherFactory.getCurrentStorageCipher(context, null);
+
+        try {
+            savedKeyCipher.deleteKey();
+        } catch (Exception deleteError) {
+            Log.w(TAG, "Failed to delete old key from KeyStore (may not exist)", deleteError);
+        }
+        Log.i(TAG, "Re-wrapped data key with current key algorithm, no data re-encrypted");
+        return true;
+    }
+
+    /**
+     * Starts, or resumes, a lazy migration to the current storage algorithm if this storage
+     * can use one. Nothing is re-encrypted here; see {@link LazyMigration}.
+     *
+     * @return false if the data has to be migrated before initialization completes instead
+     */
+    private boolean startLazyMigration(NamespacedConfigSource configSource) {
+        final StorageCipherAlgorithm currentAlgorithm = storageCipherFactory.getCurrentStorageAlgorithm();
+        final boolean resuming = currentAlgorithm.name().equals(LazyMigration.getTargetAlgorithm(configSource));
+
+        if (!config.shouldMigrateOnAlgorithmChange() || (!resuming && !config.shouldMigrateLazily())) {
+            return false;
+        }
+        if (!storageCipherFactory.changedStorageAlgorithm()) {
+            // Both ciphers would use the same wrapped key entry, so they cannot coexist
+            Log.i(TAG, "Only the key algorithm changed, lazy migration not possible - migrating now");
+            return false;
+        }
+        if (storageCipherFactory.changedKeyDerivation()) {
+            Log.i(TAG, "Key derivation changed, lazy migration not possible - migrating now");
+            return false;
+        }
+        if (StorageCipherFactory.mayRequireAuthentication(configSource, config)) {
+            Log.i(TAG, "Biometric key involved, lazy migration not possible - migrating now");
+            return false;
+        }
+        if (MigrationBackup.getBackupStatus(configSource, config) != null) {
+            Log.i(TAG, "Backup migration in progress - finishing it first");
+            return false;
+        }
+
+        try {
+            StorageCipher savedCipher = storageCipherFactory.getSavedStorageCipher(context, null);
+            StorageCipher currentCipher = storageCipherFactory.getCurrentStorageCipher(context, null);
+
+            // A newly generated key is only applied; it must be on disk before any value uses it
+            SharedPreferences keyStorage = context.getSharedPreferences(
+                    config.getEffectiveKeyStoragePrefsName(), Context.MODE_PRIVATE);
+            if (!keyStorage.edit().commit()) {
+                throw new Exception("Failed to commit wrapped keys to disk - storage may be full or unavailable");
+            }
+
+            if (!resuming) {
+                // Keep the markers on the saved algorithms until every value is converted.
+                // Stores without markers get them written now.
+                SharedPreferences.Editor markers = configSource.edit();
+                storageCipherFactory.storeSavedAlgorithms(markers);
+                LazyMigration.putTargetAlgorithm(markers, currentAlgorithm);
+                if (!markers.commit()) {
+                    throw new Exception("Failed to commit algorithm markers to disk - storage may be full or unavailable");
+                }
+            }
+
+            LazyMigration migration = new LazyMigration(new LazyMigration.Host() {
+                @Override
+                public void storeCurrentAlgorithms(SharedPreferences.Editor editor) {
+                    storageCipherFactory.storeCurrentAlgorithms(editor);
+                }
+
+                @Override
+                public void deleteSavedKeys(StorageCipher savedCipher) throws Exception {
+                    FlutterSecureStorage.this.deleteSavedKeys(savedCipher);
+                }
+
+                @Override
+                public void onFinished() {
+                    lazyMigration = null;
+                }
+            }, preferences, configSource, savedCipher, storageCipherFactory.getSavedStorageAlgorithm(),
+                    currentCipher, currentAlgorithm, config, largeValues);
+
+            storageCipher = currentCipher;
+            lazyMigration = migration;
+            migration.start();
+            Log.i(TAG, (resuming ? "Resumed" : "Started") + " lazy migration from "
+                    + storageCipherFactory.getSavedStorageAlgorithm() + " to " + currentAlgorithm);
+            return true;
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to start lazy migration - migrating now", e);
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the keys of the saved algorithms after a completed migration.
+     */
+    private void deleteSavedKeys(StorageCipher savedCipher) throws Exception {
+        if (storageCipherFactory.replacesSavedKeyCipher()) {
+            storageCipherFactory.getSavedKeyCipher(context).deleteKey();
+            Log.d(TAG, "Old RSA keys deleted from KeyStore");
+        }
+        // With an unchanged storage algorithm and key derivation the saved cipher's key
+        // entry is the one the current cipher now uses, so it must be kept.
+        if (storageCipherFactory.replacesSavedDataKey()) {
+            savedCipher.deleteKey(context);
+        }
+    }
+
     /**
      * Migrates data from old cipher algorithm to new cipher algorithm.
      * Handles both biometric and non-biometric migration paths.
@@ -361,59 +914,52 @@ public class FlutterSecureStorage {
     }
 
     /**
-     * Decrypts all encrypted data using the saved (old) cipher.
+     * Re-encrypts all entries from the saved to the current cipher, one chunk at a time, and
+     * commits the result in a single write. Large stores are spread over several threads when
+     * neither cipher is bound to a biometric key. The saved cipher keeps its unwrapped key in
+     * memory, so this still works after the old keys have been deleted from the KeyStore.
      *
-     * @param dataSource SharedPreferences containing encrypted data
-     * @param savedStorageCipher The old storage cipher to decrypt with
-     * @return Map of decrypted key-value pairs
+     * @param dataSource SharedPreferences containing data encrypted with the saved cipher
+     * @param keys Keys to migrate
+     * @param savedCipher The old storage cipher to decrypt with
+     * @param currentCipher The new storage cipher to encrypt with
      */
-    private Map<String, String> decryptAllWithSavedCipher(SharedPreferences dataSource,
-                                                          StorageCipher savedStorageCipher) throws Exception {
-        Map<String, String> decryptedCache = new HashMap<>();
-        int count = 0;
-
-        for (Map.Entry<String, ?> entry : dataSource.getAll().entrySet()) {
-            String key = entry.getKey();
-            Object value = entry.getValue();
-
-            if (value instanceof String && key.contains(config.getSharedPreferencesKeyPrefix())) {
-                try {
-                    // Decode and decrypt with old cipher
-                    byte[] encryptedData = Base64.decode((String) value, 0);
-                    byte[] decryptedData = savedStorageCipher.decrypt(encryptedData);
-                    String plainValue = new String(decryptedData, charset);
+    private void reEncryptAllInChunks(SharedPreferences dataSource, List<String> keys,
+                                      StorageCipher savedCipher, StorageCipher currentCipher) throws Exception {
+        SharedPreferences.Editor editor = dataSource.edit();
+        ChunkedMigration.Result result = ChunkedMigration.reEncrypt(dataSource, keys, savedCipher, currentCipher,
+                editor, config.getMigrationChunkSize(), config.getMigrationParallelism(), migrationProgress);
 
-                    decryptedCache.put(key, plainValue);
-                    count++;
-                } catch (Exception e) {
-                    Log.e(TAG, "Failed to decrypt key: " + key, e);
-                    throw new Exception("Failed to decrypt existing data with saved cipher for key: " + key, e);
-                }
-            }
+        // Use commit() instead of apply() to guarantee data is written to disk
+        // before returning. This prevents data loss if the app is force-killed
+        // immediately after migration (e.g., on slow eMMC storage devices).
+        if (!editor.commit()) {
+            throw new Exception("Failed to commit encrypted data to disk - storage may be full or unavailable");
         }
-
-        Log.d(TAG, "Successfully decrypted " + count + " items with saved cipher");
-        return decryptedCache;
+        Log.d(TAG, "Successfully re-encrypted and committed " + result.getEntries() + " items with current cipher to disk");
     }
 
     /**
      * Encrypts all data using the current (new) cipher and writes to SharedPreferences.
      *
-     * @param cache Map of plaintext key-value pairs to encrypt
+     * @param cache Map of keys to their plaintexts as stored, to encrypt
      * @param dataTarget SharedPreferences to write encrypted data
      * @param currentStorageCipher The new storage cipher to encrypt with
      */
-    private void encryptAllWithCurrentCipher(Map<String, String> cache, SharedPreferences dataTarget,
+    private void encryptAllWithCurrentCipher(Map<String, byte[]> cache, SharedPreferences dataTarget,
                                             StorageCipher currentStorageCipher) throws Exception {
         SharedPreferences.Editor editor = dataTarget.edit();
         int count = 0;
 
-        for (Map.Entry<String, String> entry : cache.entrySet()) {
+        migrationProgress.startPhase(MigrationProgress.PHASE_ENCRYPT, cache.size());
+        for (Map.Entry<String, byte[]> entry : cache.entrySet()) {
             try {
-                byte[] encryptedData = currentStorageCipher.encrypt(entry.getValue().getBytes(charset));
-                String encodedValue = Base64.encodeToString(encryptedData, 0);
+                byte[] plaintext = entry.getValue();
+                byte[] encryptedData = currentStorageCipher.encrypt(plaintext);
+                String encodedValue = ValueEnvelope.encode(currentStorageCipher, encryptedData);
                 editor.putString(entry.getKey(), encodedValue);
                 count++;
+                migrationProgress.advance(1, plaintext.length);
             } catch (Exception e) {
                 Log.e(TAG, "Failed to encrypt key: " + entry.getKey(), e);
                 throw new Exception("Failed to encrypt data with current cipher for key: " + entry.getKey(), e);
@@ -430,55 +976,6 @@ public class FlutterSecureStorage {
         Log.d(TAG, "Successfully encrypted and committed " + count + " items with current cipher to disk");
     }
 
-    /**
-     * Encrypts all entries in cache with the current cipher, tracking per-key progress in configSource.
-     * On retry after a crash mid-step, keys already marked <key>_MIGRATED in configSource are skipped
-     * (they were already written to dataTarget). After each successful key write, a _MIGRATED marker
-     * is stored in configSource so a subsequent retry knows to skip it.
-     *
-     * Markers are stored in configSource (not dataSource) so they don't interfere with real user data.
-     * Step 7 cleans up all _MIGRATED markers after full migration completes.
-     */
-    private void encryptAllWithCurrentCipherTracked(Map<String, String> cache, SharedPreferences dataTarget,
-                                                    NamespacedConfigSource configSource,
-                                                    StorageCipher currentStorageCipher,
-                                                    String keyPrefix) throws Exception {
-        int count = 0;
-        int skipped = 0;
-
-        for (Map.Entry<String, String> entry : cache.entrySet()) {
-            String key = entry.getKey();
-            String migratedMarker = key + "_MIGRATED";
-
-            // Skip keys already successfully written on a previous (crashed) run
-            if (configSource.contains(migratedMarker)) {
-                skipped++;
-                Log.d(TAG, "Skipping already-migrated key: " + key);
-                continue;
-            }
-
-            try {
-                byte[] encryptedData = currentStorageCipher.encrypt(entry.getValue().getBytes(charset));
-                String encodedValue = Base64.encodeToString(encryptedData, 0);
-
-                // Write encrypted value then mark as migrated — both committed atomically
-                SharedPreferences.Editor dataEditor = dataTarget.edit();
-                dataEditor.putString(key, encodedValue);
-                if (!dataEditor.commit()) {
-                    throw new Exception("Failed to commit encrypted data for key: " + key);
-                }
-
-                configSource.edit().putBoolean(migratedMarker, true).commit();
-                count++;
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to encrypt key: " + key, e);
-                throw new Exception("Failed to encrypt data with current cipher for key: " + key, e);
-            }
-        }
-
-        Log.d(TAG, "Encrypted " + count + " items (skipped " + skipped + " already-migrated) with current cipher");
-    }
-
     /**
      * Checks if a storage cipher algorithm name indicates biometric authentication.
      */
@@ -504,14 +1001,16 @@ public class FlutterSecureStorage {
             Log.d(TAG, "Step 1/6: Initializing saved cipher...");
             StorageCipher savedCipher = storageCipherFactory.getSavedStorageCipher(context, null);
 
-            // Step 2: Decrypt all data with old cipher
-            Log.d(TAG, "Step 2/6: Decrypting all data with saved cipher...");
-            Map<String, String> decryptedCache = decryptAllWithSavedCipher(dataSource, savedCipher);
+            // Step 2: Verify all data decrypts with old cipher before anything is deleted
+            Log.d(TAG, "Step 2/6: Verifying all data decrypts with saved cipher...");
+            List<String> keys = ChunkedMigration.collectKeys(dataSource, config.getSharedPreferencesKeyPrefix());
+            ChunkedMigration.verifyDecryptable(dataSource, keys, savedCipher, config.getMigrationChunkSize(),
+                    config.getMigrationParallelism(), migrationProgress);
 
             // Step 3: Delete OLD RSA key from Android KeyStore
             // Critical: Must delete before creating new RSA key to avoid key collision
             Log.d(TAG, "Step 3/6: Deleting old RSA key from Android KeyStore...");
-            if (storageCipherFactory.changedKeyAlgorithm()) {
+            if (storageCipherFactory.replacesSavedKeyCipher()) {
                 try {
                     KeyCipher savedKeyCipher = storageCipherFactory.getSavedKeyCipher(context);
                     savedKeyCipher.deleteKey();
@@ -531,18 +1030,18 @@ public class FlutterSecureStorage {
             Log.d(TAG, "Step 5/6: Initializing current cipher with fresh AES key...");
             StorageCipher currentCipher = storageCipherFactory.getCurrentStorageCipher(context, null);
 
-            if (decryptedCache.isEmpty()) {
+            if (keys.isEmpty()) {
                 Log.i(TAG, "Step 6/6: No data to migrate, continuing...");
             } else {
-                // Step 6: Encrypt all data with new cipher
-                Log.d(TAG, "Step 6/6: Encrypting all data with current cipher...");
-                encryptAllWithCurrentCipher(decryptedCache, dataSource, currentCipher);
+                // Step 6: Re-encrypt all data with new cipher, one chunk at a time
+                Log.d(TAG, "Step 6/6: Re-encrypting all data with current cipher...");
+                reEncryptAllInChunks(dataSource, keys, savedCipher, currentCipher);
             }
 
             // Update storageCipher to current
             storageCipher = currentCipher;
 
-            Log.i(TAG, "Non-biometric migration completed successfully! Migrated " + decryptedCache.size() + " items.");
+            Log.i(TAG, "Non-biometric migration completed successfully! Migrated " + keys.size() + " items.");
             callback.onSuccess(null);
 
         } catch (Exception e) {
@@ -638,10 +1137,12 @@ public class FlutterSecureStorage {
                 @Override
                 public void onSuccess(BiometricPrompt.AuthenticationResult unused) {
                     try {
-                        // Step 2: Decrypt with OLD biometric cipher
-                        Log.d(TAG, "Step 2/6: Decrypting all data with saved biometric cipher...");
+                        // Step 2: Verify all data decrypts with OLD biometric cipher
+                        Log.d(TAG, "Step 2/6: Verifying all data decrypts with saved biometric cipher...");
                         StorageCipher savedCipher = storageCipherFactory.getSavedStorageCipher(context, oldKeyCipher);
-                        Map<String, String> decryptedCache = decryptAllWithSavedCipher(dataSource, savedCipher);
+                        List<String> keys = ChunkedMigration.collectKeys(dataSource, config.getSharedPreferencesKeyPrefix());
+                        ChunkedMigration.verifyDecryptable(dataSource, keys, savedCipher, config.getMigrationChunkSize(),
+                                config.getMigrationParallelism(), migrationProgress);
 
                         // Step 3: Delete OLD biometric AES key from Android KeyStore
                         // Critical: Must delete before creating new RSA key to avoid key type collision
@@ -667,9 +1168,9 @@ public class FlutterSecureStorage {
                         Log.d(TAG, "Step 5/6: Initializing current non-biometric cipher...");
                         StorageCipher currentCipher = storageCipherFactory.getCurrentStorageCipher(context, null);
 
-                        // Step 6: Encrypt all data with NEW cipher
-                        Log.d(TAG, "Step 6/6: Encrypting all data with current cipher...");
-                        encryptAllWithCurrentCipher(decryptedCache, dataSource, currentCipher);
+                        // Step 6: Re-encrypt all data with NEW cipher
+                        Log.d(TAG, "Step 6/6: Re-encrypting all data with current cipher...");
+                        reEncryptAllInChunks(dataSource, keys, savedCipher, currentCipher);
 
                         storageCipher = currentCipher;
 
@@ -700,10 +1201,12 @@ public class FlutterSecureStorage {
     private void migrateFromNonBiometricToBiometric(NamespacedConfigSource configSource, SharedPreferences dataSource,
                                                     SecurePreferencesCallback<Void> callback) {
         try {
-            // Step 1: Decrypt with OLD non-biometric cipher (no auth)
-            Log.d(TAG, "Step 1/6: Decrypting all data with saved non-biometric cipher...");
+            // Step 1: Verify all data decrypts with OLD non-biometric cipher (no auth)
+            Log.d(TAG, "Step 1/6: Verifying all data decrypts with saved non-biometric cipher...");
             StorageCipher savedCipher = storageCipherFactory.getSavedStorageCipher(context, null);
-            Map<String, String> decryptedCache = decryptAllWithSavedCipher(dataSource, savedCipher);
+            List<String> keys = ChunkedMigration.collectKeys(dataSource, config.getSharedPreferencesKeyPrefix());
+            ChunkedMigration.verifyDecryptable(dataSource, keys, savedCipher, config.getMigrationChunkSize(),
+                    config.getMigrationParallelism(), migrationProgress);
 
             // Step 2: Delete OLD RSA key from Android KeyStore
             // Critical: Must delete before creating new biometric AES key to avoid key type collision
@@ -737,7 +1240,6 @@ public class FlutterSecureStorage {
             Log.i(TAG, "Authenticating with NEW biometric cipher to encrypt data...");
 
             // Authenticate with NEW cipher
-            final Map<String, String> cachedData = decryptedCache; // Make final for lambda
             authenticateUser(newCipher, new SecurePreferencesCallback<>() {
                 @Override
                 public void onSuccess(BiometricPrompt.AuthenticationResult unused) {
@@ -746,9 +1248,9 @@ public class FlutterSecureStorage {
                         Log.d(TAG, "Step 5/6: Initializing current biometric cipher...");
                         StorageCipher currentCipher = storageCipherFactory.getCurrentStorageCipher(context, newCipher);
 
-                        // Step 6: Encrypt all data with NEW biometric cipher
-                        Log.d(TAG, "Step 6/6: Encrypting all data with current biometric cipher...");
-                        encryptAllWithCurrentCipher(cachedData, dataSource, currentCipher);
+                        // Step 6: Re-encrypt all data with NEW biometric cipher
+                        Log.d(TAG, "Step 6/6: Re-encrypting all data with current biometric cipher...");
+                        reEncryptAllInChunks(dataSource, keys, savedCipher, currentCipher);
 
                         storageCipher = currentCipher;
 
@@ -795,10 +1297,12 @@ public class FlutterSecureStorage {
                 @Override
                 public void onSuccess(BiometricPrompt.AuthenticationResult unused) {
                     try {
-                        // Step 2: Decrypt with OLD biometric cipher
-                        Log.d(TAG, "Step 2/7: Decrypting all data with saved biometric cipher...");
+                        // Step 2: Verify all data decrypts with OLD biometric cipher
+                        Log.d(TAG, "Step 2/7: Verifying all data decrypts with saved biometric cipher...");
                         StorageCipher savedCipher = storageCipherFactory.getSavedStorageCipher(context, oldCipher);
-                        Map<String, String> decryptedCache = decryptAllWithSavedCipher(dataSource, savedCipher);
+                        List<String> keys = ChunkedMigration.collectKeys(dataSource, config.getSharedPreferencesKeyPrefix());
+                        ChunkedMigration.verifyDecryptable(dataSource, keys, savedCipher, config.getMigrationChunkSize(),
+                                config.getMigrationParallelism(), migrationProgress);
 
                         // Step 3: Delete OLD biometric AES key from Android KeyStore
                         // Critical: Must delete before creating new biometric AES key to avoid key collision
@@ -832,7 +1336,6 @@ public class FlutterSecureStorage {
                         Log.i(TAG, "Authenticating with NEW biometric cipher to encrypt data...");
 
                         // Second authentication: NEW cipher
-                        final Map<String, String> cachedData = decryptedCache;
                         authenticateUser(newCipher, new SecurePreferencesCallback<>() {
                             @Override
                             public void onSuccess(BiometricPrompt.AuthenticationResult unused) {
@@ -841,9 +1344,9 @@ public class FlutterSecureStorage {
                                     Log.d(TAG, "Step 6/7: Initializing current biometric cipher...");
                                     StorageCipher currentCipher = storageCipherFactory.getCurrentStorageCipher(context, newCipher);
 
-                                    // Step 7: Encrypt all data with NEW biometric cipher
-                                    Log.d(TAG, "Step 7/7: Encrypting all data with current biometric cipher...");
-                                    encryptAllWithCurrentCipher(cachedData, dataSource, currentCipher);
+                                    // Step 7: Re-encrypt all data with NEW biometric cipher
+                                    Log.d(TAG, "Step 7/7: Re-encrypting all data with current biometric cipher...");
+                                    reEncryptAllInChunks(dataSource, keys, savedCipher, currentCipher);
 
                                     storageCipher = currentCipher;
 
@@ -913,9 +1416,11 @@ public class FlutterSecureStorage {
                     Context.MODE_PRIVATE
             );
 
+            startMigrationProgress();
             migrateData(configSource, dataPrefs, new SecurePreferencesCallback<>() {
                 @Override
                 public void onSuccess(Void unused) {
+                    finishMigrationProgress(null);
                     Log.i(TAG, "Data migration completed successfully!");
                     setEncryptedPrefsMigrated(configSource);
                     callback.onSuccess(null);
@@ -923,6 +1428,7 @@ public class FlutterSecureStorage {
 
                 @Override
                 public void onError(Exception migrationError) {
+                    finishMigrationProgress(migrationError);
                     Log.e(TAG, "Data migration failed: " + migrationError.getMessage(), migrationError);
 
                     // Migration failed, check if we should delete
@@ -1003,7 +1509,7 @@ public class FlutterSecureStorage {
             Log.w(TAG, "All data deleted. Reinitializing with new algorithm...");
 
             // Retry initialization with clean state
-            initializeStorageCipher(configSource, callback);
+            initializeStorageCipher(configSource, false, callback);
         } catch (Exception cleanupError) {
             Log.e(TAG, "Failed to clean up after key mismatch", cleanupError);
             callback.onError(cleanupError);
@@ -1038,6 +1544,39 @@ public class FlutterSecureStorage {
         return keyguardManager != null && keyguardManager.isDeviceSecure();
     }
 
+    /**
+     * Estimates what migrating the storage described by config to its configured algorithms
+     * would cost, without initializing or modifying it. Can be called at any time, also before
+     * {@link #initialize}; see {@link MigrationEstimate}.
+     */
+    public MigrationEstimate estimateMigration(FlutterSecureStorageConfig config) throws Exception {
+        return MigrationEstimate.estimate(context, config);
+    }
+
+    /**
+     * Returns the measurements the AUTO storage algorithm was selected by during
+     * initialization, or null if no selection was measured in this process, because another
+     * algorithm is configured or the selection was made on an earlier run.
+     */
+    public CipherBenchmark getCipherBenchmark() {
+        return cipherBenchmark;
+    }
+
+    /**
+     * Returns the algorithms this storage encrypts with and the security provider running its
+     * storage cipher, see {@link CryptoProviders}. The keys of every key algorithm are kept in
+     * the AndroidKeyStore.
+     */
+    public Map<String, Object> getCipherDiagnostics() {
+        final StorageCipherAlgorithm storageAlgorithm = storageCipherFactory.getCurrentStorageAlgorithm();
+        final Map<String, Object> diagnostics = new HashMap<>();
+        diagnostics.put("keyCipherAlgorithm", storageCipherFactory.getCurrentKeyAlgorithm().name());
+        diagnostics.put("storageCipherAlgorithm", storageAlgorithm.name());
+        diagnostics.put("storageCipherProvider", CryptoProviders.getProviderName(storageAlgorithm));
+        diagnostics.put("derivedKey", storageCipherFactory.derivesCurrentKey());
+        return diagnostics;
+    }
+
     /**
      * Returns the application context.
      * Used by RecoveryMode to access SharedPreferences and KeyStore.
@@ -1127,7 +1666,7 @@ public class FlutterSecureStorage {
         }
     }
 
-    private void authenticateUser(Cipher cipher, SecurePreferencesCallback<BiometricPrompt.AuthenticationResult> securePreferencesCallback) throws Exception {
+    private void authenticateUser(@Nullable Cipher cipher, SecurePreferencesCallback<BiometricPrompt.AuthenticationResult> securePreferencesCallback) throws Exception {
         // Check if biometric is available based on enforcement setting
         boolean enforceRequired = config.getEnforceBiometrics();
         ensureBiometricAvailable(enforceRequired);
@@ -1139,8 +1678,6 @@ public class FlutterSecureStorage {
             return; // Skip authentication if not enforced
         }
 
-        BiometricPrompt.CryptoObject crypto = new BiometricPrompt.CryptoObject(cipher);
-
         BiometricPrompt.Builder promptInfoBuilder = new BiometricPrompt.Builder(context)
                 .setTitle(config.getBiometricPromptTitle())
                 .setSubtitle(config.getPrefOptionBiometricPromptSubtitle());
@@ -1153,25 +1690,35 @@ public class FlutterSecureStorage {
         BiometricPrompt promptInfo = promptInfoBuilder
                 .build();
 
-        CancellationSignal cancellationSignal = new CancellationSignal();
-        Executor executor = Executors.newSingleThreadExecutor();
+        final BiometricAuthentications authentications = biometricAuthentications;
+        final BiometricAuthentications.Authentication authentication = authentications.start(securePreferencesCallback);
 
         BiometricPrompt.AuthenticationCallback callback = new BiometricPrompt.AuthenticationCallback() {
             @Override
             public void onAuthenticationSucceeded(BiometricPrompt.AuthenticationResult result) {
                 super.onAuthenticationSucceeded(result);
-                securePreferencesCallback.onSuccess(result);
+                authentication.succeed(result);
             }
 
             @Override
             public void onAuthenticationError(int errorCode, CharSequence errString) {
                 super.onAuthenticationError(errorCode, errString);
                 Log.e(TAG, "Biometric authentication error [" + errorCode + "]: " + errString);
-                securePreferencesCallback.onError(new Exception("Biometric authentication error [" + errorCode + "]: " + errString));
+                authentication.fail(new Exception("Biometric authentication error [" + errorCode + "]: " + errString));
             }
         };
 
-        promptInfo.authenticate(crypto, cancellationSignal, executor, callback);
+        try {
+            if (cipher != null) {
+                promptInfo.authenticate(new BiometricPrompt.CryptoObject(cipher), authentication.cancellationSignal,
+                        authentications.getExecutor(), callback);
+            } else {
+                promptInfo.authenticate(authentication.cancellationSignal, authentications.getExecutor(), callback);
+            }
+        } catch (RuntimeException e) {
+            // Never shown; do not leave it in flight
+            authentication.fail(e);
+        }
     }
 
     /**
@@ -1197,7 +1744,7 @@ public class FlutterSecureStorage {
         Log.i(TAG, "Starting ESP→custom cipher migration WITH backup protection...");
 
         // Initialize custom cipher for migration target
-        initializeStorageCipher(configSource, new SecurePreferencesCallback<>() {
+        initializeStorageCipher(configSource, false, new SecurePreferencesCallback<>() {
             @Override
             public void onSuccess(Void unused) {
                 try {
@@ -1234,39 +1781,40 @@ public class FlutterSecureStorage {
     /**
      * Migrates data from EncryptedSharedPreferences to custom cipher storage using specified cipher.
      * Data is read from ESP (plaintext after ESP decryption), then encrypted with custom cipher.
+     * All entries are written in one commit and removed from ESP in a second one.
      */
     private void migrateFromEncryptedSharedPreferences(SharedPreferences source, SharedPreferences target, StorageCipher cipher) throws Exception {
-        int migratedCount = 0;
-
-        for (Map.Entry<String, ?> entry : source.getAll().entrySet()) {
-            Object v = entry.getValue();
-            String key = entry.getKey();
-
-            if (v instanceof String plainValue && key.contains(config.getSharedPreferencesKeyPrefix())) {
-                byte[] encrypted = cipher.encrypt(plainValue.getBytes(charset));
-                String baseEncoded = Base64.encodeToString(encrypted, 0);
-                target.edit().putString(key, baseEncoded).apply();
-
-                // Remove from EncryptedSharedPreferences
-                source.edit().remove(key).apply();
-
-                migratedCount++;
-                Log.d(TAG, "Migrated key: " + key.replaceFirst(config.getSharedPreferencesKeyPrefix() + '_', ""));
-            }
+        if (migrationProgress != MigrationProgress.NONE) {
+            // Part of an algorithm migration that is already being reported
+            EncryptedPreferencesMigration.migrate(source, target, cipher, config.getSharedPreferencesKeyPrefix(),
+                    migrationProgress);
+            return;
         }
-
-        Log.i(TAG, "Migration complete: " + migratedCount + " items migrated from EncryptedSharedPreferences to custom cipher storage");
+        startMigrationProgress();
+        try {
+            EncryptedPreferencesMigration.migrate(source, target, cipher, config.getSharedPreferencesKeyPrefix(),
+                    migrationProgress);
+        } catch (Exception e) {
+            finishMigrationProgress(e);
+            throw e;
+        }
+        finishMigrationProgress(null);
     }
 
     private SharedPreferences initializeEncryptedSharedPreferencesManager(Context context) throws GeneralSecurityException, IOException {
-        MasterKey key = new MasterKey.Builder(context)
-                .setKeyGenParameterSpec(
-                        new KeyGenParameterSpec
-                                .Builder(MasterKey.DEFAULT_MASTER_KEY_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
-                                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
-                                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
-                                .setKeySize(256).build())
-                .build();
+        // The master key alias is shared by all namespaces; guard its creation so
+        // namespaces initialized concurrently don't generate it twice.
+        MasterKey key;
+        synchronized (KeyStoreAccess.lockFor(MasterKey.DEFAULT_MASTER_KEY_ALIAS)) {
+            key = new MasterKey.Builder(context)
+                    .setKeyGenParameterSpec(
+                            new KeyGenParameterSpec
+                                    .Builder(MasterKey.DEFAULT_MASTER_KEY_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                                    .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                                    .setKeySize(256).build())
+                    .build();
+        }
         return EncryptedSharedPreferences.create(
                 context,
                 config.getEffectiveDataPrefsName(),
@@ -1321,14 +1869,16 @@ public class FlutterSecureStorage {
         }
     }
 
-    private String decodeRawValue(String value) throws Exception {
+    private String decodeRawValue(String key, String value) throws Exception {
         if (value == null) {
             return null;
         }
-        byte[] data = Base64.decode(value, 0);
-        byte[] result = storageCipher.decrypt(data);
+        return largeValues.decode(key, decryptRawValue(value));
+    }
 
-        return new String(result, charset);
+    private byte[] decryptRawValue(String value) throws Exception {
+        byte[] data = ValueEnvelope.parse(value).getCiphertextFor(storageCipher);
+        return storageCipher.decrypt(data);
     }
     // ============================================================================
     // MIGRATION WITH BACKUP METHODS
@@ -1339,159 +1889,52 @@ public class FlutterSecureStorage {
             Log.i(TAG, "Starting non-biometric migration WITH BACKUP (rename operation)...");
 
             try {
-                SharedPreferences keyStorage = context.getSharedPreferences(
-                    "FlutterSecureKeyStorage", Context.MODE_PRIVATE);
-
-                // Step 1: Create backup - copies data + wrapped keys to _BACKUP, keeps originals.
-                // createBackup() is idempotent: skips internally if status is already "complete".
-                // On retry after crash, backup is already complete so this is a no-op.
-                Log.d(TAG, "Step 1/8: Creating backup (copy originals to _BACKUP, keep originals)...");
-                if (storageCipherFactory.changedKeyAlgorithm()) {
-                    MigrationBackup.createBackup(
-                        dataSource,
-                        keyStorage,
-                        configSource,
-                        config,
-                        config.getSharedPreferencesKeyPrefix()
-                    );
-                    Log.i(TAG, "Backup step complete - originals preserved alongside _BACKUP copies");
-                } else {
-                    Log.i(TAG, "No algorithm change detected, skipping backup");
-                }
-
-                // Step 2: Restore wrapped keys from _BACKUP, then initialize old cipher.
-                // On first run: originals still exist, restore is a no-op (same value).
-                // On retry after crash at step 4 or earlier: originals were deleted, restore brings them back.
-                // IMPORTANT: If _MIGRATED markers exist, step 6 already ran (at least partially) in a prior
-                // crashed run. The new OAEP-wrapped AES key is already in keyStorage. We still need to
-                // temporarily restore the old _BACKUP key so getSavedStorageCipher can initialize (it reads
-                // from keyStorage using the old RSA key). After savedCipher is initialized, we put the new
-                // key back so step 6's preserved data remains readable with the new cipher.
-                Log.d(TAG, "Step 2/8: Restoring wrapped keys from _BACKUP and initializing saved cipher...");
-                boolean alreadyPartiallyMigrated = MigrationBackup.hasMigratedMarkers(
-                        configSource, config.getSharedPreferencesKeyPrefix());
-                // If step 6 ran previously, save the current (new) keyStorage entries so we can
-                // restore them after initializing savedCipher from the _BACKUP blobs.
-                Map<String, String> newKeyStorageEntries = new HashMap<>();
-                if (alreadyPartiallyMigrated) {
-                    for (Map.Entry<String, ?> entry : keyStorage.getAll().entrySet()) {
-                        String k = entry.getKey();
-                        if (!k.endsWith("_BACKUP") && entry.getValue() instanceof String) {
-                            newKeyStorageEntries.put(k, (String) entry.getValue());
-                        }
-                    }
-                    Log.d(TAG, "Step 2/8: _MIGRATED markers found — saved " + newKeyStorageEntries.size()
-                            + " new key entries; temporarily restoring _BACKUP blobs for savedCipher init");
-                }
-                // Restore _BACKUP key blobs (so savedCipher can unwrap with old RSA key)
-                SharedPreferences.Editor keyRestoreEditor = keyStorage.edit();
-                for (Map.Entry<String, ?> entry : keyStorage.getAll().entrySet()) {
-                    String k = entry.getKey();
-                    if (k.endsWith("_BACKUP") && entry.getValue() instanceof String) {
-                        String originalKey = k.substring(0, k.length() - "_BACKUP".length());
-                        keyRestoreEditor.putString(originalKey, (String) entry.getValue());
-                    }
-                }
-                keyRestoreEditor.commit();
-                StorageCipher savedCipher = storageCipherFactory.getSavedStorageCipher(context, null);
-                // After savedCipher init: if step 6 already ran, put the new wrapped key back
-                // so subsequent reads (and step 6 for any remaining keys) use the correct cipher.
-                if (alreadyPartiallyMigrated && !newKeyStorageEntries.isEmpty()) {
-                    SharedPreferences.Editor keyRevertEditor = keyStorage.edit();
-                    for (Map.Entry<String, String> entry : newKeyStorageEntries.entrySet()) {
-                        keyRevertEditor.putString(entry.getKey(), entry.getValue());
+                BackupMigration migration = new BackupMigration(new BackupMigration.Host() {
+                    @Override
+                    public StorageCipher getSavedStorageCipher() throws Exception {
+                        return storageCipherFactory.getSavedStorageCipher(context, null);
                     }
-                    keyRevertEditor.commit();
-                    Log.d(TAG, "Step 2/8: New wrapped key restored to keyStorage after savedCipher init");
-                }
-
-                // Step 3: Decrypt all data FROM _BACKUP keys (in memory only)
-                // _BACKUP keys always contain the original old ciphertext, regardless of how many
-                // times migration has been retried. Even if step 6 already re-encrypted the
-                // Step 2 restored the wrapped AES key blob to its original name so savedCipher
-                // is initialized correctly. Data is read from _BACKUP keys (not originals) because
-                // originals may already be re-encrypted with the new cipher from a prior partial run.
-                Log.d(TAG, "Step 3/8: Decrypting all data from _BACKUP keys...");
-                Map<String, String> decryptedCache = decryptAllWithSavedCipherFromBackup(dataSource, null, savedCipher);
-                Log.d(TAG, "Successfully decrypted " + decryptedCache.size() + " items from _BACKUP keys");
-
-                // Step 4: Delete originals from dataSource and keyStorage.
-                // Keys already marked _MIGRATED in configSource are preserved — they were
-                // successfully re-encrypted on a prior (crashed) run and must not be deleted,
-                // as step 6 will skip them (they're already in dataSource with new cipher).
-                Log.d(TAG, "Step 4/8: Deleting original encrypted entries (preserving already-migrated)...");
-                MigrationBackup.deleteOriginalData(dataSource, keyStorage, configSource, config.getSharedPreferencesKeyPrefix());
-
-                if (decryptedCache.isEmpty()) {
-                    Log.i(TAG, "No data found to migrate");
-                } else {
-                    Log.i(TAG, "Found " + decryptedCache.size() + " items to migrate");
-                }
-
-                // Step 5: Create new cipher (NEW algorithm)
-                Log.d(TAG, "Step 5/8: Initializing current cipher with new algorithm...");
-                StorageCipher currentCipher = storageCipherFactory.getCurrentStorageCipher(context, null);
-
-                if (decryptedCache.isEmpty()) {
-                    Log.i(TAG, "Step 6/8: No data to encrypt, skipping...");
-                } else {
-                    // Step 6: Encrypt all data with NEW cipher, tracking per-key progress.
-                    // On retry after a crash mid-step 6, keys already marked _MIGRATED are skipped.
-                    Log.d(TAG, "Step 6/8: Encrypting all data with current cipher (per-key tracking)...");
-                    encryptAllWithCurrentCipherTracked(decryptedCache, dataSource, configSource, currentCipher,
-                                                       config.getSharedPreferencesKeyPrefix());
-                }
 
-                // Step 7: Migrate ESP data if present (after algorithm migration complete)
-                Log.d(TAG, "Step 7/8: Checking for ESP data to migrate...");
+                    @Override
+                    public StorageCipher getCurrentStorageCipher() throws Exception {
+                        return storageCipherFactory.getCurrentStorageCipher(context, null);
+                    }
 
-                // Check if ESP migration is needed
-                Boolean isESPMigrated = getEncryptedPrefsMigrated(configSource);
-                if (!isESPMigrated) {
-                    try {
-                        SharedPreferences encryptedPreferences = initializeEncryptedSharedPreferencesManager(context);
-                        if (hasDataInEncryptedSharedPreferences(encryptedPreferences)) {
-                            Log.i(TAG, "Found ESP data - migrating to custom cipher storage...");
-                            migrateFromEncryptedSharedPreferences(encryptedPreferences, dataSource, currentCipher);
-                            setEncryptedPrefsMigrated(configSource);
-                            Log.i(TAG, "ESP migration completed successfully");
-                        } else {
-                            Log.d(TAG, "No ESP data found");
+                    @Override
+                    public void migrateEncryptedSharedPreferences(StorageCipher currentCipher) {
+                        if (getEncryptedPrefsMigrated(configSource)) {
+                            return;
+                        }
+                        try {
+                            SharedPreferences encryptedPreferences = initializeEncryptedSharedPreferencesManager(context);
+                            if (hasDataInEncryptedSharedPreferences(encryptedPreferences)) {
+                                Log.i(TAG, "Found ESP data - migrating to custom cipher storage...");
+                                migrateFromEncryptedSharedPreferences(encryptedPreferences, dataSource, currentCipher);
+                                setEncryptedPrefsMigrated(configSource);
+                                Log.i(TAG, "ESP migration completed successfully");
+                            } else {
+                                Log.d(TAG, "No ESP data found");
+                            }
+                        } catch (Exception espError) {
+                            Log.w(TAG, "ESP migration failed or ESP not available: " + espError.getMessage());
                         }
-                    } catch (Exception espError) {
-                        Log.w(TAG, "ESP migration failed or ESP not available: " + espError.getMessage());
                     }
-                }
-
-                // Step 8: Cleanup
-                Log.d(TAG, "Step 8/8: Cleaning up - deleting _BACKUP, _MIGRATED markers, updating markers, deleting old keys...");
-
-                // Delete all _BACKUP entries and _MIGRATED markers
-                MigrationBackup.deleteBackup(dataSource, keyStorage, configSource, config,
-                                            config.getSharedPreferencesKeyPrefix());
-                MigrationBackup.deleteMigratedMarkers(configSource, config.getSharedPreferencesKeyPrefix());
 
-                // Update algorithm markers to NEW algorithms
-                updateAlgorithmMarkers(configSource);
+                    @Override
+                    public void storeCurrentAlgorithms(SharedPreferences.Editor editor) {
+                        storageCipherFactory.storeCurrentAlgorithms(editor);
+                    }
 
-                // Delete OLD RSA keys from Android KeyStore
-                if (storageCipherFactory.changedKeyAlgorithm()) {
-                    try {
-                        KeyCipher savedKeyCipher = storageCipherFactory.getSavedKeyCipher(context);
-                        savedKeyCipher.deleteKey();
-                        savedCipher.deleteKey(context);
-                        Log.d(TAG, "Old RSA keys deleted from KeyStore");
-                    } catch (Exception deleteError) {
-                        Log.w(TAG, "Failed to delete old key from KeyStore (may not exist)", deleteError);
+                    @Override
+                    public void deleteSavedKeys(StorageCipher savedCipher) throws Exception {
+                        FlutterSecureStorage.this.deleteSavedKeys(savedCipher);
                     }
-                }
+                }, getDataSnapshot(dataSource), getKeyStorageSnapshot(), configSource, config, migrationProgress);
 
                 // Update storageCipher to current
-                storageCipher = currentCipher;
+                storageCipher = migration.run();
 
                 Log.i(TAG, "Non-biometric migration WITH BACKUP completed successfully!");
-                Log.i(TAG, "Migrated " + decryptedCache.size() + " data items with new algorithm.");
-
                 callback.onSuccess(null);
 
             } catch (Exception e) {
@@ -1499,83 +1942,38 @@ public class FlutterSecureStorage {
                 callback.onError(new Exception("Non-biometric migration with backup failed", e));
             }
         }
-        private Map<String, String> decryptAllWithSavedCipherFromBackup(SharedPreferences dataSource,
+        private Map<String, byte[]> decryptAllWithSavedCipherFromBackup(PreferencesSnapshot dataSnapshot,
                                                                          SharedPreferences espSource,
-                                                                         StorageCipher savedStorageCipher) throws Exception {
-            Map<String, String> decryptedCache = new HashMap<>();
-            int encryptedCount = 0;
-            int espCount = 0;
-
-            // Decrypt ESP _BACKUP keys if ESP source provided
-            if (espSource != null) {
-                try {
-                    for (Map.Entry<String, ?> entry : espSource.getAll().entrySet()) {
-                        String key = entry.getKey();
-                        Object value = entry.getValue();
-
-                        // Only process _BACKUP keys
-                        if (value instanceof String && key.contains(config.getSharedPreferencesKeyPrefix())
-                            && key.endsWith("_BACKUP")) {
-                            String stringValue = (String) value;
-                            String originalKey = key.substring(0, key.length() - "_BACKUP".length());
-
-                            // ESP data is already decrypted by ESP (Tink library)
-                            // No need to decrypt again - just use the value directly
-                            decryptedCache.put(originalKey, stringValue);
-                            espCount++;
-                        }
-                    }
-                } catch (Exception e) {
-                    Log.w(TAG, "Failed to read ESP _BACKUP keys: " + e.getMessage());
-                    // Continue with regular backup keys
-                }
-            }
-
-            // Decrypt regular _BACKUP keys from dataSource
-            for (Map.Entry<String, ?> entry : dataSource.getAll().entrySet()) {
-                String key = entry.getKey();
-                Object value = entry.getValue();
-
-                // Only process _BACKUP keys
-                if (value instanceof String && key.contains(config.getSharedPreferencesKeyPrefix())
-                    && key.endsWith("_BACKUP")) {
-                    String stringValue = (String) value;
-                    String originalKey = key.substring(0, key.length() - "_BACKUP".length());
+                                                                         StorageCipher savedStorageCipher) {
+            return BackupMigration.decryptBackups(dataSnapshot, espSource, savedStorageCipher,
+                    config.getSharedPreferencesKeyPrefix(), migrationProgress);
+        }
 
-                    try {
-                        // Decode Base64 and decrypt with saved cipher
-                        byte[] encryptedData = Base64.decode(stringValue, 0);
-                        byte[] decryptedData = savedStorageCipher.decrypt(encryptedData);
-                        String plainValue = new String(decryptedData, charset);
-
-                        decryptedCache.put(originalKey, plainValue);
-                        encryptedCount++;
-                    } catch (Exception decryptError) {
-                        Log.e(TAG, "Failed to decrypt _BACKUP key (skipping): " + key, decryptError);
-                    }
-                }
-            }
+        private PreferencesSnapshot getDataSnapshot(SharedPreferences dataSource) {
+            return new PreferencesSnapshot(context, config.getEffectiveDataPrefsName(), dataSource);
+        }
 
-            Log.d(TAG, "Successfully processed " + (encryptedCount + espCount) + " items from _BACKUP keys (" +
-                  encryptedCount + " encrypted, " + espCount + " ESP)");
-            return decryptedCache;
+        private PreferencesSnapshot getKeyStorageSnapshot() {
+            return PreferencesSnapshot.of(context, config.getEffectiveKeyStoragePrefsName());
         }
         private void migrateFromBiometricToNonBiometricWithBackup(NamespacedConfigSource configSource, SharedPreferences dataSource,
                                                                    SecurePreferencesCallback<Void> callback) {
             try {
-                SharedPreferences keyStorage = context.getSharedPreferences(
-                    "FlutterSecureKeyStorage", Context.MODE_PRIVATE);
+                PreferencesSnapshot dataSnapshot = getDataSnapshot(dataSource);
+                PreferencesSnapshot keySnapshot = getKeyStorageSnapshot();
 
                 // Step 0: Create backup BEFORE any destructive operations
                 String backupStatus = MigrationBackup.getBackupStatus(configSource, config);
                 if (!MigrationBackup.STATUS_COMPLETE.equals(backupStatus)) {
                     Log.i(TAG, "Creating backup before biometric→non-biometric migration...");
                     MigrationBackup.createBackup(
-                        dataSource,
-                        keyStorage,
+                        dataSnapshot,
+                        keySnapshot,
+                        null,
                         configSource,
                         config,
-                        config.getSharedPreferencesKeyPrefix()
+                        config.getSharedPreferencesKeyPrefix(),
+                        migrationProgress
                     );
                     Log.i(TAG, "Backup created successfully");
                 }
@@ -1597,9 +1995,9 @@ public class FlutterSecureStorage {
                     public void onSuccess(BiometricPrompt.AuthenticationResult unused) {
                         try {
                             // Step 2: Decrypt with OLD biometric cipher FROM BACKUP
-                            Log.d(TAG, "Step 2/7: Decrypting all data from _BACKUP with saved biometric cipher...");
+                            Log.d(TAG, "Step 2/7: Decrypting all data from backup with saved biometric cipher...");
                             StorageCipher savedCipher = storageCipherFactory.getSavedStorageCipher(context, oldKeyCipher);
-                            Map<String, String> decryptedCache = decryptAllWithSavedCipherFromBackup(dataSource, null, savedCipher);
+                            Map<String, byte[]> decryptedCache = decryptAllWithSavedCipherFromBackup(dataSnapshot, null, savedCipher);
 
                             // Step 3: Get NEW non-biometric cipher (no auth)
                             Log.d(TAG, "Step 3/7: Initializing current non-biometric cipher...");
@@ -1611,7 +2009,7 @@ public class FlutterSecureStorage {
 
                             // Step 5: Delete backup - data successfully re-encrypted
                             Log.d(TAG, "Step 5/7: Deleting backup after successful re-encryption...");
-                            MigrationBackup.deleteBackup(dataSource, keyStorage, configSource, config,
+                            MigrationBackup.deleteBackup(dataSnapshot, keySnapshot, configSource, config,
                                                         config.getSharedPreferencesKeyPrefix());
 
                             // Step 6: Update algorithm markers AFTER successful re-encryption
@@ -1655,27 +2053,29 @@ public class FlutterSecureStorage {
         private void migrateFromNonBiometricToBiometricWithBackup(NamespacedConfigSource configSource, SharedPreferences dataSource,
                                                                    SecurePreferencesCallback<Void> callback) {
             try {
-                SharedPreferences keyStorage = context.getSharedPreferences(
-                    "FlutterSecureKeyStorage", Context.MODE_PRIVATE);
+                PreferencesSnapshot dataSnapshot = getDataSnapshot(dataSource);
+                PreferencesSnapshot keySnapshot = getKeyStorageSnapshot();
 
                 // Step 0: Create backup BEFORE any destructive operations
                 String backupStatus = MigrationBackup.getBackupStatus(configSource, config);
                 if (!MigrationBackup.STATUS_COMPLETE.equals(backupStatus)) {
                     Log.i(TAG, "Creating backup before non-biometric→biometric migration...");
                     MigrationBackup.createBackup(
-                        dataSource,
-                        keyStorage,
+                        dataSnapshot,
+                        keySnapshot,
+                        null,
                         configSource,
                         config,
-                        config.getSharedPreferencesKeyPrefix()
+                        config.getSharedPreferencesKeyPrefix(),
+                        migrationProgress
                     );
                     Log.i(TAG, "Backup created successfully");
                 }
 
                 // Step 1: Decrypt with OLD non-biometric cipher FROM BACKUP (no auth)
-                Log.d(TAG, "Step 1/7: Decrypting all data from _BACKUP with saved non-biometric cipher...");
+                Log.d(TAG, "Step 1/7: Decrypting all data from backup with saved non-biometric cipher...");
                 StorageCipher savedCipher = storageCipherFactory.getSavedStorageCipher(context, null);
-                Map<String, String> decryptedCache = decryptAllWithSavedCipherFromBackup(dataSource, null, savedCipher);
+                Map<String, byte[]> decryptedCache = decryptAllWithSavedCipherFromBackup(dataSnapshot, null, savedCipher);
 
                 // Step 2: Get NEW biometric cipher (requires authentication)
                 Log.d(TAG, "Step 2/7: Getting current biometric cipher...");
@@ -1689,7 +2089,7 @@ public class FlutterSecureStorage {
                 Log.i(TAG, "Authenticating with NEW biometric cipher to encrypt data...");
 
                 // Authenticate with NEW cipher
-                final Map<String, String> cachedData = decryptedCache; // Make final for lambda
+                final Map<String, byte[]> cachedData = decryptedCache; // Make final for lambda
                 authenticateUser(newCipher, new SecurePreferencesCallback<>() {
                     @Override
                     public void onSuccess(BiometricPrompt.AuthenticationResult unused) {
@@ -1704,7 +2104,7 @@ public class FlutterSecureStorage {
 
                             // Step 5: Delete backup - data successfully re-encrypted
                             Log.d(TAG, "Step 5/7: Deleting backup after successful re-encryption...");
-                            MigrationBackup.deleteBackup(dataSource, keyStorage, configSource, config,
+                            MigrationBackup.deleteBackup(dataSnapshot, keySnapshot, configSource, config,
                                                         config.getSharedPreferencesKeyPrefix());
 
                             // Step 6: Update algorithm markers AFTER successful re-encryption
@@ -1748,19 +2148,21 @@ public class FlutterSecureStorage {
         private void migrateBiometricToBiometricWithBackup(NamespacedConfigSource configSource, SharedPreferences dataSource,
                                                             SecurePreferencesCallback<Void> callback) {
             try {
-                SharedPreferences keyStorage = context.getSharedPreferences(
-                    "FlutterSecureKeyStorage", Context.MODE_PRIVATE);
+                PreferencesSnapshot dataSnapshot = getDataSnapshot(dataSource);
+                PreferencesSnapshot keySnapshot = getKeyStorageSnapshot();
 
                 // Step 0: Create backup BEFORE any destructive operations
                 String backupStatus = MigrationBackup.getBackupStatus(configSource, config);
                 if (!MigrationBackup.STATUS_COMPLETE.equals(backupStatus)) {
                     Log.i(TAG, "Creating backup before biometric→biometric migration...");
                     MigrationBackup.createBackup(
-                        dataSource,
-                        keyStorage,
+                        dataSnapshot,
+                        keySnapshot,
+                        null,
                         configSource,
                         config,
-                        config.getSharedPreferencesKeyPrefix()
+                        config.getSharedPreferencesKeyPrefix(),
+                        migrationProgress
                     );
                     Log.i(TAG, "Backup created successfully");
                 }
@@ -1782,14 +2184,14 @@ public class FlutterSecureStorage {
                     public void onSuccess(BiometricPrompt.AuthenticationResult unused) {
                         try {
                             // Step 2: Decrypt with OLD biometric cipher FROM BACKUP
-                            Log.d(TAG, "Step 2/8: Decrypting all data from _BACKUP with saved biometric cipher...");
+                            Log.d(TAG, "Step 2/8: Decrypting all data from backup with saved biometric cipher...");
                             StorageCipher savedCipher = storageCipherFactory.getSavedStorageCipher(context, oldCipher);
-                            Map<String, String> decryptedCache = decryptAllWithSavedCipherFromBackup(dataSource, null, savedCipher);
+                            Map<String, byte[]> decryptedCache = decryptAllWithSavedCipherFromBackup(dataSnapshot, null, savedCipher);
 
                             if (decryptedCache.isEmpty()) {
-                                Log.i(TAG, "No data found in _BACKUP keys to migrate");
+                                Log.i(TAG, "No data found in backup to migrate");
                             } else {
-                                Log.i(TAG, "Found " + decryptedCache.size() + " items to migrate from _BACKUP keys");
+                                Log.i(TAG, "Found " + decryptedCache.size() + " items to migrate from backup");
                             }
 
                             // Step 3: Get NEW biometric cipher (CONTINUES REGARDLESS)
@@ -1804,7 +2206,7 @@ public class FlutterSecureStorage {
                             Log.i(TAG, "Authenticating with NEW biometric cipher to encrypt data...");
 
                             // Second authentication: NEW cipher
-                            final Map<String, String> cachedData = decryptedCache;
+                            final Map<String, byte[]> cachedData = decryptedCache;
                             authenticateUser(newCipher, new SecurePreferencesCallback<>() {
                                 @Override
                                 public void onSuccess(BiometricPrompt.AuthenticationResult unused) {
@@ -1823,7 +2225,7 @@ public class FlutterSecureStorage {
 
                                         // Step 6: Delete backup - data successfully re-encrypted
                                         Log.d(TAG, "Step 6/8: Deleting backup after successful re-encryption...");
-                                        MigrationBackup.deleteBackup(dataSource, keyStorage, configSource, config,
+                                        MigrationBackup.deleteBackup(dataSnapshot, keySnapshot, configSource, config,
                                                                     config.getSharedPreferencesKeyPrefix());
 
                                         // Step 7: Update algorithm markers AFTER successful re-encryption
@@ -14,18 +14,27 @@ public class FlutterSecureStorageConfig {
     private static final Boolean DEFAULT_DELETE_ON_FAILURE = false;
     private static final Boolean DEFAULT_MIGRATE_ON_ALGORITHM_CHANGE = true;
     private static final Boolean DEFAULT_MIGRATE_WITH_BACKUP = false;
+    private static final Boolean DEFAULT_LAZY_MIGRATION = false;
     private static final Boolean DEFAULT_ENCRYPTED_SHARED_PREFERENCES = false;
     private static final Boolean DEFAULT_ENFORCE_BIOMETRICS = false;
     private static final String DEFAULT_BIOMETRIC_PROMPT_TITLE = "Authenticate to access";
     private static final String DEFAULT_BIOMETRIC_PROMPT_SUBTITLE = "Use biometrics or device credentials";
     private static final String DEFAULT_STORAGE_CIPHER_ALGORITHM = "AES_GCM_NoPadding";
     private static final String DEFAULT_KEY_CIPHER_ALGORITHM = "RSA_ECB_OAEPwithSHA_256andMGF1Padding";
+    private static final int DEFAULT_MIGRATION_CHUNK_SIZE = 256;
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 0;
+    private static final int DEFAULT_LARGE_VALUE_THRESHOLD = 0;
+    private static final Boolean DEFAULT_DERIVE_NAMESPACE_KEYS = false;
+    private static final int DEFAULT_BIOMETRIC_SESSION_SECONDS = 0;
+    // Default is the number of cores, up to this many; more threads mostly contend for the heap
+    private static final int MAX_DEFAULT_MIGRATION_PARALLELISM = 4;
 
     public static final String PREF_OPTION_NAME = "sharedPreferencesName";
     public static final String PREF_OPTION_PREFIX = "preferencesKeyPrefix";
     public static final String PREF_OPTION_DELETE_ON_FAILURE = "resetOnError";
     public static final String PREF_OPTION_MIGRATE_ON_ALGORITHM_CHANGE = "migrateOnAlgorithmChange";
     public static final String PREF_OPTION_MIGRATE_WITH_BACKUP = "migrateWithBackup";
+    public static final String PREF_OPTION_LAZY_MIGRATION = "lazyMigration";
     public static final String PREF_OPTION_ENCRYPTED_SHARED_PREFERENCES = "encryptedSharedPreferences";
     public static final String PREF_OPTION_ENFORCE_BIOMETRICS = "enforceBiometrics";
     public static final String PREF_OPTION_BIOMETRIC_PROMPT_TITLE = "biometricPromptTitle";
@@ -36,6 +45,12 @@ public class FlutterSecureStorageConfig {
     public static final String PREF_OPTION_STORAGE_CIPHER_ALGORITHM = "storageCipherAlgorithm";
     public static final String PREF_OPTION_KEY_CIPHER_ALGORITHM = "keyCipherAlgorithm";
     public static final String PREF_OPTION_STORAGE_NAMESPACE = "storageNamespace";
+    public static final String PREF_OPTION_MIGRATION_CHUNK_SIZE = "migrationChunkSize";
+    public static final String PREF_OPTION_MIGRATION_PARALLELISM = "migrationParallelism";
+    public static final String PREF_OPTION_COMPRESSION_THRESHOLD = "compressionThreshold";
+    public static final String PREF_OPTION_LARGE_VALUE_THRESHOLD = "largeValueThreshold";
+    public static final String PREF_OPTION_DERIVE_NAMESPACE_KEYS = "deriveNamespaceKeys";
+    public static final String PREF_OPTION_BIOMETRIC_SESSION_SECONDS = "biometricSessionSeconds";
 
     private static final String TAG = "FlutterSecureStorageConfig";
 
@@ -46,12 +61,19 @@ public class FlutterSecureStorageConfig {
     private final boolean deleteOnFailure;
     private final boolean migrateOnAlgorithmChange;
     private final boolean migrateWithBackup;
+    private final boolean lazyMigration;
     private final boolean useEncryptedSharedPreferences;
     private final boolean enforceBiometrics;
     private final String biometricPromptTitle;
     private final String biometricPromptSubtitle;
     private final String keyCipherAlgorithm;
     private final String storageCipherAlgorithm;
+    private final int migrationChunkSize;
+    private final int migrationParallelism;
+    private final int compressionThreshold;
+    private final int largeValueThreshold;
+    private final boolean deriveNamespaceKeys;
+    private final int biometricSessionSeconds;
 
     public FlutterSecureStorageConfig(Map<String, Object> options) {
         this.sharedPreferencesName = getStringOption(options, PREF_OPTION_NAME, DEFAULT_PREF_NAME);
@@ -59,6 +81,7 @@ public class FlutterSecureStorageConfig {
         this.deleteOnFailure = getBooleanOption(options, PREF_OPTION_DELETE_ON_FAILURE, DEFAULT_DELETE_ON_FAILURE);
         this.migrateOnAlgorithmChange = getBooleanOption(options, PREF_OPTION_MIGRATE_ON_ALGORITHM_CHANGE, DEFAULT_MIGRATE_ON_ALGORITHM_CHANGE);
         this.migrateWithBackup = getBooleanOption(options, PREF_OPTION_MIGRATE_WITH_BACKUP, DEFAULT_MIGRATE_WITH_BACKUP);
+        this.lazyMigration = getBooleanOption(options, PREF_OPTION_LAZY_MIGRATION, DEFAULT_LAZY_MIGRATION);
         this.useEncryptedSharedPreferences = getBooleanOption(options, PREF_OPTION_ENCRYPTED_SHARED_PREFERENCES, DEFAULT_ENCRYPTED_SHARED_PREFERENCES);
         this.enforceBiometrics = getBooleanOption(options, PREF_OPTION_ENFORCE_BIOMETRICS, DEFAULT_ENFORCE_BIOMETRICS);
         this.biometricPromptTitle = getStringOption(
@@ -75,6 +98,12 @@ public class FlutterSecureStorageConfig {
         );
         this.storageCipherAlgorithm = getStringOption(options, PREF_OPTION_STORAGE_CIPHER_ALGORITHM, DEFAULT_STORAGE_CIPHER_ALGORITHM);
         this.keyCipherAlgorithm = getStringOption(options, PREF_OPTION_KEY_CIPHER_ALGORITHM, DEFAULT_KEY_CIPHER_ALGORITHM);
+        this.migrationChunkSize = getPositiveIntOption(options, PREF_OPTION_MIGRATION_CHUNK_SIZE, DEFAULT_MIGRATION_CHUNK_SIZE);
+        this.migrationParallelism = getPositiveIntOption(options, PREF_OPTION_MIGRATION_PARALLELISM, defaultMigrationParallelism());
+        this.compressionThreshold = getPositiveIntOption(options, PREF_OPTION_COMPRESSION_THRESHOLD, DEFAULT_COMPRESSION_THRESHOLD);
+        this.largeValueThreshold = getPositiveIntOption(options, PREF_OPTION_LARGE_VALUE_THRESHOLD, DEFAULT_LARGE_VALUE_THRESHOLD);
+        this.deriveNamespaceKeys = getBooleanOption(options, PREF_OPTION_DERIVE_NAMESPACE_KEYS, DEFAULT_DERIVE_NAMESPACE_KEYS);
+        this.biometricSessionSeconds = getPositiveIntOption(options, PREF_OPTION_BIOMETRIC_SESSION_SECONDS, DEFAULT_BIOMETRIC_SESSION_SECONDS);
 
         // Parse storageNamespace (empty string → null)
         String nsRaw = null;
@@ -128,12 +157,36 @@ public class FlutterSecureStorageConfig {
         return defaultValue;
     }
 
+    private int getPositiveIntOption(Map<String, Object> options, String key, int defaultValue) {
+        String value = getOptionalStringOption(options, key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException ignored) {
+            // Fall through to the warning below
+        }
+        Log.w(TAG, "Invalid value '" + value + "' for " + key + ", using default " + defaultValue);
+        return defaultValue;
+    }
+
     public String getSharedPreferencesName() { return sharedPreferencesName; }
     public String getSharedPreferencesKeyPrefix() { return sharedPreferencesKeyPrefix; }
     public boolean shouldDeleteOnFailure() { return deleteOnFailure; }
     public boolean shouldMigrateOnAlgorithmChange() { return migrateOnAlgorithmChange; }
     public boolean shouldMigrateWithBackup() { return migrateWithBackup; }
 
+    /**
+     * Whether a storage algorithm change is migrated in the background after initialization
+     * instead of before it. Biometric keys and key-algorithm-only changes are always migrated
+     * before initialization completes.
+     */
+    public boolean shouldMigrateLazily() { return lazyMigration; }
+
     public boolean isUseEncryptedSharedPreferences() { return useEncryptedSharedPreferences; }
     public boolean getEnforceBiometrics() { return enforceBiometrics; }
 
@@ -142,6 +195,42 @@ public class FlutterSecureStorageConfig {
     public String getPrefOptionStorageCipherAlgorithm() { return storageCipherAlgorithm; }
     public String getPrefOptionKeyCipherAlgorithm() { return keyCipherAlgorithm; }
 
+    /** Number of entries decrypted and re-encrypted at a time during cipher migration. */
+    public int getMigrationChunkSize() { return migrationChunkSize; }
+
+    /** Maximum number of threads re-encrypting during cipher migration; 1 disables parallel migration. */
+    public int getMigrationParallelism() { return migrationParallelism; }
+
+    /**
+     * Minimum size in bytes of a value to compress before encrypting it; 0 disables compression.
+     * See {@link ValueCompression}.
+     */
+    public int getCompressionThreshold() { return compressionThreshold; }
+
+    /**
+     * Minimum size in bytes of a value, after compression, to store in a file of its own instead
+     * of the preferences; 0 keeps every value in the preferences. See {@link LargeValueStore}.
+     */
+    public int getLargeValueThreshold() { return largeValueThreshold; }
+
+    /**
+     * Whether the data key is derived from the master key shared by all storages with this
+     * option instead of being generated and wrapped per storage, so that opening any number of
+     * namespaces unwraps a single key. Ignored with biometric keys.
+     */
+    public boolean shouldDeriveNamespaceKeys() { return deriveNamespaceKeys; }
+
+    /**
+     * Seconds after a biometric authentication during which biometric storages initialize
+     * without prompting again; 0 prompts for every storage. See
+     * {@link com.it_nomads.fluttersecurestorage.ciphers.BiometricSession}.
+     */
+    public int getBiometricSessionSeconds() { return biometricSessionSeconds; }
+
+    private static int defaultMigrationParallelism() {
+        return Math.max(1, Math.min(MAX_DEFAULT_MIGRATION_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+    }
+
     /** Returns the raw storageNamespace value, or null if not set. */
     @Nullable
     public String getStorageNamespace() { return storageNamespace; }
@@ -164,6 +253,14 @@ public class FlutterSecureStorageConfig {
      * otherwise returns the legacy "FlutterSecureKeyStorage".
      */
     public String getEffectiveKeyStoragePrefsName() {
+        return getKeyStoragePrefsName(storageNamespace);
+    }
+
+    /**
+     * Returns the SharedPreferences name for wrapped-key storage of the given storageNamespace,
+     * or the legacy name if it is null.
+     */
+    static String getKeyStoragePrefsName(@Nullable String storageNamespace) {
         return storageNamespace != null
                 ? "FlutterSecureKeyStorage:" + storageNamespace
                 : "FlutterSecureKeyStorage";
@@ -187,8 +284,15 @@ public class FlutterSecureStorageConfig {
                 ", deleteOnFailure=" + deleteOnFailure +
                 ", migrateOnAlgorithmChange=" + migrateOnAlgorithmChange +
                 ", migrateWithBackup=" + migrateWithBackup +
+                ", lazyMigration=" + lazyMigration +
                 ", enforceBiometrics=" + enforceBiometrics +
                 ", storageNamespace='" + storageNamespace + '\'' +
+                ", migrationChunkSize=" + migrationChunkSize +
+                ", migrationParallelism=" + migrationParallelism +
+                ", compressionThreshold=" + compressionThreshold +
+                ", largeValueThreshold=" + largeValueThreshold +
+                ", deriveNamespaceKeys=" + deriveNamespaceKeys +
+                ", biometricSessionSeconds=" + biometricSessionSeconds +
                 '}';
     }
 }
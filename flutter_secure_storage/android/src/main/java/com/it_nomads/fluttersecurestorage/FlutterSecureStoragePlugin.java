@@ -8,13 +8,19 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import com.it_nomads.fluttersecurestorage.ciphers.CipherBenchmark;
+
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
@@ -24,21 +30,33 @@ public class FlutterSecureStoragePlugin implements MethodCallHandler, FlutterPlu
 
     private static final String TAG = "FlutterSecureStoragePlugin";
     private MethodChannel channel;
+    private EventChannel migrationProgressChannel;
+    private final MigrationProgressStreamHandler migrationProgressHandler = new MigrationProgressStreamHandler();
     private Context applicationContext;
     private final Map<String, FlutterSecureStorage> storagesBySharedPreferencesName = new HashMap<>();
+    private final ValueStreams streams = new ValueStreams();
+    private BiometricAuthentications biometricAuthentications;
     private HandlerThread workerThread;
     private Handler workerThreadHandler;
 
     public void initInstance(BinaryMessenger messenger, Context context) {
         try {
             applicationContext = context.getApplicationContext();
+            biometricAuthentications = new BiometricAuthentications();
 
             workerThread = new HandlerThread("com.it_nomads.fluttersecurestorage.worker");
             workerThread.start();
             workerThreadHandler = new Handler(workerThread.getLooper());
 
+            // Warm up the preference files of storages used in previous sessions
+            final Context preloadContext = applicationContext;
+            workerThreadHandler.post(() -> PreferencesPreloader.preloadKnownStorages(preloadContext));
+
             channel = new MethodChannel(messenger, "plugins.it_nomads.com/flutter_secure_storage");
             channel.setMethodCallHandler(this);
+
+            migrationProgressChannel = new EventChannel(messenger, "plugins.it_nomads.com/flutter_secure_storage/migration_progress");
+            migrationProgressChannel.setStreamHandler(migrationProgressHandler);
         } catch (Exception e) {
             Log.e(TAG, "Registration failed", e);
         }
@@ -52,12 +70,23 @@ public class FlutterSecureStoragePlugin implements MethodCallHandler, FlutterPlu
     @Override
     public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
         if (channel != null) {
+            // Streams the Dart side left open; unfinished writes keep the previous values
+            workerThreadHandler.post(streams::closeAll);
             workerThread.quitSafely();
             workerThread = null;
 
             channel.setMethodCallHandler(null);
             channel = null;
         }
+        if (migrationProgressChannel != null) {
+            migrationProgressChannel.setStreamHandler(null);
+            migrationProgressChannel = null;
+        }
+        if (biometricAuthentications != null) {
+            // Prompts still showing would otherwise outlive the engine, and their callbacks the thread
+            biometricAuthentications.close();
+            biometricAuthentications = null;
+        }
         synchronized (storagesBySharedPreferencesName) {
             storagesBySharedPreferencesName.clear();
         }
@@ -84,6 +113,33 @@ public class FlutterSecureStoragePlugin implements MethodCallHandler, FlutterPlu
         return (String) arguments.get("value");
     }
 
+    @SuppressWarnings("unchecked")
+    private static int getHandleFromCall(MethodCall call) {
+        Map<String, Object> arguments = (Map<String, Object>) call.arguments;
+        Object handle = arguments.get("handle");
+        if (!(handle instanceof Number)) {
+            throw new IllegalArgumentException("Stream method requires a handle");
+        }
+        return ((Number) handle).intValue();
+    }
+
+    /**
+     * Initializes the storages for all given configurations concurrently and notifies the
+     * callback once every storage is ready (or the first failure). Configurations resolving
+     * to the same storage are only initialized once.
+     * Returns without waiting; the callback may be notified on another thread.
+     */
+    public void initializeNamespaces(List<FlutterSecureStorageConfig> configs, SecurePreferencesCallback<Void> callback) {
+        Map<FlutterSecureStorage, FlutterSecureStorageConfig> storages = new LinkedHashMap<>();
+        for (FlutterSecureStorageConfig config : configs) {
+            FlutterSecureStorage storage = getOrCreateStorage(config);
+            if (!storages.containsKey(storage)) {
+                storages.put(storage, config);
+            }
+        }
+        NamespaceInitializer.initializeAll(storages, callback);
+    }
+
     private FlutterSecureStorage getOrCreateStorage(FlutterSecureStorageConfig config) {
         // Use "ns:" prefix for storageNamespace to avoid collisions with legacy
         // sharedPreferencesName keys in the map.
@@ -96,11 +152,46 @@ public class FlutterSecureStoragePlugin implements MethodCallHandler, FlutterPlu
                 return existing;
             }
             FlutterSecureStorage created = new FlutterSecureStorage(applicationContext);
+            created.setMigrationProgressListener(migrationProgressHandler);
+            created.setBiometricAuthentications(biometricAuthentications);
             storagesBySharedPreferencesName.put(name, created);
             return created;
         }
     }
 
+    /**
+     * Forwards migration progress events of all storages to the Dart side, on the platform
+     * thread. Events are dropped while nobody listens.
+     */
+    static class MigrationProgressStreamHandler implements EventChannel.StreamHandler, MigrationProgress.Listener {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+        private volatile EventChannel.EventSink events;
+
+        @Override
+        public void onListen(Object arguments, EventChannel.EventSink events) {
+            this.events = events;
+        }
+
+        @Override
+        public void onCancel(Object arguments) {
+            events = null;
+        }
+
+        @Override
+        public void onProgress(Map<String, Object> event) {
+            if (events == null) {
+                return;
+            }
+            handler.post(() -> {
+                // The listener may have been cancelled in the meantime
+                final EventChannel.EventSink sink = events;
+                if (sink != null) {
+                    sink.success(event);
+                }
+            });
+        }
+    }
+
     /**
      * MethodChannel.Result wrapper that responds on the platform thread.
      */
@@ -155,6 +246,10 @@ public class FlutterSecureStoragePlugin implements MethodCallHandler, FlutterPlu
                     return;
                 }
                 Map<String, Object> args = (Map<String, Object>) call.arguments;
+                if ("initializeNamespaces".equals(call.method)) {
+                    initializeNamespaces(args);
+                    return;
+                }
                 Object rawOptions = args.get("options");
                 Map<String, Object> options;
                 if (rawOptions instanceof Map) {
@@ -164,10 +259,18 @@ public class FlutterSecureStoragePlugin implements MethodCallHandler, FlutterPlu
                 }
                 FlutterSecureStorageConfig config = new FlutterSecureStorageConfig(options);
                 FlutterSecureStorage secureStorage = getOrCreateStorage(config);
+                if ("estimateMigration".equals(call.method)) {
+                    // A dry run; initializing would start the migration it estimates
+                    result.success(secureStorage.estimateMigration(config).toMap());
+                    return;
+                }
 
                 secureStorage.initialize(config, new SecurePreferencesCallback<>() {
                 @Override
                 public void onSuccess(Void unused) {
+                    if (handleStreamCall(secureStorage)) {
+                        return;
+                    }
                     try {
                         switch (call.method) {
                             case "write": {
@@ -226,6 +329,15 @@ public class FlutterSecureStoragePlugin implements MethodCallHandler, FlutterPlu
                                 result.success(secure);
                                 break;
                             }
+                            case "getCipherBenchmark": {
+                                CipherBenchmark benchmark = secureStorage.getCipherBenchmark();
+                                result.success(benchmark == null ? null : benchmark.toMap());
+                                break;
+                            }
+                            case "getCipherDiagnostics": {
+                                result.success(secureStorage.getCipherDiagnostics());
+                                break;
+                            }
                             default:
                                 result.notImplemented();
                                 break;
@@ -254,6 +366,92 @@ public class FlutterSecureStoragePlugin implements MethodCallHandler, FlutterPlu
             }
         }
 
+        /**
+         * Handles the methods moving a value in chunks through {@link ValueStreams}. Their
+         * failures are reported as they are; resetOnError does not apply to a broken stream.
+         *
+         * @return false if the call is not a stream method
+         */
+        private boolean handleStreamCall(FlutterSecureStorage secureStorage) {
+            try {
+                switch (call.method) {
+                    case "openWriteStream": {
+                        result.success(streams.openWriter(secureStorage, getKeyFromCall(secureStorage, call)));
+                        return true;
+                    }
+                    case "writeStreamChunk": {
+                        Object chunk = ((Map<?, ?>) call.arguments).get("chunk");
+                        if (!(chunk instanceof byte[])) {
+                            throw new IllegalArgumentException("writeStreamChunk requires a chunk of bytes");
+                        }
+                        streams.write(getHandleFromCall(call), (byte[]) chunk);
+                        result.success(null);
+                        return true;
+                    }
+                    case "closeWriteStream": {
+                        streams.closeWriter(getHandleFromCall(call));
+                        result.success(null);
+                        return true;
+                    }
+                    case "abortWriteStream": {
+                        streams.abortWriter(getHandleFromCall(call));
+                        result.success(null);
+                        return true;
+                    }
+                    case "openReadStream": {
+                        result.success(streams.openReader(secureStorage, getKeyFromCall(secureStorage, call)));
+                        return true;
+                    }
+                    case "readStreamChunk": {
+                        result.success(streams.read(getHandleFromCall(call)));
+                        return true;
+                    }
+                    case "closeReadStream": {
+                        streams.closeReader(getHandleFromCall(call));
+                        result.success(null);
+                        return true;
+                    }
+                    default:
+                        return false;
+                }
+            } catch (Exception e) {
+                handleException(e);
+                return true;
+            }
+        }
+
+        /**
+         * Handles "initializeNamespaces": the "namespaces" argument holds one options map per
+         * storage, in the same format as the "options" argument of every other method.
+         */
+        @SuppressWarnings("unchecked")
+        private void initializeNamespaces(Map<String, Object> args) {
+            Object rawNamespaces = args.get("namespaces");
+            if (!(rawNamespaces instanceof List)) {
+                handleException(new IllegalArgumentException("initializeNamespaces requires a list of options"));
+                return;
+            }
+            List<FlutterSecureStorageConfig> configs = new ArrayList<>();
+            for (Object rawOptions : (List<Object>) rawNamespaces) {
+                if (rawOptions instanceof Map) {
+                    configs.add(new FlutterSecureStorageConfig((Map<String, Object>) rawOptions));
+                } else {
+                    configs.add(new FlutterSecureStorageConfig(new HashMap<>()));
+                }
+            }
+
+            FlutterSecureStoragePlugin.this.initializeNamespaces(configs, new SecurePreferencesCallback<>() {
+                @Override
+                public void onSuccess(Void unused) {
+                    result.success(null);
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    handleException(e);
+                }
+            });
+        }
 
         private void handleException(Exception e) {
             StringWriter stringWriter = new StringWriter();
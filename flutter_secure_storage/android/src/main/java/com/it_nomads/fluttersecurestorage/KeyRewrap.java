@@ -0,0 +1,89 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import com.it_nomads.fluttersecurestorage.ciphers.KeyCipher;
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipherFactory;
+
+import java.security.Key;
+import java.util.Arrays;
+
+/**
+ * Migration to a new key algorithm that keeps the storage algorithm.
+ * <p>
+ * The data stays encrypted with the same data key; only its wrapped form in keyStorage is
+ * replaced, so the cost does not depend on the number of stored values. The re-wrapped key is
+ * committed to the config together with the new algorithm markers, which is the point of no
+ * return, and then moved into keyStorage. A re-wrap interrupted in between is finished by
+ * {@link #install} on the next start.
+ */
+final class KeyRewrap {
+    private static final String TAG = "KeyRewrap";
+    private static final String PENDING_ENTRY_KEY = "FlutterSecureStorageRewrapEntry";
+    private static final String PENDING_WRAPPED_KEY = "FlutterSecureStorageRewrapKey";
+    private static final String DATA_KEY_ALGORITHM = "AES";
+
+    private KeyRewrap() {}
+
+    /**
+     * Re-wraps the data key with the current key cipher and commits it together with the
+     * current algorithm markers. Call {@link #install} afterwards.
+     *
+     * @throws Exception if the key cannot be re-wrapped or committed; nothing has changed then
+     */
+    static void commit(SharedPreferences keyStorage, NamespacedConfigSource configSource,
+                       StorageCipherFactory factory, KeyCipher savedKeyCipher, KeyCipher currentKeyCipher) throws Exception {
+        final String entry = factory.getRewrappableKeyEntry();
+        if (entry == null) {
+            throw new Exception("The data key cannot be re-wrapped for this algorithm change");
+        }
+
+        SharedPreferences.Editor markers = configSource.edit();
+        factory.storeCurrentAlgorithms(markers);
+
+        final String wrapped = keyStorage.getString(entry, null);
+        if (wrapped != null) {
+            Key dataKey = savedKeyCipher.unwrap(Base64.decode(wrapped, Base64.DEFAULT), DATA_KEY_ALGORITHM);
+            byte[] rewrapped = currentKeyCipher.wrap(dataKey);
+            // Check the new wrapping before the old one stops being used
+            Key check = currentKeyCipher.unwrap(rewrapped, DATA_KEY_ALGORITHM);
+            if (!Arrays.equals(dataKey.getEncoded(), check.getEncoded())) {
+                throw new Exception("Re-wrapped data key does not unwrap to the original key");
+            }
+            markers.putString(PENDING_ENTRY_KEY, entry);
+            markers.putString(PENDING_WRAPPED_KEY, Base64.encodeToString(rewrapped, Base64.DEFAULT));
+        } else {
+            Log.d(TAG, "No data key stored yet, only updating algorithm markers");
+        }
+
+        if (!markers.commit()) {
+            throw new Exception("Failed to commit algorithm markers to disk - storage may be full or unavailable");
+        }
+    }
+
+    /**
+     * Moves a committed re-wrapped key into keyStorage. Does nothing unless a re-wrap was
+     * committed and not yet installed.
+     *
+     * @return true if a key was installed
+     * @throws Exception if keyStorage or the config cannot be committed; retried on the next start
+     */
+    static boolean install(SharedPreferences keyStorage, NamespacedConfigSource configSource) throws Exception {
+        final String entry = configSource.getString(PENDING_ENTRY_KEY, null);
+        final String wrapped = configSource.getString(PENDING_WRAPPED_KEY, null);
+        if (entry == null || wrapped == null) {
+            return false;
+        }
+
+        if (!keyStorage.edit().putString(entry, wrapped).commit()) {
+            throw new Exception("Failed to commit re-wrapped key to disk - storage may be full or unavailable");
+        }
+        if (!configSource.edit().remove(PENDING_ENTRY_KEY).remove(PENDING_WRAPPED_KEY).commit()) {
+            throw new Exception("Failed to clear re-wrap state - storage may be full or unavailable");
+        }
+        Log.i(TAG, "Installed re-wrapped data key");
+        return true;
+    }
+}
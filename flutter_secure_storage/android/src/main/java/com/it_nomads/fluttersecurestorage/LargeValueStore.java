@@ -0,0 +1,505 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Values too large to keep in the preferences, each stored in an encrypted file of its own.
+ * <p>
+ * SharedPreferences parses its whole file when it is loaded and rewrites it on every change, so
+ * a few large values slow down every unrelated read and write. A plaintext of at least the
+ * threshold, and every value written as a stream, is stored in a file in the no-backup
+ * directory instead, encrypted in segments by {@link SegmentedAead} under a random key of its
+ * own. The entry in the preferences holds a pointer to it:
+ * <pre>
+ *     [0xFE][format][file id, 16 bytes][file key, 32 bytes]
+ * </pre>
+ * The pointer is the plaintext of the entry, so it is encrypted with the storage's data key
+ * like any value and the file key can only be read with that data key. Migrations that
+ * re-encrypt plaintext bytes carry pointers over and leave the files as they are. Like
+ * {@link ValueCompression#MARKER}, 0xFE never starts UTF-8 text.
+ * <p>
+ * The format says how the file is encrypted and what it holds: a value plaintext as stored
+ * inline, possibly compressed, or the raw bytes of a stream.
+ * <p>
+ * A file is written to a temporary file, synced and renamed before its pointer is stored. The
+ * files a key no longer points to are deleted only once the entry is committed, so a crash
+ * leaves at worst an unreferenced file behind; {@link #deleteUnreferenced} removes those.
+ */
+final class LargeValueStore {
+    private static final String TAG = "LargeValueStore";
+    static final byte MARKER = (byte) 0xFE;
+    // A value plaintext in SegmentedAead segments
+    private static final byte FORMAT_SEGMENTED = 1;
+    // The raw bytes of a stream in SegmentedAead segments
+    private static final byte FORMAT_STREAM = 2;
+    private static final String DIRECTORY = "FlutterSecureStorageLargeValues";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final int ID_SIZE = 16;
+    private static final int KEY_SIZE = 32;
+    private static final int KEY_HASH_SIZE = 16;
+    static final int POINTER_LENGTH = 2 + ID_SIZE + KEY_SIZE;
+
+    /**
+     * Store without a directory; it keeps every value in the preferences and cannot read
+     * pointers.
+     */
+    static final LargeValueStore NONE = new LargeValueStore(null, 0);
+
+    @Nullable
+    private final File directory;
+    private final int threshold;
+    private final int segmentSize;
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    // Names of the files in the directory, listed on first use; guarded by this
+    private Set<String> fileNames;
+
+    /**
+     * @param directory directory of the files, created on the first write
+     * @param threshold minimum size in bytes of a plaintext to store in a file; 0 stores none
+     */
+    LargeValueStore(@Nullable File directory, int threshold) {
+        this(directory, threshold, SegmentedAead.DEFAULT_SEGMENT_SIZE);
+    }
+
+    LargeValueStore(@Nullable File directory, int threshold, int segmentSize) {
+        this.directory = directory;
+        this.threshold = threshold;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Returns the store of the given configuration, in a directory of its data preferences.
+     */
+    static LargeValueStore of(Context context, FlutterSecureStorageConfig config) {
+        return new LargeValueStore(
+                new File(new File(context.getNoBackupFilesDir(), DIRECTORY), config.getEffectiveDataPrefsName()),
+                config.getLargeValueThreshold());
+    }
+
+    /**
+     * Whether the plaintext is a pointer to a file.
+     */
+    static boolean isPointer(byte[] plaintext) {
+        return plaintext.length > 0 && plaintext[0] == MARKER;
+    }
+
+    /**
+     * Moves a plaintext of at least the threshold into a new file of the key.
+     *
+     * @return the pointer to store instead, or the plaintext itself if it is below the threshold
+     */
+    byte[] store(String key, byte[] plaintext) throws Exception {
+        if (directory == null || threshold <= 0 || plaintext.length < threshold) {
+            return plaintext;
+        }
+        final Output out = openOutput(key, FORMAT_SEGMENTED);
+        try {
+            out.write(plaintext);
+            out.close();
+        } catch (Exception e) {
+            out.abort();
+            throw e;
+        }
+        return out.getPointer();
+    }
+
+    /**
+     * Opens a new file of the key for the raw bytes of a stream. The file is complete once the
+     * output is closed; its pointer then has to be stored as the plaintext of the key.
+     */
+    Output openOutputStream(String key) throws Exception {
+        if (directory == null) {
+            throw new Exception("This storage has no large value directory to stream into");
+        }
+        return openOutput(key, FORMAT_STREAM);
+    }
+
+    private Output openOutput(String key, byte format) throws Exception {
+        final byte[] pointer = new byte[POINTER_LENGTH];
+        pointer[0] = MARKER;
+        pointer[1] = format;
+        final byte[] random = new byte[ID_SIZE + KEY_SIZE];
+        secureRandom.nextBytes(random);
+        System.arraycopy(random, 0, pointer, 2, random.length);
+
+        final String name = fileName(key, pointer);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        return new Output(name, pointer);
+    }
+
+    /**
+     * Returns the plaintext the stored plaintext of the key points to, or the stored plaintext
+     * itself if it is not a pointer. Only use this for plaintexts of limited size.
+     *
+     * @throws Exception if the file is missing, or cannot be decrypted
+     */
+    byte[] load(String key, byte[] plaintext) throws Exception {
+        if (!isPointer(plaintext)) {
+            return plaintext;
+        }
+        final SecretKeySpec fileKey = fileKey(plaintext);
+        final File file = file(key, plaintext);
+        final long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Large value file " + file.getName() + " is too large to load at once");
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) length);
+        try (InputStream in = SegmentedAead.decrypt(new FileInputStream(file), fileKey)) {
+            final byte[] buffer = new byte[segmentSize];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the value of a stored plaintext of the key in any form: inline, compressed, or
+     * in a file. The bytes of a stream are decoded as UTF-8.
+     */
+    String decode(String key, byte[] plaintext) throws Exception {
+        if (isPointer(plaintext) && plaintext[1] == FORMAT_STREAM) {
+            return new String(load(key, plaintext), StandardCharsets.UTF_8);
+        }
+        return ValueCompression.decode(load(key, plaintext));
+    }
+
+    /**
+     * Returns a stream of the value of a stored plaintext of the key in any form, decrypting
+     * a file one segment at a time. Values that were not written as a stream are returned as
+     * their UTF-8 bytes.
+     */
+    InputStream openInputStream(String key, byte[] plaintext) throws Exception {
+        if (isPointer(plaintext)) {
+            final SecretKeySpec fileKey = fileKey(plaintext);
+            final InputStream file = new FileInputStream(file(key, plaintext));
+            try {
+                final InputStream in = SegmentedAead.decrypt(file, fileKey);
+                if (plaintext[1] == FORMAT_STREAM) {
+                    return in;
+                }
+                // A value plaintext; decoded in memory, as it was small enough to write at once
+                return new ByteArrayInputStream(decodeValue(in).getBytes(StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                file.close();
+                throw e;
+            }
+        }
+        return new ByteArrayInputStream(decode(key, plaintext).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeValue(InputStream in) throws Exception {
+        try (InputStream value = in) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = value.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return ValueCompression.decode(out.toByteArray());
+        }
+    }
+
+    private File file(String key, byte[] pointer) throws Exception {
+        if (directory == null) {
+            throw new Exception("Value is stored in a file, but this storage has no large value directory");
+        }
+        return new File(directory, fileName(key, pointer));
+    }
+
+    /**
+     * A new file being written. Everything written is encrypted in segments as it arrives;
+     * closing the output writes the last segment, syncs the file and moves it into place.
+     */
+    final class Output extends OutputStream {
+        private final String name;
+        private final byte[] pointer;
+        private final File temp;
+        private final OutputStream out;
+        private boolean closed = false;
+
+        private Output(String name, byte[] pointer) throws Exception {
+            this.name = name;
+            this.pointer = pointer;
+            this.temp = new File(directory, name + TEMP_EXTENSION);
+            final FileOutputStream fileOut = new FileOutputStream(temp);
+            try {
+                // Sync before the file is closed; the encrypting stream closes it after the last segment
+                final OutputStream syncedOut = new FilterOutputStream(fileOut) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            fileOut.getFD().sync();
+                        } finally {
+                            fileOut.close();
+                        }
+                    }
+                };
+                this.out = SegmentedAead.encrypt(syncedOut, fileKey(pointer), segmentSize, secureRandom);
+            } catch (Exception e) {
+                fileOut.close();
+                deleteTemp();
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        /**
+         * Completes the file. If that fails, the file is discarded.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                out.close();
+                final File file = new File(directory, name);
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Failed to rename " + temp + " to " + file);
+                }
+            } catch (IOException e) {
+                deleteTemp();
+                throw e;
+            }
+            synchronized (LargeValueStore.this) {
+                listFileNames().add(name);
+            }
+        }
+
+        /**
+         * Discards the file if it is not complete yet.
+         */
+        void abort() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close aborted file " + name, e);
+            }
+            deleteTemp();
+        }
+
+        /**
+         * Returns the pointer to the file, to store as the plaintext of the key once the
+         * output is closed.
+         */
+        byte[] getPointer() {
+            return pointer.clone();
+        }
+
+        private void deleteTemp() {
+            if (temp.exists() && !temp.delete()) {
+                Log.w(TAG, "Failed to delete " + temp);
+            }
+        }
+    }
+
+    /**
+     * Whether the key has files other than the one the given plaintext points to.
+     *
+     * @param keep the plaintext now stored for the key, or null if the key is removed
+     */
+    synchronized boolean hasFiles(String key, @Nullable byte[] keep) {
+        final String prefix = keyHash(key) + '.';
+        final String kept = keep != null && isPointer(keep) ? fileName(key, keep) : null;
+        for (String name : listFileNames()) {
+            if (name.startsWith(prefix) && !name.equals(kept)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether there are any files at all.
+     */
+    synchronized boolean hasFiles() {
+        return !listFileNames().isEmpty();
+    }
+
+    /**
+     * Deletes the files of the key other than the one the given plaintext points to. Only call
+     * this once the entry of the key is committed.
+     *
+     * @param keep the plaintext now stored for the key, or null if the key is removed
+     */
+    synchronized void deleteFiles(String key, @Nullable byte[] keep) {
+        final String prefix = keyHash(key) + '.';
+        final String kept = keep != null && isPointer(keep) ? fileName(key, keep) : null;
+        for (Iterator<String> names = listFileNames().iterator(); names.hasNext(); ) {
+            final String name = names.next();
+            if (name.startsWith(prefix) && !name.equals(kept)) {
+                deleteFile(name);
+                names.remove();
+            }
+        }
+    }
+
+    /**
+     * Deletes every file. Only call this once the cleared preferences are committed.
+     */
+    synchronized void deleteAll() {
+        for (String name : listFileNames()) {
+            deleteFile(name);
+        }
+        fileNames.clear();
+    }
+
+    /**
+     * Deletes the files no entry points to, left behind by interrupted writes and by
+     * migrations that stored large values inline again. Files of entries that cannot be
+     * decrypted with the given cipher are kept, as they may still be read later.
+     *
+     * @param entries the entries of the data preferences
+     * @param cipher  the cipher the entries are encrypted with
+     * @return the number of files deleted
+     */
+    synchronized int deleteUnreferenced(Map<String, ?> entries, StorageCipher cipher) {
+        if (directory == null) {
+            return 0;
+        }
+        final File[] files = directory.listFiles();
+        if (files == null || files.length == 0) {
+            return 0;
+        }
+        int deleted = 0;
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(TEMP_EXTENSION) && isReferenced(name, entries, cipher)) {
+                continue;
+            }
+            if (file.delete()) {
+                deleted++;
+            } else {
+                Log.w(TAG, "Failed to delete unreferenced file " + name);
+            }
+        }
+        fileNames = null;
+        if (deleted > 0) {
+            Log.i(TAG, "Deleted " + deleted + " unreferenced large value files");
+        }
+        return deleted;
+    }
+
+    private boolean isReferenced(String name, Map<String, ?> entries, StorageCipher cipher) {
+        final int dot = name.indexOf('.');
+        if (dot < 0) {
+            return true; // Not ours
+        }
+        final String hash = name.substring(0, dot);
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            if (!(entry.getValue() instanceof String stored) || !hash.equals(keyHash(entry.getKey()))) {
+                continue;
+            }
+            try {
+                final byte[] plaintext = cipher.decrypt(ValueEnvelope.parse(stored).getCiphertextFor(cipher));
+                return isPointer(plaintext) && plaintext.length == POINTER_LENGTH && name.equals(fileName(entry.getKey(), plaintext));
+            } catch (Exception e) {
+                Log.w(TAG, "Keeping file of entry that cannot be decrypted: " + entry.getKey(), e);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Set<String> listFileNames() {
+        if (fileNames == null) {
+            fileNames = new HashSet<>();
+            final String[] names = directory == null ? null : directory.list();
+            if (names != null) {
+                for (String name : names) {
+                    if (!name.endsWith(TEMP_EXTENSION)) {
+                        fileNames.add(name);
+                    }
+                }
+            }
+        }
+        return fileNames;
+    }
+
+    private void deleteFile(String name) {
+        final File file = new File(directory, name);
+        if (!file.delete() && file.exists()) {
+            Log.w(TAG, "Failed to delete " + name + ", leaving it for the next start");
+        }
+    }
+
+    private static SecretKeySpec fileKey(byte[] pointer) throws Exception {
+        if (pointer.length != POINTER_LENGTH || pointer[1] < FORMAT_SEGMENTED || pointer[1] > FORMAT_STREAM) {
+            throw new Exception("Unsupported large value pointer");
+        }
+        return new SecretKeySpec(pointer, 2 + ID_SIZE, KEY_SIZE, "AES");
+    }
+
+    /**
+     * Returns the name of the file a pointer of the key refers to: a hash of the key, so the
+     * files of a key are found without decrypting anything, and the id of the file.
+     */
+    private static String fileName(String key, byte[] pointer) {
+        return keyHash(key) + '.' + toHex(pointer, 2, ID_SIZE);
+    }
+
+    private static String keyHash(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return toHex(digest, 0, KEY_HASH_SIZE);
+        } catch (Exception e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes, int offset, int length) {
+        final StringBuilder hex = new StringBuilder(length * 2);
+        for (int i = offset; i < offset + length; i++) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16)).append(Character.forDigit(bytes[i] & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,370 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.SharedPreferences;
+import android.os.Process;
+import android.util.Log;
+
+import com.it_nomads.fluttersecurestorage.ciphers.IdentifiedStorageCipher;
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipherAlgorithm;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Migration from the saved to the current storage cipher that does not block initialization.
+ * <p>
+ * Values written by the current cipher are stored in a {@link ValueEnvelope} naming its
+ * algorithm; values without one are still in the saved format. Reading a saved-format value
+ * decrypts it with the saved cipher and rewrites it with the current one (read repair), and a
+ * background-priority sweeper converts the rest one chunk at a time. Once no saved-format value
+ * is left, the algorithm markers are switched to the current algorithms in one commit and the
+ * saved keys are deleted.
+ * <p>
+ * Until then the markers keep naming the saved algorithms and the saved keys are kept, so an
+ * interrupted migration continues on the next start. The algorithm being migrated to is
+ * recorded as well, so a started migration is finished lazily even if lazy migration has been
+ * switched off in the meantime.
+ */
+public final class LazyMigration {
+    private static final String TAG = "LazyMigration";
+    private static final String TARGET_ALGORITHM_KEY = "FlutterSecureStorageLazyMigration";
+
+    private static final Map<String, Object> locks = new HashMap<>();
+
+    /**
+     * Access to the cipher factory and plugin state the migration needs.
+     */
+    interface Host {
+        /** Stages the current algorithm markers into a configSource editor. */
+        void storeCurrentAlgorithms(SharedPreferences.Editor editor);
+
+        /** Deletes the keys of the saved algorithms that are no longer used. */
+        void deleteSavedKeys(StorageCipher savedCipher) throws Exception;
+
+        /** Called once every value is in the current format and the markers say so. */
+        void onFinished();
+    }
+
+    private final Host host;
+    private final SharedPreferences dataSource;
+    private final NamespacedConfigSource configSource;
+    private final StorageCipher savedCipher;
+    private final StorageCipherAlgorithm savedAlgorithm;
+    private final StorageCipher currentCipher;
+    private final StorageCipherAlgorithm currentAlgorithm;
+    private final String keyPrefix;
+    private final int chunkSize;
+    private final int compressionThreshold;
+    private final boolean deleteUndecryptable;
+    private final LargeValueStore largeValues;
+    // Guards every cipher use and every write while a lazy migration runs: the storage ciphers
+    // are not thread-safe, and a sweeper chunk must not overwrite a value that was written or
+    // deleted after it was read. Shared by the migrations of one data prefs file only, so a
+    // sweep never blocks other storages.
+    private final Object lock;
+
+    // Guarded by lock
+    private boolean finished = false;
+
+    LazyMigration(Host host, SharedPreferences dataSource, NamespacedConfigSource configSource,
+                  StorageCipher savedCipher, StorageCipherAlgorithm savedAlgorithm,
+                  StorageCipher currentCipher, StorageCipherAlgorithm currentAlgorithm,
+                  FlutterSecureStorageConfig config) {
+        this(host, dataSource, configSource, savedCipher, savedAlgorithm, currentCipher, currentAlgorithm,
+                config, LargeValueStore.NONE);
+    }
+
+    LazyMigration(Host host, SharedPreferences dataSource, NamespacedConfigSource configSource,
+                  StorageCipher savedCipher, StorageCipherAlgorithm savedAlgorithm,
+                  StorageCipher currentCipher, StorageCipherAlgorithm currentAlgorithm,
+                  FlutterSecureStorageConfig config, LargeValueStore largeValues) {
+        this.host = host;
+        this.dataSource = dataSource;
+        this.configSource = configSource;
+        this.savedCipher = savedCipher;
+        this.savedAlgorithm = savedAlgorithm;
+        this.currentCipher = currentCipher;
+        this.currentAlgorithm = currentAlgorithm;
+        this.keyPrefix = config.getSharedPreferencesKeyPrefix();
+        this.chunkSize = config.getMigrationChunkSize();
+        this.compressionThreshold = config.getCompressionThreshold();
+        this.deleteUndecryptable = config.shouldDeleteOnFailure();
+        this.largeValues = largeValues;
+        this.lock = lockFor(config.getEffectiveDataPrefsName());
+    }
+
+    private static Object lockFor(String dataPrefsName) {
+        synchronized (locks) {
+            Object lock = locks.get(dataPrefsName);
+            if (lock == null) {
+                lock = new Object();
+                locks.put(dataPrefsName, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Returns the name of the storage algorithm an unfinished lazy migration is converting to,
+     * or null if none is in progress.
+     */
+    public static String getTargetAlgorithm(NamespacedConfigSource configSource) {
+        return configSource.getString(TARGET_ALGORITHM_KEY, null);
+    }
+
+    /** Stages the record of a lazy migration to the given algorithm into a configSource editor. */
+    static void putTargetAlgorithm(SharedPreferences.Editor editor, StorageCipherAlgorithm algorithm) {
+        editor.putString(TARGET_ALGORITHM_KEY, algorithm.name());
+    }
+
+    /**
+     * Reads and decrypts a value, rewriting it with the current cipher if it is still in the
+     * saved format.
+     *
+     * @return the plaintext, or null if there is no value for the key
+     */
+    String read(String key) throws Exception {
+        byte[] plaintext = readPlaintext(key);
+        return plaintext == null ? null : largeValues.decode(key, plaintext);
+    }
+
+    /**
+     * Like {@link #read}, returning the plaintext as it is stored: possibly compressed, or a
+     * pointer to a large value file.
+     */
+    byte[] readPlaintext(String key) throws Exception {
+        synchronized (lock) {
+            String stored = dataSource.getString(key, null);
+            if (stored == null) {
+                return null;
+            }
+            SharedPreferences.Editor repairs = dataSource.edit();
+            byte[] plaintext = decrypt(key, stored, repairs);
+            repairs.apply();
+            return plaintext;
+        }
+    }
+
+    /**
+     * Reads and decrypts every value of this storage, rewriting those still in the saved
+     * format with one editor.
+     *
+     * @return the plaintexts by full (prefixed) key
+     */
+    Map<String, String> readAll() throws Exception {
+        synchronized (lock) {
+            Map<String, String> values = new HashMap<>();
+            SharedPreferences.Editor repairs = dataSource.edit();
+            for (Map.Entry<String, ?> entry : dataSource.getAll().entrySet()) {
+                if (entry.getValue() instanceof String stored && MigrationBackup.isDataKey(entry.getKey(), keyPrefix)) {
+                    values.put(entry.getKey(), largeValues.decode(entry.getKey(), decrypt(entry.getKey(), stored, repairs)));
+                }
+            }
+            repairs.apply();
+            return values;
+        }
+    }
+
+    void write(String key, String value) throws Exception {
+        synchronized (lock) {
+            putPlaintext(key, largeValues.store(key, ValueCompression.encode(value, compressionThreshold)));
+        }
+    }
+
+    /**
+     * Encrypts and stores a plaintext in any of its stored forms, then deletes the files the
+     * key no longer points to.
+     */
+    void putPlaintext(String key, byte[] plaintext) throws Exception {
+        synchronized (lock) {
+            SharedPreferences.Editor editor = dataSource.edit().putString(key, encrypt(plaintext));
+            if (!largeValues.hasFiles(key, plaintext)) {
+                editor.apply();
+                return;
+            }
+            // The entry must point away from the old file on disk before the file is deleted
+            if (!editor.commit()) {
+                throw new Exception("Failed to commit value to disk - storage may be full or unavailable");
+            }
+            largeValues.deleteFiles(key, plaintext);
+        }
+    }
+
+    void delete(String key) {
+        synchronized (lock) {
+            SharedPreferences.Editor editor = dataSource.edit().remove(key);
+            if (!largeValues.hasFiles(key, null)) {
+                editor.apply();
+            } else if (editor.commit()) {
+                largeValues.deleteFiles(key, null);
+            }
+        }
+    }
+
+    void deleteAll() {
+        synchronized (lock) {
+            SharedPreferences.Editor editor = dataSource.edit().clear();
+            if (!largeValues.hasFiles()) {
+                editor.apply();
+            } else if (editor.commit()) {
+                largeValues.deleteAll();
+            }
+        }
+    }
+
+    /**
+     * Starts the sweeper on a background-priority daemon thread.
+     *
+     * @return the sweeper thread
+     */
+    Thread start() {
+        Thread sweeper = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                sweep();
+            } catch (Exception e) {
+                Log.e(TAG, "Lazy migration sweep failed, continuing on next start", e);
+            }
+        }, "com.it_nomads.fluttersecurestorage.sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+        return sweeper;
+    }
+
+    /**
+     * Converts every value still in the saved format, holding the lock for one chunk at a
+     * time, and finishes the migration if nothing is left.
+     *
+     * @return true if the migration is finished
+     * @throws Exception if the converted data or the markers cannot be committed
+     */
+    boolean sweep() throws Exception {
+        final long startTime = System.currentTimeMillis();
+        List<String> keys = ChunkedMigration.collectKeys(dataSource, keyPrefix);
+        int converted = 0;
+        for (int start = 0; start < keys.size(); start += chunkSize) {
+            converted += convertChunk(keys.subList(start, Math.min(start + chunkSize, keys.size())));
+            // Let waiting reads and writes in between chunks
+            Thread.yield();
+        }
+        Log.d(TAG, "Sweeper converted " + converted + " of " + keys.size() + " items in "
+                + (System.currentTimeMillis() - startTime) + "ms");
+        return finish();
+    }
+
+    private int convertChunk(List<String> keys) {
+        synchronized (lock) {
+            if (finished) {
+                return 0;
+            }
+            SharedPreferences.Editor editor = dataSource.edit();
+            int converted = 0;
+            for (String key : keys) {
+                // Read again under the lock; the value may have been rewritten or deleted
+                String stored = dataSource.getString(key, null);
+                if (stored == null) {
+                    continue;
+                }
+                try {
+                    ValueEnvelope envelope = ValueEnvelope.parse(stored);
+                    if (cipherFor(envelope) == savedCipher) {
+                        editor.putString(key, encrypt(savedCipher.decrypt(envelope.getCiphertext())));
+                        converted++;
+                    }
+                } catch (Exception e) {
+                    if (deleteUndecryptable) {
+                        Log.w(TAG, "Deleting item that cannot be migrated: " + key, e);
+                        editor.remove(key);
+                    } else {
+                        Log.e(TAG, "Failed to migrate item (left for next start): " + key, e);
+                    }
+                }
+            }
+            editor.apply();
+            return converted;
+        }
+    }
+
+    /**
+     * Switches the markers to the current algorithms if no saved-format value is left.
+     */
+    private boolean finish() throws Exception {
+        synchronized (lock) {
+            if (finished) {
+                return true;
+            }
+            int remaining = 0;
+            for (Map.Entry<String, ?> entry : dataSource.getAll().entrySet()) {
+                if (entry.getValue() instanceof String stored && MigrationBackup.isDataKey(entry.getKey(), keyPrefix)) {
+                    try {
+                        if (cipherFor(ValueEnvelope.parse(stored)) == savedCipher) {
+                            remaining++;
+                        }
+                    } catch (Exception e) {
+                        remaining++;
+                    }
+                }
+            }
+            if (remaining > 0) {
+                Log.w(TAG, remaining + " items are still in the saved format, lazy migration continues on next start");
+                return false;
+            }
+
+            // Converted values were only applied; they must be on disk before the markers say so
+            if (!dataSource.edit().commit()) {
+                throw new Exception("Failed to commit migrated data to disk - storage may be full or unavailable");
+            }
+            SharedPreferences.Editor markers = configSource.edit();
+            host.storeCurrentAlgorithms(markers);
+            markers.remove(TARGET_ALGORITHM_KEY);
+            if (!markers.commit()) {
+                throw new Exception("Failed to commit algorithm markers to disk - storage may be full or unavailable");
+            }
+            finished = true;
+        }
+
+        try {
+            host.deleteSavedKeys(savedCipher);
+        } catch (Exception deleteError) {
+            Log.w(TAG, "Failed to delete old key from KeyStore (may not exist)", deleteError);
+        }
+        host.onFinished();
+        Log.i(TAG, "Lazy migration from " + savedAlgorithm + " to " + currentAlgorithm + " completed");
+        return true;
+    }
+
+    /** Decrypts a stored value, staging a rewrite into repairs if it is in the saved format. */
+    private byte[] decrypt(String key, String stored, SharedPreferences.Editor repairs) throws Exception {
+        ValueEnvelope envelope = ValueEnvelope.parse(stored);
+        StorageCipher cipher = cipherFor(envelope);
+        byte[] plaintext = cipher.decrypt(envelope.getCiphertext());
+        if (cipher == savedCipher) {
+            repairs.putString(key, encrypt(plaintext));
+        }
+        return plaintext;
+    }
+
+    private String encrypt(byte[] plaintext) throws Exception {
+        final int keyId = currentCipher instanceof IdentifiedStorageCipher identified
+                ? identified.getKeyId() : IdentifiedStorageCipher.KEY_ID_WRAPPED;
+        return ValueEnvelope.encode(currentAlgorithm, keyId, currentCipher.encrypt(plaintext));
+    }
+
+    private StorageCipher cipherFor(ValueEnvelope envelope) throws Exception {
+        StorageCipherAlgorithm algorithm = envelope.getAlgorithm();
+        if (algorithm == null) {
+            // Once finished, values without an envelope are new writes in the current format
+            return finished ? currentCipher : savedCipher;
+        }
+        if (algorithm == currentAlgorithm) {
+            return currentCipher;
+        }
+        if (algorithm == savedAlgorithm) {
+            return savedCipher;
+        }
+        throw new Exception("Stored value was encrypted with " + algorithm
+                + ", which is neither the saved nor the current storage algorithm");
+    }
+}
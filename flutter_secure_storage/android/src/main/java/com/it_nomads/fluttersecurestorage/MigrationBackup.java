@@ -3,11 +3,21 @@ package com.it_nomads.fluttersecurestorage;
 import android.content.SharedPreferences;
 import android.util.Log;
 
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
  * Helper class for managing migration backups.
- * Implements a rename-based backup strategy: copy to _BACKUP, mark complete, delete originals.
+ * Implements a snapshot-based backup strategy: snapshot the files, mark complete, migrate in
+ * place, delete the snapshots.
  */
 public class MigrationBackup {
     private MigrationBackup() {}
@@ -16,47 +26,70 @@ public class MigrationBackup {
     private static final String BACKUP_STATUS_KEY = "FlutterSecureStorageBackupStatus";
     private static final String BACKUP_SUFFIX = "_BACKUP";
     private static final String MIGRATED_SUFFIX = "_MIGRATED";  // stored in configSource, not dataSource
+    // Stored in dataSource so it is committed in the same write as the data it tracks.
+    // A custom key prefix may occur in the key, so it is excluded by isDataKey.
+    private static final String JOURNAL_KEY = "FlutterSecureStorageMigrationJournal";
+    // Durable copy of the new wrapped keys in keyStorage, see stashCurrentKeys
+    private static final String CURRENT_SUFFIX = "_CURRENT";
 
     public static final String STATUS_STARTED = "started";
     public static final String STATUS_COMPLETE = "complete";
     public static final String STATUS_DELETED = "deleted";
+    // Data is fully migrated and the algorithm markers are updated; only cleanup is left.
+    // Written in the same commit as the markers.
+    public static final String STATUS_MIGRATED = "migrated";
 
     /**
-     * Creates backup by copying encrypted entries to <key>_BACKUP, then deleting originals.
-     * Follows rename workflow: copy → mark complete → delete originals.
+     * Creates a backup by taking a snapshot of the data and key storage files, then marks it
+     * complete. Originals are kept until the migration succeeds.
      *
-     * @param dataSource SharedPreferences containing encrypted user data
-     * @param keyStorage SharedPreferences containing wrapped AES keys
+     * @param dataSnapshot Snapshot of the SharedPreferences containing encrypted user data
+     * @param keySnapshot Snapshot of the SharedPreferences containing wrapped AES keys
      * @param configSource SharedPreferences for backup status tracking
      * @param config Configuration object
      * @param keyPrefix Prefix to filter data keys
      */
-    public static void createBackup(SharedPreferences dataSource,
-                                   SharedPreferences keyStorage,
+    public static void createBackup(PreferencesSnapshot dataSnapshot,
+                                   PreferencesSnapshot keySnapshot,
                                    NamespacedConfigSource configSource,
                                    FlutterSecureStorageConfig config,
                                    String keyPrefix) {
-        createBackup(dataSource, keyStorage, null, configSource, config, keyPrefix);
+        createBackup(dataSnapshot, keySnapshot, null, configSource, config, keyPrefix);
     }
 
     /**
-     * Creates backup by copying encrypted entries to <key>_BACKUP, then deleting originals.
-     * Follows rename workflow: copy → mark complete → delete originals.
-     * Can also backup ESP data if espSource is provided.
+     * Creates a backup by taking a snapshot of the data and key storage files, then marks it
+     * complete. Originals are kept until the migration succeeds.
+     * Can also backup ESP data if espSource is provided. ESP values can only be read through
+     * ESP itself, so they are copied to &lt;key&gt;_BACKUP within ESP instead.
      *
-     * @param dataSource SharedPreferences containing encrypted user data
-     * @param keyStorage SharedPreferences containing wrapped AES keys
+     * @param dataSnapshot Snapshot of the SharedPreferences containing encrypted user data
+     * @param keySnapshot Snapshot of the SharedPreferences containing wrapped AES keys
      * @param espSource EncryptedSharedPreferences source (can be null)
      * @param configSource SharedPreferences for backup status tracking
      * @param config Configuration object
      * @param keyPrefix Prefix to filter data keys
      */
-    public static void createBackup(SharedPreferences dataSource,
-                                   SharedPreferences keyStorage,
+    public static void createBackup(PreferencesSnapshot dataSnapshot,
+                                   PreferencesSnapshot keySnapshot,
                                    SharedPreferences espSource,
                                    NamespacedConfigSource configSource,
                                    FlutterSecureStorageConfig config,
                                    String keyPrefix) {
+        createBackup(dataSnapshot, keySnapshot, espSource, configSource, config, keyPrefix, MigrationProgress.NONE);
+    }
+
+    /**
+     * Like {@link #createBackup(PreferencesSnapshot, PreferencesSnapshot, SharedPreferences, NamespacedConfigSource, FlutterSecureStorageConfig, String)},
+     * reporting the copy of each file as a {@link MigrationProgress#PHASE_BACKUP} phase.
+     */
+    public static void createBackup(PreferencesSnapshot dataSnapshot,
+                                   PreferencesSnapshot keySnapshot,
+                                   SharedPreferences espSource,
+                                   NamespacedConfigSource configSource,
+                                   FlutterSecureStorageConfig config,
+                                   String keyPrefix,
+                                   MigrationProgress progress) {
         // Check if backup already exists - skip if complete or deleted
         String status = getBackupStatus(configSource, config);
         if (STATUS_COMPLETE.equals(status) || STATUS_DELETED.equals(status)) {
@@ -64,38 +97,26 @@ public class MigrationBackup {
             return;
         }
 
-        // If status is "started", delete incomplete backup and start fresh
-        if (STATUS_STARTED.equals(status)) {
-            Log.w(TAG, "Found incomplete backup (status: started), deleting and restarting");
-            deleteBackupData(dataSource, keyStorage, espSource, keyPrefix);
+        // Leftovers of a finished migration whose cleanup was interrupted are not a usable backup.
+        // If status is "started", a previous run was interrupted while taking the backup. Originals
+        // are never modified before the backup is complete, so it is simply taken again.
+        if (STATUS_MIGRATED.equals(status) || STATUS_STARTED.equals(status)) {
+            Log.w(TAG, "Found unusable backup (status: " + status + "), deleting it before starting over");
+            deleteBackupData(dataSnapshot, keySnapshot, espSource, keyPrefix);
         }
 
-        Log.i(TAG, "Starting backup creation (rename operation)...");
-
-        // Mark backup as started
+        Log.i(TAG, "Starting backup creation (file snapshot)...");
         setBackupStatus(configSource, config, STATUS_STARTED);
 
-        int dataCount = 0;
-        int keyCount = 0;
         int espCount = 0;
 
         // Step 1a: Copy ESP data to _BACKUP within ESP itself if ESP source provided
         if (espSource != null) {
             Log.i(TAG, "Backing up EncryptedSharedPreferences data with _BACKUP suffix...");
             try {
-                SharedPreferences.Editor espEditor = espSource.edit();
-                for (Map.Entry<String, ?> entry : espSource.getAll().entrySet()) {
-                    String key = entry.getKey();
-                    if (entry.getValue() instanceof String && key.contains(keyPrefix) && !key.endsWith(BACKUP_SUFFIX)) {
-                        // Copy ESP data: <key> → <key>_BACKUP (within ESP storage)
-                        // ESP handles encryption, so the backed-up key remains encrypted
-                        espEditor.putString(key + BACKUP_SUFFIX, (String) entry.getValue());
-                        espCount++;
-                    }
-                }
-                if (!espEditor.commit()) {
-                    throw new RuntimeException("Failed to copy ESP data to backup");
-                }
+                // ESP handles encryption, so the backed-up key remains encrypted
+                espCount = copyToBackup(espSource, keyPrefix, config.getMigrationChunkSize(),
+                        "Failed to copy ESP data to backup", progress);
                 Log.i(TAG, "Backed up " + espCount + " items in ESP");
             } catch (Exception espError) {
                 // ESP is corrupted and can't be read - skip ESP backup
@@ -106,77 +127,144 @@ public class MigrationBackup {
             }
         }
 
-        // Step 1b: Copy encrypted user data to _BACKUP
-        SharedPreferences.Editor dataEditor = dataSource.edit();
-        for (Map.Entry<String, ?> entry : dataSource.getAll().entrySet()) {
+        // Step 1b: Snapshot encrypted user data and wrapped AES keys, one commit each
+        progress.startPhase(MigrationProgress.PHASE_BACKUP, 2);
+        final long dataBytes = takeSnapshot(dataSnapshot, "Failed to snapshot encrypted data");
+        progress.advance(1, dataBytes);
+        final long keyBytes = takeSnapshot(keySnapshot, "Failed to snapshot wrapped keys");
+        progress.advance(1, keyBytes);
+
+        // Step 2: Mark backup as complete (critical safety point)
+        // Originals are kept - they will be overwritten during and deleted after the migration
+        setBackupStatus(configSource, config, STATUS_COMPLETE);
+        Log.i(TAG, "Backup complete: " + dataBytes + " bytes of data, " + keyBytes + " bytes of wrapped keys, "
+                + espCount + " ESP items - originals preserved until migration succeeds");
+    }
+
+    private static long takeSnapshot(PreferencesSnapshot snapshot, String failureMessage) {
+        try {
+            return snapshot.create();
+        } catch (IOException e) {
+            throw new RuntimeException(failureMessage, e);
+        }
+    }
+
+    /**
+     * Copies every matching entry to &lt;key&gt;_BACKUP, committing one chunk at a time.
+     *
+     * @param prefs SharedPreferences to back up within
+     * @param keyPrefix Prefix to filter keys
+     * @return number of entries copied
+     */
+    private static int copyToBackup(SharedPreferences prefs, String keyPrefix, int chunkSize,
+                                    String failureMessage, MigrationProgress progress) {
+        List<Map.Entry<String, ?>> candidates = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : new TreeMap<>(prefs.getAll()).entrySet()) {
             String key = entry.getKey();
-            if (entry.getValue() instanceof String && key.contains(keyPrefix) && !key.endsWith(BACKUP_SUFFIX)) {
-                // Simple string copy: <key> → <key>_BACKUP
-                dataEditor.putString(key + BACKUP_SUFFIX, (String) entry.getValue());
-                dataCount++;
+            if (entry.getValue() instanceof String && isDataKey(key, keyPrefix)
+                    && !key.endsWith(BACKUP_SUFFIX) && !key.endsWith(CURRENT_SUFFIX)) {
+                candidates.add(entry);
             }
         }
-        if (!dataEditor.commit()) {
-            throw new RuntimeException("Failed to copy encrypted data to backup");
+        progress.startPhase(MigrationProgress.PHASE_BACKUP, candidates.size());
+
+        int pending = 0;
+        long pendingBytes = 0;
+        boolean committed = false;
+        SharedPreferences.Editor editor = prefs.edit();
+        for (Map.Entry<String, ?> entry : candidates) {
+            // Simple string copy: <key> → <key>_BACKUP
+            editor.putString(entry.getKey() + BACKUP_SUFFIX, (String) entry.getValue());
+            pending++;
+            pendingBytes += ((String) entry.getValue()).length();
+
+            if (pending >= Math.max(1, chunkSize)) {
+                if (!editor.commit()) {
+                    throw new RuntimeException(failureMessage);
+                }
+                committed = true;
+                editor = prefs.edit();
+                progress.advance(pending, pendingBytes);
+                pending = 0;
+                pendingBytes = 0;
+            }
+        }
+        // Commit at least once, so an unwritable store fails here rather than later in the migration
+        if ((pending > 0 || !committed) && !editor.commit()) {
+            throw new RuntimeException(failureMessage);
         }
+        progress.advance(pending, pendingBytes);
+        return candidates.size();
+    }
 
-        // Step 2: Copy wrapped AES keys to _BACKUP
-        SharedPreferences.Editor keyEditor = keyStorage.edit();
-        for (Map.Entry<String, ?> entry : keyStorage.getAll().entrySet()) {
-            String key = entry.getKey();
-            if (entry.getValue() instanceof String && !key.endsWith(BACKUP_SUFFIX)) {
-                // Simple string copy: <key> → <key>_BACKUP
-                keyEditor.putString(key + BACKUP_SUFFIX, (String) entry.getValue());
-                keyCount++;
+    /**
+     * Returns the backed up entries by their original name: the entries of the snapshot, or
+     * the &lt;key&gt;_BACKUP entries of a backup that an earlier version of the plugin took
+     * within the preferences file itself.
+     *
+     * @param snapshot Snapshot of the backed up SharedPreferences
+     * @param keyPrefix Prefix to filter keys, or null to read every string entry
+     * @return backed up string entries, sorted by key
+     */
+    public static Map<String, String> readBackup(PreferencesSnapshot snapshot, String keyPrefix) {
+        Map<String, String> backup = new TreeMap<>();
+        if (snapshot.exists()) {
+            for (Map.Entry<String, ?> entry : snapshot.read().entrySet()) {
+                String key = entry.getKey();
+                if (entry.getValue() instanceof String && (keyPrefix == null || isDataKey(key, keyPrefix))
+                        && !key.endsWith(BACKUP_SUFFIX) && !key.endsWith(CURRENT_SUFFIX)) {
+                    backup.put(key, (String) entry.getValue());
+                }
             }
-        }
-        if (!keyEditor.commit()) {
-            throw new RuntimeException("Failed to copy wrapped keys to backup");
+            return backup;
         }
 
-        // Step 3: Mark backup as complete (critical safety point)
-        // Originals are kept - they will be deleted in step 7 after successful migration
-        setBackupStatus(configSource, config, STATUS_COMPLETE);
-        Log.i(TAG, "Backup complete: " + dataCount + " data items, " +
-             keyCount + " wrapped keys, " + espCount + " ESP items - originals preserved until migration succeeds");
+        for (Map.Entry<String, ?> entry : snapshot.getPreferences().getAll().entrySet()) {
+            String key = entry.getKey();
+            if (entry.getValue() instanceof String && (keyPrefix == null || key.contains(keyPrefix))
+                    && key.endsWith(BACKUP_SUFFIX)) {
+                backup.put(key.substring(0, key.length() - BACKUP_SUFFIX.length()), (String) entry.getValue());
+            }
+        }
+        return backup;
     }
 
     /**
-     * Deletes all _BACKUP entries from storage.
-     * Sets backup status to "deleted" in configSource.
+     * Deletes the backup snapshots and any _BACKUP entries from storage.
+     * Removes the backup status from configSource.
      *
-     * @param dataSource SharedPreferences containing user data
-     * @param keyStorage SharedPreferences containing wrapped keys
+     * @param dataSnapshot Snapshot of the SharedPreferences containing user data
+     * @param keySnapshot Snapshot of the SharedPreferences containing wrapped keys
      * @param configSource SharedPreferences for status tracking
      * @param config Configuration object
      * @param keyPrefix Prefix to filter data keys
      */
-    public static void deleteBackup(SharedPreferences dataSource,
-                                   SharedPreferences keyStorage,
+    public static void deleteBackup(PreferencesSnapshot dataSnapshot,
+                                   PreferencesSnapshot keySnapshot,
                                    NamespacedConfigSource configSource,
                                    FlutterSecureStorageConfig config,
                                    String keyPrefix) {
-        deleteBackup(dataSource, keyStorage, null, configSource, config, keyPrefix);
+        deleteBackup(dataSnapshot, keySnapshot, null, configSource, config, keyPrefix);
     }
 
     /**
-     * Deletes all _BACKUP entries from storage, including ESP.
-     * Sets backup status to "deleted" in configSource.
+     * Deletes the backup snapshots and any _BACKUP entries from storage, including ESP.
+     * Removes the backup status from configSource.
      *
-     * @param dataSource SharedPreferences containing user data
-     * @param keyStorage SharedPreferences containing wrapped keys
+     * @param dataSnapshot Snapshot of the SharedPreferences containing user data
+     * @param keySnapshot Snapshot of the SharedPreferences containing wrapped keys
      * @param espSource EncryptedSharedPreferences source (can be null)
      * @param configSource SharedPreferences for status tracking
      * @param config Configuration object
      * @param keyPrefix Prefix to filter data keys
      */
-    public static void deleteBackup(SharedPreferences dataSource,
-                                   SharedPreferences keyStorage,
+    public static void deleteBackup(PreferencesSnapshot dataSnapshot,
+                                   PreferencesSnapshot keySnapshot,
                                    SharedPreferences espSource,
                                    NamespacedConfigSource configSource,
                                    FlutterSecureStorageConfig config,
                                    String keyPrefix) {
-        deleteBackupData(dataSource, keyStorage, espSource, keyPrefix);
+        deleteBackupData(dataSnapshot, keySnapshot, espSource, keyPrefix);
 
         // Remove backup status key entirely — migration is complete, no trace needed
         configSource.edit().remove(BACKUP_STATUS_KEY).commit();
@@ -204,6 +292,17 @@ public class MigrationBackup {
             .commit();
     }
 
+    /**
+     * Stages a backup status into an existing configSource editor, so it is committed
+     * atomically with whatever else that editor writes.
+     *
+     * @param editor Editor obtained from configSource
+     * @param status Status string (started/complete/migrated)
+     */
+    public static void putBackupStatus(SharedPreferences.Editor editor, String status) {
+        editor.putString(BACKUP_STATUS_KEY, status);
+    }
+
     /**
      * Gets backup status from configSource.
      *
@@ -230,130 +329,79 @@ public class MigrationBackup {
     }
 
     /**
-     * Deletes _BACKUP entries from storage, including ESP (without updating status).
-     * Internal helper method.
+     * Deletes the backup snapshots and _BACKUP entries from storage, including ESP (without
+     * updating status). Internal helper method.
      */
-    private static void deleteBackupData(SharedPreferences dataSource,
-                                        SharedPreferences keyStorage,
+    private static void deleteBackupData(PreferencesSnapshot dataSnapshot,
+                                        PreferencesSnapshot keySnapshot,
                                         SharedPreferences espSource,
                                         String keyPrefix) {
-        int dataCount = 0;
-        int keyCount = 0;
-        int espCount = 0;
-
-        // Delete _BACKUP keys from ESP if provided
-        if (espSource != null) {
-            SharedPreferences.Editor espEditor = espSource.edit();
-            for (Map.Entry<String, ?> entry : espSource.getAll().entrySet()) {
-                String key = entry.getKey();
-                if (key.endsWith(BACKUP_SUFFIX) && key.contains(keyPrefix)) {
-                    espEditor.remove(key);
-                    espCount++;
-                }
-            }
-            espEditor.commit();
-        }
-
-        // Delete _BACKUP keys from dataSource
-        SharedPreferences.Editor dataEditor = dataSource.edit();
-        for (Map.Entry<String, ?> entry : dataSource.getAll().entrySet()) {
-            String key = entry.getKey();
-            if (key.endsWith(BACKUP_SUFFIX) && key.contains(keyPrefix)) {
-                dataEditor.remove(key);
-                dataCount++;
-            }
-        }
-        dataEditor.commit();
+        dataSnapshot.delete();
+        keySnapshot.delete();
 
-        // Delete _BACKUP keys from keyStorage
-        SharedPreferences.Editor keyEditor = keyStorage.edit();
-        for (Map.Entry<String, ?> entry : keyStorage.getAll().entrySet()) {
-            String key = entry.getKey();
-            if (key.endsWith(BACKUP_SUFFIX)) {
-                keyEditor.remove(key);
-                keyCount++;
-            }
-        }
-        keyEditor.commit();
+        // Backups taken within the files by an earlier version, and ESP backups
+        int espCount = espSource != null ? deleteBackupEntries(espSource, keyPrefix) : 0;
+        int dataCount = deleteBackupEntries(dataSnapshot.getPreferences(), keyPrefix);
+        int keyCount = deleteBackupEntries(keySnapshot.getPreferences(), null);
 
         if (dataCount > 0 || keyCount > 0 || espCount > 0) {
             Log.d(TAG, "Deleted " + dataCount + " data _BACKUP entries, " + keyCount + " key _BACKUP entries, " + espCount + " ESP _BACKUP entries");
         }
     }
 
-    /**
-     * Deletes original (non-_BACKUP) entries from dataSource and keyStorage.
-     * Called after successful decryption from _BACKUP keys, before re-encryption.
-     * RSA KeyStore keys are NOT deleted here - they are deleted at step 7.
-     *
-     * @param dataSource SharedPreferences containing user data
-     * @param keyStorage SharedPreferences containing wrapped AES keys
-     * @param keyPrefix Prefix to filter data keys
-     */
-    public static void deleteOriginalData(SharedPreferences dataSource,
-                                          SharedPreferences keyStorage,
-                                          String keyPrefix) {
-        deleteOriginalData(dataSource, keyStorage, null, keyPrefix);
+    private static int deleteBackupEntries(SharedPreferences prefs, String keyPrefix) {
+        SharedPreferences.Editor editor = prefs.edit();
+        int count = 0;
+        for (String key : prefs.getAll().keySet()) {
+            if (key.endsWith(BACKUP_SUFFIX) && (keyPrefix == null || key.contains(keyPrefix))) {
+                editor.remove(key);
+                count++;
+            }
+        }
+        if (count > 0) {
+            editor.commit();
+        }
+        return count;
     }
 
     /**
-     * Deletes original (non-_BACKUP) entries from dataSource and keyStorage,
-     * preserving any data key that already has a <key>_MIGRATED marker in configSource.
-     * A _MIGRATED marker means that key was already successfully re-encrypted with the
-     * new cipher on a previous (crashed) run — deleting it would cause data loss on retry.
+     * Deletes original (non-_BACKUP) entries from keyStorage, so the current cipher generates
+     * a new wrapped key. Called after successful decryption of the backup, before re-encryption.
+     * The encrypted data is not deleted; re-encryption overwrites it chunk by chunk.
+     * RSA KeyStore keys are NOT deleted here - they are deleted after the commit point.
+     * <p>
+     * Nothing is deleted if the migration journal in dataSource or a legacy &lt;key&gt;_MIGRATED
+     * marker in configSource exists. Either means data was already re-encrypted with the new
+     * wrapped key on a previous (crashed) run — deleting it would cause data loss on retry.
      *
-     * @param dataSource SharedPreferences containing user data
      * @param keyStorage SharedPreferences containing wrapped AES keys
-     * @param configSource SharedPreferences for migration tracking (may be null to skip check)
+     * @param dataSource SharedPreferences containing user data and the journal
+     * @param configSource SharedPreferences for migration tracking
      * @param keyPrefix Prefix to filter data keys
      */
-    public static void deleteOriginalData(SharedPreferences dataSource,
-                                          SharedPreferences keyStorage,
+    public static void deleteOriginalKeys(SharedPreferences keyStorage,
+                                          SharedPreferences dataSource,
                                           NamespacedConfigSource configSource,
                                           String keyPrefix) {
-        int dataCount = 0;
-        int preservedCount = 0;
-        int keyCount = 0;
-
-        // Delete original keys from dataSource, except those already _MIGRATED
-        SharedPreferences.Editor dataEditor = dataSource.edit();
-        for (Map.Entry<String, ?> entry : dataSource.getAll().entrySet()) {
-            String key = entry.getKey();
-            if (!key.endsWith(BACKUP_SUFFIX) && key.contains(keyPrefix)) {
-                if (configSource != null && configSource.contains(key + MIGRATED_SUFFIX)) {
-                    // This key was already re-encrypted on a prior (crashed) run — preserve it
-                    Log.d(TAG, "Preserving already-migrated key in dataSource: " + key);
-                    preservedCount++;
-                    continue;
-                }
-                dataEditor.remove(key);
-                dataCount++;
-            }
+        // If the journal or _MIGRATED markers exist, step 6 already ran in a prior crashed run and
+        // wrote the new wrapped AES key to keyStorage. Deleting it now would cause BAD_DECRYPT
+        // because step 6 will skip those keys (they're already migrated) and never rewrite them.
+        if (hasMigrationJournal(dataSource, keyPrefix) || hasMigratedMarkers(configSource, keyPrefix)) {
+            Log.d(TAG, "Preserving keyStorage originals (new wrapped AES key) — already-migrated keys exist");
+            return;
         }
-        dataEditor.commit();
 
-        // Delete original keys from keyStorage — but only if no _MIGRATED markers exist.
-        // If _MIGRATED markers exist, step 5 already ran in a prior crashed run and wrote the new
-        // wrapped AES key to keyStorage. Deleting it now would cause BAD_DECRYPT because step 5
-        // will skip those keys (they're already migrated) and never rewrite the key.
-        if (configSource == null || !hasMigratedMarkers(configSource, keyPrefix)) {
-            // No already-migrated keys — safe to delete keyStorage originals
-            SharedPreferences.Editor keyEditor = keyStorage.edit();
-            for (Map.Entry<String, ?> entry : keyStorage.getAll().entrySet()) {
-                String key = entry.getKey();
-                if (!key.endsWith(BACKUP_SUFFIX)) {
-                    keyEditor.remove(key);
-                    keyCount++;
-                }
+        int keyCount = 0;
+        SharedPreferences.Editor keyEditor = keyStorage.edit();
+        for (Map.Entry<String, ?> entry : keyStorage.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (!key.endsWith(BACKUP_SUFFIX)) {
+                keyEditor.remove(key);
+                keyCount++;
             }
-            keyEditor.commit();
-        } else {
-            // _MIGRATED markers exist — step 5 already ran in a prior crashed run and wrote the
-            // new wrapped AES key to keyStorage. Must be preserved.
-            Log.d(TAG, "Preserving keyStorage originals (new wrapped AES key) — already-migrated keys exist");
         }
-
-        Log.d(TAG, "Deleted " + dataCount + " original data entries (preserved " + preservedCount + " already-migrated), " + keyCount + " original key entries");
+        keyEditor.commit();
+        Log.d(TAG, "Deleted " + keyCount + " original key entries");
     }
 
     /**
@@ -401,4 +449,248 @@ public class MigrationBackup {
         }
     }
 
+    /**
+     * Re-encrypts all cached entries with the current cipher and writes them to dataSource in
+     * chunks. Each chunk is committed together with a journal record naming the last key it
+     * contains, so a chunk and its progress record become durable in the same write.
+     * <p>
+     * Keys are processed in sorted order. On retry after a crash, every key up to and including
+     * the journaled one is skipped, as are keys carrying a legacy per-key _MIGRATED marker from
+     * an earlier plugin version. Keys in dataSource that are missing from the cache (their backup
+     * could not be decrypted) are removed in their chunk, so everything below the checkpoint is
+     * in its final state.
+     *
+     * @param cache Map of plaintext key-value pairs, as decrypted from the backup
+     * @param dataSource SharedPreferences to write encrypted data and the journal to
+     * @param configSource SharedPreferences holding legacy _MIGRATED markers
+     * @param currentCipher The new storage cipher to encrypt with
+     * @param keyPrefix Prefix to filter data keys
+     * @param chunkSize Number of entries committed per write
+     * @return number of entries written or removed by this call
+     */
+    public static int encryptAllWithJournal(Map<String, String> cache,
+                                            SharedPreferences dataSource,
+                                            NamespacedConfigSource configSource,
+                                            StorageCipher currentCipher,
+                                            String keyPrefix,
+                                            int chunkSize) throws Exception {
+        Map<String, byte[]> plaintexts = new HashMap<>();
+        for (Map.Entry<String, String> entry : cache.entrySet()) {
+            plaintexts.put(entry.getKey(), entry.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        return encryptPlaintextsWithJournal(plaintexts, dataSource, configSource, currentCipher, keyPrefix, chunkSize,
+                MigrationProgress.NONE);
+    }
+
+    /**
+     * Like {@link #encryptAllWithJournal(Map, SharedPreferences, NamespacedConfigSource, StorageCipher, String, int)},
+     * for plaintexts as they were stored, so compressed values and pointers to large value
+     * files are carried over unchanged. Reports each committed chunk as a
+     * {@link MigrationProgress#PHASE_ENCRYPT} phase.
+     */
+    public static int encryptPlaintextsWithJournal(Map<String, byte[]> cache,
+                                            SharedPreferences dataSource,
+                                            NamespacedConfigSource configSource,
+                                            StorageCipher currentCipher,
+                                            String keyPrefix,
+                                            int chunkSize,
+                                            MigrationProgress progress) throws Exception {
+        TreeSet<String> keys = new TreeSet<>(cache.keySet());
+        for (Map.Entry<String, ?> entry : dataSource.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (entry.getValue() instanceof String && isDataKey(key, keyPrefix)) {
+                // Originals, including those of a backup an earlier version took within the file
+                keys.add(key.endsWith(BACKUP_SUFFIX) ? key.substring(0, key.length() - BACKUP_SUFFIX.length()) : key);
+            }
+        }
+
+        String checkpoint = getJournalCheckpoint(dataSource, keyPrefix);
+        int journaled = getJournalCount(dataSource, keyPrefix);
+        int written = 0;
+        int skipped = 0;
+        int chunks = 0;
+        List<String> pending = new ArrayList<>();
+
+        for (String key : keys) {
+            // Skip keys already committed on a previous (crashed) run
+            if (isJournaled(checkpoint, key) || configSource.contains(key + MIGRATED_SUFFIX)) {
+                skipped++;
+                continue;
+            }
+            pending.add(key);
+        }
+
+        progress.startPhase(MigrationProgress.PHASE_ENCRYPT, pending.size());
+        final int size = Math.max(1, chunkSize);
+        for (int start = 0; start < pending.size(); start += size) {
+            List<String> chunk = pending.subList(start, Math.min(start + size, pending.size()));
+            journaled = commitChunk(chunk, cache, dataSource, currentCipher, journaled, progress);
+            written += chunk.size();
+            chunks++;
+        }
+
+        Log.d(TAG, "Encrypted " + written + " items in " + chunks + " journaled chunks (skipped "
+                + skipped + " already-migrated) with current cipher");
+        return written;
+    }
+
+    private static int commitChunk(List<String> chunk, Map<String, byte[]> cache, SharedPreferences dataSource,
+                                   StorageCipher currentCipher, int journaled, MigrationProgress progress) throws Exception {
+        SharedPreferences.Editor editor = dataSource.edit();
+        long bytes = 0;
+        for (String key : chunk) {
+            byte[] plaintext = cache.get(key);
+            if (plaintext == null) {
+                // Backup could not be decrypted; the original is dropped as before
+                editor.remove(key);
+                continue;
+            }
+            try {
+                bytes += plaintext.length;
+                byte[] encryptedData = currentCipher.encrypt(plaintext);
+                editor.putString(key, ValueEnvelope.encode(currentCipher, encryptedData));
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to encrypt key: " + key, e);
+                throw new Exception("Failed to encrypt data with current cipher for key: " + key, e);
+            }
+        }
+
+        // Data and progress record are committed in the same write
+        int total = journaled + chunk.size();
+        editor.putString(JOURNAL_KEY, total + "|" + chunk.get(chunk.size() - 1));
+        if (!editor.commit()) {
+            throw new Exception("Failed to commit encrypted data for keys up to: " + chunk.get(chunk.size() - 1));
+        }
+        progress.advance(chunk.size(), bytes);
+        return total;
+    }
+
+    /**
+     * Commits a &lt;key&gt;_CURRENT copy of every wrapped key in keyStorage.
+     * <p>
+     * Called right after the current cipher was initialized. A newly generated key is only
+     * written with apply(), and step 2 of a resumed migration temporarily overwrites it with
+     * the _BACKUP blob; the stash is what keeps data that is already re-encrypted readable
+     * if the process dies in either window.
+     *
+     * @param keyStorage SharedPreferences containing wrapped AES keys
+     * @throws Exception if the stash cannot be committed
+     */
+    public static void stashCurrentKeys(SharedPreferences keyStorage) throws Exception {
+        SharedPreferences.Editor editor = keyStorage.edit();
+        int count = 0;
+        for (Map.Entry<String, ?> entry : keyStorage.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (entry.getValue() instanceof String && !key.endsWith(BACKUP_SUFFIX) && !key.endsWith(CURRENT_SUFFIX)) {
+                editor.putString(key + CURRENT_SUFFIX, (String) entry.getValue());
+                count++;
+            }
+        }
+        if (!editor.commit()) {
+            throw new Exception("Failed to commit current wrapped keys to disk");
+        }
+        Log.d(TAG, "Stashed " + count + " current wrapped keys");
+    }
+
+    /**
+     * Returns the stashed wrapped keys by their original name, or an empty map if
+     * {@link #stashCurrentKeys} has not run.
+     *
+     * @param keyStorage SharedPreferences containing wrapped AES keys
+     */
+    public static Map<String, String> getStashedKeys(SharedPreferences keyStorage) {
+        Map<String, String> stashed = new TreeMap<>();
+        for (Map.Entry<String, ?> entry : keyStorage.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (entry.getValue() instanceof String && key.endsWith(CURRENT_SUFFIX)) {
+                stashed.put(key.substring(0, key.length() - CURRENT_SUFFIX.length()), (String) entry.getValue());
+            }
+        }
+        return stashed;
+    }
+
+    /**
+     * Deletes all &lt;key&gt;_CURRENT entries from keyStorage.
+     *
+     * @param keyStorage SharedPreferences containing wrapped AES keys
+     */
+    public static void deleteStashedKeys(SharedPreferences keyStorage) {
+        SharedPreferences.Editor editor = keyStorage.edit();
+        int count = 0;
+        for (String key : keyStorage.getAll().keySet()) {
+            if (key.endsWith(CURRENT_SUFFIX)) {
+                editor.remove(key);
+                count++;
+            }
+        }
+        if (count > 0) {
+            editor.commit();
+            Log.d(TAG, "Deleted " + count + " stashed wrapped keys");
+        }
+    }
+
+    /**
+     * Returns true if the given dataSource key holds a value of the storage with the given
+     * keyPrefix rather than the migration journal, whose key a custom prefix may occur in.
+     */
+    static boolean isDataKey(String key, String keyPrefix) {
+        return key.contains(keyPrefix) && !JOURNAL_KEY.equals(key);
+    }
+
+    /**
+     * Returns true if a migration journal for the given keyPrefix exists in dataSource,
+     * meaning re-encryption has committed at least one chunk in a prior (crashed) run.
+     *
+     * @param dataSource SharedPreferences containing user data and the journal
+     * @param keyPrefix Prefix the journaled keys belong to
+     */
+    public static boolean hasMigrationJournal(SharedPreferences dataSource, String keyPrefix) {
+        return getJournalCheckpoint(dataSource, keyPrefix) != null;
+    }
+
+    /**
+     * Deletes the migration journal from dataSource.
+     * Called during cleanup after all keys have been successfully re-encrypted.
+     *
+     * @param dataSource SharedPreferences containing user data and the journal
+     */
+    public static void deleteMigrationJournal(SharedPreferences dataSource) {
+        if (dataSource.contains(JOURNAL_KEY)) {
+            dataSource.edit().remove(JOURNAL_KEY).commit();
+            Log.d(TAG, "Deleted migration journal from dataSource");
+        }
+    }
+
+    /**
+     * Returns the last key committed by the journal, or null if there is no journal for
+     * this keyPrefix. The record has the form "&lt;count&gt;|&lt;lastKey&gt;".
+     */
+    private static String getJournalCheckpoint(SharedPreferences dataSource, String keyPrefix) {
+        String record = dataSource.getString(JOURNAL_KEY, null);
+        if (record == null) {
+            return null;
+        }
+        int separator = record.indexOf('|');
+        if (separator < 0) {
+            return null;
+        }
+        String lastKey = record.substring(separator + 1);
+        return lastKey.contains(keyPrefix) ? lastKey : null;
+    }
+
+    private static int getJournalCount(SharedPreferences dataSource, String keyPrefix) {
+        if (getJournalCheckpoint(dataSource, keyPrefix) == null) {
+            return 0;
+        }
+        String record = dataSource.getString(JOURNAL_KEY, "");
+        try {
+            return Integer.parseInt(record.substring(0, record.indexOf('|')));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static boolean isJournaled(String checkpoint, String key) {
+        return checkpoint != null && key.compareTo(checkpoint) <= 0;
+    }
 }
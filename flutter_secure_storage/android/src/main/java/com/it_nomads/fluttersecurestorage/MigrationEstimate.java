@@ -0,0 +1,386 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipherAlgorithm;
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipherFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What migrating a storage to the configured algorithms would cost, measured without
+ * migrating it.
+ * <p>
+ * The estimate reads the algorithm markers and the stored values, decides which migration
+ * initialization would run if migrateOnAlgorithmChange were enabled, and times a sample of
+ * evenly spaced entries: each is decrypted with the saved cipher and encrypted with a cipher
+ * of the current algorithm whose key only lives in memory. A synced copy of the data file to
+ * the cache directory stands in for a commit. Nothing is written to the storage, its keys or
+ * its markers, and no key is generated.
+ * <p>
+ * The saved cipher is only used if its data key is stored wrapped; a biometric or missing key
+ * is not unwrapped, and decryption is then assumed to cost as much as encryption. Time and
+ * memory are extrapolated from the sample and the number of passes the migration makes over
+ * the data, so they are an order of magnitude rather than a prediction.
+ */
+public final class MigrationEstimate {
+    private static final String TAG = "MigrationEstimate";
+
+    /** Nothing to migrate, the saved and current algorithms are the same. */
+    public static final String STRATEGY_NONE = "none";
+    /** Only the data key is re-wrapped, see {@link KeyRewrap}. */
+    public static final String STRATEGY_REWRAP = "rewrap";
+    /** Values are migrated in the background after initialization, see {@link LazyMigration}. */
+    public static final String STRATEGY_LAZY = "lazy";
+    /** Values are re-encrypted in chunks and committed once, see {@link ChunkedMigration}. */
+    public static final String STRATEGY_CHUNKED = "chunked";
+    /** Values are re-encrypted from a snapshot with a chunk journal, see {@link BackupMigration}. */
+    public static final String STRATEGY_BACKUP = "backup";
+    /** A biometric key is involved; the user is prompted and nothing runs in parallel. */
+    public static final String STRATEGY_BIOMETRIC = "biometric";
+
+    static final int SAMPLE_SIZE = 32;
+
+    private final String savedKeyAlgorithm;
+    private final String savedStorageAlgorithm;
+    private final String currentKeyAlgorithm;
+    private final String currentStorageAlgorithm;
+    private final String strategy;
+    private final boolean requiresAuthentication;
+
+    private int entries = 0;
+    private int unreadableEntries = 0;
+    private long storedBytes = 0;
+    private long ciphertextBytes = 0;
+    private long plaintextBytes = 0;
+    private int sampledEntries = 0;
+    private int decryptedSamples = 0;
+    private int failedSamples = 0;
+    private long decryptNanos = 0;
+    private long encryptNanos = 0;
+    private long fileCopyNanos = 0;
+    private int workers = 1;
+    private long estimatedMillis = 0;
+    private long estimatedPeakMemoryBytes = 0;
+
+    private MigrationEstimate(StorageCipherFactory factory, String strategy, boolean requiresAuthentication) {
+        this.savedKeyAlgorithm = factory.getSavedKeyAlgorithm().name();
+        this.savedStorageAlgorithm = factory.getSavedStorageAlgorithm().name();
+        this.currentKeyAlgorithm = factory.getCurrentKeyAlgorithm().name();
+        this.currentStorageAlgorithm = factory.getCurrentStorageAlgorithm().name();
+        this.strategy = strategy;
+        this.requiresAuthentication = requiresAuthentication;
+    }
+
+    /**
+     * Estimates the migration of the storage described by config. Safe to call before and
+     * instead of initialization.
+     *
+     * @throws Exception if the algorithm markers or options name an unknown algorithm
+     */
+    static MigrationEstimate estimate(Context context, FlutterSecureStorageConfig config) throws Exception {
+        final NamespacedConfigSource configSource = new NamespacedConfigSource(context, config.getEffectiveDataPrefsName());
+        final StorageCipherFactory factory = StorageCipherFactory.forInspection(configSource, config);
+        final boolean requiresAuthentication = StorageCipherFactory.mayRequireAuthentication(configSource, config);
+        final MigrationEstimate estimate = new MigrationEstimate(factory,
+                chooseStrategy(configSource, factory, config, requiresAuthentication), requiresAuthentication);
+
+        final SharedPreferences dataSource = context.getSharedPreferences(config.getEffectiveDataPrefsName(), Context.MODE_PRIVATE);
+        final List<String> keys = ChunkedMigration.collectKeys(dataSource, config.getSharedPreferencesKeyPrefix());
+        final Map<String, ?> values = dataSource.getAll();
+        estimate.scan(keys, values, factory.getSavedStorageAlgorithm());
+
+        if (factory.requiresReEncryption() && !keys.isEmpty()) {
+            estimate.sample(context, factory, config, keys, values);
+            estimate.measureCommit(new PreferencesSnapshot(context, config.getEffectiveDataPrefsName(), dataSource),
+                    context);
+        }
+        estimate.extrapolate(config);
+
+        Log.i(TAG, "Estimated " + estimate.strategy + " migration of " + estimate.entries + " entries ("
+                + estimate.ciphertextBytes + " bytes) from " + estimate.savedStorageAlgorithm + " to "
+                + estimate.currentStorageAlgorithm + ": " + estimate.estimatedMillis + " ms, "
+                + estimate.estimatedPeakMemoryBytes + " bytes peak");
+        return estimate;
+    }
+
+    /**
+     * Returns the migration initialization would run if migrateOnAlgorithmChange were enabled,
+     * in the same order of checks.
+     */
+    private static String chooseStrategy(NamespacedConfigSource configSource, StorageCipherFactory factory,
+                                         FlutterSecureStorageConfig config, boolean requiresAuthentication) {
+        if (!factory.requiresReEncryption()) {
+            return STRATEGY_NONE;
+        }
+        final boolean backupInProgress = MigrationBackup.getBackupStatus(configSource, config) != null;
+        if (factory.getRewrappableKeyEntry() != null && !backupInProgress) {
+            return STRATEGY_REWRAP;
+        }
+        final boolean resumingLazy = factory.getCurrentStorageAlgorithm().name()
+                .equals(LazyMigration.getTargetAlgorithm(configSource));
+        if ((resumingLazy || config.shouldMigrateLazily()) && factory.changedStorageAlgorithm()
+                && !factory.changedKeyDerivation() && !requiresAuthentication && !backupInProgress) {
+            return STRATEGY_LAZY;
+        }
+        if (requiresAuthentication) {
+            return STRATEGY_BIOMETRIC;
+        }
+        return config.shouldMigrateWithBackup() ? STRATEGY_BACKUP : STRATEGY_CHUNKED;
+    }
+
+    private void scan(List<String> keys, Map<String, ?> values, StorageCipherAlgorithm savedAlgorithm) {
+        for (String key : keys) {
+            final String stored = (String) values.get(key);
+            entries++;
+            storedBytes += stored.length();
+            try {
+                final ValueEnvelope envelope = ValueEnvelope.parse(stored);
+                final int length = envelope.getCiphertext().length;
+                final int ivLength = envelope.getAlgorithm() != null ? envelope.getIvLength() : savedAlgorithm.getIvLength();
+                ciphertextBytes += length;
+                plaintextBytes += Math.max(0, length - ivLength);
+            } catch (Exception e) {
+                unreadableEntries++;
+            }
+        }
+    }
+
+    /**
+     * Decrypts and re-encrypts up to {@link #SAMPLE_SIZE} evenly spaced entries and records
+     * the time each step took. Plaintext is wiped right after use.
+     */
+    private void sample(Context context, StorageCipherFactory factory, FlutterSecureStorageConfig config,
+                        List<String> keys, Map<String, ?> values) throws Exception {
+        StorageCipher savedCipher = null;
+        if (factory.hasSavedWrappedKey(context)) {
+            try {
+                savedCipher = factory.getSavedStorageCipher(context, null);
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to unwrap saved data key - not sampling decryption", e);
+            }
+        }
+        final StorageCipher scratchCipher = factory.createScratchStorageCipher();
+        final int ivLength = factory.getSavedStorageAlgorithm().getIvLength();
+
+        final int step = Math.max(1, keys.size() / SAMPLE_SIZE);
+        for (int i = 0; i < keys.size() && sampledEntries < SAMPLE_SIZE; i += step) {
+            final ValueEnvelope envelope;
+            try {
+                envelope = ValueEnvelope.parse((String) values.get(keys.get(i)));
+            } catch (Exception e) {
+                continue;
+            }
+            sampledEntries++;
+
+            byte[] plaintext = null;
+            if (savedCipher != null) {
+                plaintext = decryptSample(savedCipher, envelope);
+            }
+            if (plaintext == null) {
+                // Encrypt a stand-in of the same size
+                plaintext = new byte[Math.max(0, envelope.getCiphertext().length - ivLength)];
+            }
+
+            final long startTime = System.nanoTime();
+            scratchCipher.encrypt(plaintext);
+            encryptNanos += System.nanoTime() - startTime;
+            Arrays.fill(plaintext, (byte) 0);
+        }
+
+        // Only the chunked migration runs in parallel; the scratch cipher stands in for a saved
+        // cipher that could not be created
+        if (STRATEGY_CHUNKED.equals(strategy)) {
+            workers = ChunkedMigration.workerCount(entries, config.getMigrationChunkSize(),
+                    config.getMigrationParallelism(), savedCipher != null ? savedCipher : scratchCipher, scratchCipher);
+        }
+    }
+
+    /**
+     * Decrypts one sampled value with the saved cipher.
+     *
+     * @return the plaintext, or null if the value is not in the saved format or fails to decrypt
+     */
+    private byte[] decryptSample(StorageCipher savedCipher, ValueEnvelope envelope) {
+        final byte[] ciphertext;
+        try {
+            ciphertext = envelope.getCiphertextFor(savedCipher);
+        } catch (Exception e) {
+            // Already written by the current cipher, e.g. during a lazy migration
+            return null;
+        }
+        final long startTime = System.nanoTime();
+        try {
+            final byte[] plaintext = savedCipher.decrypt(ciphertext);
+            decryptNanos += System.nanoTime() - startTime;
+            decryptedSamples++;
+            return plaintext;
+        } catch (Exception e) {
+            failedSamples++;
+            return null;
+        }
+    }
+
+    private void measureCommit(PreferencesSnapshot dataSnapshot, Context context) {
+        try {
+            fileCopyNanos = dataSnapshot.measureCopy(context.getCacheDir());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to time a copy of the data file", e);
+        }
+    }
+
+    /**
+     * Scales the sampled timings to the whole store by the passes the chosen migration makes:
+     * the chunked and biometric migrations verify every value before re-encrypting it, the
+     * backup migration snapshots the data file and commits once per chunk, and the lazy one
+     * commits once per sweeper chunk without blocking initialization.
+     */
+    private void extrapolate(FlutterSecureStorageConfig config) {
+        if (STRATEGY_NONE.equals(strategy) || STRATEGY_REWRAP.equals(strategy) || entries == 0) {
+            return;
+        }
+        final double encrypt = sampledEntries > 0 ? (double) encryptNanos / sampledEntries : 0;
+        final double decrypt = decryptedSamples > 0 ? (double) decryptNanos / decryptedSamples : encrypt;
+        final int chunkSize = Math.min(config.getMigrationChunkSize(), entries);
+        final int chunks = chunks(config);
+        final long averagePlaintext = plaintextBytes / entries;
+        final long averageStored = storedBytes / entries;
+
+        final double nanos;
+        final long peak;
+        switch (strategy) {
+            case STRATEGY_LAZY:
+                nanos = entries * (decrypt + encrypt) + (double) chunks * fileCopyNanos;
+                peak = chunkSize * (averagePlaintext + averageStored);
+                break;
+            case STRATEGY_BACKUP:
+                nanos = fileCopyNanos + entries * (decrypt + encrypt) + (double) chunks * fileCopyNanos;
+                peak = plaintextBytes + chunkSize * averageStored;
+                break;
+            case STRATEGY_BIOMETRIC:
+                if (config.shouldMigrateWithBackup()) {
+                    nanos = fileCopyNanos + entries * (2 * decrypt + encrypt) + (double) chunks * fileCopyNanos;
+                    peak = plaintextBytes + chunkSize * averageStored;
+                } else {
+                    nanos = entries * (2 * decrypt + encrypt) + fileCopyNanos;
+                    peak = plaintextBytes + storedBytes;
+                }
+                break;
+            case STRATEGY_CHUNKED:
+            default:
+                nanos = entries * (2 * decrypt + encrypt) / workers + fileCopyNanos;
+                peak = (long) chunkSize * workers * averagePlaintext + storedBytes;
+                break;
+        }
+        estimatedMillis = Math.round(nanos / 1_000_000d);
+        estimatedPeakMemoryBytes = peak;
+    }
+
+    private int chunks(FlutterSecureStorageConfig config) {
+        final int chunkSize = config.getMigrationChunkSize();
+        return (entries + chunkSize - 1) / chunkSize;
+    }
+
+    /** Whether the saved and current algorithms differ, so that initialization would migrate. */
+    public boolean requiresMigration() {
+        return !STRATEGY_NONE.equals(strategy);
+    }
+
+    /** One of the STRATEGY_ constants. */
+    public String getStrategy() { return strategy; }
+
+    /** Whether the migration would show a biometric prompt. */
+    public boolean requiresAuthentication() { return requiresAuthentication; }
+
+    /** Whether initialization would wait for the migration to finish. */
+    public boolean blocksInitialization() {
+        return !STRATEGY_NONE.equals(strategy) && !STRATEGY_LAZY.equals(strategy);
+    }
+
+    public String getSavedKeyAlgorithm() { return savedKeyAlgorithm; }
+
+    public String getSavedStorageAlgorithm() { return savedStorageAlgorithm; }
+
+    public String getCurrentKeyAlgorithm() { return currentKeyAlgorithm; }
+
+    public String getCurrentStorageAlgorithm() { return currentStorageAlgorithm; }
+
+    /** Number of stored values belonging to this storage. */
+    public int getEntries() { return entries; }
+
+    /** Number of stored values that are not valid Base64 or envelopes. */
+    public int getUnreadableEntries() { return unreadableEntries; }
+
+    /** Length of all stored values, as written to the data file. */
+    public long getStoredBytes() { return storedBytes; }
+
+    /** Decoded size of all ciphertexts, including their IVs. */
+    public long getCiphertextBytes() { return ciphertextBytes; }
+
+    /** Number of entries that were timed. */
+    public int getSampledEntries() { return sampledEntries; }
+
+    /** Number of sampled entries that were decrypted with the saved cipher. */
+    public int getDecryptedSamples() { return decryptedSamples; }
+
+    /** Number of sampled entries the saved cipher failed to decrypt; the migration would fail on them. */
+    public int getFailedSamples() { return failedSamples; }
+
+    /** Average time to decrypt a sampled entry, 0 if none was decrypted. */
+    public long getDecryptMicrosPerEntry() {
+        return decryptedSamples > 0 ? decryptNanos / decryptedSamples / 1000 : 0;
+    }
+
+    /** Average time to encrypt a sampled entry. */
+    public long getEncryptMicrosPerEntry() {
+        return sampledEntries > 0 ? encryptNanos / sampledEntries / 1000 : 0;
+    }
+
+    /** Time a synced copy of the data file took, about the cost of one commit. */
+    public long getFileCopyMillis() { return fileCopyNanos / 1_000_000; }
+
+    /** Number of threads the migration would re-encrypt on. */
+    public int getWorkers() { return workers; }
+
+    /** Estimated wall time of the migration, not counting biometric prompts. */
+    public long getEstimatedMillis() { return estimatedMillis; }
+
+    /** Estimated plaintext and staged ciphertext held on the heap at once during the migration. */
+    public long getEstimatedPeakMemoryBytes() { return estimatedPeakMemoryBytes; }
+
+    /**
+     * Returns the estimate in the form sent over the method channel.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("requiresMigration", requiresMigration());
+        map.put("strategy", strategy);
+        map.put("requiresAuthentication", requiresAuthentication);
+        map.put("blocksInitialization", blocksInitialization());
+        map.put("savedKeyAlgorithm", savedKeyAlgorithm);
+        map.put("savedStorageAlgorithm", savedStorageAlgorithm);
+        map.put("currentKeyAlgorithm", currentKeyAlgorithm);
+        map.put("currentStorageAlgorithm", currentStorageAlgorithm);
+        map.put("entries", entries);
+        map.put("unreadableEntries", unreadableEntries);
+        map.put("storedBytes", storedBytes);
+        map.put("ciphertextBytes", ciphertextBytes);
+        map.put("sampledEntries", sampledEntries);
+        map.put("decryptedSamples", decryptedSamples);
+        map.put("failedSamples", failedSamples);
+        map.put("decryptMicrosPerEntry", getDecryptMicrosPerEntry());
+        map.put("encryptMicrosPerEntry", getEncryptMicrosPerEntry());
+        map.put("fileCopyMillis", getFileCopyMillis());
+        map.put("workers", workers);
+        map.put("estimatedMillis", estimatedMillis);
+        map.put("estimatedPeakMemoryBytes", estimatedPeakMemoryBytes);
+        return map;
+    }
+}
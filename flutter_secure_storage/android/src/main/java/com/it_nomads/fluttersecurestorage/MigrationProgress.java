@@ -0,0 +1,128 @@
+package com.it_nomads.fluttersecurestorage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reports the progress of a data migration to a listener.
+ * <p>
+ * A migration runs through one or more phases, each with a known number of entries. Workers
+ * report processed entries with {@link #advance}, usually once per chunk, from any thread.
+ * Events are throttled to one per interval, except for the start and the end of a phase and
+ * of the migration, so reporting costs next to nothing even when the listener is slow to
+ * consume them. Listeners are called on the reporting thread and must not block.
+ * <p>
+ * Every event is a map with the keys "storage", "phase", "processed", "total", "bytes" and
+ * "elapsedMillis", plus "error" for a failed migration. Counts and bytes are per phase; the
+ * elapsed time is since the migration started.
+ */
+public final class MigrationProgress {
+    public static final String PHASE_VERIFY = "verify";
+    public static final String PHASE_BACKUP = "backup";
+    public static final String PHASE_DECRYPT = "decrypt";
+    public static final String PHASE_ENCRYPT = "encrypt";
+    public static final String PHASE_ENCRYPTED_SHARED_PREFERENCES = "encryptedSharedPreferences";
+    public static final String PHASE_DONE = "done";
+    public static final String PHASE_FAILED = "failed";
+
+    static final long DEFAULT_INTERVAL_MILLIS = 100;
+
+    /** Progress that is not reported anywhere. */
+    static final MigrationProgress NONE = new MigrationProgress(null, null, 0);
+
+    /**
+     * Receives progress events.
+     */
+    public interface Listener {
+        void onProgress(Map<String, Object> event);
+    }
+
+    private final String storage;
+    private final Listener listener;
+    private final long intervalMillis;
+    private final long startTime = System.currentTimeMillis();
+
+    // Guarded by this
+    private String phase = "";
+    private int total = 0;
+    private int processed = 0;
+    private long bytes = 0;
+    private long lastEmitTime = 0;
+
+    MigrationProgress(String storage, Listener listener, long intervalMillis) {
+        this.storage = storage;
+        this.listener = listener;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Starts a new phase of total entries and reports it.
+     */
+    void startPhase(String phase, int total) {
+        if (listener == null) {
+            return;
+        }
+        Map<String, Object> event;
+        synchronized (this) {
+            this.phase = phase;
+            this.total = total;
+            this.processed = 0;
+            this.bytes = 0;
+            event = createEvent(System.currentTimeMillis());
+        }
+        listener.onProgress(event);
+    }
+
+    /**
+     * Records processed entries of the current phase. Reported at most once per interval, and
+     * always when the phase is complete.
+     */
+    void advance(int entries, long processedBytes) {
+        if (listener == null) {
+            return;
+        }
+        Map<String, Object> event;
+        synchronized (this) {
+            processed += entries;
+            bytes += processedBytes;
+            final long now = System.currentTimeMillis();
+            if (processed < total && now - lastEmitTime < intervalMillis) {
+                return;
+            }
+            event = createEvent(now);
+        }
+        listener.onProgress(event);
+    }
+
+    /**
+     * Reports the end of the migration.
+     *
+     * @param error the reason the migration failed, or null if it succeeded
+     */
+    void finish(Exception error) {
+        if (listener == null) {
+            return;
+        }
+        Map<String, Object> event;
+        synchronized (this) {
+            phase = error == null ? PHASE_DONE : PHASE_FAILED;
+            event = createEvent(System.currentTimeMillis());
+        }
+        if (error != null) {
+            event.put("error", error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName());
+        }
+        listener.onProgress(event);
+    }
+
+    private Map<String, Object> createEvent(long now) {
+        lastEmitTime = now;
+        Map<String, Object> event = new HashMap<>();
+        event.put("storage", storage);
+        event.put("phase", phase);
+        event.put("processed", processed);
+        event.put("total", total);
+        event.put("bytes", bytes);
+        event.put("elapsedMillis", now - startTime);
+        return event;
+    }
+}
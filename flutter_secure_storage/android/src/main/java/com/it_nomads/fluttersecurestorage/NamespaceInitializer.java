@@ -0,0 +1,183 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.util.Log;
+
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipherFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Initializes several storages (typically one per storageNamespace) concurrently.
+ * <p>
+ * Each namespace has its own data prefs, config prefs and KeyStore alias, so their
+ * initialization is independent and total startup approaches the slowest namespace
+ * instead of the sum. Work shared between namespaces (loading the AndroidKeyStore,
+ * generating a key under the same alias) is deduplicated in
+ * {@link com.it_nomads.fluttersecurestorage.ciphers.KeyStoreAccess}.
+ * <p>
+ * Namespaces that may show a biometric prompt are initialized one after another, each
+ * starting once the previous one reported, since only one prompt can be shown at a time.
+ * No thread waits for a prompt: the result is reported by whichever storage finishes last.
+ */
+public final class NamespaceInitializer {
+
+    private static final String TAG = "NamespaceInitializer";
+    private static final int MAX_THREADS = 8;
+    private static final long IDLE_THREAD_SECONDS = 30;
+
+    // Initialization mostly waits on disk and the keystore daemon rather than the CPU,
+    // so the pool is not bounded by the core count. Shared by all calls; idle threads exit.
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+            IDLE_THREAD_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "com.it_nomads.fluttersecurestorage.init");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private NamespaceInitializer() {
+    }
+
+    /**
+     * Initializes all given storages and returns without waiting for them. The callback is
+     * notified once every storage succeeded or failed, on the thread of the storage finishing
+     * last: onSuccess if all storages are ready, onError with the first failure otherwise.
+     *
+     * @param storages storages to initialize, mapped to the configuration to initialize them with
+     * @param callback callback notified once all storages finished initializing
+     */
+    public static void initializeAll(Map<FlutterSecureStorage, FlutterSecureStorageConfig> storages,
+                                     SecurePreferencesCallback<Void> callback) {
+        if (storages.isEmpty()) {
+            callback.onSuccess(null);
+            return;
+        }
+
+        final List<Map.Entry<FlutterSecureStorage, FlutterSecureStorageConfig>> authenticated = new ArrayList<>();
+        final List<Map.Entry<FlutterSecureStorage, FlutterSecureStorageConfig>> unauthenticated = new ArrayList<>();
+
+        for (Map.Entry<FlutterSecureStorage, FlutterSecureStorageConfig> entry : storages.entrySet()) {
+            NamespacedConfigSource configSource = new NamespacedConfigSource(
+                    entry.getKey().getContext(), entry.getValue().getEffectiveDataPrefsName());
+            if (StorageCipherFactory.mayRequireAuthentication(configSource, entry.getValue())) {
+                authenticated.add(entry);
+            } else {
+                unauthenticated.add(entry);
+            }
+        }
+
+        final Progress progress = new Progress(storages.size(), authenticated.size(), callback);
+        for (Map.Entry<FlutterSecureStorage, FlutterSecureStorageConfig> entry : unauthenticated) {
+            executor.execute(() -> initializeOne(entry.getKey(), entry.getValue(), progress, null));
+        }
+        if (!authenticated.isEmpty()) {
+            executor.execute(() -> initializeSequentially(authenticated, 0, progress));
+        }
+    }
+
+    /**
+     * Initializes the storage at the given index, and the next one once it reported.
+     */
+    private static void initializeSequentially(List<Map.Entry<FlutterSecureStorage, FlutterSecureStorageConfig>> storages,
+                                               int index, Progress progress) {
+        final Map.Entry<FlutterSecureStorage, FlutterSecureStorageConfig> entry = storages.get(index);
+        Runnable next = null;
+        if (index + 1 < storages.size()) {
+            // Continues on the pool rather than on the thread the prompt reported on
+            next = () -> executor.execute(() -> initializeSequentially(storages, index + 1, progress));
+        }
+        initializeOne(entry.getKey(), entry.getValue(), progress, next);
+    }
+
+    private static void initializeOne(FlutterSecureStorage storage, FlutterSecureStorageConfig config,
+                                      Progress progress, Runnable next) {
+        // Only the first outcome counts, in case a callback path reports more than once.
+        final AtomicBoolean reported = new AtomicBoolean(false);
+        final SecurePreferencesCallback<Void> callback = new SecurePreferencesCallback<>() {
+            @Override
+            public void onSuccess(Void unused) {
+                if (reported.compareAndSet(false, true)) {
+                    finish(null);
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                if (reported.compareAndSet(false, true)) {
+                    reportError(config, e);
+                    finish(e);
+                }
+            }
+
+            private void finish(Exception error) {
+                if (next != null) {
+                    next.run();
+                }
+                progress.completed(error);
+            }
+        };
+        try {
+            storage.initialize(config, callback);
+        } catch (Exception e) {
+            callback.onError(e);
+        }
+    }
+
+    private static void reportError(FlutterSecureStorageConfig config, Exception e) {
+        Log.e(TAG, "Failed to initialize " + config.getEffectiveDataPrefsName(), e);
+    }
+
+    /**
+     * Counts the storages still initializing and notifies the callback after the last one.
+     */
+    private static final class Progress {
+        private final int total;
+        private final int authenticated;
+        private final SecurePreferencesCallback<Void> callback;
+        private final long startTime = System.currentTimeMillis();
+        private final AtomicInteger remaining;
+        private final List<Exception> errors = new ArrayList<>();
+
+        Progress(int total, int authenticated, SecurePreferencesCallback<Void> callback) {
+            this.total = total;
+            this.authenticated = authenticated;
+            this.callback = callback;
+            this.remaining = new AtomicInteger(total);
+        }
+
+        void completed(Exception error) {
+            if (error != null) {
+                synchronized (errors) {
+                    errors.add(error);
+                }
+            }
+            if (remaining.decrementAndGet() > 0) {
+                return;
+            }
+
+            Log.d(TAG, "Initialized " + total + " storages (" + authenticated
+                    + " requiring authentication) in " + (System.currentTimeMillis() - startTime) + "ms");
+
+            List<Exception> failures;
+            synchronized (errors) {
+                failures = new ArrayList<>(errors);
+            }
+            if (failures.isEmpty()) {
+                callback.onSuccess(null);
+            } else {
+                callback.onError(new Exception("Failed to initialize " + failures.size() + " of "
+                        + total + " storages", failures.get(0)));
+            }
+        }
+    }
+}
@@ -3,19 +3,34 @@ package com.it_nomads.fluttersecurestorage;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Helper class that provides dual-read fallback for config SharedPreferences.
  * Reads from namespaced config first, falls back to legacy global config if not found.
  * Writes always go to the namespaced config.
+ * <p>
+ * After {@link #takeSnapshot()} reads are served from an in-memory merge of both files
+ * instead of querying two SharedPreferences per lookup. Editors returned by {@link #edit()}
+ * then write through to the namespaced config and update the snapshot on commit/apply.
  */
 public class NamespacedConfigSource {
     // Legacy global config name (used for backwards compatibility fallback reads only)
-    private static final String LEGACY_GLOBAL_CONFIG_NAME = "FlutterSecureStorageConfiguration";
+    static final String LEGACY_GLOBAL_CONFIG_NAME = "FlutterSecureStorageConfiguration";
+    // Use a delimiter to avoid collisions with legacy global name
+    private static final String NAMESPACED_CONFIG_PREFIX = LEGACY_GLOBAL_CONFIG_NAME + ":";
     
     private final SharedPreferences namespacedConfig;
     private final SharedPreferences legacyConfig;
+
+    @Nullable
+    private volatile Snapshot snapshot;
     
     public NamespacedConfigSource(Context context, String sharedPreferencesName) {
         String namespacedName = getNamespacedConfigPrefsName(sharedPreferencesName);
@@ -30,15 +45,41 @@ public class NamespacedConfigSource {
      * @param sharedPreferencesName The namespace identifier
      * @return Namespaced config prefs name
      */
-    private static String getNamespacedConfigPrefsName(String sharedPreferencesName) {
-        // Use a delimiter to avoid collisions with legacy global name
-        return "FlutterSecureStorageConfiguration:" + sharedPreferencesName;
+    static String getNamespacedConfigPrefsName(String sharedPreferencesName) {
+        return NAMESPACED_CONFIG_PREFIX + sharedPreferencesName;
+    }
+
+    /**
+     * Returns the sharedPreferencesName a namespaced config prefs name belongs to, or null if
+     * the name is not one of a namespaced config.
+     */
+    @Nullable
+    static String getDataPrefsNameOfConfig(String configPrefsName) {
+        return configPrefsName.startsWith(NAMESPACED_CONFIG_PREFIX)
+                ? configPrefsName.substring(NAMESPACED_CONFIG_PREFIX.length())
+                : null;
     }
     
+    /**
+     * Takes an immutable snapshot of the namespaced and legacy config. Until the next call,
+     * reads are answered from memory; writes made through {@link #edit()} keep it current.
+     * Writes made to the underlying files by other means are not picked up.
+     */
+    public void takeSnapshot() {
+        Map<String, Object> namespaced = new HashMap<>(namespacedConfig.getAll());
+        Map<String, Object> legacy = new HashMap<>(legacyConfig.getAll());
+        snapshot = new Snapshot(legacy, namespaced);
+    }
+
     /**
      * Reads a string value with fallback: namespaced first, then legacy global.
      */
     public String getString(String key, String defaultValue) {
+        Snapshot current = snapshot;
+        if (current != null) {
+            Object value = current.merged.get(key);
+            return value instanceof String ? (String) value : defaultValue;
+        }
         String value = namespacedConfig.getString(key, null);
         if (value != null) {
             return value;
@@ -50,6 +91,11 @@ public class NamespacedConfigSource {
      * Reads a boolean value with fallback: namespaced first, then legacy global.
      */
     public boolean getBoolean(String key, boolean defaultValue) {
+        Snapshot current = snapshot;
+        if (current != null) {
+            Object value = current.merged.get(key);
+            return value instanceof Boolean ? (Boolean) value : defaultValue;
+        }
         // Check if key exists in namespaced config (even if value is default)
         if (namespacedConfig.contains(key)) {
             return namespacedConfig.getBoolean(key, defaultValue);
@@ -61,6 +107,9 @@ public class NamespacedConfigSource {
      * Returns an editor for the namespaced config (writes always go to namespaced).
      */
     public SharedPreferences.Editor edit() {
+        if (snapshot != null) {
+            return new SnapshotEditor(namespacedConfig.edit());
+        }
         return namespacedConfig.edit();
     }
     
@@ -68,6 +117,10 @@ public class NamespacedConfigSource {
      * Checks if a key exists in either namespaced or legacy config.
      */
     public boolean contains(String key) {
+        Snapshot current = snapshot;
+        if (current != null) {
+            return current.merged.containsKey(key);
+        }
         return namespacedConfig.contains(key) || legacyConfig.contains(key);
     }
 
@@ -75,6 +128,132 @@ public class NamespacedConfigSource {
      * Returns all entries from the namespaced config (writes always go here).
      */
     public Map<String, ?> getAll() {
+        Snapshot current = snapshot;
+        if (current != null) {
+            return current.namespaced;
+        }
         return namespacedConfig.getAll();
     }
+
+    /**
+     * Immutable view of both config files; namespaced entries take precedence in {@link #merged}.
+     */
+    private static final class Snapshot {
+        final Map<String, Object> legacy;
+        final Map<String, Object> namespaced;
+        final Map<String, Object> merged;
+
+        Snapshot(Map<String, Object> legacy, Map<String, Object> namespaced) {
+            Map<String, Object> merged = new HashMap<>(legacy);
+            merged.putAll(namespaced);
+            this.legacy = Collections.unmodifiableMap(legacy);
+            this.namespaced = Collections.unmodifiableMap(namespaced);
+            this.merged = Collections.unmodifiableMap(merged);
+        }
+    }
+
+    /**
+     * Editor writing through to the namespaced config and replacing the snapshot with an
+     * updated copy once the changes are committed or applied. Mirrors SharedPreferences
+     * semantics: clear() is applied first, then the last put/remove per key wins.
+     */
+    private final class SnapshotEditor implements SharedPreferences.Editor {
+        private final Object removed = new Object();
+        private final SharedPreferences.Editor delegate;
+        private final Map<String, Object> modified = new HashMap<>();
+        private boolean clear;
+
+        SnapshotEditor(SharedPreferences.Editor delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public SharedPreferences.Editor putString(String key, @Nullable String value) {
+            delegate.putString(key, value);
+            modified.put(key, value != null ? value : removed);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putStringSet(String key, @Nullable Set<String> values) {
+            delegate.putStringSet(key, values);
+            modified.put(key, values != null ? new HashSet<>(values) : removed);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putInt(String key, int value) {
+            delegate.putInt(key, value);
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putLong(String key, long value) {
+            delegate.putLong(key, value);
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putFloat(String key, float value) {
+            delegate.putFloat(key, value);
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putBoolean(String key, boolean value) {
+            delegate.putBoolean(key, value);
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor remove(String key) {
+            delegate.remove(key);
+            modified.put(key, removed);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor clear() {
+            delegate.clear();
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            boolean success = delegate.commit();
+            if (success) {
+                updateSnapshot();
+            }
+            return success;
+        }
+
+        @Override
+        public void apply() {
+            delegate.apply();
+            updateSnapshot();
+        }
+
+        private void updateSnapshot() {
+            synchronized (NamespacedConfigSource.this) {
+                Snapshot current = snapshot;
+                if (current == null) {
+                    return;
+                }
+                Map<String, Object> namespaced = clear ? new HashMap<>() : new HashMap<>(current.namespaced);
+                for (Map.Entry<String, Object> entry : modified.entrySet()) {
+                    if (entry.getValue() == removed) {
+                        namespaced.remove(entry.getKey());
+                    } else {
+                        namespaced.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                snapshot = new Snapshot(current.legacy, namespaced);
+            }
+        }
+    }
 }
@@ -0,0 +1,160 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the preference files a storage needs in parallel.
+ * <p>
+ * Initializing a storage touches four SharedPreferences files: the data prefs, the wrapped
+ * key storage, the namespaced config and the legacy global config. Each first access blocks
+ * until that file has been read from disk. The preloader requests all of them up front so
+ * their disk reads overlap instead of happening one after another, and
+ * {@link #await()} blocks until every file is available. Since the Context caches
+ * SharedPreferences per name, later getSharedPreferences calls (for example in the key
+ * and storage ciphers) return the already loaded instances.
+ */
+final class PreferencesPreloader {
+
+    private static final String TAG = "PreferencesPreloader";
+
+    // One storage needs four files; preloading many storages queues the rest
+    private static final int MAX_THREADS = 4;
+    private static final long IDLE_THREAD_SECONDS = 30;
+
+    // Shared by all preloaders; idle threads exit
+    private static final ThreadPoolExecutor loader = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+            IDLE_THREAD_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "com.it_nomads.fluttersecurestorage.preload");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        loader.allowCoreThreadTimeOut(true);
+    }
+
+    private final String[] names;
+    private final SharedPreferences[] preferences;
+    private final long[] loadMillis;
+    private final CountDownLatch loaded;
+    private final long startTime;
+
+    private PreferencesPreloader(Context context, String... names) {
+        this.names = names;
+        this.preferences = new SharedPreferences[names.length];
+        this.loadMillis = new long[names.length];
+        this.loaded = new CountDownLatch(names.length);
+        this.startTime = SystemClock.elapsedRealtime();
+
+        for (int i = 0; i < names.length; i++) {
+            final int index = i;
+            loader.execute(() -> {
+                final long loadStart = SystemClock.elapsedRealtime();
+                try {
+                    SharedPreferences prefs = context.getSharedPreferences(names[index], Context.MODE_PRIVATE);
+                    // Any read blocks until the file has been loaded from disk
+                    prefs.contains(names[index]);
+                    preferences[index] = prefs;
+                } catch (Exception e) {
+                    Log.w(TAG, "Failed to preload " + names[index], e);
+                } finally {
+                    loadMillis[index] = SystemClock.elapsedRealtime() - loadStart;
+                    loaded.countDown();
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts loading the data, key storage, namespaced config and legacy config prefs
+     * of the given configuration.
+     */
+    static PreferencesPreloader start(Context context, FlutterSecureStorageConfig config) {
+        return new PreferencesPreloader(context,
+                config.getEffectiveDataPrefsName(),
+                config.getEffectiveKeyStoragePrefsName(),
+                NamespacedConfigSource.getNamespacedConfigPrefsName(config.getEffectiveDataPrefsName()),
+                NamespacedConfigSource.LEGACY_GLOBAL_CONFIG_NAME);
+    }
+
+    /**
+     * Kicks off loading the prefs of every storage that has been used before, so the files
+     * are already in memory when the first method call arrives. Storages are discovered
+     * from their namespaced config files; nothing is waited for.
+     */
+    static void preloadKnownStorages(Context context) {
+        FlutterSecureStorageConfig defaults = new FlutterSecureStorageConfig(new HashMap<>());
+        List<String> names = new ArrayList<>();
+        names.add(defaults.getEffectiveDataPrefsName());
+        names.add(defaults.getEffectiveKeyStoragePrefsName());
+        names.add(NamespacedConfigSource.LEGACY_GLOBAL_CONFIG_NAME);
+
+        File[] files = new File(context.getApplicationInfo().dataDir, "shared_prefs").listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                if (!fileName.endsWith(".xml")) {
+                    continue;
+                }
+                String configName = fileName.substring(0, fileName.length() - ".xml".length());
+                String dataName = NamespacedConfigSource.getDataPrefsNameOfConfig(configName);
+                if (dataName == null) {
+                    continue;
+                }
+                addIfMissing(names, configName);
+                addIfMissing(names, dataName);
+                // Only storages with a storageNamespace have a key storage of their own
+                String keyStorageName = FlutterSecureStorageConfig.getKeyStoragePrefsName(dataName);
+                if (new File(file.getParentFile(), keyStorageName + ".xml").exists()) {
+                    addIfMissing(names, keyStorageName);
+                }
+            }
+        }
+
+        Log.d(TAG, "Preloading " + names.size() + " preference files of known storages");
+        new PreferencesPreloader(context, names.toArray(new String[0]));
+    }
+
+    private static void addIfMissing(List<String> names, String name) {
+        if (!names.contains(name)) {
+            names.add(name);
+        }
+    }
+
+    /**
+     * Blocks until every requested file has been loaded and logs how long that took next to
+     * the time each file took to load on its own.
+     *
+     * @return the loaded data prefs, or null if it could not be preloaded
+     */
+    SharedPreferences await() throws InterruptedException {
+        loaded.await();
+
+        long wallMillis = SystemClock.elapsedRealtime() - startTime;
+        long totalLoadMillis = 0;
+        StringBuilder perFile = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            totalLoadMillis += loadMillis[i];
+            if (i > 0) {
+                perFile.append(", ");
+            }
+            perFile.append(names[i]).append('=').append(loadMillis[i]).append("ms");
+        }
+        Log.d(TAG, "Loaded " + names.length + " preference files in " + wallMillis + "ms, "
+                + totalLoadMillis + "ms of loading in total (" + perFile + ")");
+
+        return preferences[0];
+    }
+}
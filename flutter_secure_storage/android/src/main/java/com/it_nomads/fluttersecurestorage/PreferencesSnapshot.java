@@ -0,0 +1,223 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A copy of a SharedPreferences file taken before a migration.
+ * <p>
+ * The snapshot is a SharedPreferences file of its own next to the original in the
+ * shared_prefs directory, written in a single commit, which leaves the file format and
+ * syncing to the platform. Both files are only ever written through their SharedPreferences,
+ * so the contents the platform caches in memory never go stale: restoring replaces the
+ * original contents with those of the snapshot in one commit, which every holder of the
+ * original SharedPreferences sees at once. Whether a snapshot is complete is recorded by the
+ * caller, see {@link MigrationBackup#createBackup}.
+ */
+final class PreferencesSnapshot {
+    private static final String TAG = "PreferencesSnapshot";
+    private static final String SNAPSHOT_PREFIX = "FlutterSecureStorageSnapshot:";
+    private static final String PREFS_DIRECTORY = "shared_prefs";
+    private static final String PREFS_EXTENSION = ".xml";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final String PLATFORM_BACKUP_EXTENSION = ".bak";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Context context;
+    private final String name;
+    private final SharedPreferences preferences;
+
+    PreferencesSnapshot(Context context, String name, SharedPreferences preferences) {
+        this.context = context;
+        this.name = name;
+        this.preferences = preferences;
+    }
+
+    /**
+     * Returns the snapshot of the SharedPreferences file with the given name.
+     */
+    static PreferencesSnapshot of(Context context, String name) {
+        return new PreferencesSnapshot(context, name, context.getSharedPreferences(name, Context.MODE_PRIVATE));
+    }
+
+    /**
+     * The preferences this is a snapshot of.
+     */
+    SharedPreferences getPreferences() {
+        return preferences;
+    }
+
+    /**
+     * Takes a snapshot of the current contents, replacing any previous one.
+     *
+     * @return the size of the snapshot file in bytes
+     * @throws IOException if pending writes cannot be flushed or the snapshot cannot be written
+     */
+    long create() throws IOException {
+        flush();
+        final SharedPreferences.Editor editor = getSnapshotPreferences().edit().clear();
+        putAll(editor, preferences.getAll());
+        if (!editor.commit()) {
+            throw new IOException("Failed to write snapshot of " + name + " - storage may be full or unavailable");
+        }
+        final long bytes = getSnapshotFile().length();
+        Log.d(TAG, "Created snapshot of " + name + " (" + bytes + " bytes)");
+        return bytes;
+    }
+
+    /**
+     * Whether a snapshot has been taken.
+     */
+    boolean exists() {
+        return getSnapshotFile().exists();
+    }
+
+    /**
+     * Reads the entries of the snapshot.
+     *
+     * @return the entries, empty if no snapshot exists
+     */
+    Map<String, ?> read() {
+        return getSnapshotPreferences().getAll();
+    }
+
+    /**
+     * Replaces the contents of the preferences with those of the snapshot in one commit. The
+     * snapshot is kept.
+     *
+     * @throws IOException if no snapshot exists or the contents cannot be committed
+     */
+    void restore() throws IOException {
+        if (!exists()) {
+            throw new IOException("No snapshot of " + name + " to restore");
+        }
+        final SharedPreferences.Editor editor = preferences.edit().clear();
+        putAll(editor, read());
+        if (!editor.commit()) {
+            throw new IOException("Failed to restore " + name + " - storage may be full or unavailable");
+        }
+        Log.d(TAG, "Restored " + name + " from snapshot");
+    }
+
+    /**
+     * Deletes the snapshot, if any.
+     */
+    void delete() {
+        final File file = getSnapshotFile();
+        // Drops the cached contents as well, so that a deleted snapshot reads as empty
+        if (file.exists()) {
+            getSnapshotPreferences().edit().clear().commit();
+        }
+        deleteIfExists(file);
+        deleteIfExists(new File(file.getPath() + PLATFORM_BACKUP_EXTENSION));
+        deleteIfExists(new File(file.getPath() + TEMP_EXTENSION));
+    }
+
+    /**
+     * Copies the preferences file as it is on disk the same way {@link #create()} does, but to
+     * a file in the given directory that is deleted again. Neither the preferences nor the
+     * snapshot are touched.
+     *
+     * @return the time the synced copy took in nanoseconds, 0 if the file does not exist yet
+     * @throws IOException if the copy fails
+     */
+    long measureCopy(File directory) throws IOException {
+        final File source = getPreferencesFile();
+        if (!source.exists()) {
+            return 0;
+        }
+        final File target = new File(directory, SNAPSHOT_PREFIX + name + PREFS_EXTENSION);
+        final long startTime = System.nanoTime();
+        try {
+            copy(source, target);
+            return System.nanoTime() - startTime;
+        } finally {
+            deleteIfExists(target);
+        }
+    }
+
+    private void flush() throws IOException {
+        // commit() waits for writes queued by apply() before it returns
+        if (!preferences.edit().commit()) {
+            throw new IOException("Failed to flush " + name + " to disk - storage may be full or unavailable");
+        }
+    }
+
+    private SharedPreferences getSnapshotPreferences() {
+        return context.getSharedPreferences(SNAPSHOT_PREFIX + name, Context.MODE_PRIVATE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putAll(SharedPreferences.Editor editor, Map<String, ?> entries) {
+        for (Map.Entry<String, ?> entry : entries.entrySet()) {
+            final String key = entry.getKey();
+            final Object value = entry.getValue();
+            if (value instanceof String string) {
+                editor.putString(key, string);
+            } else if (value instanceof Boolean bool) {
+                editor.putBoolean(key, bool);
+            } else if (value instanceof Integer integer) {
+                editor.putInt(key, integer);
+            } else if (value instanceof Long number) {
+                editor.putLong(key, number);
+            } else if (value instanceof Float number) {
+                editor.putFloat(key, number);
+            } else if (value instanceof Set) {
+                editor.putStringSet(key, (Set<String>) value);
+            }
+        }
+    }
+
+    private File getPreferencesFile() {
+        return new File(getPreferencesDirectory(), name + PREFS_EXTENSION);
+    }
+
+    private File getSnapshotFile() {
+        return new File(getPreferencesDirectory(), SNAPSHOT_PREFIX + name + PREFS_EXTENSION);
+    }
+
+    private File getPreferencesDirectory() {
+        return new File(context.getApplicationInfo().dataDir, PREFS_DIRECTORY);
+    }
+
+    /**
+     * Copies source to target through a synced temporary file and an atomic rename.
+     */
+    private static long copy(File source, File target) throws IOException {
+        final File temp = new File(target.getPath() + TEMP_EXTENSION);
+        long bytes = 0;
+        try (InputStream in = new FileInputStream(source);
+             FileOutputStream out = new FileOutputStream(temp)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                bytes += read;
+            }
+            out.getFD().sync();
+        } catch (IOException e) {
+            deleteIfExists(temp);
+            throw e;
+        }
+        if (!temp.renameTo(target)) {
+            deleteIfExists(temp);
+            throw new IOException("Failed to move " + temp.getName() + " to " + target.getName());
+        }
+        return bytes;
+    }
+
+    private static void deleteIfExists(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to delete " + file.getName());
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.it_nomads.fluttersecurestorage;
+
+import com.it_nomads.fluttersecurestorage.ciphers.CryptoProviders;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Authenticated encryption of a stream in fixed-size segments, so that values of any size are
+ * encrypted and decrypted in constant memory.
+ * <p>
+ * Each segment is encrypted with AES-GCM on its own, with a nonce made of a random prefix, the
+ * index of the segment and a flag set only on the last one (the STREAM construction):
+ * <pre>
+ *     header:  [segment size, 4 bytes big-endian][nonce prefix, 7 bytes]
+ *     segment: AES-GCM(plaintext segment), nonce [prefix, 7 bytes][index, 4 bytes][last, 1 byte]
+ * </pre>
+ * Every segment authenticates the header as well. Reordered, dropped or duplicated segments
+ * and a stream truncated at a segment boundary fail to decrypt, so a reader never gets data
+ * that was not written as a whole; it may get the segments before a corrupt one, though. All
+ * segments but the last hold exactly the segment size; the last one may be empty.
+ */
+final class SegmentedAead {
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    static final int HEADER_LENGTH = 11;
+    static final int TAG_SIZE = 16;
+    private static final int NONCE_PREFIX_SIZE = 7;
+    private static final int NONCE_SIZE = 12;
+    // Upper bound on the segment size a header may declare, so a corrupt one cannot exhaust memory
+    private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private SegmentedAead() {
+    }
+
+    /**
+     * Returns a stream that encrypts everything written to it into out. Closing it writes the
+     * last segment and closes out; only then is the ciphertext complete.
+     *
+     * @param key an AES key that encrypts no other stream
+     */
+    static OutputStream encrypt(OutputStream out, Key key, int segmentSize, SecureRandom random)
+            throws GeneralSecurityException, IOException {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size " + segmentSize);
+        }
+        final byte[] header = new byte[HEADER_LENGTH];
+        writeInt(header, 0, segmentSize);
+        final byte[] prefix = new byte[NONCE_PREFIX_SIZE];
+        random.nextBytes(prefix);
+        System.arraycopy(prefix, 0, header, 4, NONCE_PREFIX_SIZE);
+        out.write(header);
+        return new EncryptingStream(out, key, header, segmentSize);
+    }
+
+    /**
+     * Returns a stream of the plaintext of the ciphertext read from in, decrypting one segment
+     * at a time. A segment that fails to authenticate is reported as an IOException.
+     */
+    static InputStream decrypt(InputStream in, Key key) throws GeneralSecurityException, IOException {
+        final byte[] header = new byte[HEADER_LENGTH];
+        if (readFully(in, header, 0, HEADER_LENGTH) < HEADER_LENGTH) {
+            throw new IOException("Encrypted stream is shorter than its header");
+        }
+        final int segmentSize = readInt(header, 0);
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IOException("Encrypted stream has an invalid segment size " + segmentSize);
+        }
+        return new DecryptingStream(in, key, header, segmentSize);
+    }
+
+    /**
+     * Returns the length of the ciphertext of a plaintext of the given length, header included.
+     */
+    static long ciphertextLength(long plaintextLength, int segmentSize) {
+        final long segments = plaintextLength / segmentSize + (plaintextLength % segmentSize == 0 && plaintextLength > 0 ? 0 : 1);
+        return HEADER_LENGTH + plaintextLength + segments * TAG_SIZE;
+    }
+
+    private static GCMParameterSpec nonce(byte[] header, int index, boolean last) {
+        final byte[] nonce = new byte[NONCE_SIZE];
+        System.arraycopy(header, 4, nonce, 0, NONCE_PREFIX_SIZE);
+        writeInt(nonce, NONCE_PREFIX_SIZE, index);
+        nonce[NONCE_SIZE - 1] = (byte) (last ? 1 : 0);
+        return new GCMParameterSpec(TAG_SIZE * 8, nonce);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    /** Reads until length bytes are read or the stream ends, returning the number read. */
+    private static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            final int read = in.read(buffer, offset + total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static final class EncryptingStream extends OutputStream {
+        private final OutputStream out;
+        private final Key key;
+        private final byte[] header;
+        private final Cipher cipher;
+        private final byte[] segment;
+        private final byte[] ciphertext;
+        private int position = 0;
+        private int index = 0;
+        private boolean closed = false;
+
+        EncryptingStream(OutputStream out, Key key, byte[] header, int segmentSize) throws GeneralSecurityException {
+            this.out = out;
+            this.key = key;
+            this.header = header;
+            this.cipher = CryptoProviders.getCipher(TRANSFORMATION);
+            this.segment = new byte[segmentSize];
+            this.ciphertext = new byte[segmentSize + TAG_SIZE];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream is closed");
+            }
+            while (len > 0) {
+                // A full segment is only written once more data follows; the last one is written on close
+                if (position == segment.length) {
+                    writeSegment(false);
+                }
+                final int count = Math.min(len, segment.length - position);
+                System.arraycopy(b, off, segment, position, count);
+                position += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writeSegment(true);
+            } finally {
+                out.close();
+            }
+        }
+
+        private void writeSegment(boolean last) throws IOException {
+            if (index < 0) {
+                throw new IOException("Stream exceeds the maximum number of segments");
+            }
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, nonce(header, index, last));
+                cipher.updateAAD(header);
+                out.write(ciphertext, 0, cipher.doFinal(segment, 0, position, ciphertext, 0));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Failed to encrypt segment " + index, e);
+            }
+            position = 0;
+            index++;
+        }
+    }
+
+    private static final class DecryptingStream extends InputStream {
+        private final InputStream in;
+        private final Key key;
+        private final byte[] header;
+        private final Cipher cipher;
+        private final byte[] plaintext;
+        // One byte longer than a segment; a byte past the segment means another one follows
+        private final byte[] ciphertext;
+        private int buffered = 0;
+        private int position = 0;
+        private int limit = 0;
+        private int index = 0;
+        private boolean finished = false;
+
+        DecryptingStream(InputStream in, Key key, byte[] header, int segmentSize) throws GeneralSecurityException {
+            this.in = in;
+            this.key = key;
+            this.header = header;
+            this.cipher = CryptoProviders.getCipher(TRANSFORMATION);
+            this.plaintext = new byte[segmentSize];
+            this.ciphertext = new byte[segmentSize + TAG_SIZE + 1];
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                if (finished) {
+                    return -1;
+                }
+                readSegment();
+            }
+            final int count = Math.min(len, limit - position);
+            System.arraycopy(plaintext, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void readSegment() throws IOException {
+            final int filled = buffered + readFully(in, ciphertext, buffered, ciphertext.length - buffered);
+            final boolean last = filled < ciphertext.length;
+            final int length = last ? filled : filled - 1;
+            if (length < TAG_SIZE) {
+                throw new IOException("Encrypted stream is truncated at segment " + index);
+            }
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key, nonce(header, index, last));
+                cipher.updateAAD(header);
+                limit = cipher.doFinal(ciphertext, 0, length, plaintext, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Segment " + index + " of encrypted stream failed to authenticate", e);
+            }
+            if (!last) {
+                ciphertext[0] = ciphertext[length];
+                buffered = 1;
+            }
+            position = 0;
+            index++;
+            finished = last;
+        }
+    }
+}
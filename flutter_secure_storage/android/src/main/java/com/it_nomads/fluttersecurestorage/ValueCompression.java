@@ -0,0 +1,109 @@
+package com.it_nomads.fluttersecurestorage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Plaintext form of a value, optionally Deflate-compressed before it is encrypted.
+ * <p>
+ * An uncompressed value is its UTF-8 bytes, as it always was. A compressed value is flagged by
+ * {@link #MARKER}, a byte that never starts UTF-8 text, followed by the length of the value in
+ * bytes and the raw Deflate stream:
+ * <pre>
+ *     [0xFF][length, 4 bytes big-endian][deflate]
+ * </pre>
+ * The flag is part of the plaintext, so it is encrypted and authenticated with the value, and
+ * migrations that re-encrypt plaintext bytes carry compressed values over unchanged. Values
+ * below the threshold, and values that would not get smaller, are stored uncompressed. Both
+ * forms are always read, whatever the threshold is set to.
+ */
+final class ValueCompression {
+    static final byte MARKER = (byte) 0xFF;
+    private static final int HEADER_LENGTH = 5;
+    private static final int BUFFER_SIZE = 4096;
+    private static final Charset charset = StandardCharsets.UTF_8;
+
+    private ValueCompression() {
+    }
+
+    /**
+     * Returns the plaintext of a value, compressed if it is at least threshold bytes long and
+     * compression makes it smaller.
+     *
+     * @param threshold minimum size in bytes to compress; 0 disables compression
+     */
+    static byte[] encode(String value, int threshold) {
+        final byte[] bytes = value.getBytes(charset);
+        if (threshold <= 0 || bytes.length < threshold) {
+            return bytes;
+        }
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + HEADER_LENGTH);
+            out.write(MARKER);
+            out.write(bytes.length >>> 24);
+            out.write(bytes.length >>> 16);
+            out.write(bytes.length >>> 8);
+            out.write(bytes.length);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+                if (out.size() >= bytes.length) {
+                    // Incompressible; the flag and header would only make it larger
+                    return bytes;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the value of a plaintext in either form.
+     *
+     * @throws DataFormatException if a compressed plaintext is truncated or corrupt
+     */
+    static String decode(byte[] plaintext) throws DataFormatException {
+        if (!isCompressed(plaintext)) {
+            return new String(plaintext, charset);
+        }
+        if (plaintext.length < HEADER_LENGTH) {
+            throw new DataFormatException("Compressed value is truncated");
+        }
+        final int length = (plaintext[1] & 0xFF) << 24 | (plaintext[2] & 0xFF) << 16
+                | (plaintext[3] & 0xFF) << 8 | (plaintext[4] & 0xFF);
+        if (length < 0) {
+            throw new DataFormatException("Compressed value has an invalid length");
+        }
+        final byte[] bytes = new byte[length];
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(plaintext, HEADER_LENGTH, plaintext.length - HEADER_LENGTH);
+            int inflated = 0;
+            while (inflated < length) {
+                final int read = inflater.inflate(bytes, inflated, length - inflated);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Compressed value is shorter than its length");
+                }
+                inflated += read;
+            }
+        } finally {
+            inflater.end();
+        }
+        return new String(bytes, charset);
+    }
+
+    /**
+     * Whether the plaintext is in the compressed form.
+     */
+    static boolean isCompressed(byte[] plaintext) {
+        return plaintext.length > 0 && plaintext[0] == MARKER;
+    }
+}
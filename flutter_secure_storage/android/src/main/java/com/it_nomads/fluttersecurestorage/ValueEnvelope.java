@@ -0,0 +1,139 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.util.Base64;
+
+import androidx.annotation.Nullable;
+
+import com.it_nomads.fluttersecurestorage.ciphers.IdentifiedStorageCipher;
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipherAlgorithm;
+
+import java.util.Arrays;
+
+/**
+ * Stored form of an encrypted value that names the storage algorithm and data key which
+ * encrypted it.
+ * <p>
+ * Values written without an envelope are the plain Base64 of the ciphertext; they carry no
+ * header and belong to whatever the algorithm markers name. An enveloped value starts with
+ * {@link #MARKER}, which is not part of the Base64 alphabet, followed by the Base64 of a header
+ * and the ciphertext:
+ * <pre>
+ *     [version][storage algorithm id][key id][iv length][iv || ciphertext]
+ * </pre>
+ * Every value is decodable on its own, so a store can hold values of several algorithms and
+ * keys at once and be migrated or rotated one value at a time.
+ */
+final class ValueEnvelope {
+    static final char MARKER = '~';
+    static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 4;
+
+    @Nullable
+    private final StorageCipherAlgorithm algorithm;
+    private final int keyId;
+    private final int ivLength;
+    private final byte[] ciphertext;
+
+    private ValueEnvelope(@Nullable StorageCipherAlgorithm algorithm, int keyId, int ivLength, byte[] ciphertext) {
+        this.algorithm = algorithm;
+        this.keyId = keyId;
+        this.ivLength = ivLength;
+        this.ciphertext = ciphertext;
+    }
+
+    /**
+     * Encodes a ciphertext produced by the given cipher. Ciphers that cannot name their
+     * algorithm get the headerless format.
+     */
+    static String encode(StorageCipher cipher, byte[] ciphertext) {
+        if (cipher instanceof IdentifiedStorageCipher identified) {
+            return encode(identified.getAlgorithm(), identified.getKeyId(), ciphertext);
+        }
+        return Base64.encodeToString(ciphertext, 0);
+    }
+
+    /**
+     * Encodes a ciphertext together with the algorithm and key that produced it.
+     */
+    static String encode(StorageCipherAlgorithm algorithm, int keyId, byte[] ciphertext) {
+        byte[] data = new byte[HEADER_LENGTH + ciphertext.length];
+        data[0] = (byte) VERSION;
+        data[1] = (byte) algorithm.getId();
+        data[2] = (byte) keyId;
+        data[3] = (byte) algorithm.getIvLength();
+        System.arraycopy(ciphertext, 0, data, HEADER_LENGTH, ciphertext.length);
+        return MARKER + Base64.encodeToString(data, Base64.NO_WRAP);
+    }
+
+    /**
+     * Parses a stored value, enveloped or not.
+     *
+     * @throws Exception if the envelope is truncated or uses an unknown version or algorithm
+     */
+    static ValueEnvelope parse(String stored) throws Exception {
+        if (!isEnveloped(stored)) {
+            return new ValueEnvelope(null, IdentifiedStorageCipher.KEY_ID_WRAPPED, 0, Base64.decode(stored, 0));
+        }
+        byte[] data = Base64.decode(stored.substring(1), Base64.NO_WRAP);
+        final int version = data.length > 0 ? data[0] : -1;
+        if (version != VERSION) {
+            throw new Exception("Unsupported stored value envelope version: " + version);
+        }
+        if (data.length < HEADER_LENGTH) {
+            throw new Exception("Stored value envelope is truncated");
+        }
+
+        StorageCipherAlgorithm algorithm;
+        try {
+            algorithm = StorageCipherAlgorithm.fromId(data[1]);
+        } catch (IllegalArgumentException e) {
+            throw new Exception("Stored value names an unknown storage algorithm", e);
+        }
+        int keyId = data[2] & 0xFF;
+        int ivLength = data[3] & 0xFF;
+        if (data.length - HEADER_LENGTH < ivLength) {
+            throw new Exception("Stored value is shorter than its IV");
+        }
+        return new ValueEnvelope(algorithm, keyId, ivLength, Arrays.copyOfRange(data, HEADER_LENGTH, data.length));
+    }
+
+    static boolean isEnveloped(String stored) {
+        return !stored.isEmpty() && stored.charAt(0) == MARKER;
+    }
+
+    /** The algorithm named by the envelope, or null for a value stored without one. */
+    @Nullable
+    StorageCipherAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    int getKeyId() {
+        return keyId;
+    }
+
+    /** Length of the IV at the start of the ciphertext; 0 if unknown (no envelope). */
+    int getIvLength() {
+        return ivLength;
+    }
+
+    byte[] getCiphertext() {
+        return ciphertext;
+    }
+
+    /**
+     * Returns the ciphertext after checking that the envelope names the algorithm and key of
+     * the given cipher. Values without an envelope, and ciphers that cannot name their
+     * algorithm, are not checked.
+     *
+     * @throws Exception if the value was written by a different algorithm or key
+     */
+    byte[] getCiphertextFor(StorageCipher cipher) throws Exception {
+        if (algorithm != null && cipher instanceof IdentifiedStorageCipher identified
+                && (identified.getAlgorithm() != algorithm || identified.getKeyId() != keyId)) {
+            throw new Exception("Stored value was encrypted with " + algorithm + " (key " + keyId
+                    + "), but the cipher uses " + identified.getAlgorithm() + " (key " + identified.getKeyId() + ")");
+        }
+        return ciphertext;
+    }
+}
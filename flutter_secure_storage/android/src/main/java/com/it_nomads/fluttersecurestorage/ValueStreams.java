@@ -0,0 +1,151 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streams opened over the method channel, by the handle the Dart side refers to them with.
+ * <p>
+ * A value moves over the channel in chunks of at most {@link #CHUNK_SIZE} bytes, so neither
+ * side holds more than a chunk and a segment of the value at a time. Streams the Dart side
+ * left open when the engine went away are closed by {@link #closeAll}; an unfinished write
+ * then keeps the previous value of its key.
+ */
+final class ValueStreams {
+    private static final String TAG = "ValueStreams";
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Map<Integer, FlutterSecureStorage.ValueOutputStream> writers = new HashMap<>();
+    private final Map<Integer, InputStream> readers = new HashMap<>();
+    private int nextHandle = 1;
+
+    /**
+     * Opens a stream writing the value of a key.
+     *
+     * @return the handle of the stream
+     */
+    synchronized int openWriter(FlutterSecureStorage storage, String key) throws Exception {
+        final int handle = nextHandle++;
+        writers.put(handle, storage.openOutputStream(key));
+        return handle;
+    }
+
+    /**
+     * Writes a chunk to a stream. If that fails, the stream is aborted.
+     */
+    synchronized void write(int handle, byte[] chunk) throws Exception {
+        final FlutterSecureStorage.ValueOutputStream out = writers.get(handle);
+        if (out == null) {
+            throw new Exception("No write stream with handle " + handle);
+        }
+        try {
+            out.write(chunk);
+        } catch (IOException e) {
+            writers.remove(handle);
+            out.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes a stream, storing everything written to it as the value of its key.
+     */
+    synchronized void closeWriter(int handle) throws Exception {
+        final FlutterSecureStorage.ValueOutputStream out = writers.remove(handle);
+        if (out == null) {
+            throw new Exception("No write stream with handle " + handle);
+        }
+        out.close();
+    }
+
+    /**
+     * Aborts a stream, keeping the previous value of its key. Does nothing if the stream is
+     * already closed or aborted.
+     */
+    synchronized void abortWriter(int handle) {
+        final FlutterSecureStorage.ValueOutputStream out = writers.remove(handle);
+        if (out != null) {
+            out.abort();
+        }
+    }
+
+    /**
+     * Opens a stream reading the value of a key.
+     *
+     * @return the handle of the stream, or null if there is no value for the key
+     */
+    @Nullable
+    synchronized Integer openReader(FlutterSecureStorage storage, String key) throws Exception {
+        final InputStream in = storage.openInputStream(key);
+        if (in == null) {
+            return null;
+        }
+        final int handle = nextHandle++;
+        readers.put(handle, in);
+        return handle;
+    }
+
+    /**
+     * Reads the next chunk of a stream; every chunk but the last is {@link #CHUNK_SIZE} bytes
+     * long. At the end, or if reading fails, the stream is closed.
+     *
+     * @return the chunk, or null at the end of the stream
+     */
+    @Nullable
+    synchronized byte[] read(int handle) throws Exception {
+        final InputStream in = readers.get(handle);
+        if (in == null) {
+            throw new Exception("No read stream with handle " + handle);
+        }
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        int filled = 0;
+        try {
+            int read;
+            while (filled < CHUNK_SIZE && (read = in.read(chunk, filled, CHUNK_SIZE - filled)) >= 0) {
+                filled += read;
+            }
+        } catch (IOException e) {
+            closeReader(handle);
+            throw e;
+        }
+        if (filled == 0) {
+            closeReader(handle);
+            return null;
+        }
+        return filled == CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, filled);
+    }
+
+    /**
+     * Closes a stream before its end. Does nothing if the stream is already closed.
+     */
+    synchronized void closeReader(int handle) {
+        final InputStream in = readers.remove(handle);
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close read stream " + handle, e);
+            }
+        }
+    }
+
+    /**
+     * Aborts every write stream and closes every read stream.
+     */
+    synchronized void closeAll() {
+        for (FlutterSecureStorage.ValueOutputStream out : writers.values()) {
+            out.abort();
+        }
+        writers.clear();
+        for (Integer handle : readers.keySet().toArray(new Integer[0])) {
+            closeReader(handle);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+import android.os.SystemClock;
+
+import java.security.Key;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Process-wide record of the biometric storages unlocked within the session window, see
+ * {@link com.it_nomads.fluttersecurestorage.FlutterSecureStorageConfig#getBiometricSessionSeconds}.
+ * <p>
+ * A storage with a biometric key shows a prompt to decrypt its application key, and storages
+ * are rebuilt whenever the engine is attached again. The decrypted application key is kept
+ * here for the session window of its storage and reused by a storage of the same namespace
+ * initialized within it, without another prompt. A key is only reused while the stored form
+ * it was decrypted from is unchanged, so deleted or regenerated keys are never revived.
+ * <p>
+ * Storages that never authenticated in this process are unlocked by the KeyStore instead:
+ * biometric keys generated with a session window stay usable for that long after any
+ * authentication, so one prompt unlocks all of them.
+ */
+public final class BiometricSession {
+
+    private static final Map<String, Entry> unlockedKeys = new HashMap<>();
+
+    private BiometricSession() {
+    }
+
+    private static final class Entry {
+        final String encryptedKey;
+        final Key key;
+        final long expiresAt;
+
+        Entry(String encryptedKey, Key key, long expiresAt) {
+            this.encryptedKey = encryptedKey;
+            this.key = key;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Records the application key of a storage, decrypted from its stored form after an
+     * authentication, for the session window of that storage.
+     *
+     * @param keyStoragePrefsName the key storage of the storage, which identifies it
+     * @param validityMillis      how long the key may be reused
+     */
+    static void unlocked(String keyStoragePrefsName, String encryptedKey, Key key, long validityMillis) {
+        unlocked(keyStoragePrefsName, encryptedKey, key, validityMillis, SystemClock.elapsedRealtime());
+    }
+
+    /* package */ static synchronized void unlocked(String keyStoragePrefsName, String encryptedKey, Key key,
+                                                    long validityMillis, long now) {
+        unlockedKeys.put(keyStoragePrefsName, new Entry(encryptedKey, key, now + validityMillis));
+    }
+
+    /**
+     * Returns the application key of a storage if it was unlocked from the given stored form
+     * within its session window, or null. Keys whose window has passed are forgotten.
+     */
+    static Key get(String keyStoragePrefsName, String encryptedKey) {
+        return get(keyStoragePrefsName, encryptedKey, SystemClock.elapsedRealtime());
+    }
+
+    /* package */ static synchronized Key get(String keyStoragePrefsName, String encryptedKey, long now) {
+        final Iterator<Entry> entries = unlockedKeys.values().iterator();
+        while (entries.hasNext()) {
+            if (now >= entries.next().expiresAt) {
+                entries.remove();
+            }
+        }
+        final Entry entry = unlockedKeys.get(keyStoragePrefsName);
+        if (entry == null || encryptedKey == null || !entry.encryptedKey.equals(encryptedKey)) {
+            return null;
+        }
+        return entry.key;
+    }
+}
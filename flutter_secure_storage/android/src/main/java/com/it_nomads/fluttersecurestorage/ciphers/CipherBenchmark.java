@@ -0,0 +1,210 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Which storage algorithm encrypts and decrypts fastest on this device, measured for the
+ * {@link StorageCipherFactory#AUTOMATIC_STORAGE_ALGORITHM} option.
+ * <p>
+ * Every candidate encrypts and decrypts values of a few representative sizes with a key that
+ * only lives in memory, for a fixed time per size after a warm-up. Each size counts equally:
+ * a candidate's score is the sum of its times relative to the fastest candidate for that size.
+ * The default algorithm is kept unless another one is clearly faster, so that a noisy run
+ * does not decide. Only authenticated algorithms are candidates; AES-CBC is never selected.
+ * <p>
+ * The measurements do not change while the process runs and are shared by all storages.
+ */
+public final class CipherBenchmark {
+    private static final String TAG = "CipherBenchmark";
+
+    static final int[] VALUE_SIZES = {64, 1024, 16 * 1024};
+    private static final int WARMUP_ROUNDS = 16;
+    private static final long MEASURE_NANOS_PER_SIZE = 5_000_000L;
+    // Another candidate has to score this much lower than the default to replace it
+    private static final double MIN_ADVANTAGE = 0.1;
+    private static final StorageCipherAlgorithm PREFERRED_ALGORITHM = StorageCipherAlgorithm.AES_GCM_NoPadding;
+
+    private static final Map<StorageCipherAlgorithm, long[]> measured = new EnumMap<>(StorageCipherAlgorithm.class);
+
+    private final StorageCipherAlgorithm selectedAlgorithm;
+    private final Map<StorageCipherAlgorithm, long[]> nanosPerValue;
+
+    private CipherBenchmark(StorageCipherAlgorithm selectedAlgorithm, Map<StorageCipherAlgorithm, long[]> nanosPerValue) {
+        this.selectedAlgorithm = selectedAlgorithm;
+        this.nanosPerValue = nanosPerValue;
+    }
+
+    /**
+     * Returns the algorithms that can be selected for the given key algorithm on this device.
+     */
+    static List<StorageCipherAlgorithm> candidates(KeyCipherAlgorithm keyAlgorithm) {
+        List<StorageCipherAlgorithm> candidates = new ArrayList<>();
+        for (StorageCipherAlgorithm algorithm : StorageCipherAlgorithm.values()) {
+            if (algorithm == StorageCipherAlgorithm.AES_CBC_PKCS7Padding || !algorithm.isAvailable()) {
+                continue;
+            }
+            // The AndroidKeyStore key cipher cannot wrap a ChaCha20 key
+            if (algorithm == StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding
+                    && keyAlgorithm == KeyCipherAlgorithm.AES_GCM_NoPadding) {
+                continue;
+            }
+            candidates.add(algorithm);
+        }
+        return candidates;
+    }
+
+    /**
+     * Selects the fastest of the given candidates, measuring those that have not been measured
+     * yet in this process. A single candidate is selected without measuring anything.
+     *
+     * @param candidates the algorithms to choose from, not empty
+     */
+    static CipherBenchmark select(List<StorageCipherAlgorithm> candidates) {
+        if (candidates.size() == 1) {
+            return new CipherBenchmark(candidates.get(0), new LinkedHashMap<>());
+        }
+        final Map<StorageCipherAlgorithm, long[]> results = new LinkedHashMap<>();
+        synchronized (measured) {
+            for (StorageCipherAlgorithm algorithm : candidates) {
+                long[] nanos = measured.get(algorithm);
+                if (nanos == null) {
+                    try {
+                        nanos = measure(StorageCipherFactory.createScratchStorageCipher(null, algorithm), VALUE_SIZES, MEASURE_NANOS_PER_SIZE);
+                    } catch (Exception e) {
+                        Log.w(TAG, "Failed to measure " + algorithm.name() + ", not selecting it", e);
+                        continue;
+                    }
+                    measured.put(algorithm, nanos);
+                }
+                results.put(algorithm, nanos);
+            }
+        }
+        if (results.isEmpty()) {
+            return new CipherBenchmark(candidates.get(0), results);
+        }
+
+        final List<StorageCipherAlgorithm> algorithms = new ArrayList<>(results.keySet());
+        final long[][] nanos = new long[algorithms.size()][];
+        for (int i = 0; i < nanos.length; i++) {
+            nanos[i] = results.get(algorithms.get(i));
+        }
+        final CipherBenchmark benchmark = new CipherBenchmark(
+                algorithms.get(pickFastest(nanos, algorithms.indexOf(PREFERRED_ALGORITHM))), results);
+        Log.i(TAG, "Selected " + benchmark.selectedAlgorithm.name() + ", nanoseconds per value: " + benchmark.describe());
+        return benchmark;
+    }
+
+    /**
+     * Returns how long encrypting and decrypting one value of each size takes on average, in
+     * nanoseconds.
+     */
+    static long[] measure(StorageCipher cipher, int[] valueSizes, long nanosPerSize) throws Exception {
+        final long[] result = new long[valueSizes.length];
+        for (int s = 0; s < valueSizes.length; s++) {
+            final byte[] value = new byte[valueSizes[s]];
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                cipher.decrypt(cipher.encrypt(value));
+            }
+            final long startTime = System.nanoTime();
+            long elapsed;
+            int rounds = 0;
+            do {
+                cipher.decrypt(cipher.encrypt(value));
+                rounds++;
+                elapsed = System.nanoTime() - startTime;
+            } while (elapsed < nanosPerSize);
+            result[s] = Math.max(1, elapsed / rounds);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index of the candidate with the lowest score, or the preferred one unless
+     * that is beaten by {@link #MIN_ADVANTAGE}.
+     *
+     * @param nanos          time per value of each candidate, indexed by candidate and size
+     * @param preferredIndex index of the preferred candidate, or -1
+     */
+    static int pickFastest(long[][] nanos, int preferredIndex) {
+        final double[] scores = new double[nanos.length];
+        for (int s = 0; s < nanos[0].length; s++) {
+            long fastest = Long.MAX_VALUE;
+            for (long[] candidate : nanos) {
+                fastest = Math.min(fastest, candidate[s]);
+            }
+            for (int c = 0; c < nanos.length; c++) {
+                scores[c] += (double) nanos[c][s] / fastest;
+            }
+        }
+        int best = 0;
+        for (int c = 1; c < scores.length; c++) {
+            if (scores[c] < scores[best]) {
+                best = c;
+            }
+        }
+        if (preferredIndex >= 0 && scores[best] > scores[preferredIndex] * (1 - MIN_ADVANTAGE)) {
+            return preferredIndex;
+        }
+        return best;
+    }
+
+    /**
+     * The algorithm that was selected.
+     */
+    public StorageCipherAlgorithm getSelectedAlgorithm() {
+        return selectedAlgorithm;
+    }
+
+    /**
+     * Returns how long encrypting and decrypting one value of each of {@link #VALUE_SIZES}
+     * took with the given algorithm, in nanoseconds, or null if it was not measured.
+     */
+    public long[] getNanosPerValue(StorageCipherAlgorithm algorithm) {
+        final long[] nanos = nanosPerValue.get(algorithm);
+        return nanos == null ? null : nanos.clone();
+    }
+
+    private String describe() {
+        final StringBuilder description = new StringBuilder();
+        for (Map.Entry<StorageCipherAlgorithm, long[]> entry : nanosPerValue.entrySet()) {
+            if (description.length() > 0) {
+                description.append(", ");
+            }
+            description.append(entry.getKey().name()).append(' ');
+            for (int s = 0; s < VALUE_SIZES.length; s++) {
+                description.append(s == 0 ? "" : "/").append(entry.getValue()[s]);
+            }
+        }
+        return description.toString();
+    }
+
+    /**
+     * Returns the measurements in the form sent over the method channel.
+     */
+    public Map<String, Object> toMap() {
+        final List<Integer> valueSizes = new ArrayList<>();
+        for (int size : VALUE_SIZES) {
+            valueSizes.add(size);
+        }
+        final Map<String, Object> measurements = new HashMap<>();
+        for (Map.Entry<StorageCipherAlgorithm, long[]> entry : nanosPerValue.entrySet()) {
+            final List<Long> nanos = new ArrayList<>();
+            for (long value : entry.getValue()) {
+                nanos.add(value);
+            }
+            measurements.put(entry.getKey().name(), nanos);
+        }
+        final Map<String, Object> map = new HashMap<>();
+        map.put("selectedAlgorithm", selectedAlgorithm.name());
+        map.put("valueSizes", valueSizes);
+        map.put("nanosPerValue", measurements);
+        return map;
+    }
+}
@@ -0,0 +1,97 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+
+/**
+ * Process-wide choice of the security provider for the ciphers with software keys.
+ * <p>
+ * {@code Cipher.getInstance(transformation)} walks the installed providers until one
+ * implements the transformation, and that walk decides which implementation runs. Conscrypt,
+ * named AndroidOpenSSL where the platform bundles it, is backed by BoringSSL and uses the AES
+ * and carry-less multiply instructions of ARMv8 CPUs, so it is several times faster for
+ * AES-GCM than the Java implementations of Bouncy Castle. It is picked whenever it implements
+ * the transformation, otherwise the provider the platform selects is kept. The choice is made
+ * once per process and transformation, and ciphers are created from the resolved
+ * {@link Provider} directly.
+ * <p>
+ * Ciphers using AndroidKeyStore keys do not go through here: only the KeyStore providers can
+ * use those keys.
+ */
+public final class CryptoProviders {
+    private static final String TAG = "CryptoProviders";
+    // In order of preference
+    private static final String[] PREFERRED_PROVIDERS = {"AndroidOpenSSL", "Conscrypt"};
+
+    private static final Map<String, Provider> providers = new HashMap<>();
+
+    private CryptoProviders() {
+    }
+
+    /**
+     * Returns a new cipher for the given transformation from the resolved provider.
+     */
+    public static Cipher getCipher(String transformation) throws GeneralSecurityException {
+        return Cipher.getInstance(transformation, getProvider(transformation));
+    }
+
+    /**
+     * Returns the provider ciphers for the given transformation are created from, resolving
+     * it on first use.
+     *
+     * @throws NoSuchAlgorithmException if no provider implements the transformation
+     */
+    static synchronized Provider getProvider(String transformation) throws GeneralSecurityException {
+        Provider provider = providers.get(transformation);
+        if (provider != null) {
+            return provider;
+        }
+        for (String name : PREFERRED_PROVIDERS) {
+            final Provider preferred = Security.getProvider(name);
+            if (preferred == null) {
+                continue;
+            }
+            try {
+                Cipher.getInstance(transformation, preferred);
+                provider = preferred;
+                break;
+            } catch (GeneralSecurityException e) {
+                // Does not implement this transformation
+            }
+        }
+        if (provider == null) {
+            provider = Cipher.getInstance(transformation).getProvider();
+        }
+        Log.d(TAG, "Using " + provider.getName() + " for " + transformation);
+        providers.put(transformation, provider);
+        return provider;
+    }
+
+    /**
+     * Returns the name of the provider of the given storage algorithm, or null if no provider
+     * implements it.
+     */
+    public static String getProviderName(StorageCipherAlgorithm algorithm) {
+        try {
+            switch (algorithm) {
+                case ChaCha20_Poly1305_NoPadding:
+                    return StorageCipherImplementationChaCha20.getProvider().getName();
+                case AES_GCM_NoPadding:
+                    return getProvider(StorageCipherImplementationGCM.TRANSFORMATION).getName();
+                case AES_CBC_PKCS7Padding:
+                default:
+                    return getProvider(StorageCipherImplementationAES18.TRANSFORMATION).getName();
+            }
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+import android.content.Context;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Storage cipher whose data key is derived from a master key with HKDF instead of being
+ * generated and stored wrapped, see {@link MasterKeyAccess}.
+ * <p>
+ * The derivation info names the storage algorithm and the key storage of the namespace, so
+ * every namespace and algorithm gets an unrelated key, and the same one on every start. The
+ * data key is never stored; deleting it is a no-op, as the master key is shared with other
+ * namespaces.
+ */
+final class DerivedKeyStorageCipher implements ForkableStorageCipher, IdentifiedStorageCipher {
+    private static final int AES_KEY_SIZE = 16;
+    private static final int CHACHA20_KEY_SIZE = 32;
+
+    private final StorageCipherAlgorithm algorithm;
+    private final StorageCipher cipher;
+
+    private DerivedKeyStorageCipher(StorageCipherAlgorithm algorithm, StorageCipher cipher) {
+        this.algorithm = algorithm;
+        this.cipher = cipher;
+    }
+
+    /**
+     * Creates a cipher of the given algorithm with the data key of a namespace.
+     *
+     * @param keyStoragePrefsName the key storage of the namespace, which identifies it
+     */
+    static DerivedKeyStorageCipher create(Context context, String keyStoragePrefsName, StorageCipherAlgorithm algorithm,
+                                          byte[] masterKey) throws Exception {
+        final Key dataKey = deriveDataKey(masterKey, keyStoragePrefsName, algorithm);
+        // The derived key is the same on every start, so its nonces must not be
+        final NonceGenerator nonces = NonceGenerator.forKeyStorage(context, keyStoragePrefsName);
+        switch (algorithm) {
+            case ChaCha20_Poly1305_NoPadding:
+                return new DerivedKeyStorageCipher(algorithm, new StorageCipherImplementationChaCha20(keyStoragePrefsName, dataKey, nonces));
+            case AES_GCM_NoPadding:
+                return new DerivedKeyStorageCipher(algorithm, new StorageCipherImplementationGCM(keyStoragePrefsName, dataKey, nonces));
+            case AES_CBC_PKCS7Padding:
+            default:
+                return new DerivedKeyStorageCipher(algorithm, new StorageCipherImplementationAES18(keyStoragePrefsName, dataKey));
+        }
+    }
+
+    /* package */ static Key deriveDataKey(byte[] masterKey, String keyStoragePrefsName, StorageCipherAlgorithm algorithm)
+            throws Exception {
+        final byte[] info = (algorithm.name() + ":" + keyStoragePrefsName).getBytes(StandardCharsets.UTF_8);
+        if (algorithm == StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding) {
+            return new SecretKeySpec(Hkdf.derive(masterKey, null, info, CHACHA20_KEY_SIZE), "ChaCha20");
+        }
+        return new SecretKeySpec(Hkdf.derive(masterKey, null, info, AES_KEY_SIZE), "AES");
+    }
+
+    @Override
+    public StorageCipher fork() throws Exception {
+        return new DerivedKeyStorageCipher(algorithm, ((ForkableStorageCipher) cipher).fork());
+    }
+
+    @Override
+    public StorageCipherAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public int getKeyId() {
+        return KEY_ID_DERIVED;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] input) throws Exception {
+        return cipher.encrypt(input);
+    }
+
+    @Override
+    public byte[] decrypt(byte[] input) throws Exception {
+        return cipher.decrypt(input);
+    }
+
+    @Override
+    public void deleteKey(Context context) {
+        // Nothing stored; the master key belongs to every namespace deriving from it
+    }
+}
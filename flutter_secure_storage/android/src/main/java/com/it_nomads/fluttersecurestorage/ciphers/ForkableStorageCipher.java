@@ -0,0 +1,15 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+/**
+ * A storage cipher whose key lives in memory and can be handed to independent instances.
+ * <p>
+ * Storage ciphers reuse one {@link javax.crypto.Cipher} and are not thread-safe. A fork shares
+ * the key but owns its Cipher and SecureRandom, so each worker thread can use its own fork.
+ * Ciphers bound to a hardware or biometric key do not implement this.
+ */
+public interface ForkableStorageCipher extends StorageCipher {
+    /**
+     * Returns a new instance using the same key, safe to use on another thread than this one.
+     */
+    StorageCipher fork() throws Exception;
+}
@@ -0,0 +1,50 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HMAC-based key derivation with SHA-256 (HKDF, RFC 5869).
+ */
+final class Hkdf {
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int HASH_LENGTH = 32;
+
+    private Hkdf() {
+    }
+
+    /**
+     * Derives length bytes of key material from the input key material.
+     *
+     * @param salt optional salt; an empty or null salt is a string of zeros, as in the RFC
+     * @param info context that binds the output to its use, so different uses get unrelated keys
+     */
+    static byte[] derive(byte[] inputKeyMaterial, byte[] salt, byte[] info, int length) throws GeneralSecurityException {
+        if (length <= 0 || length > 255 * HASH_LENGTH) {
+            throw new IllegalArgumentException("Invalid HKDF output length " + length);
+        }
+        final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+
+        // Extract
+        mac.init(new SecretKeySpec(salt == null || salt.length == 0 ? new byte[HASH_LENGTH] : salt, MAC_ALGORITHM));
+        final byte[] pseudoRandomKey = mac.doFinal(inputKeyMaterial);
+
+        // Expand
+        mac.init(new SecretKeySpec(pseudoRandomKey, MAC_ALGORITHM));
+        final byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        int filled = 0;
+        for (int counter = 1; filled < length; counter++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            final int count = Math.min(block.length, length - filled);
+            System.arraycopy(block, 0, output, filled, count);
+            filled += count;
+        }
+        return output;
+    }
+}
@@ -0,0 +1,19 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+/**
+ * A storage cipher that can name its algorithm and data key, so the values it encrypts can be
+ * stored with a header identifying them and told apart from values of other ciphers.
+ */
+public interface IdentifiedStorageCipher extends StorageCipher {
+    /** The data key is generated in software and stored wrapped by a {@link KeyCipher}. */
+    int KEY_ID_WRAPPED = 0;
+    /** The data key is protected by an AndroidKeyStore key, possibly bound to authentication. */
+    int KEY_ID_KEYSTORE = 1;
+    /** The data key is derived from a master key shared with other namespaces. */
+    int KEY_ID_DERIVED = 2;
+
+    StorageCipherAlgorithm getAlgorithm();
+
+    /** Identifies the data key, {@link #KEY_ID_WRAPPED}, {@link #KEY_ID_KEYSTORE} or {@link #KEY_ID_DERIVED}. */
+    int getKeyId();
+}
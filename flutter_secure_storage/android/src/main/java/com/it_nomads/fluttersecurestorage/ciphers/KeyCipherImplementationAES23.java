@@ -41,11 +41,12 @@ class KeyCipherImplementationAES23 implements KeyCipher {
         this.context = context;
         this.config = config;
         keyAlias = createKeyAlias(context);
-        KeyStore ks = KeyStore.getInstance(KEYSTORE_PROVIDER_ANDROID);
-        ks.load(null);
-        Key privateKey = ks.getKey(keyAlias, null);
-        if (privateKey == null) {
-            generateSymmetricKey();
+        KeyStore ks = KeyStoreAccess.getKeyStore();
+        synchronized (KeyStoreAccess.lockFor(keyAlias)) {
+            Key privateKey = ks.getKey(keyAlias, null);
+            if (privateKey == null) {
+                generateSymmetricKey();
+            }
         }
     }
 
@@ -65,8 +66,7 @@ class KeyCipherImplementationAES23 implements KeyCipher {
 
     @Override
     public void deleteKey() throws Exception {
-        KeyStore ks = KeyStore.getInstance(KEYSTORE_PROVIDER_ANDROID);
-        ks.load(null);
+        KeyStore ks = KeyStoreAccess.getKeyStore();
         ks.deleteEntry(keyAlias);
 
         SharedPreferences preferences = context.getSharedPreferences(config.getEffectiveKeyStoragePrefsName(), Context.MODE_PRIVATE);
@@ -75,12 +75,16 @@ class KeyCipherImplementationAES23 implements KeyCipher {
 
     @Override
     public Cipher getCipher(Context context) throws Exception {
-        KeyStore ks = KeyStore.getInstance(KEYSTORE_PROVIDER_ANDROID);
-        ks.load(null);
+        KeyStore ks = KeyStoreAccess.getKeyStore();
         Key key = ks.getKey(keyAlias, null);
         if (key == null) {
-            generateSymmetricKey();  // Generate if it doesn't exist
-            key = ks.getKey(keyAlias, null);
+            synchronized (KeyStoreAccess.lockFor(keyAlias)) {
+                key = ks.getKey(keyAlias, null);
+                if (key == null) {
+                    generateSymmetricKey();  // Generate if it doesn't exist
+                    key = ks.getKey(keyAlias, null);
+                }
+            }
             return getEncryptionCipher(context, key); // `context` needs to be stored in the class
         }
 
@@ -160,7 +164,9 @@ class KeyCipherImplementationAES23 implements KeyCipher {
             builder.setUserAuthenticationRequired(true);
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-                builder.setUserAuthenticationParameters(0,
+                // With a session window any authentication unlocks the key for that long, so one
+                // prompt serves every storage; otherwise each use needs its own authentication
+                builder.setUserAuthenticationParameters(config.getBiometricSessionSeconds(),
                         AUTH_DEVICE_CREDENTIAL | AUTH_BIOMETRIC_STRONG);
             } else {
                 configureLegacyAuth(builder);
@@ -205,7 +211,7 @@ class KeyCipherImplementationAES23 implements KeyCipher {
                     builder.setUserAuthenticationRequired(true);
 
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-                        builder.setUserAuthenticationParameters(0,
+                        builder.setUserAuthenticationParameters(config.getBiometricSessionSeconds(),
                                 AUTH_DEVICE_CREDENTIAL | AUTH_BIOMETRIC_STRONG);
                     } else {
                         configureLegacyAuth(builder);
@@ -43,8 +43,7 @@ class KeyCipherImplementationRSA18 implements KeyCipher {
 
     @Override
     public void deleteKey() throws Exception {
-        KeyStore ks = KeyStore.getInstance(KEYSTORE_PROVIDER_ANDROID);
-        ks.load(null);
+        KeyStore ks = KeyStoreAccess.getKeyStore();
         ks.deleteEntry(keyAlias);
     }
 
@@ -72,8 +71,7 @@ class KeyCipherImplementationRSA18 implements KeyCipher {
     }
 
     private PrivateKey getPrivateKey() throws Exception {
-        KeyStore ks = KeyStore.getInstance(KEYSTORE_PROVIDER_ANDROID);
-        ks.load(null);
+        KeyStore ks = KeyStoreAccess.getKeyStore();
 
         Key key = ks.getKey(keyAlias, null);
         if (key == null) {
@@ -88,8 +86,7 @@ class KeyCipherImplementationRSA18 implements KeyCipher {
     }
 
     private PublicKey getPublicKey() throws Exception {
-        KeyStore ks = KeyStore.getInstance(KEYSTORE_PROVIDER_ANDROID);
-        ks.load(null);
+        KeyStore ks = KeyStoreAccess.getKeyStore();
 
         Certificate cert = ks.getCertificate(keyAlias);
         if (cert == null) {
@@ -117,13 +114,14 @@ class KeyCipherImplementationRSA18 implements KeyCipher {
     }
 
     private void createRSAKeysIfNeeded(Context context) throws Exception {
-        KeyStore ks = KeyStore.getInstance(KEYSTORE_PROVIDER_ANDROID);
-        ks.load(null);
+        KeyStore ks = KeyStoreAccess.getKeyStore();
 
-        Key privateKey = ks.getKey(keyAlias, null);
-        Certificate cert = ks.getCertificate(keyAlias);
-        if (privateKey == null || cert == null) {
-            createKeys(context);
+        synchronized (KeyStoreAccess.lockFor(keyAlias)) {
+            Key privateKey = ks.getKey(keyAlias, null);
+            Certificate cert = ks.getCertificate(keyAlias);
+            if (privateKey == null || cert == null) {
+                createKeys(context);
+            }
         }
     }
 
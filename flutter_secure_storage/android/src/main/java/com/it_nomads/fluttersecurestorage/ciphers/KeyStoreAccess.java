@@ -0,0 +1,53 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide access to the AndroidKeyStore.
+ * <p>
+ * The AndroidKeyStore is loaded once per process and shared by all key ciphers, so
+ * initializing several namespaces does not pay for the load once per namespace and
+ * operation. Key generation is serialized per alias so that namespaces initialized
+ * concurrently never generate the same key twice.
+ */
+public final class KeyStoreAccess {
+
+    private static final String KEYSTORE_PROVIDER_ANDROID = "AndroidKeyStore";
+
+    private static final Map<String, Object> aliasLocks = new HashMap<>();
+    private static KeyStore keyStore;
+
+    private KeyStoreAccess() {
+    }
+
+    /**
+     * Returns the loaded AndroidKeyStore, loading it on first use.
+     * The AndroidKeyStore is backed by the keystore daemon, so entries created or
+     * deleted after loading are visible through the shared instance.
+     */
+    public static synchronized KeyStore getKeyStore() throws Exception {
+        if (keyStore == null) {
+            KeyStore ks = KeyStore.getInstance(KEYSTORE_PROVIDER_ANDROID);
+            ks.load(null);
+            keyStore = ks;
+        }
+        return keyStore;
+    }
+
+    /**
+     * Returns the lock guarding the "check if key exists, otherwise generate it" sequence
+     * for the given alias.
+     */
+    public static Object lockFor(String alias) {
+        synchronized (aliasLocks) {
+            Object lock = aliasLocks.get(alias);
+            if (lock == null) {
+                lock = new Object();
+                aliasLocks.put(alias, lock);
+            }
+            return lock;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import com.it_nomads.fluttersecurestorage.FlutterSecureStorageConfig;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Process-wide access to the master keys that data keys are derived from, see
+ * {@link DerivedKeyStorageCipher}.
+ * <p>
+ * Without key derivation every namespace has a KeyStore key and a wrapped data key of its own,
+ * so opening N namespaces generates up to N KeyStore keys and unwraps N data keys. A master key
+ * is wrapped by a KeyStore key of its own, under a reserved namespace, and unwrapped once per
+ * process and key algorithm; every namespace opened afterwards costs no KeyStore operation.
+ */
+final class MasterKeyAccess {
+    private static final String TAG = "MasterKeyAccess";
+    // Names the KeyStore alias and key storage of the master keys; not usable as a storage namespace
+    static final String MASTER_KEY_NAMESPACE = "FlutterSecureStorageMasterKey";
+    private static final String ENTRY_PREFIX = "FlutterSecureMasterKey.";
+    private static final String WRAPPED_KEY_ALGORITHM = "AES";
+    private static final int MASTER_KEY_SIZE = 32;
+
+    private static final Map<String, byte[]> masterKeys = new HashMap<>();
+    private static FlutterSecureStorageConfig masterKeyConfig;
+
+    private MasterKeyAccess() {
+    }
+
+    /**
+     * Returns the master key wrapped by the given key algorithm, unwrapping it on first use or
+     * generating it if there is none yet. Callers must not modify the returned array.
+     */
+    static byte[] getMasterKey(Context context, KeyCipherAlgorithm algorithm) throws Exception {
+        return getMasterKey(context, algorithm.name(), algorithm.keyCipher);
+    }
+
+    /* package */ static synchronized byte[] getMasterKey(Context context, String name,
+                                                          KeyCipherFunction keyCipherFunction) throws Exception {
+        byte[] masterKey = masterKeys.get(name);
+        if (masterKey != null) {
+            return masterKey;
+        }
+
+        final SharedPreferences keyStorage = getKeyStorage(context);
+        final KeyCipher keyCipher = keyCipherFunction.apply(context, getMasterKeyConfig());
+        final String wrapped = keyStorage.getString(ENTRY_PREFIX + name, null);
+        if (wrapped != null) {
+            masterKey = keyCipher.unwrap(Base64.decode(wrapped, Base64.DEFAULT), WRAPPED_KEY_ALGORITHM).getEncoded();
+        } else {
+            masterKey = new byte[MASTER_KEY_SIZE];
+            new SecureRandom().nextBytes(masterKey);
+            final byte[] wrappedKey = keyCipher.wrap(new SecretKeySpec(masterKey, WRAPPED_KEY_ALGORITHM));
+            // Every namespace deriving from it depends on this key; it must be on disk before any value uses it
+            if (!keyStorage.edit().putString(ENTRY_PREFIX + name, Base64.encodeToString(wrappedKey, Base64.DEFAULT)).commit()) {
+                throw new Exception("Failed to commit master key to disk - storage may be full or unavailable");
+            }
+            Log.i(TAG, "Generated master key for " + name);
+        }
+        masterKeys.put(name, masterKey);
+        return masterKey;
+    }
+
+    /**
+     * Returns true if a master key wrapped by the given key algorithm exists, so that it can be
+     * used without generating one.
+     */
+    static boolean hasMasterKey(Context context, KeyCipherAlgorithm algorithm) {
+        synchronized (MasterKeyAccess.class) {
+            if (masterKeys.containsKey(algorithm.name())) {
+                return true;
+            }
+        }
+        return getKeyStorage(context).contains(ENTRY_PREFIX + algorithm.name());
+    }
+
+    private static SharedPreferences getKeyStorage(Context context) {
+        return context.getSharedPreferences(getMasterKeyConfig().getEffectiveKeyStoragePrefsName(), Context.MODE_PRIVATE);
+    }
+
+    private static synchronized FlutterSecureStorageConfig getMasterKeyConfig() {
+        if (masterKeyConfig == null) {
+            final Map<String, Object> options = new HashMap<>();
+            options.put(FlutterSecureStorageConfig.PREF_OPTION_STORAGE_NAMESPACE, MASTER_KEY_NAMESPACE);
+            masterKeyConfig = new FlutterSecureStorageConfig(options);
+        }
+        return masterKeyConfig;
+    }
+}
@@ -0,0 +1,113 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Generates the 96-bit nonces of the AEAD storage ciphers as a random prefix followed by a
+ * counter, the deterministic construction of NIST SP 800-38D, section 8.2.1.
+ * <p>
+ * Drawing every nonce from SecureRandom would cost a call into the kernel entropy pool per
+ * write, which is slow on some devices under write bursts. SecureRandom is only used for the
+ * prefix, drawn once per process, and again after {@link #MAX_NONCES_PER_PREFIX} nonces.
+ * <p>
+ * Uniqueness comes from the 64-bit counter, which never repeats for a key storage: ranges of
+ * {@link #RESERVED_COUNTERS} counters are committed to disk before any of them is used, so a
+ * crash skips counters instead of repeating them. The counters are kept apart from the key
+ * storages, which are cleared on reset and rolled back with migration backups while derived
+ * keys stay the same. The random prefix covers the counters being lost anyway, such as by
+ * clearing the app data of a device that restores derived keys. All ciphers of a key storage
+ * share one generator.
+ */
+final class NonceGenerator {
+    static final int NONCE_SIZE = 12;
+    private static final int PREFIX_SIZE = 4;
+    // Counters committed to disk at once; a crash wastes at most this many
+    private static final long RESERVED_COUNTERS = 4096;
+    // Nonces per prefix before drawing a new one, the invocation limit of SP 800-38D
+    static final long MAX_NONCES_PER_PREFIX = 1L << 32;
+    static final String COUNTER_STORAGE = "FlutterSecureNonceCounters";
+
+    private static final SecureRandom secureRandom = new SecureRandom();
+    private static final Map<String, NonceGenerator> generators = new HashMap<>();
+
+    // Null for keys that are never stored, whose counter can start over on every start
+    private final SharedPreferences counterStorage;
+    private final String counterKey;
+    private final byte[] prefix = new byte[PREFIX_SIZE];
+    private long prefixStart;
+    private long next;
+    private long reservedUntil;
+
+    /* package */ NonceGenerator(SharedPreferences counterStorage, String counterKey) {
+        this.counterStorage = counterStorage;
+        this.counterKey = counterKey;
+        next = counterStorage != null ? counterStorage.getLong(counterKey, 0) : 0;
+        reservedUntil = counterStorage != null ? next : Long.MAX_VALUE;
+        drawPrefix();
+    }
+
+    /**
+     * Returns the generator shared by the ciphers of the keys kept in the given key storage.
+     */
+    static NonceGenerator forKeyStorage(Context context, String keyStoragePrefsName) {
+        synchronized (generators) {
+            NonceGenerator generator = generators.get(keyStoragePrefsName);
+            if (generator == null) {
+                generator = new NonceGenerator(context.getSharedPreferences(COUNTER_STORAGE, Context.MODE_PRIVATE),
+                        keyStoragePrefsName);
+                generators.put(keyStoragePrefsName, generator);
+            }
+            return generator;
+        }
+    }
+
+    /**
+     * Returns a generator for a key that is kept in memory only.
+     */
+    static NonceGenerator inMemory() {
+        return new NonceGenerator(null, null);
+    }
+
+    /**
+     * Returns a nonce never returned before for this key storage.
+     *
+     * @throws Exception if the counter is exhausted or could not be reserved on disk
+     */
+    synchronized byte[] next() throws Exception {
+        if (next == Long.MAX_VALUE) {
+            throw new Exception("Nonce counter exhausted - the storage key must be regenerated");
+        }
+        if (next - prefixStart >= MAX_NONCES_PER_PREFIX) {
+            drawPrefix();
+        }
+        if (next >= reservedUntil) {
+            reserve();
+        }
+        final long counter = next++;
+        final byte[] nonce = new byte[NONCE_SIZE];
+        System.arraycopy(prefix, 0, nonce, 0, PREFIX_SIZE);
+        for (int i = NONCE_SIZE - 1; i >= PREFIX_SIZE; i--) {
+            nonce[i] = (byte) (counter >>> (8 * (NONCE_SIZE - 1 - i)));
+        }
+        return nonce;
+    }
+
+    private void drawPrefix() {
+        secureRandom.nextBytes(prefix);
+        prefixStart = next;
+    }
+
+    private void reserve() throws Exception {
+        final long until = next > Long.MAX_VALUE - RESERVED_COUNTERS ? Long.MAX_VALUE : next + RESERVED_COUNTERS;
+        // Must be on disk before any counter of the range is used, or a crash could repeat it
+        if (!counterStorage.edit().putLong(counterKey, until).commit()) {
+            throw new Exception("Failed to commit nonce counter to disk - storage may be full or unavailable");
+        }
+        reservedUntil = until;
+    }
+}
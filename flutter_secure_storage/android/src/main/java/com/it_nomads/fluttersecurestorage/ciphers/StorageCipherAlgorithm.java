@@ -3,15 +3,50 @@ package com.it_nomads.fluttersecurestorage.ciphers;
 import android.os.Build;
 
 public enum StorageCipherAlgorithm {
-    AES_CBC_PKCS7Padding(StorageCipherImplementationAES18::new, 1),
-    AES_GCM_NoPadding(null, Build.VERSION_CODES.M); // Implementation selected dynamically by factory
+    AES_CBC_PKCS7Padding(StorageCipherImplementationAES18::new, 1, 1, 16),
+    AES_GCM_NoPadding(null, Build.VERSION_CODES.M, 2, 12), // Implementation selected dynamically by factory
+    ChaCha20_Poly1305_NoPadding(StorageCipherImplementationChaCha20::new, Build.VERSION_CODES.P, 3, 12);
 
     final StorageCipherFunction storageCipher;
     final int minVersionCode;
+    // Written into stored values to name the algorithm that encrypted them; never reuse an id
+    private final int id;
+    private final int ivLength;
 
-    StorageCipherAlgorithm(StorageCipherFunction storageCipher, int minVersionCode) {
+    StorageCipherAlgorithm(StorageCipherFunction storageCipher, int minVersionCode, int id, int ivLength) {
         this.storageCipher = storageCipher;
         this.minVersionCode = minVersionCode;
+        this.id = id;
+        this.ivLength = ivLength;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /** Length of the IV the implementations put in front of each ciphertext. */
+    public int getIvLength() {
+        return ivLength;
+    }
+
+    /**
+     * Whether this device can use the algorithm: its API level is high enough and, for
+     * ChaCha20-Poly1305, a security provider implements it.
+     */
+    public boolean isAvailable() {
+        if (minVersionCode > Build.VERSION.SDK_INT) {
+            return false;
+        }
+        return this != ChaCha20_Poly1305_NoPadding || StorageCipherImplementationChaCha20.isAvailable();
+    }
+
+    public static StorageCipherAlgorithm fromId(int id) {
+        for (StorageCipherAlgorithm algorithm : values()) {
+            if (algorithm.id == id) {
+                return algorithm;
+            }
+        }
+        throw new IllegalArgumentException("Unknown storage cipher algorithm id: " + id);
     }
 
     // Migration support: Map legacy name to new value
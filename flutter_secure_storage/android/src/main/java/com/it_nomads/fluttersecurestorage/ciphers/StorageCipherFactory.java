@@ -5,24 +5,46 @@ import android.content.SharedPreferences;
 import android.os.Build;
 
 import com.it_nomads.fluttersecurestorage.FlutterSecureStorageConfig;
+import com.it_nomads.fluttersecurestorage.LazyMigration;
 import com.it_nomads.fluttersecurestorage.NamespacedConfigSource;
 
+import java.util.List;
+
 import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
 
 public class StorageCipherFactory {
     private static final String ELEMENT_PREFERENCES_ALGORITHM_PREFIX = "FlutterSecureSAlgorithm";
     private static final String ELEMENT_PREFERENCES_ALGORITHM_KEY = ELEMENT_PREFERENCES_ALGORITHM_PREFIX + "Key";
     private static final String ELEMENT_PREFERENCES_ALGORITHM_STORAGE = ELEMENT_PREFERENCES_ALGORITHM_PREFIX + "Storage";
+    // Present only while the data key is derived from a master key, see MasterKeyAccess
+    private static final String ELEMENT_PREFERENCES_KEY_DERIVATION = ELEMENT_PREFERENCES_ALGORITHM_PREFIX + "KeyDerivation";
+    private static final String KEY_DERIVATION_HKDF = "HKDF";
     private static final KeyCipherAlgorithm DEFAULT_KEY_ALGORITHM = KeyCipherAlgorithm.RSA_ECB_PKCS1Padding;
     private static final StorageCipherAlgorithm DEFAULT_STORAGE_ALGORITHM = StorageCipherAlgorithm.AES_CBC_PKCS7Padding;
 
+    /**
+     * Storage cipher algorithm option that selects the fastest algorithm on the device when a
+     * storage is first initialized, see {@link CipherBenchmark}. The selection is saved in the
+     * algorithm markers like any configured algorithm and kept from then on.
+     */
+    public static final String AUTOMATIC_STORAGE_ALGORITHM = "AUTO";
+
     private final KeyCipherAlgorithm savedKeyAlgorithm;
     private final StorageCipherAlgorithm savedStorageAlgorithm;
     private final KeyCipherAlgorithm currentKeyAlgorithm;
     private final StorageCipherAlgorithm currentStorageAlgorithm;
+    private final boolean savedKeyDerived;
+    private final boolean currentKeyDerived;
     private final FlutterSecureStorageConfig config;
+    private final CipherBenchmark cipherBenchmark;
 
     public StorageCipherFactory(NamespacedConfigSource configSource, String keyCipherAlgorithm, String storageCipherAlgorithm, FlutterSecureStorageConfig config) {
+        this(configSource, keyCipherAlgorithm, storageCipherAlgorithm, config, true);
+    }
+
+    private StorageCipherFactory(NamespacedConfigSource configSource, String keyCipherAlgorithm, String storageCipherAlgorithm,
+                                 FlutterSecureStorageConfig config, boolean storeMissingMarkers) {
         this.config = config;
         final String savedKeyCipherAlgorithm = configSource.getString(ELEMENT_PREFERENCES_ALGORITHM_KEY, null);
         final String savedStorageCipherAlgorithm = configSource.getString(ELEMENT_PREFERENCES_ALGORITHM_STORAGE, null);
@@ -36,22 +58,57 @@ public class StorageCipherFactory {
             // (if they differ) via the migration flow in handleKeyMismatch().
             savedKeyAlgorithm = DEFAULT_KEY_ALGORITHM;        // RSA_ECB_PKCS1Padding
             savedStorageAlgorithm = DEFAULT_STORAGE_ALGORITHM; // AES_CBC_PKCS7Padding
+            savedKeyDerived = false;
         } else {
             savedKeyAlgorithm = KeyCipherAlgorithm.fromString(savedKeyCipherAlgorithm);
             savedStorageAlgorithm = StorageCipherAlgorithm.fromString(savedStorageCipherAlgorithm);
+            savedKeyDerived = KEY_DERIVATION_HKDF.equals(configSource.getString(ELEMENT_PREFERENCES_KEY_DERIVATION, null));
         }
 
-        final StorageCipherAlgorithm currentStorageAlgorithmTmp = StorageCipherAlgorithm.fromString(storageCipherAlgorithm);
-        currentStorageAlgorithm = (currentStorageAlgorithmTmp.minVersionCode <= Build.VERSION.SDK_INT) ? currentStorageAlgorithmTmp : DEFAULT_STORAGE_ALGORITHM;
-
         // Set current key algorithm with version check
         final KeyCipherAlgorithm currentKeyAlgorithmTmp = KeyCipherAlgorithm.fromString(keyCipherAlgorithm);
         currentKeyAlgorithm = (currentKeyAlgorithmTmp.minVersionCode <= Build.VERSION.SDK_INT) ? currentKeyAlgorithmTmp : DEFAULT_KEY_ALGORITHM;
+        // A biometric key is bound to its namespace, so there is nothing to share
+        currentKeyDerived = config.shouldDeriveNamespaceKeys() && currentKeyAlgorithm != KeyCipherAlgorithm.AES_GCM_NoPadding;
+
+        if (AUTOMATIC_STORAGE_ALGORITHM.equals(storageCipherAlgorithm)) {
+            final List<StorageCipherAlgorithm> candidates = CipherBenchmark.candidates(currentKeyAlgorithm);
+            final StorageCipherAlgorithm migrationTarget = findCandidate(candidates, LazyMigration.getTargetAlgorithm(configSource));
+            if (candidates.isEmpty()) {
+                cipherBenchmark = null;
+                currentStorageAlgorithm = DEFAULT_STORAGE_ALGORITHM;
+            } else if (savedKeyCipherAlgorithm != null && savedStorageCipherAlgorithm != null
+                    && candidates.contains(savedStorageAlgorithm)) {
+                // Selected on an earlier run; measuring again could only cause a migration
+                cipherBenchmark = null;
+                currentStorageAlgorithm = savedStorageAlgorithm;
+            } else if (migrationTarget != null) {
+                // Selected on an earlier run that started a lazy migration to it; measuring again
+                // could pick another algorithm and restart the migration
+                cipherBenchmark = null;
+                currentStorageAlgorithm = migrationTarget;
+            } else {
+                cipherBenchmark = CipherBenchmark.select(candidates);
+                currentStorageAlgorithm = cipherBenchmark.getSelectedAlgorithm();
+            }
+        } else {
+            cipherBenchmark = null;
+            final StorageCipherAlgorithm currentStorageAlgorithmTmp = StorageCipherAlgorithm.fromString(storageCipherAlgorithm);
+            if (currentStorageAlgorithmTmp.isAvailable()) {
+                currentStorageAlgorithm = currentStorageAlgorithmTmp;
+            } else if (currentStorageAlgorithmTmp == StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding
+                    && StorageCipherAlgorithm.AES_GCM_NoPadding.isAvailable()) {
+                // Without a ChaCha20 provider, fall back to the default rather than the legacy algorithm
+                currentStorageAlgorithm = StorageCipherAlgorithm.AES_GCM_NoPadding;
+            } else {
+                currentStorageAlgorithm = DEFAULT_STORAGE_ALGORITHM;
+            }
+        }
 
         if (savedKeyCipherAlgorithm == null || savedStorageCipherAlgorithm == null) {
             // Don't write algorithm markers during migrateWithBackup
             // (the migration flow writes them at step 7 after success).
-            if (!config.shouldMigrateWithBackup()) {
+            if (storeMissingMarkers && !config.shouldMigrateWithBackup()) {
                 final SharedPreferences.Editor source = configSource.edit();
                 storeCurrentAlgorithms(source);
                 source.apply();
@@ -59,24 +116,198 @@ public class StorageCipherFactory {
         }
     }
 
+    /**
+     * Returns a factory for the configured algorithms that never writes the algorithm markers,
+     * for inspecting a store without initializing it.
+     */
+    public static StorageCipherFactory forInspection(NamespacedConfigSource configSource, FlutterSecureStorageConfig config) {
+        return new StorageCipherFactory(configSource, config.getPrefOptionKeyCipherAlgorithm(),
+                config.getPrefOptionStorageCipherAlgorithm(), config, false);
+    }
+
+    /**
+     * Returns true if initializing with this configuration may show a biometric prompt,
+     * because either the configured or the previously saved key algorithm uses an
+     * authentication-bound AndroidKeyStore key.
+     */
+    public static boolean mayRequireAuthentication(NamespacedConfigSource configSource, FlutterSecureStorageConfig config) {
+        return isAuthenticationBound(config.getPrefOptionKeyCipherAlgorithm())
+                || isAuthenticationBound(configSource.getString(ELEMENT_PREFERENCES_ALGORITHM_KEY, null));
+    }
+
+    private static boolean isAuthenticationBound(String keyCipherAlgorithm) {
+        if (keyCipherAlgorithm == null) {
+            return false;
+        }
+        try {
+            return KeyCipherAlgorithm.fromString(keyCipherAlgorithm) == KeyCipherAlgorithm.AES_GCM_NoPadding;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static StorageCipherAlgorithm findCandidate(List<StorageCipherAlgorithm> candidates, String name) {
+        for (StorageCipherAlgorithm candidate : candidates) {
+            if (candidate.name().equals(name)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
     public boolean requiresReEncryption() {
-        return savedKeyAlgorithm != currentKeyAlgorithm || savedStorageAlgorithm != currentStorageAlgorithm;
+        return savedKeyAlgorithm != currentKeyAlgorithm || savedStorageAlgorithm != currentStorageAlgorithm
+                || savedKeyDerived != currentKeyDerived;
     }
 
     public boolean changedKeyAlgorithm() {
         return savedKeyAlgorithm != currentKeyAlgorithm;
     }
 
+    public boolean changedStorageAlgorithm() {
+        return savedStorageAlgorithm != currentStorageAlgorithm;
+    }
+
+    /**
+     * Returns true if the data key switches between being wrapped per namespace and being
+     * derived from a master key.
+     */
+    public boolean changedKeyDerivation() {
+        return savedKeyDerived != currentKeyDerived;
+    }
+
+    /**
+     * Returns true if the data key is derived from a master key, so that creating the current
+     * storage cipher needs no key cipher of this namespace.
+     */
+    public boolean derivesCurrentKey() {
+        return currentKeyDerived;
+    }
+
+    /**
+     * Returns true if, after a migration, the KeyStore key of the saved algorithms is used by
+     * neither the current storage cipher nor a master key, so that it can be deleted.
+     */
+    public boolean replacesSavedKeyCipher() {
+        return changedKeyAlgorithm() || (changedKeyDerivation() && currentKeyDerived);
+    }
+
+    /**
+     * Returns true if, after a migration, the data key of the saved storage cipher is not the
+     * current one, so that its wrapped form can be deleted.
+     */
+    public boolean replacesSavedDataKey() {
+        return changedStorageAlgorithm() || changedKeyDerivation();
+    }
+
+    /**
+     * Returns the keyStorage entry of the wrapped data key if only the key algorithm changed
+     * and both key algorithms wrap the data key, so that it can be re-wrapped instead of the
+     * data being re-encrypted. Returns null otherwise.
+     */
+    public String getRewrappableKeyEntry() {
+        // A master key is shared by other namespaces, which still expect the saved key algorithm
+        if (!changedKeyAlgorithm() || changedStorageAlgorithm() || savedKeyDerived || currentKeyDerived
+                || savedKeyAlgorithm == KeyCipherAlgorithm.AES_GCM_NoPadding
+                || currentKeyAlgorithm == KeyCipherAlgorithm.AES_GCM_NoPadding) {
+            return null;
+        }
+        return getWrappedKeyEntry(currentStorageAlgorithm);
+    }
+
+    /**
+     * Returns the keyStorage entry holding the wrapped data key of the given algorithm.
+     */
+    private static String getWrappedKeyEntry(StorageCipherAlgorithm algorithm) {
+        switch (algorithm) {
+            case AES_GCM_NoPadding:
+                return StorageCipherImplementationGCM.SHARED_PREFERENCES_KEY;
+            case ChaCha20_Poly1305_NoPadding:
+                return StorageCipherImplementationChaCha20.SHARED_PREFERENCES_KEY;
+            case AES_CBC_PKCS7Padding:
+            default:
+                return StorageCipherImplementationAES18.SHARED_PREFERENCES_KEY;
+        }
+    }
+
+    /**
+     * Returns true if the data key of the saved algorithms is stored wrapped in keyStorage, so
+     * that the saved storage cipher can be created without generating a key or showing a
+     * biometric prompt.
+     */
+    public boolean hasSavedWrappedKey(Context context) {
+        if (savedKeyAlgorithm == KeyCipherAlgorithm.AES_GCM_NoPadding) {
+            return false;
+        }
+        if (savedKeyDerived) {
+            return MasterKeyAccess.hasMasterKey(context, savedKeyAlgorithm);
+        }
+        return context.getSharedPreferences(config.getEffectiveKeyStoragePrefsName(), Context.MODE_PRIVATE)
+                .contains(getWrappedKeyEntry(savedStorageAlgorithm));
+    }
+
     public StorageCipher getSavedStorageCipher(Context context, Cipher cipher) throws Exception {
+        if (savedKeyDerived) {
+            return createDerivedStorageCipher(context, savedKeyAlgorithm, savedStorageAlgorithm);
+        }
         final KeyCipher keyCipher = savedKeyAlgorithm.keyCipher.apply(context, config);
         return createStorageCipher(context, keyCipher, cipher, savedStorageAlgorithm);
     }
 
     public StorageCipher getCurrentStorageCipher(Context context, Cipher cipher) throws Exception {
+        if (currentKeyDerived) {
+            return createDerivedStorageCipher(context, currentKeyAlgorithm, currentStorageAlgorithm);
+        }
         final KeyCipher keyCipher = currentKeyAlgorithm.keyCipher.apply(context, config);
         return createStorageCipher(context, keyCipher, cipher, currentStorageAlgorithm);
     }
 
+    /**
+     * Returns a cipher of the current storage algorithm using a random key that is kept in
+     * memory only. Ciphers with an AndroidKeyStore key are stood in for by the software
+     * implementation of the same algorithm.
+     */
+    public StorageCipher createScratchStorageCipher() throws Exception {
+        return createScratchStorageCipher(config.getEffectiveKeyStoragePrefsName(), currentStorageAlgorithm);
+    }
+
+    /* package */ static StorageCipher createScratchStorageCipher(String keyStoragePrefsName,
+                                                                  StorageCipherAlgorithm algorithm) throws Exception {
+        if (algorithm == StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding) {
+            return new StorageCipherImplementationChaCha20(keyStoragePrefsName, StorageCipherImplementationChaCha20.generateKey(),
+                    NonceGenerator.inMemory());
+        }
+        final KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(128);
+        if (algorithm == StorageCipherAlgorithm.AES_GCM_NoPadding) {
+            return new StorageCipherImplementationGCM(keyStoragePrefsName, keyGenerator.generateKey(), NonceGenerator.inMemory());
+        }
+        return new StorageCipherImplementationAES18(keyStoragePrefsName, keyGenerator.generateKey());
+    }
+
+    /**
+     * Returns the current storage cipher if its biometric key was unlocked within the biometric
+     * session window, so that it can be used without authenticating. Returns null otherwise.
+     */
+    public StorageCipher getSessionStorageCipher(Context context) throws Exception {
+        if (config.getBiometricSessionSeconds() == 0 || requiresReEncryption()
+                || currentKeyAlgorithm != KeyCipherAlgorithm.AES_GCM_NoPadding
+                || currentStorageAlgorithm != StorageCipherAlgorithm.AES_GCM_NoPadding) {
+            return null;
+        }
+        return StorageCipherImplementationAES23.fromSession(context, config);
+    }
+
+    /**
+     * Returns a cipher whose data key is derived from the master key wrapped by the given key
+     * algorithm. Only the first call per process and key algorithm touches the KeyStore.
+     */
+    private StorageCipher createDerivedStorageCipher(Context context, KeyCipherAlgorithm keyAlgorithm,
+                                                     StorageCipherAlgorithm algorithm) throws Exception {
+        return DerivedKeyStorageCipher.create(context, config.getEffectiveKeyStoragePrefsName(), algorithm,
+                MasterKeyAccess.getMasterKey(context, keyAlgorithm));
+    }
+
     /**
      * Dynamically selects the appropriate StorageCipher implementation based on
      * the KeyCipher type and StorageCipherAlgorithm.
@@ -94,6 +325,11 @@ public class StorageCipherFactory {
             }
         }
 
+        // The AndroidKeyStore holds no ChaCha20 keys and its AES keys cannot wrap one
+        if (algorithm == StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding && isKeyStoreKeyCipher(keyCipher)) {
+            throw new Exception("Storage algorithm " + algorithm.name() + " requires an RSA key cipher algorithm");
+        }
+
         // For other algorithms, use the function from enum
         if (algorithm.storageCipher == null) {
             throw new Exception("No implementation available for algorithm: " + algorithm.name());
@@ -108,6 +344,30 @@ public class StorageCipherFactory {
         return keyCipher instanceof KeyCipherImplementationAES23;
     }
 
+    public KeyCipherAlgorithm getSavedKeyAlgorithm() {
+        return savedKeyAlgorithm;
+    }
+
+    public KeyCipherAlgorithm getCurrentKeyAlgorithm() {
+        return currentKeyAlgorithm;
+    }
+
+    public StorageCipherAlgorithm getSavedStorageAlgorithm() {
+        return savedStorageAlgorithm;
+    }
+
+    public StorageCipherAlgorithm getCurrentStorageAlgorithm() {
+        return currentStorageAlgorithm;
+    }
+
+    /**
+     * Returns the measurements the current storage algorithm was selected by, or null if it
+     * was configured or selected on an earlier run.
+     */
+    public CipherBenchmark getCipherBenchmark() {
+        return cipherBenchmark;
+    }
+
     public KeyCipher getCurrentKeyCipher(Context context) throws Exception {
         return currentKeyAlgorithm.keyCipher.apply(context, config);
     }
@@ -119,5 +379,24 @@ public class StorageCipherFactory {
     public void storeCurrentAlgorithms(SharedPreferences.Editor editor) {
         editor.putString(ELEMENT_PREFERENCES_ALGORITHM_KEY, currentKeyAlgorithm.name());
         editor.putString(ELEMENT_PREFERENCES_ALGORITHM_STORAGE, currentStorageAlgorithm.name());
+        storeKeyDerivation(editor, currentKeyDerived);
+    }
+
+    /**
+     * Stages the saved algorithm markers, which for stores without markers are the
+     * historical defaults.
+     */
+    public void storeSavedAlgorithms(SharedPreferences.Editor editor) {
+        editor.putString(ELEMENT_PREFERENCES_ALGORITHM_KEY, savedKeyAlgorithm.name());
+        editor.putString(ELEMENT_PREFERENCES_ALGORITHM_STORAGE, savedStorageAlgorithm.name());
+        storeKeyDerivation(editor, savedKeyDerived);
+    }
+
+    private static void storeKeyDerivation(SharedPreferences.Editor editor, boolean derived) {
+        if (derived) {
+            editor.putString(ELEMENT_PREFERENCES_KEY_DERIVATION, KEY_DERIVATION_HKDF);
+        } else {
+            editor.remove(ELEMENT_PREFERENCES_KEY_DERIVATION);
+        }
     }
 }
@@ -14,10 +14,11 @@ import javax.crypto.Cipher;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-public class StorageCipherImplementationAES18 implements StorageCipher {
+public class StorageCipherImplementationAES18 implements ForkableStorageCipher, IdentifiedStorageCipher {
     private static final int keySize = 16;
     private static final String KEY_ALGORITHM = "AES";
-    private static final String SHARED_PREFERENCES_KEY = "VGhpcyBpcyB0aGUga2V5IGZvciBhIHNlY3VyZSBzdG9yYWdlIEFFUyBLZXkK";
+    static final String TRANSFORMATION = "AES/CBC/PKCS7Padding";
+    static final String SHARED_PREFERENCES_KEY = "VGhpcyBpcyB0aGUga2V5IGZvciBhIHNlY3VyZSBzdG9yYWdlIEFFUyBLZXkK";
     private final String keyStoragePrefsName;
     private final Cipher cipher;
     private final SecureRandom secureRandom;
@@ -51,6 +52,31 @@ public class StorageCipherImplementationAES18 implements StorageCipher {
         editor.apply();
     }
 
+    /**
+     * Creates a cipher using the given key, which is not stored or wrapped.
+     */
+    StorageCipherImplementationAES18(String keyStoragePrefsName, Key secretKey) throws Exception {
+        this.keyStoragePrefsName = keyStoragePrefsName;
+        this.secureRandom = new SecureRandom();
+        this.secretKey = secretKey;
+        cipher = getCipher();
+    }
+
+    @Override
+    public StorageCipher fork() throws Exception {
+        return new StorageCipherImplementationAES18(keyStoragePrefsName, secretKey);
+    }
+
+    @Override
+    public StorageCipherAlgorithm getAlgorithm() {
+        return StorageCipherAlgorithm.AES_CBC_PKCS7Padding;
+    }
+
+    @Override
+    public int getKeyId() {
+        return KEY_ID_WRAPPED;
+    }
+
     @Override
     public void deleteKey(Context context) {
         SharedPreferences preferences = context.getSharedPreferences(keyStoragePrefsName, Context.MODE_PRIVATE);
@@ -58,7 +84,7 @@ public class StorageCipherImplementationAES18 implements StorageCipher {
     }
 
     protected Cipher getCipher() throws Exception {
-        return Cipher.getInstance("AES/CBC/PKCS7Padding");
+        return CryptoProviders.getCipher(TRANSFORMATION);
     }
 
     @Override
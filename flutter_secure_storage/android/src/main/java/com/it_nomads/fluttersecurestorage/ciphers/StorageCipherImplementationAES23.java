@@ -14,22 +14,50 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-public class StorageCipherImplementationAES23 implements StorageCipher {
+public class StorageCipherImplementationAES23 implements IdentifiedStorageCipher {
     private static final int keySize = 32;
-    private static final int defaultIvSize = 12;
+    private static final int defaultIvSize = NonceGenerator.NONCE_SIZE;
     private static final int AUTHENTICATION_TAG_SIZE = 128;
     private static final String KEY_ALGORITHM = "AES";
     private static final String KEYSTORE_IV_NAME = "BVGhpcyBpcyB0aGUga2V5IGZvciBhIHNlY3VyZSBzdG9yYWdlIEFFUyBLZXkK";
     private final String keyStoragePrefsName;
     private final Cipher cipher;
-    private final SecureRandom secureRandom;
+    private final NonceGenerator nonces;
     private final Key secretKey;
 
     public StorageCipherImplementationAES23(Context context, KeyCipher ignoredKeyCipher, Cipher cipher, FlutterSecureStorageConfig config) throws Exception {
         keyStoragePrefsName = config.getEffectiveKeyStoragePrefsName();
-        secureRandom = new SecureRandom();
+        nonces = NonceGenerator.forKeyStorage(context, keyStoragePrefsName);
         this.secretKey = loadOrGenerateApplicationKey(context, cipher);
         this.cipher = getCipher();
+
+        if (config.getBiometricSessionSeconds() > 0) {
+            BiometricSession.unlocked(keyStoragePrefsName, getEncryptedApplicationKey(context, keyStoragePrefsName), secretKey,
+                    config.getBiometricSessionSeconds() * 1000L);
+        }
+    }
+
+    private StorageCipherImplementationAES23(String keyStoragePrefsName, Key secretKey, NonceGenerator nonces) throws Exception {
+        this.keyStoragePrefsName = keyStoragePrefsName;
+        this.nonces = nonces;
+        this.secretKey = secretKey;
+        this.cipher = getCipher();
+    }
+
+    /**
+     * Returns a cipher with the application key unlocked within the biometric session window,
+     * without authenticating, or null if there is none.
+     */
+    static StorageCipherImplementationAES23 fromSession(Context context, FlutterSecureStorageConfig config) throws Exception {
+        final String keyStoragePrefsName = config.getEffectiveKeyStoragePrefsName();
+        final Key key = BiometricSession.get(keyStoragePrefsName, getEncryptedApplicationKey(context, keyStoragePrefsName));
+        return key != null
+                ? new StorageCipherImplementationAES23(keyStoragePrefsName, key, NonceGenerator.forKeyStorage(context, keyStoragePrefsName))
+                : null;
+    }
+
+    private static String getEncryptedApplicationKey(Context context, String keyStoragePrefsName) {
+        return context.getSharedPreferences(keyStoragePrefsName, Context.MODE_PRIVATE).getString(KEYSTORE_IV_NAME, null);
     }
 
     private SecretKey loadOrGenerateApplicationKey(Context context, Cipher biometricCipher) throws Exception {
@@ -46,7 +74,8 @@ public class StorageCipherImplementationAES23 implements StorageCipher {
         }
 
         // No stored key - generate new one (first initialization)
-        byte[] appKey = generateIV(keySize);
+        byte[] appKey = new byte[keySize];
+        new SecureRandom().nextBytes(appKey);
         SecretKey secretKey = new SecretKeySpec(appKey, KEY_ALGORITHM);
         byte[] newEncryptedAppKey = cipher.doFinal(appKey);
 
@@ -57,6 +86,16 @@ public class StorageCipherImplementationAES23 implements StorageCipher {
         return secretKey;
     }
 
+    @Override
+    public StorageCipherAlgorithm getAlgorithm() {
+        return StorageCipherAlgorithm.AES_GCM_NoPadding;
+    }
+
+    @Override
+    public int getKeyId() {
+        return KEY_ID_KEYSTORE;
+    }
+
     @Override
     public void deleteKey(Context context) {
         SharedPreferences preferences = context.getSharedPreferences(keyStoragePrefsName, Context.MODE_PRIVATE);
@@ -64,12 +103,12 @@ public class StorageCipherImplementationAES23 implements StorageCipher {
     }
 
     protected Cipher getCipher() throws Exception {
-        return Cipher.getInstance("AES/GCM/NoPadding");
+        return CryptoProviders.getCipher(StorageCipherImplementationGCM.TRANSFORMATION);
     }
 
     @Override
     public byte[] encrypt(byte[] input) throws Exception {
-        byte[] iv = generateIV(defaultIvSize);
+        byte[] iv = nonces.next();
 
         GCMParameterSpec spec = new GCMParameterSpec(AUTHENTICATION_TAG_SIZE, iv);
         cipher.init(Cipher.ENCRYPT_MODE, secretKey, spec);
@@ -98,10 +137,4 @@ public class StorageCipherImplementationAES23 implements StorageCipher {
         return cipher.doFinal(payload);
     }
 
-    public byte[] generateIV(int size) {
-        byte[] iv = new byte[size];
-        secureRandom.nextBytes(iv);
-        return iv;
-    }
-
 }
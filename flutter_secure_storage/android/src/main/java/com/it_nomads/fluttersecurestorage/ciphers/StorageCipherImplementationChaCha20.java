@@ -0,0 +1,186 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import com.it_nomads.fluttersecurestorage.FlutterSecureStorageConfig;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.Provider;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ChaCha20-Poly1305 storage cipher with a software data key wrapped by a {@link KeyCipher},
+ * like {@link StorageCipherImplementationGCM}.
+ * <p>
+ * ChaCha20 only uses additions, rotations and XORs, so it runs several times faster than AES
+ * on CPUs without AES instructions, such as many ARMv7 devices, while it is about as fast as
+ * AES-GCM where those instructions exist. The AndroidKeyStore does not hold ChaCha20 keys, so
+ * there is no biometric variant.
+ */
+public class StorageCipherImplementationChaCha20 implements ForkableStorageCipher, IdentifiedStorageCipher {
+    private static final int keySize = 32;
+    private static final int NONCE_SIZE = NonceGenerator.NONCE_SIZE;
+    private static final String KEY_ALGORITHM = "ChaCha20";
+    // Conscrypt (Android 9+) and the JDK name the transformation differently
+    private static final String[] TRANSFORMATIONS = {"ChaCha20/Poly1305/NoPadding", "ChaCha20-Poly1305"};
+    static final String SHARED_PREFERENCES_KEY = "ChaCha20VGhpcyBpcyB0aGUga2V5IGZvciBhIHNlY3VyZSBzdG9yYWdlIEFFUyBLZXkK";
+
+    private static volatile Boolean available;
+
+    private final String keyStoragePrefsName;
+    // Some providers refuse to re-initialize a cipher with the key and nonce it was last
+    // initialized with, which is what reading a value just written or read again does
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+    private final NonceGenerator nonces;
+    private final Key secretKey;
+
+    public StorageCipherImplementationChaCha20(Context context, KeyCipher keyCipher, Cipher ignoredCipher, FlutterSecureStorageConfig config) throws Exception {
+        keyStoragePrefsName = config.getEffectiveKeyStoragePrefsName();
+        nonces = NonceGenerator.forKeyStorage(context, keyStoragePrefsName);
+
+        SharedPreferences preferences = context.getSharedPreferences(keyStoragePrefsName, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = preferences.edit();
+
+        String wrappedKey = preferences.getString(SHARED_PREFERENCES_KEY, null);
+
+        encryptCipher = getCipher();
+        decryptCipher = getCipher();
+
+        if (wrappedKey != null) {
+            // Unwrap existing key - may throw BadPaddingException, InvalidKeyException if algorithm changed
+            byte[] encrypted = Base64.decode(wrappedKey, Base64.DEFAULT);
+            secretKey = keyCipher.unwrap(encrypted, KEY_ALGORITHM);
+            return;
+        }
+
+        // No stored key - generate new one (first initialization)
+        secretKey = generateKey();
+
+        byte[] encryptedKey = keyCipher.wrap(secretKey);
+        editor.putString(SHARED_PREFERENCES_KEY, Base64.encodeToString(encryptedKey, Base64.DEFAULT));
+        editor.apply();
+    }
+
+    /**
+     * Creates a cipher using the given key, which is not stored or wrapped.
+     *
+     * @param nonces the nonces of the key, see {@link NonceGenerator}
+     */
+    StorageCipherImplementationChaCha20(String keyStoragePrefsName, Key secretKey, NonceGenerator nonces) throws Exception {
+        this.keyStoragePrefsName = keyStoragePrefsName;
+        this.nonces = nonces;
+        this.secretKey = secretKey;
+        encryptCipher = getCipher();
+        decryptCipher = getCipher();
+    }
+
+    /**
+     * Returns true if a security provider implements ChaCha20-Poly1305. The result is cached.
+     */
+    static boolean isAvailable() {
+        Boolean result = available;
+        if (result == null) {
+            try {
+                getCipher();
+                result = true;
+            } catch (GeneralSecurityException e) {
+                result = false;
+            }
+            available = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns a new random data key, kept in memory only.
+     */
+    static Key generateKey() {
+        byte[] key = new byte[keySize];
+        new SecureRandom().nextBytes(key);
+        return new SecretKeySpec(key, KEY_ALGORITHM);
+    }
+
+    @Override
+    public StorageCipher fork() throws Exception {
+        return new StorageCipherImplementationChaCha20(keyStoragePrefsName, secretKey, nonces);
+    }
+
+    @Override
+    public StorageCipherAlgorithm getAlgorithm() {
+        return StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding;
+    }
+
+    @Override
+    public int getKeyId() {
+        return KEY_ID_WRAPPED;
+    }
+
+    @Override
+    public void deleteKey(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences(keyStoragePrefsName, Context.MODE_PRIVATE);
+        preferences.edit().remove(SHARED_PREFERENCES_KEY).apply();
+    }
+
+    private static Cipher getCipher() throws GeneralSecurityException {
+        GeneralSecurityException failure = null;
+        for (String transformation : TRANSFORMATIONS) {
+            try {
+                return CryptoProviders.getCipher(transformation);
+            } catch (GeneralSecurityException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Returns the provider ciphers are created from, see {@link CryptoProviders}.
+     */
+    static Provider getProvider() throws GeneralSecurityException {
+        return getCipher().getProvider();
+    }
+
+    @Override
+    public byte[] encrypt(byte[] input) throws Exception {
+        byte[] nonce = nonces.next();
+
+        encryptCipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(nonce));
+
+        byte[] combined = new byte[NONCE_SIZE + encryptCipher.getOutputSize(input.length)];
+        System.arraycopy(nonce, 0, combined, 0, NONCE_SIZE);
+        int written = encryptCipher.doFinal(input, 0, input.length, combined, NONCE_SIZE);
+        if (NONCE_SIZE + written == combined.length) {
+            return combined;
+        }
+        byte[] trimmed = new byte[NONCE_SIZE + written];
+        System.arraycopy(combined, 0, trimmed, 0, trimmed.length);
+        return trimmed;
+    }
+
+    @Override
+    public byte[] decrypt(byte[] input) throws Exception {
+        if (input.length < NONCE_SIZE) {
+            throw new Exception("Ciphertext is shorter than its nonce");
+        }
+        IvParameterSpec nonce = new IvParameterSpec(input, 0, NONCE_SIZE);
+        Cipher cipher = decryptCipher;
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, nonce);
+        } catch (InvalidKeyException e) {
+            // The same value was read last; a fresh instance has no previous nonce to compare with
+            cipher = getCipher();
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, nonce);
+        }
+
+        return cipher.doFinal(input, NONCE_SIZE, input.length - NONCE_SIZE);
+    }
+}
@@ -14,19 +14,20 @@ import javax.crypto.Cipher;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-public class StorageCipherImplementationGCM implements StorageCipher {
+public class StorageCipherImplementationGCM implements ForkableStorageCipher, IdentifiedStorageCipher {
     private static final int keySize = 16;
     private static final int AUTHENTICATION_TAG_SIZE = 128;
     private static final String KEY_ALGORITHM = "AES";
-    private static final String SHARED_PREFERENCES_KEY = "AESVGhpcyBpcyB0aGUga2V5IGZvciBhIHNlY3VyZSBzdG9yYWdlIEFFUyBLZXkK";
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    static final String SHARED_PREFERENCES_KEY = "AESVGhpcyBpcyB0aGUga2V5IGZvciBhIHNlY3VyZSBzdG9yYWdlIEFFUyBLZXkK";
     private final String keyStoragePrefsName;
     private final Cipher cipher;
-    private final SecureRandom secureRandom;
+    private final NonceGenerator nonces;
     private final Key secretKey;
 
     public StorageCipherImplementationGCM(Context context, KeyCipher rsaCipher, Cipher ignoredCipher, FlutterSecureStorageConfig config) throws Exception {
         keyStoragePrefsName = config.getEffectiveKeyStoragePrefsName();
-        secureRandom = new SecureRandom();
+        nonces = NonceGenerator.forKeyStorage(context, keyStoragePrefsName);
 
         SharedPreferences preferences = context.getSharedPreferences(keyStoragePrefsName, Context.MODE_PRIVATE);
         SharedPreferences.Editor editor = preferences.edit();
@@ -44,7 +45,7 @@ public class StorageCipherImplementationGCM implements StorageCipher {
 
         // No stored key - generate new one (first initialization)
         byte[] key = new byte[keySize];
-        secureRandom.nextBytes(key);
+        new SecureRandom().nextBytes(key);
         secretKey = new SecretKeySpec(key, KEY_ALGORITHM);
 
         byte[] encryptedKey = rsaCipher.wrap(secretKey);
@@ -52,6 +53,33 @@ public class StorageCipherImplementationGCM implements StorageCipher {
         editor.apply();
     }
 
+    /**
+     * Creates a cipher using the given key, which is not stored or wrapped.
+     *
+     * @param nonces the nonces of the key, see {@link NonceGenerator}
+     */
+    StorageCipherImplementationGCM(String keyStoragePrefsName, Key secretKey, NonceGenerator nonces) throws Exception {
+        this.keyStoragePrefsName = keyStoragePrefsName;
+        this.nonces = nonces;
+        this.secretKey = secretKey;
+        cipher = getCipher();
+    }
+
+    @Override
+    public StorageCipher fork() throws Exception {
+        return new StorageCipherImplementationGCM(keyStoragePrefsName, secretKey, nonces);
+    }
+
+    @Override
+    public StorageCipherAlgorithm getAlgorithm() {
+        return StorageCipherAlgorithm.AES_GCM_NoPadding;
+    }
+
+    @Override
+    public int getKeyId() {
+        return KEY_ID_WRAPPED;
+    }
+
     @Override
     public void deleteKey(Context context) {
         SharedPreferences preferences = context.getSharedPreferences(keyStoragePrefsName, Context.MODE_PRIVATE);
@@ -59,13 +87,12 @@ public class StorageCipherImplementationGCM implements StorageCipher {
     }
 
     protected Cipher getCipher() throws Exception {
-        return Cipher.getInstance("AES/GCM/NoPadding");
+        return CryptoProviders.getCipher(TRANSFORMATION);
     }
 
     @Override
     public byte[] encrypt(byte[] input) throws Exception {
-        byte[] iv = new byte[getIvSize()];
-        secureRandom.nextBytes(iv);
+        byte[] iv = nonces.next();
 
         AlgorithmParameterSpec ivParameterSpec = getParameterSpec(iv);
 
@@ -96,7 +123,7 @@ public class StorageCipherImplementationGCM implements StorageCipher {
     }
 
     protected int getIvSize() {
-        return 12;
+        return NonceGenerator.NONCE_SIZE;
     }
 
     protected AlgorithmParameterSpec getParameterSpec(byte[] iv) {
@@ -0,0 +1,508 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class BackupMigrationTest {
+
+    private static final String KEY_PREFIX = "VGhpcyBpcyB0aGUgcHJlZml4IGZvciBhIHNlY3VyZSBzdG9yYWdlCg";
+    private static final String ALGORITHM_MARKER = "FlutterSecureSAlgorithmStorage";
+    private static final String BACKUP_STATUS_KEY = "FlutterSecureStorageBackupStatus";
+    // Storage-only and key-only algorithm changes differ in whether both ciphers share a key entry
+    private static final String OLD_KEY_ENTRY = "VGhpcyBpcyB0aGUga2V5IGZvciBhIHNlY3VyZSBzdG9yYWdlCg";
+    private static final String NEW_KEY_ENTRY = "AESVGhpcyBpcyB0aGUga2V5IGZvciBhIHNlY3VyZSBzdG9yYWdlCg";
+    private static final int ENTRIES = 7;
+
+    private Context context;
+    private SharedPreferences dataSource;
+    private SharedPreferences keyStorage;
+    private PreferencesSnapshot dataSnapshot;
+    private PreferencesSnapshot keySnapshot;
+    private NamespacedConfigSource configSource;
+    private FlutterSecureStorageConfig config;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        dataSource = context.getSharedPreferences("BackupMigrationData", Context.MODE_PRIVATE);
+        keyStorage = context.getSharedPreferences("BackupMigrationKeys", Context.MODE_PRIVATE);
+        configSource = new NamespacedConfigSource(context, "BackupMigrationData");
+        dataSnapshot = PreferencesSnapshot.of(context, "BackupMigrationData");
+        keySnapshot = PreferencesSnapshot.of(context, "BackupMigrationKeys");
+
+        HashMap<String, Object> options = new HashMap<>();
+        options.put(FlutterSecureStorageConfig.PREF_OPTION_MIGRATE_WITH_BACKUP, "true");
+        options.put(FlutterSecureStorageConfig.PREF_OPTION_MIGRATION_CHUNK_SIZE, "3");
+        config = new FlutterSecureStorageConfig(options);
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    /** Thrown at a crash point. An Error, so no catch (Exception) in the migration swallows it. */
+    private static class SimulatedCrash extends Error {
+        SimulatedCrash(String where) {
+            super("Simulated crash at " + where);
+        }
+    }
+
+    /** Counts crash points and throws at the selected one; -1 never crashes. */
+    private static class CrashPoints {
+        private final int crashAt;
+        int passed = 0;
+
+        CrashPoints(int crashAt) {
+            this.crashAt = crashAt;
+        }
+
+        void reach(String where) {
+            if (passed++ == crashAt) {
+                throw new SimulatedCrash(where + " (#" + crashAt + ")");
+            }
+        }
+    }
+
+    /** Returns a new key stored as "&lt;generation&gt;:&lt;base64 key&gt;". */
+    private static String generateKey(String generation) {
+        byte[] raw = new byte[16];
+        new SecureRandom().nextBytes(raw);
+        return generation + ":" + Base64.encodeToString(raw, Base64.NO_WRAP);
+    }
+
+    private static StorageCipher cipherOf(String wrapped) {
+        return TestStorageCiphers.software(Base64.decode(wrapped.substring(wrapped.indexOf(':') + 1), 0));
+    }
+
+    /**
+     * Behaves like the cipher factory: a cipher can only unwrap keys of its own generation,
+     * and a missing key entry is generated and written with apply().
+     */
+    private class FakeHost implements BackupMigration.Host {
+        private final String savedEntry;
+        private final String currentEntry;
+        private final CrashPoints crash;
+        private final SharedPreferences keys;
+
+        FakeHost(String savedEntry, String currentEntry, CrashPoints crash, SharedPreferences keys) {
+            this.savedEntry = savedEntry;
+            this.currentEntry = currentEntry;
+            this.crash = crash;
+            this.keys = keys;
+        }
+
+        private StorageCipher unwrap(String entry, String generation) throws Exception {
+            String wrapped = keys.getString(entry, null);
+            if (wrapped == null) {
+                wrapped = generateKey(generation);
+                keys.edit().putString(entry, wrapped).apply();
+            }
+            if (!wrapped.startsWith(generation + ":")) {
+                throw new Exception("Cannot unwrap " + wrapped.substring(0, wrapped.indexOf(':')) + " key");
+            }
+            return cipherOf(wrapped);
+        }
+
+        @Override
+        public StorageCipher getSavedStorageCipher() throws Exception {
+            crash.reach("getSavedStorageCipher");
+            return unwrap(savedEntry, "old");
+        }
+
+        @Override
+        public StorageCipher getCurrentStorageCipher() throws Exception {
+            crash.reach("getCurrentStorageCipher");
+            return unwrap(currentEntry, "new");
+        }
+
+        @Override
+        public void migrateEncryptedSharedPreferences(StorageCipher currentCipher) {
+            crash.reach("migrateEncryptedSharedPreferences");
+        }
+
+        @Override
+        public void storeCurrentAlgorithms(SharedPreferences.Editor editor) {
+            editor.putString(ALGORITHM_MARKER, "new");
+        }
+
+        @Override
+        public void deleteSavedKeys(StorageCipher savedCipher) {
+            crash.reach("deleteSavedKeys");
+            if (!savedEntry.equals(currentEntry)) {
+                keys.edit().remove(savedEntry).commit();
+            }
+        }
+    }
+
+    /** SharedPreferences wrapper that passes a crash point before every commit. */
+    private static class CrashingPreferences implements SharedPreferences {
+        private final SharedPreferences delegate;
+        private final CrashPoints crash;
+        private final String name;
+
+        CrashingPreferences(SharedPreferences delegate, CrashPoints crash, String name) {
+            this.delegate = delegate;
+            this.crash = crash;
+            this.name = name;
+        }
+
+        @Override public Map<String, ?> getAll() { return delegate.getAll(); }
+        @Override public String getString(String key, String defValue) { return delegate.getString(key, defValue); }
+        @Override public Set<String> getStringSet(String key, Set<String> defValues) { return delegate.getStringSet(key, defValues); }
+        @Override public int getInt(String key, int defValue) { return delegate.getInt(key, defValue); }
+        @Override public long getLong(String key, long defValue) { return delegate.getLong(key, defValue); }
+        @Override public float getFloat(String key, float defValue) { return delegate.getFloat(key, defValue); }
+        @Override public boolean getBoolean(String key, boolean defValue) { return delegate.getBoolean(key, defValue); }
+        @Override public boolean contains(String key) { return delegate.contains(key); }
+        @Override public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) { delegate.registerOnSharedPreferenceChangeListener(listener); }
+        @Override public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) { delegate.unregisterOnSharedPreferenceChangeListener(listener); }
+
+        @Override
+        public Editor edit() {
+            return new CrashingEditor(delegate.edit(), crash, name);
+        }
+    }
+
+    private static class CrashingEditor implements SharedPreferences.Editor {
+        private final SharedPreferences.Editor delegate;
+        private final CrashPoints crash;
+        private final String name;
+
+        CrashingEditor(SharedPreferences.Editor delegate, CrashPoints crash, String name) {
+            this.delegate = delegate;
+            this.crash = crash;
+            this.name = name;
+        }
+
+        @Override public SharedPreferences.Editor putString(String key, String value) { delegate.putString(key, value); return this; }
+        @Override public SharedPreferences.Editor putStringSet(String key, Set<String> values) { delegate.putStringSet(key, values); return this; }
+        @Override public SharedPreferences.Editor putInt(String key, int value) { delegate.putInt(key, value); return this; }
+        @Override public SharedPreferences.Editor putLong(String key, long value) { delegate.putLong(key, value); return this; }
+        @Override public SharedPreferences.Editor putFloat(String key, float value) { delegate.putFloat(key, value); return this; }
+        @Override public SharedPreferences.Editor putBoolean(String key, boolean value) { delegate.putBoolean(key, value); return this; }
+        @Override public SharedPreferences.Editor remove(String key) { delegate.remove(key); return this; }
+        @Override public SharedPreferences.Editor clear() { delegate.clear(); return this; }
+        @Override public void apply() { delegate.apply(); }
+
+        @Override
+        public boolean commit() {
+            crash.reach(name + " commit");
+            return delegate.commit();
+        }
+    }
+
+    private class CrashingConfigSource extends NamespacedConfigSource {
+        private final CrashPoints crash;
+
+        CrashingConfigSource(CrashPoints crash) {
+            super(context, "BackupMigrationData");
+            this.crash = crash;
+        }
+
+        @Override
+        public SharedPreferences.Editor edit() {
+            return new CrashingEditor(super.edit(), crash, "config");
+        }
+    }
+
+    private static String keyFor(int index) {
+        return String.format("%s_key%02d", KEY_PREFIX, index);
+    }
+
+    private static String valueFor(int index) {
+        return "value" + index;
+    }
+
+    private void populate(String savedEntry) throws Exception {
+        dataSource.edit().clear().commit();
+        keyStorage.edit().clear().commit();
+        configSource.edit().clear().commit();
+        dataSnapshot.delete();
+        keySnapshot.delete();
+
+        String wrapped = generateKey("old");
+        keyStorage.edit().putString(savedEntry, wrapped).commit();
+        StorageCipher saved = cipherOf(wrapped);
+        SharedPreferences.Editor editor = dataSource.edit();
+        for (int i = 0; i < ENTRIES; i++) {
+            byte[] encrypted = saved.encrypt(valueFor(i).getBytes(StandardCharsets.UTF_8));
+            editor.putString(keyFor(i), Base64.encodeToString(encrypted, 0));
+        }
+        editor.commit();
+        configSource.edit().putString(ALGORITHM_MARKER, "old").commit();
+    }
+
+    /**
+     * Starts the storage the way the plugin does: finish an interrupted cleanup, then migrate
+     * if the markers still name the old algorithm.
+     *
+     * @return the cipher to use afterwards
+     */
+    private StorageCipher start(String savedEntry, String currentEntry, CrashPoints crash) throws Exception {
+        SharedPreferences data = new CrashingPreferences(dataSource, crash, "data");
+        SharedPreferences keys = new CrashingPreferences(keyStorage, crash, "keys");
+        NamespacedConfigSource configs = new CrashingConfigSource(crash);
+        FakeHost host = new FakeHost(savedEntry, currentEntry, crash, keys);
+
+        PreferencesSnapshot dataSnapshot = new PreferencesSnapshot(context, "BackupMigrationData", data);
+        PreferencesSnapshot keySnapshot = new PreferencesSnapshot(context, "BackupMigrationKeys", keys);
+
+        BackupMigration.finishInterruptedCleanup(dataSnapshot, keySnapshot, configs, config);
+        if ("new".equals(configs.getString(ALGORITHM_MARKER, null))) {
+            return host.getCurrentStorageCipher();
+        }
+        return new BackupMigration(host, dataSnapshot, keySnapshot, configs, config).run();
+    }
+
+    private void assertMigrated(StorageCipher cipher, String currentEntry) throws Exception {
+        assertTrue(keyStorage.getString(currentEntry, "").startsWith("new:"));
+        assertEquals("new", configSource.getString(ALGORITHM_MARKER, null));
+        assertNull(configSource.getString(BACKUP_STATUS_KEY, null));
+        assertTrue(MigrationBackup.getStashedKeys(keyStorage).isEmpty());
+        assertFalse(MigrationBackup.hasMigrationJournal(dataSource, KEY_PREFIX));
+        assertFalse(dataSnapshot.exists());
+        assertFalse(keySnapshot.exists());
+
+        int stored = 0;
+        for (Map.Entry<String, ?> entry : dataSource.getAll().entrySet()) {
+            assertFalse(entry.getKey(), entry.getKey().endsWith("_BACKUP"));
+            stored++;
+        }
+        assertEquals(ENTRIES, stored);
+        for (String key : keyStorage.getAll().keySet()) {
+            assertFalse(key, key.endsWith("_BACKUP"));
+        }
+
+        StorageCipher fresh = cipherOf(keyStorage.getString(currentEntry, null));
+        for (int i = 0; i < ENTRIES; i++) {
+            byte[] stored64 = Base64.decode(dataSource.getString(keyFor(i), null), 0);
+            assertEquals(valueFor(i), new String(fresh.decrypt(stored64), StandardCharsets.UTF_8));
+            assertEquals(valueFor(i), new String(cipher.decrypt(stored64), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Crashes the migration at every commit and cipher initialization in turn, restarts it
+     * and checks that every value ends up readable with the new key.
+     *
+     * @return number of crash points covered
+     */
+    private int crashAtEveryPoint(String savedEntry, String currentEntry) throws Exception {
+        populate(savedEntry);
+        CrashPoints counter = new CrashPoints(-1);
+        assertMigrated(start(savedEntry, currentEntry, counter), currentEntry);
+        final int points = counter.passed;
+
+        for (int crashAt = 0; crashAt < points; crashAt++) {
+            populate(savedEntry);
+            try {
+                start(savedEntry, currentEntry, new CrashPoints(crashAt));
+                fail("Expected a crash at point " + crashAt);
+            } catch (SimulatedCrash expected) {
+                // Process died
+            }
+
+            try {
+                assertMigrated(start(savedEntry, currentEntry, new CrashPoints(-1)), currentEntry);
+            } catch (AssertionError | Exception e) {
+                throw new AssertionError("Restart after crash at point " + crashAt + " failed: " + e, e);
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Like {@link #crashAtEveryPoint}, but the restarted migration crashes again at every point
+     * of its own run before the third start completes it.
+     */
+    private void crashTwiceAtEveryPoint(String savedEntry, String currentEntry) throws Exception {
+        populate(savedEntry);
+        CrashPoints counter = new CrashPoints(-1);
+        start(savedEntry, currentEntry, counter);
+        final int points = counter.passed;
+
+        for (int first = 0; first < points; first++) {
+            for (int second = 0; ; second++) {
+                populate(savedEntry);
+                try {
+                    start(savedEntry, currentEntry, new CrashPoints(first));
+                    fail("Expected a crash at point " + first);
+                } catch (SimulatedCrash expected) {
+                    // Process died
+                }
+                CrashPoints resumed = new CrashPoints(second);
+                try {
+                    start(savedEntry, currentEntry, resumed);
+                } catch (SimulatedCrash expected) {
+                    // Process died again
+                }
+
+                try {
+                    assertMigrated(start(savedEntry, currentEntry, new CrashPoints(-1)), currentEntry);
+                } catch (AssertionError | Exception e) {
+                    throw new AssertionError("Restart after crashes at points " + first + " and " + second
+                            + " failed: " + e, e);
+                }
+                if (resumed.passed <= second) {
+                    // The resumed run completed before reaching the second crash point
+                    break;
+                }
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // run
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void run_storageAlgorithmChanged_migratesAllValues() throws Exception {
+        populate(OLD_KEY_ENTRY);
+
+        StorageCipher current = start(OLD_KEY_ENTRY, NEW_KEY_ENTRY, new CrashPoints(-1));
+
+        assertMigrated(current, NEW_KEY_ENTRY);
+        assertFalse(keyStorage.contains(OLD_KEY_ENTRY));
+    }
+
+    @Test
+    public void run_keyAlgorithmChanged_migratesAllValues() throws Exception {
+        populate(NEW_KEY_ENTRY);
+
+        StorageCipher current = start(NEW_KEY_ENTRY, NEW_KEY_ENTRY, new CrashPoints(-1));
+
+        assertMigrated(current, NEW_KEY_ENTRY);
+    }
+
+    @Test
+    public void run_emptyStorage_updatesMarkers() throws Exception {
+        populate(OLD_KEY_ENTRY);
+        dataSource.edit().clear().commit();
+
+        new BackupMigration(new FakeHost(OLD_KEY_ENTRY, NEW_KEY_ENTRY, new CrashPoints(-1), keyStorage),
+                dataSnapshot, keySnapshot, configSource, config).run();
+
+        assertEquals("new", configSource.getString(ALGORITHM_MARKER, null));
+        assertNull(configSource.getString(BACKUP_STATUS_KEY, null));
+    }
+
+    @Test
+    public void run_legacyInFileBackup_migratesFromIt() throws Exception {
+        populate(OLD_KEY_ENTRY);
+        // An earlier version copied everything to <key>_BACKUP and deleted the originals before
+        // the process died
+        SharedPreferences.Editor data = dataSource.edit();
+        for (Map.Entry<String, ?> entry : dataSource.getAll().entrySet()) {
+            data.putString(entry.getKey() + "_BACKUP", (String) entry.getValue()).remove(entry.getKey());
+        }
+        data.commit();
+        String wrapped = keyStorage.getString(OLD_KEY_ENTRY, null);
+        keyStorage.edit().putString(OLD_KEY_ENTRY + "_BACKUP", wrapped).remove(OLD_KEY_ENTRY).commit();
+        configSource.edit().putString(BACKUP_STATUS_KEY, MigrationBackup.STATUS_COMPLETE).commit();
+
+        StorageCipher current = start(OLD_KEY_ENTRY, NEW_KEY_ENTRY, new CrashPoints(-1));
+
+        assertMigrated(current, NEW_KEY_ENTRY);
+    }
+
+    @Test
+    public void run_restoresKeyStorageFromSnapshot() throws Exception {
+        populate(NEW_KEY_ENTRY);
+        // A previous run died after deleting the original key, before anything was re-encrypted
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, config, KEY_PREFIX);
+        keyStorage.edit().clear().commit();
+
+        StorageCipher current = start(NEW_KEY_ENTRY, NEW_KEY_ENTRY, new CrashPoints(-1));
+
+        assertMigrated(current, NEW_KEY_ENTRY);
+    }
+
+    // -------------------------------------------------------------------------
+    // Crash at every step
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void crashAtEveryStep_storageAlgorithmChanged_resumesWithoutDataLoss() throws Exception {
+        int points = crashAtEveryPoint(OLD_KEY_ENTRY, NEW_KEY_ENTRY);
+
+        // Backup status and flushes, saved cipher, key delete, current cipher, stash, journal chunks, ESP,
+        // markers, cleanup
+        assertTrue("only " + points + " crash points", points >= 14);
+    }
+
+    @Test
+    public void crashAtEveryStep_keyAlgorithmChanged_resumesWithoutDataLoss() throws Exception {
+        // Both ciphers use the same key entry, so the old and new wrapped key replace each other
+        int points = crashAtEveryPoint(NEW_KEY_ENTRY, NEW_KEY_ENTRY);
+
+        assertTrue("only " + points + " crash points", points >= 14);
+    }
+
+    @Test
+    public void crashTwiceAtEveryStep_keyAlgorithmChanged_resumesWithoutDataLoss() throws Exception {
+        // A crash while the saved cipher is initialized from the restored backup key of a
+        // resumed run is only survivable because the new key was stashed
+        crashTwiceAtEveryPoint(NEW_KEY_ENTRY, NEW_KEY_ENTRY);
+    }
+
+    @Test
+    public void crashTwiceAtEveryStep_storageAlgorithmChanged_resumesWithoutDataLoss() throws Exception {
+        crashTwiceAtEveryPoint(OLD_KEY_ENTRY, NEW_KEY_ENTRY);
+    }
+
+    @Test
+    public void crashAfterCommitPoint_nextStartOnlyCleansUp() throws Exception {
+        populate(OLD_KEY_ENTRY);
+        CrashPoints crash = new CrashPoints(-1) {
+            @Override
+            void reach(String where) {
+                if (where.equals("deleteSavedKeys")) {
+                    throw new SimulatedCrash(where);
+                }
+            }
+        };
+        try {
+            start(OLD_KEY_ENTRY, NEW_KEY_ENTRY, crash);
+            fail("Expected a crash");
+        } catch (SimulatedCrash expected) {
+            // Process died
+        }
+        // Backups are already gone at this point; force the state of a crash right after the commit point
+        configSource.edit().putString(BACKUP_STATUS_KEY, MigrationBackup.STATUS_MIGRATED).commit();
+        dataSnapshot.create();
+        keySnapshot.create();
+        MigrationBackup.stashCurrentKeys(keyStorage);
+
+        assertTrue(BackupMigration.finishInterruptedCleanup(dataSnapshot, keySnapshot, configSource, config));
+
+        assertFalse(dataSnapshot.exists());
+        assertFalse(keySnapshot.exists());
+        assertTrue(MigrationBackup.getStashedKeys(keyStorage).isEmpty());
+        assertNull(configSource.getString(BACKUP_STATUS_KEY, null));
+        assertFalse(BackupMigration.finishInterruptedCleanup(dataSnapshot, keySnapshot, configSource, config));
+    }
+}
@@ -0,0 +1,155 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.hardware.biometrics.BiometricPrompt;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class BiometricAuthenticationsTest {
+
+    private static final String CALLBACK_THREAD = "com.it_nomads.fluttersecurestorage.biometric";
+
+    /** Counts the outcomes reported to it. */
+    private static class CountingCallback implements SecurePreferencesCallback<BiometricPrompt.AuthenticationResult> {
+        final AtomicInteger successes = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onSuccess(BiometricPrompt.AuthenticationResult result) {
+            successes.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            errors.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    private static int callbackThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && CALLBACK_THREAD.equals(thread.getName())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int awaitCallbackThreadsAtMost(int expected) throws InterruptedException {
+        // Shut down threads exit asynchronously
+        long deadline = System.currentTimeMillis() + 5_000;
+        int count = callbackThreads();
+        while (count > expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            count = callbackThreads();
+        }
+        return count;
+    }
+
+    // -------------------------------------------------------------------------
+    // Callbacks
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void succeed_notifiesOnceOnCallbackExecutor() throws Exception {
+        BiometricAuthentications authentications = new BiometricAuthentications();
+        CountingCallback callback = new CountingCallback();
+        BiometricAuthentications.Authentication authentication = authentications.start(callback);
+        AtomicInteger onCallbackThread = new AtomicInteger();
+
+        authentications.getExecutor().execute(() -> {
+            if (CALLBACK_THREAD.equals(Thread.currentThread().getName())) {
+                onCallbackThread.incrementAndGet();
+            }
+            authentication.succeed(new BiometricPrompt.AuthenticationResult());
+            authentication.fail(new Exception("late"));
+        });
+
+        assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, onCallbackThread.get());
+        assertEquals(1, callback.successes.get());
+        assertEquals(0, callback.errors.get());
+        assertEquals(0, authentications.inFlightCount());
+        authentications.close();
+    }
+
+    @Test
+    public void close_failsPromptsInFlight() throws Exception {
+        BiometricAuthentications authentications = new BiometricAuthentications();
+        CountingCallback first = new CountingCallback();
+        CountingCallback second = new CountingCallback();
+        BiometricAuthentications.Authentication pending = authentications.start(first);
+        authentications.start(second);
+
+        authentications.close();
+        // The prompt reporting after all is ignored
+        pending.succeed(new BiometricPrompt.AuthenticationResult());
+
+        assertEquals(1, first.errors.get());
+        assertEquals(0, first.successes.get());
+        assertEquals(1, second.errors.get());
+        assertEquals(0, authentications.inFlightCount());
+    }
+
+    @Test
+    public void start_afterClose_throws() {
+        BiometricAuthentications authentications = new BiometricAuthentications();
+        authentications.close();
+
+        assertThrows(Exception.class, () -> authentications.start(new CountingCallback()));
+        // Late callbacks of cancelled prompts are dropped instead of thrown at the prompt
+        authentications.getExecutor().execute(() -> { });
+    }
+
+    // -------------------------------------------------------------------------
+    // Threads
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void initCycles_noThreadGrowth() throws Exception {
+        int before = awaitCallbackThreadsAtMost(0);
+
+        for (int i = 0; i < 1_000; i++) {
+            // What the plugin does per engine: attach, authenticate, detach
+            BiometricAuthentications authentications = new BiometricAuthentications();
+            CountingCallback callback = new CountingCallback();
+            BiometricAuthentications.Authentication authentication = authentications.start(callback);
+            authentications.getExecutor().execute(() -> authentication.succeed(new BiometricPrompt.AuthenticationResult()));
+            assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+            authentications.close();
+        }
+
+        assertEquals(before, awaitCallbackThreadsAtMost(before));
+    }
+
+    @Test
+    public void authenticationsOfOneEngine_shareOneThread() throws Exception {
+        BiometricAuthentications authentications = new BiometricAuthentications();
+        int before = callbackThreads();
+
+        for (int i = 0; i < 1_000; i++) {
+            CountingCallback callback = new CountingCallback();
+            BiometricAuthentications.Authentication authentication = authentications.start(callback);
+            authentications.getExecutor().execute(() -> authentication.succeed(new BiometricPrompt.AuthenticationResult()));
+            assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+        }
+
+        assertTrue(callbackThreads() <= before + 1);
+        authentications.close();
+    }
+}
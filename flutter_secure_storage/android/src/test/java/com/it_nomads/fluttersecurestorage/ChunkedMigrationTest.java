@@ -0,0 +1,424 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import com.it_nomads.fluttersecurestorage.ciphers.ForkableStorageCipher;
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class ChunkedMigrationTest {
+
+    private static final String PREFIX = "VGhpcyBpcyB0aGUgcHJlZml4IGZvciBhIHNlY3VyZSBzdG9yYWdlCg";
+
+    private SharedPreferences dataSource;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.getApplication();
+        dataSource = context.getSharedPreferences("ChunkedMigrationTest", Context.MODE_PRIVATE);
+        dataSource.edit().clear().commit();
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    /** Software cipher whose forks share its key, recording which threads used a fork. */
+    private static class ForkableSoftwareCipher extends TestStorageCiphers.SoftwareCipher implements ForkableStorageCipher {
+        final Set<String> forkThreads = Collections.synchronizedSet(new HashSet<>());
+        int forks = 0;
+        int decryptCalls = 0;
+
+        ForkableSoftwareCipher() {
+            super();
+        }
+
+        private ForkableSoftwareCipher(ForkableSoftwareCipher source) {
+            super(source);
+        }
+
+        @Override
+        public StorageCipher fork() {
+            forks++;
+            final ForkableSoftwareCipher parent = this;
+            return new ForkableSoftwareCipher(this) {
+                @Override
+                public byte[] encrypt(byte[] input) throws Exception {
+                    parent.forkThreads.add(Thread.currentThread().getName());
+                    return super.encrypt(input);
+                }
+
+                @Override
+                public byte[] decrypt(byte[] input) throws Exception {
+                    parent.forkThreads.add(Thread.currentThread().getName());
+                    return super.decrypt(input);
+                }
+            };
+        }
+
+        @Override
+        public byte[] decrypt(byte[] input) throws Exception {
+            decryptCalls++;
+            return super.decrypt(input);
+        }
+    }
+
+    private static String valueFor(int index) {
+        return String.format("value-%08d-padding-to-make-it-longer", index);
+    }
+
+    private static String keyFor(int index) {
+        return PREFIX + "_" + String.format("%08d", index);
+    }
+
+    private void populate(StorageCipher cipher, int count) throws Exception {
+        SharedPreferences.Editor editor = dataSource.edit();
+        for (int i = 0; i < count; i++) {
+            byte[] encrypted = cipher.encrypt(valueFor(i).getBytes(StandardCharsets.UTF_8));
+            editor.putString(keyFor(i), Base64.encodeToString(encrypted, 0));
+        }
+        editor.commit();
+    }
+
+    private String decryptWith(StorageCipher cipher, String key) throws Exception {
+        byte[] plaintext = cipher.decrypt(Base64.decode(dataSource.getString(key, null), 0));
+        return new String(plaintext, StandardCharsets.UTF_8);
+    }
+
+    // -------------------------------------------------------------------------
+    // collectKeys
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void collectKeys_onlyPrefixedStringEntries_sorted() {
+        dataSource.edit()
+                .putString(PREFIX + "_b", "x")
+                .putString(PREFIX + "_a", "x")
+                .putString("unrelated", "x")
+                .putBoolean(PREFIX + "_flag", true)
+                .commit();
+
+        List<String> keys = ChunkedMigration.collectKeys(dataSource, PREFIX);
+
+        assertEquals(Arrays.asList(PREFIX + "_a", PREFIX + "_b"), keys);
+    }
+
+    // -------------------------------------------------------------------------
+    // verifyDecryptable
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void verifyDecryptable_allValid_writesNothing() throws Exception {
+        StorageCipher saved = TestStorageCiphers.software();
+        populate(saved, 10);
+        String before = dataSource.getString(keyFor(3), null);
+
+        ChunkedMigration.Result result = ChunkedMigration.verifyDecryptable(
+                dataSource, ChunkedMigration.collectKeys(dataSource, PREFIX), saved, 4);
+
+        assertEquals(10, result.getEntries());
+        assertEquals(3, result.getChunks());
+        assertEquals(before, dataSource.getString(keyFor(3), null));
+    }
+
+    @Test
+    public void verifyDecryptable_corruptEntry_namesKey() throws Exception {
+        StorageCipher saved = TestStorageCiphers.software();
+        populate(saved, 5);
+        dataSource.edit().putString(keyFor(2), Base64.encodeToString(new byte[40], 0)).commit();
+
+        try {
+            ChunkedMigration.verifyDecryptable(dataSource, ChunkedMigration.collectKeys(dataSource, PREFIX), saved, 2);
+            fail("Expected verification to fail");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains(keyFor(2)));
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // reEncrypt
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void reEncrypt_stagesValuesReadableWithCurrentCipher() throws Exception {
+        StorageCipher saved = TestStorageCiphers.software();
+        StorageCipher current = TestStorageCiphers.software();
+        populate(saved, 25);
+
+        SharedPreferences.Editor editor = dataSource.edit();
+        ChunkedMigration.Result result = ChunkedMigration.reEncrypt(
+                dataSource, ChunkedMigration.collectKeys(dataSource, PREFIX), saved, current, editor, 7);
+
+        // Nothing is written until the caller commits
+        assertEquals(valueFor(0), decryptWith(saved, keyFor(0)));
+
+        assertTrue(editor.commit());
+        assertEquals(25, result.getEntries());
+        assertEquals(4, result.getChunks());
+        for (int i = 0; i < 25; i++) {
+            assertEquals(valueFor(i), decryptWith(current, keyFor(i)));
+        }
+    }
+
+    @Test
+    public void reEncrypt_encryptFailure_namesKeyAndStagesNothingFurther() throws Exception {
+        StorageCipher saved = TestStorageCiphers.software();
+        populate(saved, 6);
+        final List<String> encrypted = new ArrayList<>();
+        StorageCipher failing = new TestStorageCiphers.SoftwareCipher() {
+            @Override
+            public byte[] encrypt(byte[] input) throws Exception {
+                if (encrypted.size() == 3) {
+                    throw new Exception("keystore unavailable");
+                }
+                encrypted.add(new String(input, StandardCharsets.UTF_8));
+                return super.encrypt(input);
+            }
+        };
+
+        try {
+            ChunkedMigration.reEncrypt(dataSource, ChunkedMigration.collectKeys(dataSource, PREFIX),
+                    saved, failing, dataSource.edit(), 2);
+            fail("Expected re-encryption to fail");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains(keyFor(3)));
+        }
+        assertEquals(3, encrypted.size());
+        assertEquals(valueFor(3), decryptWith(saved, keyFor(3)));
+    }
+
+    @Test
+    public void reEncrypt_wipesPlaintextAfterEachChunk() throws Exception {
+        final List<byte[]> handedOut = new ArrayList<>();
+        StorageCipher saved = new TestStorageCiphers.SoftwareCipher() {
+            @Override
+            public byte[] decrypt(byte[] input) throws Exception {
+                byte[] plaintext = super.decrypt(input);
+                handedOut.add(plaintext);
+                return plaintext;
+            }
+        };
+        populate(saved, 5);
+
+        ChunkedMigration.reEncrypt(dataSource, ChunkedMigration.collectKeys(dataSource, PREFIX),
+                saved, TestStorageCiphers.software(), dataSource.edit(), 2);
+
+        assertEquals(5, handedOut.size());
+        for (byte[] plaintext : handedOut) {
+            assertArrayEquals(new byte[plaintext.length], plaintext);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Parallel re-encryption
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void workerCount_fallsBackToOneThread() {
+        ForkableSoftwareCipher forkable = new ForkableSoftwareCipher();
+        int large = ChunkedMigration.PARALLEL_MIN_ENTRIES * 4;
+
+        assertEquals(4, ChunkedMigration.workerCount(large, 64, 4, forkable, new ForkableSoftwareCipher()));
+        // Small store
+        assertEquals(1, ChunkedMigration.workerCount(ChunkedMigration.PARALLEL_MIN_ENTRIES - 1, 64, 4, forkable, forkable));
+        // Parallel migration disabled
+        assertEquals(1, ChunkedMigration.workerCount(large, 64, 1, forkable, forkable));
+        // A cipher bound to a hardware key cannot be forked
+        assertEquals(1, ChunkedMigration.workerCount(large, 64, 4, forkable, TestStorageCiphers.software()));
+        assertEquals(1, ChunkedMigration.workerCount(large, 64, 4, TestStorageCiphers.software(), forkable));
+        // Never more workers than chunks
+        assertEquals(2, ChunkedMigration.workerCount(large, large / 2, 4, forkable, forkable));
+    }
+
+    @Test
+    public void reEncrypt_parallel_stagesEveryValueInOneEditor() throws Exception {
+        final int entries = ChunkedMigration.PARALLEL_MIN_ENTRIES * 2;
+        ForkableSoftwareCipher saved = new ForkableSoftwareCipher();
+        ForkableSoftwareCipher current = new ForkableSoftwareCipher();
+        populate(saved, entries);
+
+        SharedPreferences.Editor editor = dataSource.edit();
+        ChunkedMigration.Result result = ChunkedMigration.reEncrypt(
+                dataSource, ChunkedMigration.collectKeys(dataSource, PREFIX), saved, current, editor, 100, 4);
+
+        // All work happened on forks, none on the shared instance
+        assertEquals(0, saved.decryptCalls);
+        // Nothing is written until the caller commits
+        assertEquals(valueFor(0), decryptWith(saved, keyFor(0)));
+        assertTrue(editor.commit());
+
+        assertEquals(entries, result.getEntries());
+        assertEquals(4, saved.forks);
+        assertEquals(4, current.forks);
+        assertFalse(saved.forkThreads.contains(Thread.currentThread().getName()));
+        for (int i = 0; i < entries; i++) {
+            assertEquals(valueFor(i), decryptWith(current, keyFor(i)));
+        }
+    }
+
+    @Test
+    public void reEncrypt_parallel_failureNamesFirstBadKey() throws Exception {
+        final int entries = ChunkedMigration.PARALLEL_MIN_ENTRIES * 2;
+        ForkableSoftwareCipher saved = new ForkableSoftwareCipher();
+        populate(saved, entries);
+        // One corrupt entry in the second and one in the last range
+        dataSource.edit()
+                .putString(keyFor(entries / 2 + 1), Base64.encodeToString(new byte[40], 0))
+                .putString(keyFor(entries - 1), Base64.encodeToString(new byte[40], 0))
+                .commit();
+
+        try {
+            ChunkedMigration.reEncrypt(dataSource, ChunkedMigration.collectKeys(dataSource, PREFIX),
+                    saved, new ForkableSoftwareCipher(), dataSource.edit(), 64, 4);
+            fail("Expected re-encryption to fail");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(keyFor(entries / 2 + 1)));
+        }
+        assertEquals(valueFor(0), decryptWith(saved, keyFor(0)));
+    }
+
+    @Test
+    public void verifyDecryptable_parallel_detectsCorruptEntry() throws Exception {
+        final int entries = ChunkedMigration.PARALLEL_MIN_ENTRIES * 2;
+        ForkableSoftwareCipher saved = new ForkableSoftwareCipher();
+        populate(saved, entries);
+        dataSource.edit().putString(keyFor(entries - 2), Base64.encodeToString(new byte[40], 0)).commit();
+
+        try {
+            ChunkedMigration.verifyDecryptable(dataSource, ChunkedMigration.collectKeys(dataSource, PREFIX), saved, 64, 4);
+            fail("Expected verification to fail");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains(keyFor(entries - 2)));
+        }
+        assertEquals(4, saved.forks);
+    }
+
+    @Test
+    public void reEncrypt_parallel_matchesSequential() throws Exception {
+        final int entries = ChunkedMigration.PARALLEL_MIN_ENTRIES * 4;
+        final int workers = 4;
+        ForkableSoftwareCipher saved = new ForkableSoftwareCipher();
+        ForkableSoftwareCipher current = new ForkableSoftwareCipher();
+        populate(saved, entries);
+        List<String> keys = ChunkedMigration.collectKeys(dataSource, PREFIX);
+
+        ChunkedMigration.Result sequential = ChunkedMigration.reEncrypt(
+                dataSource, keys, saved, current, dataSource.edit(), 256, 1);
+        ChunkedMigration.Result parallel = ChunkedMigration.reEncrypt(
+                dataSource, keys, saved, current, dataSource.edit(), 256, workers);
+
+        assertEquals(sequential.getEntries(), parallel.getEntries());
+        assertEquals(sequential.getPlaintextBytes(), parallel.getPlaintextBytes());
+        // Every worker holds at most one chunk of plaintext
+        assertTrue(parallel.getPeakPlaintextBytes() <= workers * sequential.getPeakPlaintextBytes());
+    }
+
+    // -------------------------------------------------------------------------
+    // Progress
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void reEncrypt_reportsEveryEntryOfThePhase() throws Exception {
+        StorageCipher saved = TestStorageCiphers.software();
+        populate(saved, 25);
+        List<Map<String, Object>> events = new ArrayList<>();
+
+        ChunkedMigration.reEncrypt(dataSource, ChunkedMigration.collectKeys(dataSource, PREFIX), saved,
+                TestStorageCiphers.software(), dataSource.edit(), 7, 1, new MigrationProgress("test", events::add, 0));
+
+        // Phase start and one event per chunk
+        assertEquals(5, events.size());
+        Map<String, Object> last = events.get(events.size() - 1);
+        assertEquals(MigrationProgress.PHASE_ENCRYPT, last.get("phase"));
+        assertEquals(25, last.get("processed"));
+        assertEquals(25, last.get("total"));
+        assertEquals((long) 25 * valueFor(0).length(), last.get("bytes"));
+    }
+
+    @Test
+    public void verifyDecryptable_parallel_reportsEveryEntryOfThePhase() throws Exception {
+        final int entries = ChunkedMigration.PARALLEL_MIN_ENTRIES * 2;
+        ForkableSoftwareCipher saved = new ForkableSoftwareCipher();
+        populate(saved, entries);
+        List<Map<String, Object>> events = Collections.synchronizedList(new ArrayList<>());
+
+        ChunkedMigration.verifyDecryptable(dataSource, ChunkedMigration.collectKeys(dataSource, PREFIX), saved,
+                64, 4, new MigrationProgress("test", events::add, 60_000));
+
+        // Throttled to the phase start and its completion
+        assertEquals(2, events.size());
+        assertEquals(MigrationProgress.PHASE_VERIFY, events.get(1).get("phase"));
+        assertEquals(entries, events.get(1).get("processed"));
+    }
+
+    @Test
+    public void reEncrypt_throttledProgress_atMostOneEventPerChunk() throws Exception {
+        final int entries = 2_000;
+        StorageCipher saved = TestStorageCiphers.software();
+        populate(saved, entries);
+        final int[] emitted = {0};
+
+        ChunkedMigration.Result reported = ChunkedMigration.reEncrypt(
+                dataSource, ChunkedMigration.collectKeys(dataSource, PREFIX), saved, TestStorageCiphers.software(),
+                dataSource.edit(), 64, 1,
+                new MigrationProgress("test", event -> emitted[0]++, MigrationProgress.DEFAULT_INTERVAL_MILLIS));
+
+        assertEquals(entries, reported.getEntries());
+        // Never more than one event per chunk, plus the phase start
+        assertTrue(emitted[0] <= reported.getChunks() + 1);
+    }
+
+    // -------------------------------------------------------------------------
+    // Memory
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void reEncrypt_peakPlaintextBoundedByChunkSize() throws Exception {
+        final int entries = 10_000;
+        final int chunkSize = 64;
+        final int valueLength = valueFor(0).length();
+        StorageCipher saved = TestStorageCiphers.software();
+        StorageCipher current = TestStorageCiphers.software();
+        populate(saved, entries);
+
+        SharedPreferences.Editor editor = dataSource.edit();
+        ChunkedMigration.Result result = ChunkedMigration.reEncrypt(
+                dataSource, ChunkedMigration.collectKeys(dataSource, PREFIX), saved, current, editor, chunkSize);
+        assertTrue(editor.commit());
+
+        // Never more than one chunk of plaintext is held at once
+        assertEquals(entries, result.getEntries());
+        assertEquals((entries + chunkSize - 1) / chunkSize, result.getChunks());
+        assertEquals((long) entries * valueLength, result.getPlaintextBytes());
+        assertEquals((long) chunkSize * valueLength, result.getPeakPlaintextBytes());
+        assertFalse(result.getPeakPlaintextBytes() * 100 > result.getPlaintextBytes());
+
+        assertEquals(valueFor(0), decryptWith(current, keyFor(0)));
+        assertEquals(valueFor(entries - 1), decryptWith(current, keyFor(entries - 1)));
+    }
+}
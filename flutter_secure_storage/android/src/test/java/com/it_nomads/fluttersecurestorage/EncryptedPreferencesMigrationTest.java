@@ -0,0 +1,258 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class EncryptedPreferencesMigrationTest {
+
+    private static final String KEY_PREFIX = "TestPrefix";
+
+    private Context context;
+    private CountingPreferences source;
+    private CountingPreferences target;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        source = counting("EspSource");
+        target = counting("EspTarget");
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    private CountingPreferences counting(String name) {
+        SharedPreferences prefs = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+        prefs.edit().clear().commit();
+        return new CountingPreferences(prefs);
+    }
+
+    /** Reversible stand-in for a storage cipher: flips every byte. */
+    private static class FlipCipher implements StorageCipher {
+        @Override
+        public byte[] encrypt(byte[] input) {
+            byte[] output = new byte[input.length];
+            for (int i = 0; i < input.length; i++) {
+                output[i] = (byte) ~input[i];
+            }
+            return output;
+        }
+
+        @Override
+        public byte[] decrypt(byte[] input) {
+            return encrypt(input);
+        }
+
+        @Override
+        public void deleteKey(Context context) {
+        }
+    }
+
+    /** SharedPreferences wrapper that counts how often its editors are written. */
+    private static class CountingPreferences implements SharedPreferences {
+        final SharedPreferences delegate;
+        int writes = 0;
+        boolean failCommits = false;
+
+        CountingPreferences(SharedPreferences delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override public Map<String, ?> getAll() { return delegate.getAll(); }
+        @Override public String getString(String key, String defValue) { return delegate.getString(key, defValue); }
+        @Override public Set<String> getStringSet(String key, Set<String> defValues) { return delegate.getStringSet(key, defValues); }
+        @Override public int getInt(String key, int defValue) { return delegate.getInt(key, defValue); }
+        @Override public long getLong(String key, long defValue) { return delegate.getLong(key, defValue); }
+        @Override public float getFloat(String key, float defValue) { return delegate.getFloat(key, defValue); }
+        @Override public boolean getBoolean(String key, boolean defValue) { return delegate.getBoolean(key, defValue); }
+        @Override public boolean contains(String key) { return delegate.contains(key); }
+        @Override public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) { delegate.registerOnSharedPreferenceChangeListener(listener); }
+        @Override public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) { delegate.unregisterOnSharedPreferenceChangeListener(listener); }
+
+        @Override
+        public Editor edit() {
+            final Editor editor = delegate.edit();
+            return new Editor() {
+                @Override public Editor putString(String key, String value) { editor.putString(key, value); return this; }
+                @Override public Editor putStringSet(String key, Set<String> values) { editor.putStringSet(key, values); return this; }
+                @Override public Editor putInt(String key, int value) { editor.putInt(key, value); return this; }
+                @Override public Editor putLong(String key, long value) { editor.putLong(key, value); return this; }
+                @Override public Editor putFloat(String key, float value) { editor.putFloat(key, value); return this; }
+                @Override public Editor putBoolean(String key, boolean value) { editor.putBoolean(key, value); return this; }
+                @Override public Editor remove(String key) { editor.remove(key); return this; }
+                @Override public Editor clear() { editor.clear(); return this; }
+
+                @Override
+                public boolean commit() {
+                    writes++;
+                    return !failCommits && editor.commit();
+                }
+
+                @Override
+                public void apply() {
+                    writes++;
+                    editor.apply();
+                }
+            };
+        }
+    }
+
+    private void populateSource(int count) {
+        SharedPreferences.Editor editor = source.delegate.edit();
+        for (int i = 0; i < count; i++) {
+            editor.putString(KEY_PREFIX + "_key" + i, "value" + i);
+        }
+        editor.commit();
+    }
+
+    private String decryptTarget(String key) {
+        String stored = target.getString(key, null);
+        byte[] plaintext = new FlipCipher().decrypt(Base64.decode(stored, 0));
+        return new String(plaintext, StandardCharsets.UTF_8);
+    }
+
+    // -------------------------------------------------------------------------
+    // migrate
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void migrate_movesPrefixedEntriesEncrypted() throws Exception {
+        populateSource(3);
+        source.delegate.edit().putString("other_key", "untouched").putBoolean(KEY_PREFIX + "_flag", true).commit();
+
+        int migrated = EncryptedPreferencesMigration.migrate(source, target, new FlipCipher(), KEY_PREFIX);
+
+        assertEquals(3, migrated);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("value" + i, decryptTarget(KEY_PREFIX + "_key" + i));
+            assertFalse(source.contains(KEY_PREFIX + "_key" + i));
+        }
+        assertEquals("untouched", source.getString("other_key", null));
+        assertTrue(source.contains(KEY_PREFIX + "_flag"));
+        assertFalse(target.contains("other_key"));
+    }
+
+    @Test
+    public void migrate_usesOneCommitPerSide() throws Exception {
+        populateSource(50);
+
+        EncryptedPreferencesMigration.migrate(source, target, new FlipCipher(), KEY_PREFIX);
+
+        assertEquals(1, target.writes);
+        assertEquals(1, source.writes);
+    }
+
+    @Test
+    public void migrate_reportsProgressOfEveryEntry() throws Exception {
+        populateSource(3);
+        source.delegate.edit().putString("other_key", "untouched").commit();
+        List<Map<String, Object>> events = new ArrayList<>();
+
+        EncryptedPreferencesMigration.migrate(source, target, new FlipCipher(), KEY_PREFIX,
+                new MigrationProgress("test", events::add, 0));
+
+        assertEquals(MigrationProgress.PHASE_ENCRYPTED_SHARED_PREFERENCES, events.get(0).get("phase"));
+        Map<String, Object> last = events.get(events.size() - 1);
+        assertEquals(4, last.get("total"));
+        assertEquals(4, last.get("processed"));
+        assertEquals((long) "value0value1value2".length(), last.get("bytes"));
+    }
+
+    @Test
+    public void migrate_nothingToMigrate_writesNothing() throws Exception {
+        source.delegate.edit().putString("other_key", "value").commit();
+
+        assertEquals(0, EncryptedPreferencesMigration.migrate(source, target, new FlipCipher(), KEY_PREFIX));
+        assertEquals(0, target.writes);
+        assertEquals(0, source.writes);
+    }
+
+    @Test
+    public void migrate_encryptionFailure_leavesBothSidesUntouched() {
+        populateSource(5);
+        StorageCipher failing = new FlipCipher() {
+            @Override
+            public byte[] encrypt(byte[] input) {
+                throw new IllegalStateException("keystore unavailable");
+            }
+        };
+
+        try {
+            EncryptedPreferencesMigration.migrate(source, target, failing, KEY_PREFIX);
+            fail("Expected migration to fail");
+        } catch (Exception expected) {
+            // Expected
+        }
+
+        assertEquals(0, target.writes);
+        assertEquals(0, source.writes);
+        assertEquals(5, source.getAll().size());
+        assertTrue(target.getAll().isEmpty());
+    }
+
+    @Test
+    public void migrate_targetCommitFails_keepsSource() {
+        populateSource(5);
+        target.failCommits = true;
+
+        try {
+            EncryptedPreferencesMigration.migrate(source, target, new FlipCipher(), KEY_PREFIX);
+            fail("Expected migration to fail");
+        } catch (Exception expected) {
+            // Expected
+        }
+
+        assertEquals(0, source.writes);
+        assertEquals("value0", source.getString(KEY_PREFIX + "_key0", null));
+    }
+
+    @Test
+    public void migrate_sourceCommitFails_stillReportsMigrated() throws Exception {
+        populateSource(5);
+        source.failCommits = true;
+
+        assertEquals(5, EncryptedPreferencesMigration.migrate(source, target, new FlipCipher(), KEY_PREFIX));
+        assertEquals("value4", decryptTarget(KEY_PREFIX + "_key4"));
+    }
+
+    @Test
+    public void migrate_rerunAfterCrashBeforeSourceRemoval_isIdempotent() throws Exception {
+        populateSource(5);
+        // First run is interrupted after the target checkpoint: removing from source fails
+        source.failCommits = true;
+        EncryptedPreferencesMigration.migrate(source, target, new FlipCipher(), KEY_PREFIX);
+        source.failCommits = false;
+
+        int migrated = EncryptedPreferencesMigration.migrate(source, target, new FlipCipher(), KEY_PREFIX);
+
+        assertEquals(5, migrated);
+        assertEquals(5, target.getAll().size());
+        assertEquals("value2", decryptTarget(KEY_PREFIX + "_key2"));
+        assertNull(source.getString(KEY_PREFIX + "_key2", null));
+    }
+}
@@ -35,4 +35,28 @@ public class FlutterSecureStorageConfigAndroidTest {
         assertTrue(config.hasStorageNamespace());
         assertEquals("CustomPrefs", config.getSharedPreferencesName());
     }
+
+    @Test
+    public void invalidMigrationChunkSize_fallsBackToDefault() {
+        // Non-numeric and non-positive values are logged via Log.w and ignored.
+        for (String value : new String[]{"abc", "0", "-5"}) {
+            Map<String, Object> options = new HashMap<>();
+            options.put(FlutterSecureStorageConfig.PREF_OPTION_MIGRATION_CHUNK_SIZE, value);
+
+            FlutterSecureStorageConfig config = new FlutterSecureStorageConfig(options);
+
+            assertEquals(256, config.getMigrationChunkSize());
+        }
+    }
+
+    @Test
+    public void invalidMigrationParallelism_fallsBackToDefault() {
+        int defaultParallelism = new FlutterSecureStorageConfig(new HashMap<>()).getMigrationParallelism();
+        for (String value : new String[]{"many", "0"}) {
+            Map<String, Object> options = new HashMap<>();
+            options.put(FlutterSecureStorageConfig.PREF_OPTION_MIGRATION_PARALLELISM, value);
+
+            assertEquals(defaultParallelism, new FlutterSecureStorageConfig(options).getMigrationParallelism());
+        }
+    }
 }
@@ -351,4 +351,169 @@ public class FlutterSecureStorageConfigTest {
         );
         assertTrue(config.toString().contains("migrateWithBackup=true"));
     }
+
+    // -------------------------------------------------------------------------
+    // lazyMigration
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void shouldMigrateLazily_defaultIsFalse() {
+        assertFalse(emptyConfig().shouldMigrateLazily());
+    }
+
+    @Test
+    public void shouldMigrateLazily_trueWhenSet() {
+        FlutterSecureStorageConfig config = configFrom(
+            FlutterSecureStorageConfig.PREF_OPTION_LAZY_MIGRATION, "true"
+        );
+        assertTrue(config.shouldMigrateLazily());
+    }
+
+    @Test
+    public void toString_containsLazyMigration() {
+        FlutterSecureStorageConfig config = configFrom(
+            FlutterSecureStorageConfig.PREF_OPTION_LAZY_MIGRATION, "true"
+        );
+        assertTrue(config.toString().contains("lazyMigration=true"));
+    }
+
+    // -------------------------------------------------------------------------
+    // migrationChunkSize
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void getMigrationChunkSize_defaultWhenNotSet() {
+        assertEquals(256, emptyConfig().getMigrationChunkSize());
+    }
+
+    @Test
+    public void getMigrationChunkSize_parsedWhenSet() {
+        FlutterSecureStorageConfig config = configFrom(
+            FlutterSecureStorageConfig.PREF_OPTION_MIGRATION_CHUNK_SIZE, "64"
+        );
+        assertEquals(64, config.getMigrationChunkSize());
+    }
+
+    @Test
+    public void toString_containsMigrationChunkSize() {
+        FlutterSecureStorageConfig config = configFrom(
+            FlutterSecureStorageConfig.PREF_OPTION_MIGRATION_CHUNK_SIZE, "32"
+        );
+        assertTrue(config.toString().contains("migrationChunkSize=32"));
+    }
+
+    // -------------------------------------------------------------------------
+    // compressionThreshold
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void getCompressionThreshold_disabledWhenNotSet() {
+        assertEquals(0, emptyConfig().getCompressionThreshold());
+    }
+
+    @Test
+    public void getCompressionThreshold_parsedWhenSet() {
+        FlutterSecureStorageConfig config = configFrom(
+            FlutterSecureStorageConfig.PREF_OPTION_COMPRESSION_THRESHOLD, "512"
+        );
+        assertEquals(512, config.getCompressionThreshold());
+    }
+
+    @Test
+    public void getCompressionThreshold_invalidValue_disabled() {
+        FlutterSecureStorageConfig config = configFrom(
+            FlutterSecureStorageConfig.PREF_OPTION_COMPRESSION_THRESHOLD, "-1"
+        );
+        assertEquals(0, config.getCompressionThreshold());
+    }
+
+    // -------------------------------------------------------------------------
+    // largeValueThreshold
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void getLargeValueThreshold_disabledWhenNotSet() {
+        assertEquals(0, emptyConfig().getLargeValueThreshold());
+    }
+
+    @Test
+    public void getLargeValueThreshold_parsedWhenSet() {
+        FlutterSecureStorageConfig config = configFrom(
+            FlutterSecureStorageConfig.PREF_OPTION_LARGE_VALUE_THRESHOLD, "4096"
+        );
+        assertEquals(4096, config.getLargeValueThreshold());
+        assertTrue(config.toString().contains("largeValueThreshold=4096"));
+    }
+
+    @Test
+    public void getLargeValueThreshold_invalidValue_disabled() {
+        FlutterSecureStorageConfig config = configFrom(
+            FlutterSecureStorageConfig.PREF_OPTION_LARGE_VALUE_THRESHOLD, "large"
+        );
+        assertEquals(0, config.getLargeValueThreshold());
+    }
+
+    // -------------------------------------------------------------------------
+    // deriveNamespaceKeys
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void shouldDeriveNamespaceKeys_falseWhenNotSet() {
+        assertFalse(emptyConfig().shouldDeriveNamespaceKeys());
+    }
+
+    @Test
+    public void shouldDeriveNamespaceKeys_parsedWhenSet() {
+        FlutterSecureStorageConfig config = configFrom(
+            FlutterSecureStorageConfig.PREF_OPTION_DERIVE_NAMESPACE_KEYS, "true"
+        );
+        assertTrue(config.shouldDeriveNamespaceKeys());
+        assertTrue(config.toString().contains("deriveNamespaceKeys=true"));
+    }
+
+    // -------------------------------------------------------------------------
+    // biometricSessionSeconds
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void getBiometricSessionSeconds_disabledWhenNotSet() {
+        assertEquals(0, emptyConfig().getBiometricSessionSeconds());
+    }
+
+    @Test
+    public void getBiometricSessionSeconds_parsedWhenSet() {
+        FlutterSecureStorageConfig config = configFrom(
+            FlutterSecureStorageConfig.PREF_OPTION_BIOMETRIC_SESSION_SECONDS, "300"
+        );
+        assertEquals(300, config.getBiometricSessionSeconds());
+        assertTrue(config.toString().contains("biometricSessionSeconds=300"));
+    }
+
+    // -------------------------------------------------------------------------
+    // migrationParallelism
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void getMigrationParallelism_defaultBoundedByCoresAndFour() {
+        int parallelism = emptyConfig().getMigrationParallelism();
+
+        assertTrue(parallelism >= 1);
+        assertTrue(parallelism <= Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    @Test
+    public void getMigrationParallelism_parsedWhenSet() {
+        FlutterSecureStorageConfig config = configFrom(
+            FlutterSecureStorageConfig.PREF_OPTION_MIGRATION_PARALLELISM, "1"
+        );
+        assertEquals(1, config.getMigrationParallelism());
+    }
+
+    @Test
+    public void toString_containsMigrationParallelism() {
+        FlutterSecureStorageConfig config = configFrom(
+            FlutterSecureStorageConfig.PREF_OPTION_MIGRATION_PARALLELISM, "3"
+        );
+        assertTrue(config.toString().contains("migrationParallelism=3"));
+    }
 }
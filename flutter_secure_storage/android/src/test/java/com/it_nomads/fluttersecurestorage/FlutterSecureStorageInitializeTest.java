@@ -0,0 +1,213 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class FlutterSecureStorageInitializeTest {
+
+    private FlutterSecureStorageConfig config;
+    private ControlledStorage storage;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.getApplication();
+        config = new FlutterSecureStorageConfig(new HashMap<>());
+        storage = new ControlledStorage(context);
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    /** Storage whose initialization only completes when the test says so. */
+    private static class ControlledStorage extends FlutterSecureStorage {
+        final AtomicInteger runs = new AtomicInteger();
+        final List<SecurePreferencesCallback<Void>> inFlight = new ArrayList<>();
+
+        ControlledStorage(Context context) {
+            super(context);
+        }
+
+        @Override
+        void runInitialization(FlutterSecureStorageConfig config, SecurePreferencesCallback<Void> callback) {
+            runs.incrementAndGet();
+            synchronized (inFlight) {
+                inFlight.add(callback);
+            }
+        }
+
+        SecurePreferencesCallback<Void> lastRun() {
+            synchronized (inFlight) {
+                return inFlight.get(inFlight.size() - 1);
+            }
+        }
+    }
+
+    private static class RecordingCallback implements SecurePreferencesCallback<Void> {
+        final AtomicInteger successes = new AtomicInteger();
+        final AtomicReference<Exception> error = new AtomicReference<>();
+
+        @Override
+        public void onSuccess(Void result) {
+            successes.incrementAndGet();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            error.set(e);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Single-flight
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void initialize_callersDuringInFlightInit_attachToSameRun() {
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        RecordingCallback third = new RecordingCallback();
+
+        storage.initialize(config, first);
+        storage.initialize(config, second);
+        storage.initialize(config, third);
+
+        assertEquals(1, storage.runs.get());
+        assertEquals(0, first.successes.get() + second.successes.get() + third.successes.get());
+
+        storage.lastRun().onSuccess(null);
+
+        assertEquals(1, first.successes.get());
+        assertEquals(1, second.successes.get());
+        assertEquals(1, third.successes.get());
+    }
+
+    @Test
+    public void initialize_concurrentCallersFromManyThreads_runOnce() throws Exception {
+        final int callers = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch attached = new CountDownLatch(callers);
+        final List<RecordingCallback> callbacks = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            final RecordingCallback callback = new RecordingCallback();
+            callbacks.add(callback);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ignored) {
+                }
+                storage.initialize(config, callback);
+                attached.countDown();
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        start.countDown();
+        assertTrue(attached.await(5, TimeUnit.SECONDS));
+        storage.lastRun().onSuccess(null);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, storage.runs.get());
+        for (RecordingCallback callback : callbacks) {
+            assertEquals(1, callback.successes.get());
+        }
+    }
+
+    @Test
+    public void initialize_whenReady_succeedsWithoutRunningAgain() {
+        storage.initialize(config, new RecordingCallback());
+        storage.lastRun().onSuccess(null);
+
+        RecordingCallback later = new RecordingCallback();
+        storage.initialize(config, later);
+
+        assertEquals(1, storage.runs.get());
+        assertEquals(1, later.successes.get());
+    }
+
+    // -------------------------------------------------------------------------
+    // Failure and retry
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void initialize_failure_isReportedToAllAttachedCallers() {
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        Exception failure = new Exception("cipher setup failed");
+
+        storage.initialize(config, first);
+        storage.initialize(config, second);
+        storage.lastRun().onError(failure);
+
+        assertSame(failure, first.error.get());
+        assertSame(failure, second.error.get());
+        assertEquals(0, first.successes.get() + second.successes.get());
+    }
+
+    @Test
+    public void initialize_afterFailure_startsNewAttempt() {
+        storage.initialize(config, new RecordingCallback());
+        storage.lastRun().onError(new Exception("first attempt failed"));
+
+        RecordingCallback retry = new RecordingCallback();
+        storage.initialize(config, retry);
+
+        assertEquals(2, storage.runs.get());
+        storage.lastRun().onSuccess(null);
+        assertEquals(1, retry.successes.get());
+        assertNull(retry.error.get());
+    }
+
+    @Test
+    public void initialize_lateResultFromFailedAttempt_doesNotCompleteRetry() {
+        storage.initialize(config, new RecordingCallback());
+        SecurePreferencesCallback<Void> firstRun = storage.lastRun();
+        firstRun.onError(new Exception("first attempt failed"));
+
+        RecordingCallback retry = new RecordingCallback();
+        storage.initialize(config, retry);
+        firstRun.onSuccess(null);
+
+        assertEquals(0, retry.successes.get());
+        storage.lastRun().onSuccess(null);
+        assertEquals(1, retry.successes.get());
+    }
+
+    @Test
+    public void initialize_duplicateResults_onlyFirstIsDelivered() {
+        RecordingCallback callback = new RecordingCallback();
+
+        storage.initialize(config, callback);
+        SecurePreferencesCallback<Void> run = storage.lastRun();
+        run.onError(new Exception("failed"));
+        run.onSuccess(null);
+
+        assertEquals(0, callback.successes.get());
+        assertEquals("failed", callback.error.get().getMessage());
+    }
+}
@@ -0,0 +1,229 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import com.it_nomads.fluttersecurestorage.ciphers.KeyCipher;
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipherFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.security.Key;
+import java.util.HashMap;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class KeyRewrapTest {
+
+    // Must match the private constants in StorageCipherFactory and StorageCipherImplementationAES18
+    private static final String PREF_KEY_ALGORITHM = "FlutterSecureSAlgorithmKey";
+    private static final String PREF_STORAGE_ALGORITHM = "FlutterSecureSAlgorithmStorage";
+    private static final String CBC_KEY_ENTRY = "VGhpcyBpcyB0aGUga2V5IGZvciBhIHNlY3VyZSBzdG9yYWdlIEFFUyBLZXkK";
+    private static final String SAVED_KEY_ALGORITHM = "RSA_ECB_PKCS1Padding";
+    private static final String CURRENT_KEY_ALGORITHM = "RSA_ECB_OAEPwithSHA_256andMGF1Padding";
+    private static final String STORAGE_ALGORITHM = "AES_CBC_PKCS7Padding";
+    private static final byte[] DATA_KEY = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+
+    private SharedPreferences keyStorage;
+    private NamespacedConfigSource configSource;
+    private FlutterSecureStorageConfig config;
+    private TaggedKeyCipher savedKeyCipher;
+    private TaggedKeyCipher currentKeyCipher;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.getApplication();
+        keyStorage = context.getSharedPreferences("KeyRewrapKeys", Context.MODE_PRIVATE);
+        keyStorage.edit().clear().commit();
+        configSource = new NamespacedConfigSource(context, "KeyRewrapTest");
+        configSource.edit().clear().commit();
+        context.getSharedPreferences("FlutterSecureStorageConfiguration", Context.MODE_PRIVATE).edit().clear().commit();
+
+        configSource.edit()
+                .putString(PREF_KEY_ALGORITHM, SAVED_KEY_ALGORITHM)
+                .putString(PREF_STORAGE_ALGORITHM, STORAGE_ALGORITHM)
+                .commit();
+        config = new FlutterSecureStorageConfig(new HashMap<>());
+        savedKeyCipher = new TaggedKeyCipher((byte) 0x11);
+        currentKeyCipher = new TaggedKeyCipher((byte) 0x22);
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    /**
+     * Key cipher that wraps by prefixing a tag and XOR-ing with it, and refuses keys wrapped by
+     * a cipher with a different tag, like an RSA key pair would.
+     */
+    private static class TaggedKeyCipher implements KeyCipher {
+        private final byte tag;
+        int wraps = 0;
+
+        TaggedKeyCipher(byte tag) {
+            this.tag = tag;
+        }
+
+        @Override
+        public byte[] wrap(Key key) {
+            wraps++;
+            byte[] raw = key.getEncoded();
+            byte[] wrapped = new byte[raw.length + 1];
+            wrapped[0] = tag;
+            for (int i = 0; i < raw.length; i++) {
+                wrapped[i + 1] = (byte) (raw[i] ^ tag);
+            }
+            return wrapped;
+        }
+
+        @Override
+        public Key unwrap(byte[] wrappedKey, String algorithm) throws Exception {
+            if (wrappedKey.length == 0 || wrappedKey[0] != tag) {
+                throw new BadPaddingException("Key was wrapped by another key cipher");
+            }
+            byte[] raw = new byte[wrappedKey.length - 1];
+            for (int i = 0; i < raw.length; i++) {
+                raw[i] = (byte) (wrappedKey[i + 1] ^ tag);
+            }
+            return new SecretKeySpec(raw, algorithm);
+        }
+
+        @Override
+        public Cipher getCipher(Context context) {
+            return null;
+        }
+
+        @Override
+        public void deleteKey() {
+        }
+    }
+
+    private StorageCipherFactory factory() {
+        return new StorageCipherFactory(configSource, CURRENT_KEY_ALGORITHM, STORAGE_ALGORITHM, config);
+    }
+
+    private void storeWrappedKey(TaggedKeyCipher keyCipher) {
+        byte[] wrapped = keyCipher.wrap(new SecretKeySpec(DATA_KEY, "AES"));
+        keyStorage.edit().putString(CBC_KEY_ENTRY, Base64.encodeToString(wrapped, Base64.DEFAULT)).commit();
+    }
+
+    private byte[] unwrapStoredKey(TaggedKeyCipher keyCipher) throws Exception {
+        byte[] wrapped = Base64.decode(keyStorage.getString(CBC_KEY_ENTRY, null), Base64.DEFAULT);
+        return keyCipher.unwrap(wrapped, "AES").getEncoded();
+    }
+
+    // -------------------------------------------------------------------------
+    // commit + install
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void rewrap_replacesWrappedKeyAndKeepsDataKey() throws Exception {
+        storeWrappedKey(savedKeyCipher);
+
+        KeyRewrap.commit(keyStorage, configSource, factory(), savedKeyCipher, currentKeyCipher);
+        assertTrue(KeyRewrap.install(keyStorage, configSource));
+
+        assertArrayEquals(DATA_KEY, unwrapStoredKey(currentKeyCipher));
+        assertEquals(CURRENT_KEY_ALGORITHM, configSource.getString(PREF_KEY_ALGORITHM, null));
+        assertEquals(STORAGE_ALGORITHM, configSource.getString(PREF_STORAGE_ALGORITHM, null));
+        assertFalse(factory().requiresReEncryption());
+    }
+
+    @Test
+    public void rewrap_touchesOnlyTheWrappedKeyEntry() throws Exception {
+        storeWrappedKey(savedKeyCipher);
+        keyStorage.edit().putString("unrelated", "value").commit();
+
+        KeyRewrap.commit(keyStorage, configSource, factory(), savedKeyCipher, currentKeyCipher);
+        KeyRewrap.install(keyStorage, configSource);
+
+        assertEquals(2, keyStorage.getAll().size());
+        assertEquals("value", keyStorage.getString("unrelated", null));
+        assertEquals(1, currentKeyCipher.wraps);
+    }
+
+    @Test
+    public void rewrap_withoutStoredKey_onlyUpdatesMarkers() throws Exception {
+        KeyRewrap.commit(keyStorage, configSource, factory(), savedKeyCipher, currentKeyCipher);
+
+        assertFalse(KeyRewrap.install(keyStorage, configSource));
+        assertNull(keyStorage.getString(CBC_KEY_ENTRY, null));
+        assertEquals(CURRENT_KEY_ALGORITHM, configSource.getString(PREF_KEY_ALGORITHM, null));
+    }
+
+    @Test
+    public void rewrap_savedKeyCipherCannotUnwrap_throwsAndChangesNothing() throws Exception {
+        storeWrappedKey(currentKeyCipher);
+        String stored = keyStorage.getString(CBC_KEY_ENTRY, null);
+
+        try {
+            KeyRewrap.commit(keyStorage, configSource, factory(), savedKeyCipher, currentKeyCipher);
+            fail("Expected the re-wrap to fail");
+        } catch (Exception expected) {
+            // Expected
+        }
+
+        assertFalse(KeyRewrap.install(keyStorage, configSource));
+        assertEquals(stored, keyStorage.getString(CBC_KEY_ENTRY, null));
+        assertEquals(SAVED_KEY_ALGORITHM, configSource.getString(PREF_KEY_ALGORITHM, null));
+    }
+
+    @Test
+    public void rewrap_storageAlgorithmChanged_throwsAndChangesNothing() throws Exception {
+        storeWrappedKey(savedKeyCipher);
+        StorageCipherFactory factory = new StorageCipherFactory(configSource, CURRENT_KEY_ALGORITHM,
+                "AES_GCM_NoPadding", config);
+
+        try {
+            KeyRewrap.commit(keyStorage, configSource, factory, savedKeyCipher, currentKeyCipher);
+            fail("Expected the re-wrap to be refused");
+        } catch (Exception expected) {
+            // Expected
+        }
+
+        assertEquals(SAVED_KEY_ALGORITHM, configSource.getString(PREF_KEY_ALGORITHM, null));
+        assertArrayEquals(DATA_KEY, unwrapStoredKey(savedKeyCipher));
+    }
+
+    // -------------------------------------------------------------------------
+    // Interruption
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void interruptedAfterCommit_installOnNextStartFinishesRewrap() throws Exception {
+        storeWrappedKey(savedKeyCipher);
+
+        // Process dies between the commit point and the install
+        KeyRewrap.commit(keyStorage, configSource, factory(), savedKeyCipher, currentKeyCipher);
+        assertArrayEquals(DATA_KEY, unwrapStoredKey(savedKeyCipher));
+
+        assertTrue(KeyRewrap.install(keyStorage, configSource));
+        assertArrayEquals(DATA_KEY, unwrapStoredKey(currentKeyCipher));
+        assertFalse(KeyRewrap.install(keyStorage, configSource));
+    }
+
+    @Test
+    public void install_nothingPending_returnsFalse() throws Exception {
+        storeWrappedKey(savedKeyCipher);
+
+        assertFalse(KeyRewrap.install(keyStorage, configSource));
+        assertArrayEquals(DATA_KEY, unwrapStoredKey(savedKeyCipher));
+    }
+}
@@ -0,0 +1,409 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class LargeValueStoreTest {
+
+    private Context context;
+    private File directory;
+    private LargeValueStore store;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        directory = new File(context.getNoBackupFilesDir(), "LargeValueStoreTest");
+        store = new LargeValueStore(directory, 1024);
+        store.deleteAll();
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        // Keep the first byte in the ASCII range, like UTF-8 text
+        bytes[0] = 'x';
+        return bytes;
+    }
+
+    private int fileCount() {
+        String[] names = directory.list();
+        return names == null ? 0 : names.length;
+    }
+
+    private static String encrypt(StorageCipher cipher, byte[] plaintext) throws Exception {
+        return ValueEnvelope.encode(cipher, cipher.encrypt(plaintext));
+    }
+
+    private static byte[] readFully(InputStream in) throws Exception {
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1000];
+            int read;
+            while ((read = stream.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // store / load
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void store_belowThreshold_keepsPlaintextInline() throws Exception {
+        byte[] small = randomBytes(1023, 1);
+
+        assertArrayEquals(small, store.store("key", small));
+        assertEquals(0, fileCount());
+    }
+
+    @Test
+    public void store_thresholdZero_keepsEverythingInline() throws Exception {
+        byte[] large = randomBytes(64 * 1024, 2);
+
+        assertArrayEquals(large, new LargeValueStore(directory, 0).store("key", large));
+        assertArrayEquals(large, LargeValueStore.NONE.store("key", large));
+        assertEquals(0, fileCount());
+    }
+
+    @Test
+    public void store_largeValue_writesEncryptedFileAndReturnsPointer() throws Exception {
+        byte[] large = randomBytes(64 * 1024, 3);
+
+        byte[] pointer = store.store("key", large);
+
+        assertTrue(LargeValueStore.isPointer(pointer));
+        assertEquals(LargeValueStore.POINTER_LENGTH, pointer.length);
+        assertEquals(1, fileCount());
+        File file = directory.listFiles()[0];
+        // Header and segments with their tags; no plaintext
+        assertEquals(SegmentedAead.ciphertextLength(large.length, SegmentedAead.DEFAULT_SEGMENT_SIZE), file.length());
+        assertArrayEquals(large, store.load("key", pointer));
+    }
+
+    @Test
+    public void store_sameValueTwice_usesNewFileAndKey() throws Exception {
+        byte[] large = randomBytes(4096, 4);
+
+        byte[] first = store.store("key", large);
+        byte[] second = store.store("key", large);
+
+        assertFalse(Arrays.equals(first, second));
+        assertEquals(2, fileCount());
+        assertArrayEquals(large, store.load("key", first));
+        assertArrayEquals(large, store.load("key", second));
+    }
+
+    @Test
+    public void load_inlinePlaintext_isReturnedAsIs() throws Exception {
+        byte[] inline = "value".getBytes(StandardCharsets.UTF_8);
+
+        assertArrayEquals(inline, store.load("key", inline));
+        assertArrayEquals(inline, LargeValueStore.NONE.load("key", inline));
+    }
+
+    @Test
+    public void load_pointerWithoutDirectory_throws() throws Exception {
+        byte[] pointer = store.store("key", randomBytes(4096, 5));
+
+        assertThrows(Exception.class, () -> LargeValueStore.NONE.load("key", pointer));
+    }
+
+    @Test
+    public void load_pointerOfOtherKey_throws() throws Exception {
+        byte[] pointer = store.store("key", randomBytes(4096, 6));
+
+        assertThrows(Exception.class, () -> store.load("otherKey", pointer));
+    }
+
+    @Test
+    public void load_tamperedFile_throws() throws Exception {
+        byte[] pointer = store.store("key", randomBytes(4096, 7));
+        try (RandomAccessFile file = new RandomAccessFile(directory.listFiles()[0], "rw")) {
+            file.seek(100);
+            int b = file.read();
+            file.seek(100);
+            file.write(b ^ 1);
+        }
+
+        assertThrows(Exception.class, () -> store.load("key", pointer));
+    }
+
+    @Test
+    public void load_unknownPointerFormat_throws() throws Exception {
+        byte[] pointer = store.store("key", randomBytes(4096, 8));
+        pointer[1] = 9;
+
+        assertThrows(Exception.class, () -> store.load("key", pointer));
+    }
+
+    @Test
+    public void isPointer_neverTrueForUtf8TextOrCompressedValues() {
+        for (String value : new String[]{"", "a", "þ", "￾", "🔑"}) {
+            assertFalse(LargeValueStore.isPointer(value.getBytes(StandardCharsets.UTF_8)));
+        }
+        assertFalse(LargeValueStore.isPointer(ValueCompression.encode("abc".repeat(100), 16)));
+    }
+
+    // -------------------------------------------------------------------------
+    // Streams
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void openOutputStream_writesSegmentsAndReadsThemBack() throws Exception {
+        LargeValueStore segmented = new LargeValueStore(directory, 0, 1024);
+        byte[] data = randomBytes(10_000, 22);
+
+        LargeValueStore.Output out = segmented.openOutputStream("key");
+        for (int offset = 0; offset < data.length; offset += 777) {
+            out.write(data, offset, Math.min(777, data.length - offset));
+        }
+        out.close();
+        byte[] pointer = out.getPointer();
+
+        assertTrue(LargeValueStore.isPointer(pointer));
+        assertTrue(segmented.hasFiles("key", null));
+        assertFalse(segmented.hasFiles("key", pointer));
+        assertEquals(SegmentedAead.ciphertextLength(data.length, 1024), directory.listFiles()[0].length());
+        assertArrayEquals(data, readFully(segmented.openInputStream("key", pointer)));
+        assertArrayEquals(data, segmented.load("key", pointer));
+    }
+
+    @Test
+    public void openOutputStream_streamedText_decodesAsUtf8() throws Exception {
+        String text = "-----BEGIN CERTIFICATE-----\n" + "grüße 🔑\n".repeat(500) + "-----END CERTIFICATE-----";
+
+        LargeValueStore.Output out = store.openOutputStream("key");
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.close();
+
+        assertEquals(text, store.decode("key", out.getPointer()));
+    }
+
+    @Test
+    public void openOutputStream_abort_leavesNoFile() throws Exception {
+        LargeValueStore.Output out = store.openOutputStream("key");
+        out.write(randomBytes(100_000, 23));
+
+        out.abort();
+        out.abort();
+
+        assertEquals(0, fileCount());
+        assertFalse(store.hasFiles());
+    }
+
+    @Test
+    public void openOutputStream_unclosed_isOnlyATemporaryFile() throws Exception {
+        LargeValueStore.Output out = store.openOutputStream("key");
+        out.write(randomBytes(100_000, 24));
+
+        assertFalse(store.hasFiles("key", null));
+        assertEquals(1, store.deleteUnreferenced(new HashMap<>(), TestStorageCiphers.software()));
+        assertEquals(0, fileCount());
+    }
+
+    @Test
+    public void openOutputStream_withoutDirectory_throws() {
+        assertThrows(Exception.class, () -> LargeValueStore.NONE.openOutputStream("key"));
+    }
+
+    @Test
+    public void openInputStream_valuesNotWrittenAsStream_areTheirUtf8Bytes() throws Exception {
+        String text = "{\"certificate\":\"" + "MIIB".repeat(2000) + "\"}";
+        byte[] expected = text.getBytes(StandardCharsets.UTF_8);
+
+        byte[] inline = "small".getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = ValueCompression.encode(text, 16);
+        byte[] storedCompressed = new LargeValueStore(directory, 16).store("key", compressed);
+
+        assertArrayEquals(inline, readFully(store.openInputStream("key", inline)));
+        assertArrayEquals(expected, readFully(store.openInputStream("key", compressed)));
+        assertTrue(LargeValueStore.isPointer(storedCompressed));
+        assertArrayEquals(expected, readFully(store.openInputStream("key", storedCompressed)));
+        assertEquals(text, store.decode("key", storedCompressed));
+    }
+
+    @Test
+    public void openInputStream_tamperedSegment_failsWhileReading() throws Exception {
+        LargeValueStore segmented = new LargeValueStore(directory, 0, 1024);
+        LargeValueStore.Output out = segmented.openOutputStream("key");
+        out.write(randomBytes(5000, 25));
+        out.close();
+        try (RandomAccessFile file = new RandomAccessFile(directory.listFiles()[0], "rw")) {
+            // In the third segment
+            file.seek(SegmentedAead.HEADER_LENGTH + 2 * (1024 + SegmentedAead.TAG_SIZE) + 10);
+            int b = file.read();
+            file.seek(SegmentedAead.HEADER_LENGTH + 2 * (1024 + SegmentedAead.TAG_SIZE) + 10);
+            file.write(b ^ 1);
+        }
+
+        InputStream in = segmented.openInputStream("key", out.getPointer());
+        byte[] buffer = new byte[1024];
+
+        assertEquals(1024, in.read(buffer));
+        assertEquals(1024, in.read(buffer));
+        assertThrows(IOException.class, () -> in.read(buffer));
+        in.close();
+    }
+
+    // -------------------------------------------------------------------------
+    // Deleting files
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void hasFilesAndDeleteFiles_keepTheFileStillPointedTo() throws Exception {
+        byte[] old = store.store("key", randomBytes(4096, 9));
+        byte[] current = store.store("key", randomBytes(4096, 10));
+        byte[] other = store.store("otherKey", randomBytes(4096, 11));
+
+        assertTrue(store.hasFiles("key", current));
+        store.deleteFiles("key", current);
+
+        assertFalse(store.hasFiles("key", current));
+        assertTrue(store.hasFiles("key", null));
+        assertEquals(2, fileCount());
+        assertThrows(Exception.class, () -> store.load("key", old));
+        assertArrayEquals(randomBytes(4096, 10), store.load("key", current));
+        assertArrayEquals(randomBytes(4096, 11), store.load("otherKey", other));
+    }
+
+    @Test
+    public void deleteFiles_inlineValue_deletesAllFilesOfTheKey() throws Exception {
+        store.store("key", randomBytes(4096, 12));
+
+        store.deleteFiles("key", "now small".getBytes(StandardCharsets.UTF_8));
+
+        assertFalse(store.hasFiles());
+        assertEquals(0, fileCount());
+    }
+
+    @Test
+    public void hasFiles_seesFilesWrittenByEarlierInstance() throws Exception {
+        store.store("key", randomBytes(4096, 13));
+
+        LargeValueStore reopened = new LargeValueStore(directory, 1024);
+
+        assertTrue(reopened.hasFiles());
+        assertTrue(reopened.hasFiles("key", null));
+        assertFalse(reopened.hasFiles("otherKey", null));
+    }
+
+    @Test
+    public void deleteAll_deletesEveryFile() throws Exception {
+        store.store("a", randomBytes(4096, 14));
+        store.store("b", randomBytes(4096, 15));
+
+        store.deleteAll();
+
+        assertFalse(store.hasFiles());
+        assertEquals(0, fileCount());
+    }
+
+    @Test
+    public void deleteUnreferenced_keepsOnlyFilesEntriesPointTo() throws Exception {
+        StorageCipher cipher = TestStorageCiphers.software();
+        Map<String, Object> entries = new HashMap<>();
+        store.store("replaced", randomBytes(4096, 16));
+        entries.put("replaced", encrypt(cipher, store.store("replaced", randomBytes(4096, 17))));
+        store.store("deleted", randomBytes(4096, 18));
+        store.store("inlined", randomBytes(4096, 19));
+        entries.put("inlined", encrypt(cipher, "small".getBytes(StandardCharsets.UTF_8)));
+        // Left behind by a write that was interrupted before the rename
+        try (FileOutputStream out = new FileOutputStream(new File(directory, "interrupted.tmp"))) {
+            out.write(1);
+        }
+
+        assertEquals(4, store.deleteUnreferenced(entries, cipher));
+
+        assertEquals(1, fileCount());
+        assertTrue(store.hasFiles("replaced", null));
+        assertFalse(store.hasFiles("deleted", null));
+        assertFalse(store.hasFiles("inlined", null));
+    }
+
+    @Test
+    public void deleteUnreferenced_keepsFilesOfUndecryptableEntries() throws Exception {
+        StorageCipher otherCipher = TestStorageCiphers.software();
+        Map<String, Object> entries = new HashMap<>();
+        entries.put("key", encrypt(otherCipher, store.store("key", randomBytes(4096, 20))));
+
+        assertEquals(0, store.deleteUnreferenced(entries, TestStorageCiphers.software()));
+
+        assertEquals(1, fileCount());
+    }
+
+    @Test
+    public void deleteUnreferenced_emptyDirectory_isNoOp() {
+        assertEquals(0, store.deleteUnreferenced(new HashMap<>(), TestStorageCiphers.software()));
+        assertEquals(0, LargeValueStore.NONE.deleteUnreferenced(new HashMap<>(), TestStorageCiphers.software()));
+    }
+
+    // -------------------------------------------------------------------------
+    // Preferences file
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void largeValuesInFiles_keepThePreferencesFileSmall() throws Exception {
+        final int largeCount = 4;
+        final int largeSize = 64 * 1024;
+        final StorageCipher cipher = TestStorageCiphers.software();
+        final int[] thresholds = {0, 4096};
+        final long[] fileBytes = new long[thresholds.length];
+
+        for (int t = 0; t < thresholds.length; t++) {
+            final String name = "LargeValueFile" + thresholds[t];
+            final LargeValueStore largeValues = new LargeValueStore(new File(directory, name), thresholds[t]);
+            final SharedPreferences preferences = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+            final SharedPreferences.Editor editor = preferences.edit().clear();
+            editor.putString("small", encrypt(cipher, "token".getBytes(StandardCharsets.UTF_8)));
+            for (int i = 0; i < largeCount; i++) {
+                editor.putString("large" + i, encrypt(cipher, largeValues.store("large" + i, randomBytes(largeSize, i))));
+            }
+            assertTrue(editor.commit());
+            fileBytes[t] = new File(context.getApplicationInfo().dataDir, "shared_prefs/" + name + ".xml").length();
+
+            for (int i = 0; i < largeCount; i++) {
+                String stored = preferences.getString("large" + i, null);
+                byte[] plaintext = cipher.decrypt(ValueEnvelope.parse(stored).getCiphertextFor(cipher));
+                assertArrayEquals(randomBytes(largeSize, i), largeValues.load("large" + i, plaintext));
+            }
+        }
+
+        assertTrue(fileBytes[0] > (long) largeCount * largeSize);
+        assertTrue(fileBytes[1] < largeSize);
+    }
+}
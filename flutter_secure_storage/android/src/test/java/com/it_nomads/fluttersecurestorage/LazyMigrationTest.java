@@ -0,0 +1,404 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipherAlgorithm;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class LazyMigrationTest {
+
+    private static final String KEY_PREFIX = "VGhpcyBpcyB0aGUgcHJlZml4IGZvciBhIHNlY3VyZSBzdG9yYWdlCg";
+    private static final String ALGORITHM_MARKER = "FlutterSecureSAlgorithmStorage";
+    private static final StorageCipherAlgorithm SAVED = StorageCipherAlgorithm.AES_CBC_PKCS7Padding;
+    private static final StorageCipherAlgorithm CURRENT = StorageCipherAlgorithm.AES_GCM_NoPadding;
+
+    private SharedPreferences dataSource;
+    private NamespacedConfigSource configSource;
+    private StorageCipher savedCipher;
+    private StorageCipher currentCipher;
+    private RecordingHost host;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.getApplication();
+        dataSource = context.getSharedPreferences("LazyMigrationData", Context.MODE_PRIVATE);
+        dataSource.edit().clear().commit();
+        configSource = new NamespacedConfigSource(context, "LazyMigrationData");
+        configSource.edit().clear().commit();
+
+        SharedPreferences.Editor markers = configSource.edit();
+        markers.putString(ALGORITHM_MARKER, SAVED.name());
+        LazyMigration.putTargetAlgorithm(markers, CURRENT);
+        markers.commit();
+
+        savedCipher = TestStorageCiphers.software();
+        currentCipher = TestStorageCiphers.software();
+        host = new RecordingHost();
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    private class RecordingHost implements LazyMigration.Host {
+        int deletedSavedKeys = 0;
+        int finished = 0;
+
+        @Override
+        public void storeCurrentAlgorithms(SharedPreferences.Editor editor) {
+            editor.putString(ALGORITHM_MARKER, CURRENT.name());
+        }
+
+        @Override
+        public void deleteSavedKeys(StorageCipher cipher) {
+            assertTrue(cipher == savedCipher);
+            deletedSavedKeys++;
+        }
+
+        @Override
+        public void onFinished() {
+            finished++;
+        }
+    }
+
+    private FlutterSecureStorageConfig config(String... options) {
+        Map<String, Object> map = new HashMap<>();
+        map.put(FlutterSecureStorageConfig.PREF_OPTION_MIGRATION_CHUNK_SIZE, "4");
+        for (int i = 0; i < options.length; i += 2) {
+            map.put(options[i], options[i + 1]);
+        }
+        return new FlutterSecureStorageConfig(map);
+    }
+
+    private LazyMigration migration(FlutterSecureStorageConfig config) {
+        return new LazyMigration(host, dataSource, configSource, savedCipher, SAVED, currentCipher, CURRENT, config);
+    }
+
+    private LazyMigration migration() {
+        return migration(config());
+    }
+
+    private static String keyFor(int index) {
+        return KEY_PREFIX + "_" + String.format("%05d", index);
+    }
+
+    private static String valueFor(int index) {
+        return "value-" + index;
+    }
+
+    /** Writes values the way they were stored before the migration: plain Base64, saved cipher. */
+    private void populateSavedFormat(int count) throws Exception {
+        SharedPreferences.Editor editor = dataSource.edit();
+        for (int i = 0; i < count; i++) {
+            byte[] encrypted = savedCipher.encrypt(valueFor(i).getBytes(StandardCharsets.UTF_8));
+            editor.putString(keyFor(i), Base64.encodeToString(encrypted, 0));
+        }
+        editor.commit();
+    }
+
+    private String decryptWithCurrent(String key) throws Exception {
+        ValueEnvelope envelope = ValueEnvelope.parse(dataSource.getString(key, null));
+        assertEquals(CURRENT, envelope.getAlgorithm());
+        return new String(currentCipher.decrypt(envelope.getCiphertext()), StandardCharsets.UTF_8);
+    }
+
+    private int countSavedFormat() {
+        int count = 0;
+        for (Map.Entry<String, ?> entry : dataSource.getAll().entrySet()) {
+            if (entry.getValue() instanceof String stored && !ValueEnvelope.isEnveloped(stored)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // -------------------------------------------------------------------------
+    // Read repair
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void read_savedFormat_decryptsAndRewritesWithCurrentCipher() throws Exception {
+        populateSavedFormat(3);
+
+        assertEquals(valueFor(1), migration().read(keyFor(1)));
+
+        assertEquals(valueFor(1), decryptWithCurrent(keyFor(1)));
+        assertEquals(2, countSavedFormat());
+    }
+
+    @Test
+    public void read_currentFormat_isNotRewritten() throws Exception {
+        LazyMigration migration = migration();
+        migration.write(keyFor(0), "fresh");
+        String stored = dataSource.getString(keyFor(0), null);
+
+        assertEquals("fresh", migration.read(keyFor(0)));
+        assertEquals(stored, dataSource.getString(keyFor(0), null));
+    }
+
+    @Test
+    public void read_missingKey_returnsNull() throws Exception {
+        assertNull(migration().read(keyFor(0)));
+    }
+
+    @Test
+    public void readAll_mixedFormats_returnsAllAndRepairsSavedFormat() throws Exception {
+        populateSavedFormat(5);
+        LazyMigration migration = migration();
+        migration.read(keyFor(2));
+        migration.write(keyFor(7), "fresh");
+        dataSource.edit().putString("other_key", "untouched").commit();
+
+        Map<String, String> all = migration.readAll();
+
+        assertEquals(6, all.size());
+        assertEquals(valueFor(4), all.get(keyFor(4)));
+        assertEquals("fresh", all.get(keyFor(7)));
+        assertEquals(1, countSavedFormat()); // only other_key
+        assertEquals("untouched", dataSource.getString("other_key", null));
+    }
+
+    @Test
+    public void write_storesEnvelopeWithCurrentAlgorithm() throws Exception {
+        migration().write(keyFor(0), "fresh");
+
+        assertEquals("fresh", decryptWithCurrent(keyFor(0)));
+    }
+
+    @Test
+    public void write_compressesLargeValues_andReadsThemBack() throws Exception {
+        LazyMigration migration = migration(config(FlutterSecureStorageConfig.PREF_OPTION_COMPRESSION_THRESHOLD, "64"));
+        String large = "{\"token\":\"" + "abcdefgh".repeat(64) + "\"}";
+
+        migration.write(keyFor(0), large);
+
+        ValueEnvelope envelope = ValueEnvelope.parse(dataSource.getString(keyFor(0), null));
+        assertTrue(ValueCompression.isCompressed(currentCipher.decrypt(envelope.getCiphertext())));
+        assertEquals(large, migration.read(keyFor(0)));
+    }
+
+    @Test
+    public void largeValues_areStoredInFilesAndSurviveTheSweep() throws Exception {
+        Context context = RuntimeEnvironment.getApplication();
+        LargeValueStore largeValues = new LargeValueStore(new File(context.getNoBackupFilesDir(), "LazyMigrationLarge"), 256);
+        largeValues.deleteAll();
+        LazyMigration migration = new LazyMigration(host, dataSource, configSource, savedCipher, SAVED,
+                currentCipher, CURRENT, config(), largeValues);
+        String large = "x".repeat(1024);
+
+        migration.write(keyFor(0), large);
+        assertTrue(LargeValueStore.isPointer(currentCipher.decrypt(
+                ValueEnvelope.parse(dataSource.getString(keyFor(0), null)).getCiphertext())));
+        assertTrue(migration.sweep());
+
+        assertEquals(large, migration.read(keyFor(0)));
+        migration.delete(keyFor(0));
+        assertFalse(largeValues.hasFiles());
+    }
+
+    @Test
+    public void streamedValues_arePutAsPointersAndReadBackAsStreams() throws Exception {
+        Context context = RuntimeEnvironment.getApplication();
+        LargeValueStore largeValues = new LargeValueStore(new File(context.getNoBackupFilesDir(), "LazyMigrationLarge"), 0);
+        largeValues.deleteAll();
+        LazyMigration migration = new LazyMigration(host, dataSource, configSource, savedCipher, SAVED,
+                currentCipher, CURRENT, config(), largeValues);
+        byte[] data = new byte[100_000];
+        new Random(1).nextBytes(data);
+
+        LargeValueStore.Output out = largeValues.openOutputStream(keyFor(0));
+        out.write(data);
+        out.close();
+        migration.putPlaintext(keyFor(0), out.getPointer());
+        assertTrue(migration.sweep());
+
+        byte[] plaintext = migration.readPlaintext(keyFor(0));
+        assertArrayEquals(out.getPointer(), plaintext);
+        try (InputStream in = largeValues.openInputStream(keyFor(0), plaintext)) {
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) >= 0) {
+                read.write(buffer, 0, count);
+            }
+            assertArrayEquals(data, read.toByteArray());
+        }
+        migration.write(keyFor(0), "small");
+        assertFalse(largeValues.hasFiles());
+        assertNull(migration.readPlaintext(keyFor(1)));
+    }
+
+    // -------------------------------------------------------------------------
+    // Sweep
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void sweep_convertsEverythingAndSwitchesMarkers() throws Exception {
+        populateSavedFormat(10);
+
+        assertTrue(migration().sweep());
+
+        assertEquals(0, countSavedFormat());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(valueFor(i), decryptWithCurrent(keyFor(i)));
+        }
+        assertEquals(CURRENT.name(), configSource.getString(ALGORITHM_MARKER, null));
+        assertNull(LazyMigration.getTargetAlgorithm(configSource));
+        assertEquals(1, host.deletedSavedKeys);
+        assertEquals(1, host.finished);
+    }
+
+    @Test
+    public void sweep_emptyStore_finishes() throws Exception {
+        assertTrue(migration().sweep());
+
+        assertEquals(CURRENT.name(), configSource.getString(ALGORITHM_MARKER, null));
+        assertEquals(1, host.finished);
+    }
+
+    @Test
+    public void sweep_undecryptableValue_leavesMigrationOpen() throws Exception {
+        populateSavedFormat(6);
+        dataSource.edit().putString(keyFor(3), Base64.encodeToString(new byte[40], 0)).commit();
+
+        assertFalse(migration().sweep());
+
+        assertEquals(1, countSavedFormat());
+        assertEquals(valueFor(5), decryptWithCurrent(keyFor(5)));
+        assertEquals(SAVED.name(), configSource.getString(ALGORITHM_MARKER, null));
+        assertEquals(CURRENT.name(), LazyMigration.getTargetAlgorithm(configSource));
+        assertEquals(0, host.deletedSavedKeys);
+        assertEquals(0, host.finished);
+    }
+
+    @Test
+    public void sweep_undecryptableValueWithResetOnError_deletesIt() throws Exception {
+        populateSavedFormat(6);
+        dataSource.edit().putString(keyFor(3), Base64.encodeToString(new byte[40], 0)).commit();
+
+        assertTrue(migration(config(FlutterSecureStorageConfig.PREF_OPTION_DELETE_ON_FAILURE, "true")).sweep());
+
+        assertFalse(dataSource.contains(keyFor(3)));
+        assertEquals(5, dataSource.getAll().size());
+        assertEquals(1, host.finished);
+    }
+
+    @Test
+    public void sweep_afterInterruption_resumesWithNewInstance() throws Exception {
+        populateSavedFormat(9);
+        // First session repaired some values by reading them, then the process died
+        LazyMigration first = migration();
+        first.read(keyFor(0));
+        first.read(keyFor(4));
+
+        assertTrue(migration().sweep());
+
+        for (int i = 0; i < 9; i++) {
+            assertEquals(valueFor(i), decryptWithCurrent(keyFor(i)));
+        }
+    }
+
+    @Test
+    public void read_afterFinish_usesCurrentCipherForValuesWithoutEnvelope() throws Exception {
+        LazyMigration migration = migration();
+        migration.sweep();
+        // Written by the regular write path once the migration is done
+        byte[] encrypted = currentCipher.encrypt("later".getBytes(StandardCharsets.UTF_8));
+        dataSource.edit().putString(keyFor(0), Base64.encodeToString(encrypted, 0)).commit();
+
+        assertEquals("later", migration.read(keyFor(0)));
+    }
+
+    @Test
+    public void start_sweepsOnBackgroundThreadWithoutLosingConcurrentWrites() throws Exception {
+        populateSavedFormat(400);
+        LazyMigration migration = migration(config(FlutterSecureStorageConfig.PREF_OPTION_MIGRATION_CHUNK_SIZE, "16"));
+
+        Thread sweeper = migration.start();
+        for (int i = 0; i < 400; i += 3) {
+            migration.write(keyFor(i), "written-" + i);
+        }
+        migration.delete(keyFor(1));
+        sweeper.join(30_000);
+
+        assertEquals("com.it_nomads.fluttersecurestorage.sweeper", sweeper.getName());
+        assertFalse(sweeper.isAlive());
+        assertEquals(1, host.finished);
+        assertFalse(dataSource.contains(keyFor(1)));
+        for (int i = 2; i < 400; i++) {
+            assertEquals(i % 3 == 0 ? "written-" + i : valueFor(i), decryptWithCurrent(keyFor(i)));
+        }
+    }
+
+    @Test
+    public void sweep_doesNotBlockMigrationsOfOtherStorages() throws Exception {
+        final CountDownLatch finishing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        LazyMigration.Host blockingHost = new RecordingHost() {
+            @Override
+            public void storeCurrentAlgorithms(SharedPreferences.Editor editor) {
+                // Called while the sweep holds the lock of its storage
+                finishing.countDown();
+                try {
+                    release.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.storeCurrentAlgorithms(editor);
+            }
+        };
+        Thread sweeper = new LazyMigration(blockingHost, dataSource, configSource, savedCipher, SAVED,
+                currentCipher, CURRENT, config()).start();
+        assertTrue(finishing.await(5, TimeUnit.SECONDS));
+
+        Context context = RuntimeEnvironment.getApplication();
+        LazyMigration other = new LazyMigration(new RecordingHost(),
+                context.getSharedPreferences("LazyMigrationOther", Context.MODE_PRIVATE),
+                new NamespacedConfigSource(context, "LazyMigrationOther"), savedCipher, SAVED, currentCipher, CURRENT,
+                config(FlutterSecureStorageConfig.PREF_OPTION_STORAGE_NAMESPACE, "LazyMigrationOther"));
+        Thread access = new Thread(() -> {
+            try {
+                other.write(keyFor(0), "other");
+                assertEquals("other", other.read(keyFor(0)));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        access.start();
+        access.join(2_000);
+
+        try {
+            assertFalse(access.isAlive());
+        } finally {
+            release.countDown();
+            sweeper.join(30_000);
+        }
+    }
+}
@@ -2,6 +2,9 @@ package com.it_nomads.fluttersecurestorage;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Base64;
+
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -10,6 +13,7 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -26,22 +30,29 @@ public class MigrationBackupTest {
     private static final String KEY_PREFIX = "TestPrefix";
     private static final String BACKUP_STATUS_KEY = "FlutterSecureStorageBackupStatus";
 
+    private Context context;
     private SharedPreferences dataSource;
     private SharedPreferences keyStorage;
+    private PreferencesSnapshot dataSnapshot;
+    private PreferencesSnapshot keySnapshot;
     private NamespacedConfigSource configSource;
     private FlutterSecureStorageConfig config;
     private FlutterSecureStorageConfig configWithBackup;
 
     @Before
     public void setUp() {
-        Context context = RuntimeEnvironment.getApplication();
+        context = RuntimeEnvironment.getApplication();
         dataSource   = context.getSharedPreferences("TestData",   Context.MODE_PRIVATE);
         keyStorage   = context.getSharedPreferences("TestKeys",   Context.MODE_PRIVATE);
         configSource = new NamespacedConfigSource(context, "TestConfig");
+        dataSnapshot = PreferencesSnapshot.of(context, "TestData");
+        keySnapshot  = PreferencesSnapshot.of(context, "TestKeys");
 
         dataSource.edit().clear().commit();
         keyStorage.edit().clear().commit();
         configSource.edit().clear().commit();
+        dataSnapshot.delete();
+        keySnapshot.delete();
 
         config = new FlutterSecureStorageConfig(new HashMap<>());
 
@@ -115,30 +126,36 @@ public class MigrationBackupTest {
     // -------------------------------------------------------------------------
 
     @Test
-    public void createBackup_copiesDataEntriesToBackup() {
+    public void createBackup_snapshotsDataEntries() {
         dataSource.edit().putString(KEY_PREFIX + "_key1", "encryptedValue1").commit();
         dataSource.edit().putString(KEY_PREFIX + "_key2", "encryptedValue2").commit();
 
-        MigrationBackup.createBackup(dataSource, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
 
-        assertEquals("encryptedValue1", dataSource.getString(KEY_PREFIX + "_key1_BACKUP", null));
-        assertEquals("encryptedValue2", dataSource.getString(KEY_PREFIX + "_key2_BACKUP", null));
+        Map<String, String> backup = MigrationBackup.readBackup(dataSnapshot, KEY_PREFIX);
+        assertEquals("encryptedValue1", backup.get(KEY_PREFIX + "_key1"));
+        assertEquals("encryptedValue2", backup.get(KEY_PREFIX + "_key2"));
+        // The data file itself is left as it was
+        assertEquals(2, dataSource.getAll().size());
     }
 
     @Test
-    public void createBackup_copiesKeyEntriesToBackup() {
+    public void createBackup_snapshotsKeyEntries() {
         keyStorage.edit().putString("wrappedKey1", "wrappedKeyValue1").commit();
 
-        MigrationBackup.createBackup(dataSource, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
 
-        assertEquals("wrappedKeyValue1", keyStorage.getString("wrappedKey1_BACKUP", null));
+        assertEquals("wrappedKeyValue1", MigrationBackup.readBackup(keySnapshot, null).get("wrappedKey1"));
+        assertFalse(keyStorage.contains("wrappedKey1_BACKUP"));
     }
 
     @Test
     public void createBackup_setsStatusToComplete() {
-        MigrationBackup.createBackup(dataSource, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
 
         assertEquals(MigrationBackup.STATUS_COMPLETE, configSource.getString(BACKUP_STATUS_KEY, null));
+        assertTrue(dataSnapshot.exists());
+        assertTrue(keySnapshot.exists());
     }
 
     @Test
@@ -146,10 +163,10 @@ public class MigrationBackupTest {
         dataSource.edit().putString(KEY_PREFIX + "_key1", "value1").commit();
         configSource.edit().putString(BACKUP_STATUS_KEY, MigrationBackup.STATUS_COMPLETE).commit();
 
-        MigrationBackup.createBackup(dataSource, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
 
-        // _BACKUP entry should NOT have been written since we skipped
-        assertNull(dataSource.getString(KEY_PREFIX + "_key1_BACKUP", null));
+        // No snapshot should have been taken since we skipped
+        assertFalse(dataSnapshot.exists());
     }
 
     @Test
@@ -157,28 +174,108 @@ public class MigrationBackupTest {
         dataSource.edit().putString(KEY_PREFIX + "_key1", "value1").commit();
         configSource.edit().putString(BACKUP_STATUS_KEY, MigrationBackup.STATUS_DELETED).commit();
 
-        MigrationBackup.createBackup(dataSource, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
 
-        assertNull(dataSource.getString(KEY_PREFIX + "_key1_BACKUP", null));
+        assertFalse(dataSnapshot.exists());
     }
 
     @Test
-    public void createBackup_restartsIfStatusIsStarted() {
-        // Simulate a partially created backup: existing _BACKUP entry from crashed run
+    public void createBackup_retakesSnapshotIfStatusIsStarted() throws Exception {
+        // Simulate an interrupted backup: a snapshot of an older state, and a partial in-file
+        // backup left by an earlier plugin version
+        dataSource.edit().putString(KEY_PREFIX + "_oldKey", "staleValue").commit();
+        dataSnapshot.create();
         dataSource.edit()
+                .remove(KEY_PREFIX + "_oldKey")
                 .putString(KEY_PREFIX + "_key1", "value1")
                 .putString(KEY_PREFIX + "_oldKey_BACKUP", "staleValue")
                 .commit();
         configSource.edit().putString(BACKUP_STATUS_KEY, MigrationBackup.STATUS_STARTED).commit();
 
-        MigrationBackup.createBackup(dataSource, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
 
-        // Stale _BACKUP entry should be gone, new one created
+        // Stale entries should be gone, the snapshot matches the current data
         assertNull(dataSource.getString(KEY_PREFIX + "_oldKey_BACKUP", null));
-        assertEquals("value1", dataSource.getString(KEY_PREFIX + "_key1_BACKUP", null));
+        Map<String, String> backup = MigrationBackup.readBackup(dataSnapshot, KEY_PREFIX);
+        assertEquals(1, backup.size());
+        assertEquals("value1", backup.get(KEY_PREFIX + "_key1"));
         assertEquals(MigrationBackup.STATUS_COMPLETE, configSource.getString(BACKUP_STATUS_KEY, null));
     }
 
+    @Test
+    public void createBackup_commitsDataFileOnceRegardlessOfSize() {
+        HashMap<String, Object> options = new HashMap<>();
+        options.put(FlutterSecureStorageConfig.PREF_OPTION_MIGRATE_WITH_BACKUP, "true");
+        options.put(FlutterSecureStorageConfig.PREF_OPTION_MIGRATION_CHUNK_SIZE, "2");
+        FlutterSecureStorageConfig chunkedConfig = new FlutterSecureStorageConfig(options);
+
+        SharedPreferences.Editor editor = dataSource.edit();
+        for (int i = 0; i < 5; i++) {
+            editor.putString(String.format("%s_key%02d", KEY_PREFIX, i), "value" + i);
+        }
+        editor.commit();
+        CountingCommitSharedPreferences counting = new CountingCommitSharedPreferences(dataSource);
+
+        MigrationBackup.createBackup(new PreferencesSnapshot(context, "TestData", counting), keySnapshot,
+                configSource, chunkedConfig, KEY_PREFIX);
+
+        // Only the commit that flushes pending writes before the file is copied
+        assertEquals(1, counting.commits);
+        assertEquals(5, MigrationBackup.readBackup(dataSnapshot, KEY_PREFIX).size());
+    }
+
+    @Test
+    public void createBackup_afterFinishedMigration_startsOver() throws Exception {
+        dataSource.edit().putString(KEY_PREFIX + "_key1", "oldValue1").commit();
+        dataSnapshot.create();
+        dataSource.edit().putString(KEY_PREFIX + "_key1", "value1").commit();
+        configSource.edit().putString(BACKUP_STATUS_KEY, MigrationBackup.STATUS_MIGRATED).commit();
+
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
+
+        assertEquals("value1", MigrationBackup.readBackup(dataSnapshot, KEY_PREFIX).get(KEY_PREFIX + "_key1"));
+        assertEquals(MigrationBackup.STATUS_COMPLETE, configSource.getString(BACKUP_STATUS_KEY, null));
+    }
+
+    @Test
+    public void restore_visibleThroughHeldPreferences() throws Exception {
+        keyStorage.edit().putString("wrappedKey1", "oldWrapped").commit();
+        keySnapshot.create();
+        keyStorage.edit().putString("wrappedKey1", "newWrapped").putBoolean("added", true).commit();
+
+        keySnapshot.restore();
+
+        assertEquals("oldWrapped", keyStorage.getString("wrappedKey1", null));
+        assertFalse(keyStorage.contains("added"));
+        assertEquals("oldWrapped", context.getSharedPreferences("TestKeys", Context.MODE_PRIVATE)
+                .getString("wrappedKey1", null));
+    }
+
+    @Test
+    public void delete_snapshotReadsAsEmptyUntilRetaken() throws Exception {
+        keyStorage.edit().putString("wrappedKey1", "oldWrapped").commit();
+        keySnapshot.create();
+
+        keySnapshot.delete();
+
+        assertFalse(keySnapshot.exists());
+        assertTrue(keySnapshot.read().isEmpty());
+        keyStorage.edit().putString("wrappedKey1", "newWrapped").commit();
+        keySnapshot.create();
+        assertEquals("newWrapped", keySnapshot.read().get("wrappedKey1"));
+    }
+
+    @Test
+    public void createBackup_ignoresStashedKeys() {
+        keyStorage.edit().putString("wrappedKey", "old").putString("wrappedKey_CURRENT", "new").commit();
+
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
+
+        Map<String, String> backup = MigrationBackup.readBackup(keySnapshot, null);
+        assertEquals("old", backup.get("wrappedKey"));
+        assertFalse(backup.containsKey("wrappedKey_CURRENT"));
+    }
+
     @Test
     public void createBackup_skipsNonStringDataEntries() {
         dataSource.edit()
@@ -186,47 +283,61 @@ public class MigrationBackupTest {
                 .putInt(KEY_PREFIX + "_intKey", 42)
                 .commit();
 
-        MigrationBackup.createBackup(dataSource, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
 
-        assertEquals("stringValue", dataSource.getString(KEY_PREFIX + "_stringKey_BACKUP", null));
-        assertNull(dataSource.getString(KEY_PREFIX + "_intKey_BACKUP", null));
+        Map<String, String> backup = MigrationBackup.readBackup(dataSnapshot, KEY_PREFIX);
+        assertEquals("stringValue", backup.get(KEY_PREFIX + "_stringKey"));
+        assertFalse(backup.containsKey(KEY_PREFIX + "_intKey"));
     }
 
     @Test
-    public void createBackup_doesNotCopyEntriesWithoutKeyPrefix() {
+    public void createBackup_doesNotReadEntriesWithoutKeyPrefix() {
         dataSource.edit().putString("OtherPrefix_key1", "value1").commit();
 
-        MigrationBackup.createBackup(dataSource, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
 
-        assertNull(dataSource.getString("OtherPrefix_key1_BACKUP", null));
+        assertTrue(MigrationBackup.readBackup(dataSnapshot, KEY_PREFIX).isEmpty());
     }
 
     @Test
     public void createBackup_skipsNonStringKeyStorageEntries() {
         keyStorage.edit().putInt("intWrappedKey", 42).commit();
 
-        MigrationBackup.createBackup(dataSource, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
 
-        assertNull(keyStorage.getString("intWrappedKey_BACKUP", null));
+        assertTrue(MigrationBackup.readBackup(keySnapshot, null).isEmpty());
     }
 
     @Test
     public void createBackup_doesNotDoubleBackupExistingKeyStorageBackupEntries() {
         keyStorage.edit().putString("wrappedKey1_BACKUP", "alreadyBackedUp").commit();
 
-        MigrationBackup.createBackup(dataSource, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
 
         assertNull(keyStorage.getString("wrappedKey1_BACKUP_BACKUP", null));
+        assertFalse(MigrationBackup.readBackup(keySnapshot, null).containsKey("wrappedKey1_BACKUP"));
     }
 
     @Test
     public void createBackup_doesNotDoubleBackupExistingBackupEntries() {
         dataSource.edit().putString(KEY_PREFIX + "_key1_BACKUP", "alreadyBackedUp").commit();
 
-        MigrationBackup.createBackup(dataSource, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
 
         // Should not create _BACKUP_BACKUP
         assertNull(dataSource.getString(KEY_PREFIX + "_key1_BACKUP_BACKUP", null));
+        assertFalse(MigrationBackup.readBackup(dataSnapshot, KEY_PREFIX).containsKey(KEY_PREFIX + "_key1_BACKUP"));
+    }
+
+    @Test
+    public void createBackup_ofEmptyStorage_takesEmptySnapshot() {
+        context.getSharedPreferences("TestEmptyData", Context.MODE_PRIVATE).edit().clear().commit();
+        PreferencesSnapshot emptySnapshot = PreferencesSnapshot.of(context, "TestEmptyData");
+
+        MigrationBackup.createBackup(emptySnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
+
+        assertTrue(emptySnapshot.exists());
+        assertTrue(MigrationBackup.readBackup(emptySnapshot, KEY_PREFIX).isEmpty());
     }
 
     // -------------------------------------------------------------------------
@@ -240,7 +351,7 @@ public class MigrationBackupTest {
         espSource.edit().clear().commit();
         espSource.edit().putString(KEY_PREFIX + "_espKey1", "encryptedEspValue1").commit();
 
-        MigrationBackup.createBackup(dataSource, keyStorage, espSource, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, espSource, configSource, configWithBackup, KEY_PREFIX);
 
         assertEquals("encryptedEspValue1", espSource.getString(KEY_PREFIX + "_espKey1_BACKUP", null));
     }
@@ -255,7 +366,7 @@ public class MigrationBackupTest {
                 .putInt(KEY_PREFIX + "_intEspKey", 99)           // non-String
                 .commit();
 
-        MigrationBackup.createBackup(dataSource, keyStorage, espSource, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, espSource, configSource, configWithBackup, KEY_PREFIX);
 
         assertNull(espSource.getString("OtherPrefix_espKey_BACKUP", null));
         assertNull(espSource.getString(KEY_PREFIX + "_intEspKey_BACKUP", null));
@@ -268,7 +379,7 @@ public class MigrationBackupTest {
         espSource.edit().clear().commit();
         espSource.edit().putString(KEY_PREFIX + "_espKey1_BACKUP", "alreadyBackedUp").commit();
 
-        MigrationBackup.createBackup(dataSource, keyStorage, espSource, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, espSource, configSource, configWithBackup, KEY_PREFIX);
 
         assertNull(espSource.getString(KEY_PREFIX + "_espKey1_BACKUP_BACKUP", null));
     }
@@ -280,9 +391,9 @@ public class MigrationBackupTest {
         dataSource.edit().putString(KEY_PREFIX + "_key1", "value1").commit();
 
         // ESP commit failure is caught internally — data backup still completes
-        MigrationBackup.createBackup(dataSource, keyStorage, failingEsp, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, failingEsp, configSource, configWithBackup, KEY_PREFIX);
 
-        assertEquals("value1", dataSource.getString(KEY_PREFIX + "_key1_BACKUP", null));
+        assertEquals("value1", MigrationBackup.readBackup(dataSnapshot, KEY_PREFIX).get(KEY_PREFIX + "_key1"));
         assertEquals(MigrationBackup.STATUS_COMPLETE, configSource.getString(BACKUP_STATUS_KEY, null));
     }
 
@@ -290,14 +401,16 @@ public class MigrationBackupTest {
     public void createBackup_throwsWhenDataEditorCommitFails() {
         SharedPreferences failingData = new FailingCommitSharedPreferences(dataSource);
 
-        MigrationBackup.createBackup(failingData, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(new PreferencesSnapshot(context, "TestData", failingData), keySnapshot,
+                configSource, configWithBackup, KEY_PREFIX);
     }
 
     @Test(expected = RuntimeException.class)
     public void createBackup_throwsWhenKeyEditorCommitFails() {
         SharedPreferences failingKeys = new FailingCommitSharedPreferences(keyStorage);
 
-        MigrationBackup.createBackup(dataSource, failingKeys, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, new PreferencesSnapshot(context, "TestKeys", failingKeys),
+                configSource, configWithBackup, KEY_PREFIX);
     }
 
     @Test
@@ -307,39 +420,96 @@ public class MigrationBackupTest {
         dataSource.edit().putString(KEY_PREFIX + "_key1", "value1").commit();
 
         // Should not throw — exception is caught and ESP backup is skipped
-        MigrationBackup.createBackup(dataSource, keyStorage, corruptedEsp, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, corruptedEsp, configSource, configWithBackup, KEY_PREFIX);
 
         // Data backup still completes
-        assertEquals("value1", dataSource.getString(KEY_PREFIX + "_key1_BACKUP", null));
+        assertEquals("value1", MigrationBackup.readBackup(dataSnapshot, KEY_PREFIX).get(KEY_PREFIX + "_key1"));
         assertEquals(MigrationBackup.STATUS_COMPLETE, configSource.getString(BACKUP_STATUS_KEY, null));
     }
 
+    // -------------------------------------------------------------------------
+    // readBackup
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void readBackup_withoutSnapshot_readsLegacyInFileBackup() {
+        dataSource.edit()
+                .putString(KEY_PREFIX + "_key1", "newValue1")
+                .putString(KEY_PREFIX + "_key1_BACKUP", "backupValue1")
+                .putString("OtherPrefix_key2_BACKUP", "otherValue")
+                .commit();
+        keyStorage.edit().putString("wrappedKey1_BACKUP", "backupWrappedValue").commit();
+
+        Map<String, String> data = MigrationBackup.readBackup(dataSnapshot, KEY_PREFIX);
+        assertEquals(1, data.size());
+        assertEquals("backupValue1", data.get(KEY_PREFIX + "_key1"));
+        assertEquals("backupWrappedValue", MigrationBackup.readBackup(keySnapshot, null).get("wrappedKey1"));
+    }
+
+    @Test
+    public void readBackup_isNotAffectedByLaterWrites() {
+        dataSource.edit().putString(KEY_PREFIX + "_key1", "value1").commit();
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
+
+        dataSource.edit().putString(KEY_PREFIX + "_key1", "reEncrypted1").commit();
+
+        assertEquals("value1", MigrationBackup.readBackup(dataSnapshot, KEY_PREFIX).get(KEY_PREFIX + "_key1"));
+    }
+
     // -------------------------------------------------------------------------
     // deleteBackup
     // -------------------------------------------------------------------------
 
     @Test
-    public void deleteBackup_removesBackupEntriesFromDataSource() {
+    public void deleteBackup_deletesSnapshotsAndKeepsOriginals() {
+        dataSource.edit().putString(KEY_PREFIX + "_key1", "value1").commit();
+        keyStorage.edit().putString("wrappedKey1", "wrappedValue").commit();
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
+
+        MigrationBackup.deleteBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
+
+        assertFalse(dataSnapshot.exists());
+        assertFalse(keySnapshot.exists());
+        assertEquals("value1", dataSource.getString(KEY_PREFIX + "_key1", null));
+        assertEquals("wrappedValue", keyStorage.getString("wrappedKey1", null));
+    }
+
+    @Test
+    public void deleteBackup_withoutLegacyEntries_doesNotRewriteFiles() {
+        dataSource.edit().putString(KEY_PREFIX + "_key1", "value1").commit();
+        MigrationBackup.createBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
+        CountingCommitSharedPreferences countingData = new CountingCommitSharedPreferences(dataSource);
+        CountingCommitSharedPreferences countingKeys = new CountingCommitSharedPreferences(keyStorage);
+
+        MigrationBackup.deleteBackup(new PreferencesSnapshot(context, "TestData", countingData),
+                new PreferencesSnapshot(context, "TestKeys", countingKeys), configSource, configWithBackup, KEY_PREFIX);
+
+        assertEquals(0, countingData.commits);
+        assertEquals(0, countingKeys.commits);
+    }
+
+    @Test
+    public void deleteBackup_removesLegacyBackupEntriesFromDataSource() {
         dataSource.edit()
                 .putString(KEY_PREFIX + "_key1", "value1")
                 .putString(KEY_PREFIX + "_key1_BACKUP", "backupValue1")
                 .commit();
         configSource.edit().putString(BACKUP_STATUS_KEY, MigrationBackup.STATUS_COMPLETE).commit();
 
-        MigrationBackup.deleteBackup(dataSource, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.deleteBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
 
         assertNull(dataSource.getString(KEY_PREFIX + "_key1_BACKUP", null));
         assertEquals("value1", dataSource.getString(KEY_PREFIX + "_key1", null));
     }
 
     @Test
-    public void deleteBackup_removesBackupEntriesFromKeyStorage() {
+    public void deleteBackup_removesLegacyBackupEntriesFromKeyStorage() {
         keyStorage.edit()
                 .putString("wrappedKey1", "wrappedValue")
                 .putString("wrappedKey1_BACKUP", "backupWrappedValue")
                 .commit();
 
-        MigrationBackup.deleteBackup(dataSource, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.deleteBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
 
         assertNull(keyStorage.getString("wrappedKey1_BACKUP", null));
         assertEquals("wrappedValue", keyStorage.getString("wrappedKey1", null));
@@ -355,7 +525,7 @@ public class MigrationBackupTest {
                 .putString(KEY_PREFIX + "_espKey1_BACKUP", "backupEspValue")
                 .commit();
 
-        MigrationBackup.deleteBackup(dataSource, keyStorage, espSource, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.deleteBackup(dataSnapshot, keySnapshot, espSource, configSource, configWithBackup, KEY_PREFIX);
 
         assertNull(espSource.getString(KEY_PREFIX + "_espKey1_BACKUP", null));
         assertEquals("espValue", espSource.getString(KEY_PREFIX + "_espKey1", null));
@@ -365,7 +535,7 @@ public class MigrationBackupTest {
     public void deleteBackup_doesNotRemoveDataBackupEntriesWithoutKeyPrefix() {
         dataSource.edit().putString("OtherPrefix_key1_BACKUP", "otherBackupValue").commit();
 
-        MigrationBackup.deleteBackup(dataSource, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.deleteBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
 
         assertEquals("otherBackupValue", dataSource.getString("OtherPrefix_key1_BACKUP", null));
     }
@@ -377,7 +547,7 @@ public class MigrationBackupTest {
         espSource.edit().clear().commit();
         espSource.edit().putString("OtherPrefix_espKey_BACKUP", "otherBackupValue").commit();
 
-        MigrationBackup.deleteBackup(dataSource, keyStorage, espSource, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.deleteBackup(dataSnapshot, keySnapshot, espSource, configSource, configWithBackup, KEY_PREFIX);
 
         assertEquals("otherBackupValue", espSource.getString("OtherPrefix_espKey_BACKUP", null));
     }
@@ -386,107 +556,64 @@ public class MigrationBackupTest {
     public void deleteBackup_removesStatusKey() {
         configSource.edit().putString(BACKUP_STATUS_KEY, MigrationBackup.STATUS_COMPLETE).commit();
 
-        MigrationBackup.deleteBackup(dataSource, keyStorage, configSource, configWithBackup, KEY_PREFIX);
+        MigrationBackup.deleteBackup(dataSnapshot, keySnapshot, configSource, configWithBackup, KEY_PREFIX);
 
         assertNull(configSource.getString(BACKUP_STATUS_KEY, null));
     }
 
     // -------------------------------------------------------------------------
-    // deleteOriginalData
+    // deleteOriginalKeys
     // -------------------------------------------------------------------------
 
     @Test
-    public void deleteOriginalData_doesNotRemoveDataEntriesWithoutKeyPrefix() {
-        dataSource.edit().putString("OtherPrefix_key1", "otherValue").commit();
-
-        MigrationBackup.deleteOriginalData(dataSource, keyStorage, KEY_PREFIX);
-
-        assertEquals("otherValue", dataSource.getString("OtherPrefix_key1", null));
-    }
-
-    @Test
-    public void deleteOriginalData_doesNotRemoveKeyStorageBackupEntries() {
-        keyStorage.edit()
-                .putString("wrappedKey1", "wrappedValue")
-                .putString("wrappedKey1_BACKUP", "backupWrappedValue")
-                .commit();
-
-        MigrationBackup.deleteOriginalData(dataSource, keyStorage, KEY_PREFIX);
-
-        assertNull(keyStorage.getString("wrappedKey1", null));
-        assertEquals("backupWrappedValue", keyStorage.getString("wrappedKey1_BACKUP", null));
-    }
-
-    @Test
-    public void deleteOriginalData_deletesKeyStorage_whenConfigSourceNotNullButNoMigratedMarkers() {
+    public void deleteOriginalKeys_removesKeyStorageEntries_whenNoMigratedMarkers() {
         keyStorage.edit().putString("wrappedKey1", "wrappedValue").commit();
-        // configSource is not null but has no _MIGRATED markers
 
-        MigrationBackup.deleteOriginalData(dataSource, keyStorage, configSource, KEY_PREFIX);
+        MigrationBackup.deleteOriginalKeys(keyStorage, dataSource, configSource, KEY_PREFIX);
 
         assertNull(keyStorage.getString("wrappedKey1", null));
     }
 
     @Test
-    public void deleteOriginalData_removesNonBackupDataEntries() {
-        dataSource.edit()
-                .putString(KEY_PREFIX + "_key1", "value1")
-                .putString(KEY_PREFIX + "_key1_BACKUP", "backupValue1")
-                .commit();
+    public void deleteOriginalKeys_leavesDataUntouched() {
+        dataSource.edit().putString(KEY_PREFIX + "_key1", "value1").commit();
+        keyStorage.edit().putString("wrappedKey1", "wrappedValue").commit();
 
-        MigrationBackup.deleteOriginalData(dataSource, keyStorage, KEY_PREFIX);
+        MigrationBackup.deleteOriginalKeys(keyStorage, dataSource, configSource, KEY_PREFIX);
 
-        assertNull(dataSource.getString(KEY_PREFIX + "_key1", null));
-        assertEquals("backupValue1", dataSource.getString(KEY_PREFIX + "_key1_BACKUP", null));
+        assertEquals("value1", dataSource.getString(KEY_PREFIX + "_key1", null));
     }
 
     @Test
-    public void deleteOriginalData_removesKeyStorageEntries_whenNoMigratedMarkers() {
+    public void deleteOriginalKeys_doesNotRemoveLegacyKeyStorageBackupEntries() {
         keyStorage.edit()
                 .putString("wrappedKey1", "wrappedValue")
+                .putString("wrappedKey1_BACKUP", "backupWrappedValue")
                 .commit();
 
-        MigrationBackup.deleteOriginalData(dataSource, keyStorage, KEY_PREFIX);
+        MigrationBackup.deleteOriginalKeys(keyStorage, dataSource, configSource, KEY_PREFIX);
 
         assertNull(keyStorage.getString("wrappedKey1", null));
+        assertEquals("backupWrappedValue", keyStorage.getString("wrappedKey1_BACKUP", null));
     }
 
     @Test
-    public void deleteOriginalData_preservesAlreadyMigratedKeys() {
-        dataSource.edit()
-                .putString(KEY_PREFIX + "_key1", "oldValue")
-                .putString(KEY_PREFIX + "_key2", "notMigratedYet")
-                .commit();
-        configSource.edit()
-                .putBoolean(KEY_PREFIX + "_key1_MIGRATED", true)
-                .commit();
-
-        MigrationBackup.deleteOriginalData(dataSource, keyStorage, configSource, KEY_PREFIX);
-
-        // key1 was already migrated — preserve it
-        assertEquals("oldValue", dataSource.getString(KEY_PREFIX + "_key1", null));
-        // key2 was not migrated — delete it
-        assertNull(dataSource.getString(KEY_PREFIX + "_key2", null));
-    }
-
-    @Test
-    public void deleteOriginalData_preservesKeyStorage_whenMigratedMarkersExist() {
+    public void deleteOriginalKeys_preservesKeyStorage_whenMigratedMarkersExist() {
         keyStorage.edit().putString("wrappedKey1", "newWrappedValue").commit();
         configSource.edit()
                 .putBoolean(KEY_PREFIX + "_key1_MIGRATED", true)
                 .commit();
 
-        MigrationBackup.deleteOriginalData(dataSource, keyStorage, configSource, KEY_PREFIX);
+        MigrationBackup.deleteOriginalKeys(keyStorage, dataSource, configSource, KEY_PREFIX);
 
         // keyStorage must be preserved when migrated markers exist
         assertEquals("newWrappedValue", keyStorage.getString("wrappedKey1", null));
     }
 
     @Test
-    public void deleteOriginalData_preservesKeyStorage_whenDataSourceEmptyButMigratedMarkersExist() {
+    public void deleteOriginalKeys_preservesKeyStorage_whenDataSourceEmptyButMigratedMarkersExist() {
         // Regression test for cc0d932: dataSource is empty (all values already re-encrypted and
         // written back), but configSource still has _MIGRATED markers from the previous run.
-        // preservedCount stays 0 because there are no dataSource entries to iterate, yet
         // hasMigratedMarkers() must still return true so keyStorage is preserved.
         keyStorage.edit().putString("wrappedKey1", "newWrappedValue").commit();
         configSource.edit()
@@ -494,7 +621,7 @@ public class MigrationBackupTest {
                 .commit();
         // dataSource intentionally empty
 
-        MigrationBackup.deleteOriginalData(dataSource, keyStorage, configSource, KEY_PREFIX);
+        MigrationBackup.deleteOriginalKeys(keyStorage, dataSource, configSource, KEY_PREFIX);
 
         assertEquals("newWrappedValue", keyStorage.getString("wrappedKey1", null));
     }
@@ -576,10 +703,294 @@ public class MigrationBackupTest {
         assertTrue(configSource.contains("OtherPrefix_key1_MIGRATED"));
     }
 
+    // -------------------------------------------------------------------------
+    // stashCurrentKeys
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void stashCurrentKeys_copiesWrappedKeysOnly() throws Exception {
+        keyStorage.edit()
+                .putString("wrappedKey", "new")
+                .putString("wrappedKey_BACKUP", "old")
+                .commit();
+
+        MigrationBackup.stashCurrentKeys(keyStorage);
+
+        assertEquals("new", keyStorage.getString("wrappedKey_CURRENT", null));
+        assertNull(keyStorage.getString("wrappedKey_BACKUP_CURRENT", null));
+        assertEquals(1, MigrationBackup.getStashedKeys(keyStorage).size());
+        assertEquals("new", MigrationBackup.getStashedKeys(keyStorage).get("wrappedKey"));
+    }
+
+    @Test
+    public void deleteStashedKeys_keepsEverythingElse() throws Exception {
+        keyStorage.edit().putString("wrappedKey", "new").putString("wrappedKey_BACKUP", "old").commit();
+        MigrationBackup.stashCurrentKeys(keyStorage);
+
+        MigrationBackup.deleteStashedKeys(keyStorage);
+
+        assertTrue(MigrationBackup.getStashedKeys(keyStorage).isEmpty());
+        assertEquals("new", keyStorage.getString("wrappedKey", null));
+        assertEquals("old", keyStorage.getString("wrappedKey_BACKUP", null));
+    }
+
+    // -------------------------------------------------------------------------
+    // encryptAllWithJournal
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void encryptAllWithJournal_writesAllEntriesInChunks() throws Exception {
+        Map<String, String> cache = plaintextCache(10);
+        CountingCommitSharedPreferences counted = new CountingCommitSharedPreferences(dataSource);
+
+        int written = MigrationBackup.encryptAllWithJournal(cache, counted, configSource, new FlipCipher(), KEY_PREFIX, 4);
+
+        assertEquals(10, written);
+        assertEquals(3, counted.commits);
+        for (Map.Entry<String, String> entry : cache.entrySet()) {
+            assertEquals(entry.getValue(), FlipCipher.decode(dataSource.getString(entry.getKey(), null)));
+        }
+        assertTrue(MigrationBackup.hasMigrationJournal(dataSource, KEY_PREFIX));
+    }
+
+    @Test
+    public void encryptAllWithJournal_resumesAfterCrashFromLastCommittedChunk() throws Exception {
+        Map<String, String> cache = plaintextCache(10);
+        // Crash while encrypting the 6th entry: chunk 1 (entries 1-4) is committed, chunk 2 is not
+        FlipCipher crashing = new FlipCipher(5);
+        try {
+            MigrationBackup.encryptAllWithJournal(cache, dataSource, configSource, crashing, KEY_PREFIX, 4);
+        } catch (Exception expected) {
+            // Expected: simulated crash
+        }
+        assertTrue(MigrationBackup.hasMigrationJournal(dataSource, KEY_PREFIX));
+        assertNull(dataSource.getString(KEY_PREFIX + "_key04", null));
+
+        FlipCipher resumed = new FlipCipher();
+        int written = MigrationBackup.encryptAllWithJournal(cache, dataSource, configSource, resumed, KEY_PREFIX, 4);
+
+        assertEquals(6, written);
+        assertEquals(6, resumed.encryptions);
+        for (Map.Entry<String, String> entry : cache.entrySet()) {
+            assertEquals(entry.getValue(), FlipCipher.decode(dataSource.getString(entry.getKey(), null)));
+        }
+    }
+
+    @Test
+    public void encryptAllWithJournal_skipsKeysWithLegacyMigratedMarkers() throws Exception {
+        Map<String, String> cache = plaintextCache(3);
+        configSource.edit().putBoolean(KEY_PREFIX + "_key01_MIGRATED", true).commit();
+
+        int written = MigrationBackup.encryptAllWithJournal(cache, dataSource, configSource, new FlipCipher(), KEY_PREFIX, 10);
+
+        assertEquals(2, written);
+        assertNull(dataSource.getString(KEY_PREFIX + "_key01", null));
+    }
+
+    @Test
+    public void encryptAllWithJournal_removesOriginalsWhoseBackupCouldNotBeDecrypted() throws Exception {
+        dataSource.edit()
+                .putString(KEY_PREFIX + "_broken", "oldCiphertext")
+                .putString(KEY_PREFIX + "_broken_BACKUP", "oldCiphertext")
+                .commit();
+
+        MigrationBackup.encryptAllWithJournal(plaintextCache(2), dataSource, configSource, new FlipCipher(), KEY_PREFIX, 10);
+
+        assertNull(dataSource.getString(KEY_PREFIX + "_broken", null));
+        assertEquals("oldCiphertext", dataSource.getString(KEY_PREFIX + "_broken_BACKUP", null));
+    }
+
+    @Test
+    public void encryptAllWithJournal_journalIsNotUserData() throws Exception {
+        MigrationBackup.encryptAllWithJournal(plaintextCache(2), dataSource, configSource, new FlipCipher(), KEY_PREFIX, 10);
+
+        for (String key : dataSource.getAll().keySet()) {
+            if (!key.contains(KEY_PREFIX)) {
+                // Only the journal lives outside the prefix namespace
+                assertEquals("FlutterSecureStorageMigrationJournal", key);
+            }
+        }
+    }
+
+    @Test
+    public void encryptAllWithJournal_prefixOccurringInJournalKey_journalIsNotUserData() throws Exception {
+        String prefix = "Storage";
+        Map<String, String> cache = new HashMap<>();
+        for (int i = 0; i < 4; i++) {
+            cache.put(prefix + "_key0" + i, "value0" + i);
+        }
+        try {
+            MigrationBackup.encryptAllWithJournal(cache, dataSource, configSource, new FlipCipher(3), prefix, 2);
+        } catch (Exception expected) {
+            // Expected: simulated crash after the first chunk
+        }
+        assertTrue(MigrationBackup.hasMigrationJournal(dataSource, prefix));
+        assertFalse(ChunkedMigration.collectKeys(dataSource, prefix).contains("FlutterSecureStorageMigrationJournal"));
+        dataSnapshot.create();
+        assertFalse(MigrationBackup.readBackup(dataSnapshot, prefix).containsKey("FlutterSecureStorageMigrationJournal"));
+
+        int written = MigrationBackup.encryptAllWithJournal(cache, dataSource, configSource, new FlipCipher(), prefix, 2);
+
+        assertEquals(2, written);
+        assertTrue(MigrationBackup.hasMigrationJournal(dataSource, prefix));
+        for (Map.Entry<String, String> entry : cache.entrySet()) {
+            assertEquals(entry.getValue(), FlipCipher.decode(dataSource.getString(entry.getKey(), null)));
+        }
+    }
+
+    @Test
+    public void deleteOriginalKeys_preservesKeyStorage_whenJournalExists() throws Exception {
+        Map<String, String> cache = plaintextCache(4);
+        try {
+            MigrationBackup.encryptAllWithJournal(cache, dataSource, configSource, new FlipCipher(3), KEY_PREFIX, 2);
+        } catch (Exception expected) {
+            // Expected: simulated crash after the first chunk
+        }
+        keyStorage.edit().putString("wrappedKey1", "newWrappedValue").commit();
+
+        MigrationBackup.deleteOriginalKeys(keyStorage, dataSource, configSource, KEY_PREFIX);
+
+        assertEquals("value00", FlipCipher.decode(dataSource.getString(KEY_PREFIX + "_key00", null)));
+        assertEquals("newWrappedValue", keyStorage.getString("wrappedKey1", null));
+    }
+
+    @Test
+    public void encryptAllWithJournal_removesOriginalsMissingFromCache() throws Exception {
+        dataSource.edit().putString(KEY_PREFIX + "_broken", "oldCiphertext").commit();
+
+        MigrationBackup.encryptAllWithJournal(plaintextCache(2), dataSource, configSource, new FlipCipher(), KEY_PREFIX, 10);
+
+        assertNull(dataSource.getString(KEY_PREFIX + "_broken", null));
+        assertEquals("value01", FlipCipher.decode(dataSource.getString(KEY_PREFIX + "_key01", null)));
+    }
+
+    @Test
+    public void hasMigrationJournal_ignoresJournalOfOtherPrefix() {
+        dataSource.edit().putString("FlutterSecureStorageMigrationJournal", "3|OtherPrefix_key2").commit();
+
+        assertFalse(MigrationBackup.hasMigrationJournal(dataSource, KEY_PREFIX));
+    }
+
+    @Test
+    public void deleteMigrationJournal_removesJournal() throws Exception {
+        MigrationBackup.encryptAllWithJournal(plaintextCache(2), dataSource, configSource, new FlipCipher(), KEY_PREFIX, 10);
+
+        MigrationBackup.deleteMigrationJournal(dataSource);
+
+        assertFalse(MigrationBackup.hasMigrationJournal(dataSource, KEY_PREFIX));
+        assertFalse(dataSource.contains("FlutterSecureStorageMigrationJournal"));
+    }
+
     // -------------------------------------------------------------------------
     // Helpers
     // -------------------------------------------------------------------------
 
+    private static Map<String, String> plaintextCache(int count) {
+        Map<String, String> cache = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            cache.put(String.format("%s_key%02d", KEY_PREFIX, i), String.format("value%02d", i));
+        }
+        return cache;
+    }
+
+    /** Reversible stand-in for a storage cipher that can simulate a crash after N encryptions. */
+    private static class FlipCipher implements StorageCipher {
+        private final int crashAfter;
+        int encryptions = 0;
+
+        FlipCipher() {
+            this(Integer.MAX_VALUE);
+        }
+
+        FlipCipher(int crashAfter) {
+            this.crashAfter = crashAfter;
+        }
+
+        static String encode(String value) {
+            return Base64.encodeToString(flip(value.getBytes(StandardCharsets.UTF_8)), 0);
+        }
+
+        static String decode(String stored) {
+            return new String(flip(Base64.decode(stored, 0)), StandardCharsets.UTF_8);
+        }
+
+        private static byte[] flip(byte[] input) {
+            byte[] output = new byte[input.length];
+            for (int i = 0; i < input.length; i++) {
+                output[i] = (byte) ~input[i];
+            }
+            return output;
+        }
+
+        @Override
+        public byte[] encrypt(byte[] input) {
+            if (encryptions >= crashAfter) {
+                throw new IllegalStateException("Simulated crash");
+            }
+            encryptions++;
+            return flip(input);
+        }
+
+        @Override
+        public byte[] decrypt(byte[] input) {
+            return flip(input);
+        }
+
+        @Override
+        public void deleteKey(Context context) {
+        }
+    }
+
+    /** SharedPreferences wrapper that counts commit() calls on its editors. */
+    private static class CountingCommitSharedPreferences implements SharedPreferences {
+        private final SharedPreferences delegate;
+        int commits = 0;
+
+        CountingCommitSharedPreferences(SharedPreferences delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override public Map<String, ?> getAll() { return delegate.getAll(); }
+        @Override public String getString(String key, String defValue) { return delegate.getString(key, defValue); }
+        @Override public Set<String> getStringSet(String key, Set<String> defValues) { return delegate.getStringSet(key, defValues); }
+        @Override public int getInt(String key, int defValue) { return delegate.getInt(key, defValue); }
+        @Override public long getLong(String key, long defValue) { return delegate.getLong(key, defValue); }
+        @Override public float getFloat(String key, float defValue) { return delegate.getFloat(key, defValue); }
+        @Override public boolean getBoolean(String key, boolean defValue) { return delegate.getBoolean(key, defValue); }
+        @Override public boolean contains(String key) { return delegate.contains(key); }
+        @Override public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) { delegate.registerOnSharedPreferenceChangeListener(listener); }
+        @Override public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) { delegate.unregisterOnSharedPreferenceChangeListener(listener); }
+
+        @Override
+        public Editor edit() {
+            return new CountingEditor(delegate.edit());
+        }
+
+        private class CountingEditor implements Editor {
+            private final Editor delegate;
+
+            CountingEditor(Editor delegate) {
+                this.delegate = delegate;
+            }
+
+            @Override public Editor putString(String key, String value) { delegate.putString(key, value); return this; }
+            @Override public Editor putStringSet(String key, Set<String> values) { delegate.putStringSet(key, values); return this; }
+            @Override public Editor putInt(String key, int value) { delegate.putInt(key, value); return this; }
+            @Override public Editor putLong(String key, long value) { delegate.putLong(key, value); return this; }
+            @Override public Editor putFloat(String key, float value) { delegate.putFloat(key, value); return this; }
+            @Override public Editor putBoolean(String key, boolean value) { delegate.putBoolean(key, value); return this; }
+            @Override public Editor remove(String key) { delegate.remove(key); return this; }
+            @Override public Editor clear() { delegate.clear(); return this; }
+            @Override public void apply() { delegate.apply(); }
+
+            @Override
+            public boolean commit() {
+                commits++;
+                return delegate.commit();
+            }
+        }
+    }
+
     /**
      * SharedPreferences wrapper whose edit() returns an Editor that always returns false from
      * commit(), to exercise the commit-failure RuntimeException paths in MigrationBackup.
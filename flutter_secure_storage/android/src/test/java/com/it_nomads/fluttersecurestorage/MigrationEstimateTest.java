@@ -0,0 +1,282 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import com.it_nomads.fluttersecurestorage.ciphers.IdentifiedStorageCipher;
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipherAlgorithm;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class MigrationEstimateTest {
+
+    private static final String NAMESPACE = "MigrationEstimateTest";
+    private static final String KEY_PREFIX = "VGhpcyBpcyB0aGUgcHJlZml4IGZvciBhIHNlY3VyZSBzdG9yYWdlCg";
+    // Must match the private constants in StorageCipherFactory
+    private static final String PREF_KEY_ALGORITHM = "FlutterSecureSAlgorithmKey";
+    private static final String PREF_STORAGE_ALGORITHM = "FlutterSecureSAlgorithmStorage";
+
+    private Context context;
+    private SharedPreferences dataSource;
+    private SharedPreferences keyStorage;
+    private NamespacedConfigSource configSource;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        dataSource = context.getSharedPreferences(NAMESPACE, Context.MODE_PRIVATE);
+        dataSource.edit().clear().commit();
+        keyStorage = context.getSharedPreferences("FlutterSecureKeyStorage:" + NAMESPACE, Context.MODE_PRIVATE);
+        keyStorage.edit().clear().commit();
+        configSource = new NamespacedConfigSource(context, NAMESPACE);
+        configSource.edit().clear().commit();
+        context.getSharedPreferences("FlutterSecureStorageConfiguration", Context.MODE_PRIVATE).edit().clear().commit();
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    private FlutterSecureStorageConfig config(String... options) {
+        Map<String, Object> map = new HashMap<>();
+        map.put(FlutterSecureStorageConfig.PREF_OPTION_STORAGE_NAMESPACE, NAMESPACE);
+        for (int i = 0; i < options.length; i += 2) {
+            map.put(options[i], options[i + 1]);
+        }
+        return new FlutterSecureStorageConfig(map);
+    }
+
+    private void saveAlgorithms(String keyAlgorithm, String storageAlgorithm) {
+        configSource.edit()
+                .putString(PREF_KEY_ALGORITHM, keyAlgorithm)
+                .putString(PREF_STORAGE_ALGORITHM, storageAlgorithm)
+                .commit();
+    }
+
+    /** Stores count values of ciphertextLength bytes without an envelope, as older versions did. */
+    private void populate(int count, int ciphertextLength) {
+        SharedPreferences.Editor editor = dataSource.edit();
+        for (int i = 0; i < count; i++) {
+            byte[] ciphertext = new byte[ciphertextLength];
+            ciphertext[0] = (byte) i;
+            editor.putString(KEY_PREFIX + "_key" + i, Base64.encodeToString(ciphertext, 0));
+        }
+        editor.commit();
+    }
+
+    // -------------------------------------------------------------------------
+    // Inspection
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void estimate_countsEntriesAndCiphertextBytes() throws Exception {
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_CBC_PKCS7Padding");
+        populate(10, 48);
+        dataSource.edit()
+                .putString(KEY_PREFIX + "_enveloped", ValueEnvelope.encode(StorageCipherAlgorithm.AES_CBC_PKCS7Padding,
+                        IdentifiedStorageCipher.KEY_ID_WRAPPED, new byte[32]))
+                .putString("otherPrefix_key", Base64.encodeToString(new byte[48], 0))
+                .commit();
+
+        MigrationEstimate estimate = MigrationEstimate.estimate(context, config());
+
+        assertEquals(11, estimate.getEntries());
+        assertEquals(10 * 48 + 32, estimate.getCiphertextBytes());
+        assertEquals(0, estimate.getUnreadableEntries());
+        assertEquals("RSA_ECB_PKCS1Padding", estimate.getSavedKeyAlgorithm());
+        assertEquals("AES_CBC_PKCS7Padding", estimate.getSavedStorageAlgorithm());
+        assertEquals("RSA_ECB_OAEPwithSHA_256andMGF1Padding", estimate.getCurrentKeyAlgorithm());
+        assertEquals("AES_GCM_NoPadding", estimate.getCurrentStorageAlgorithm());
+    }
+
+    @Test
+    public void estimate_countsUnreadableEntries() throws Exception {
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_CBC_PKCS7Padding");
+        populate(3, 32);
+        dataSource.edit().putString(KEY_PREFIX + "_broken", ValueEnvelope.MARKER + "AQ==").commit();
+
+        MigrationEstimate estimate = MigrationEstimate.estimate(context, config());
+
+        assertEquals(4, estimate.getEntries());
+        assertEquals(1, estimate.getUnreadableEntries());
+    }
+
+    @Test
+    public void estimate_doesNotModifyAnything() throws Exception {
+        populate(50, 64);
+        Map<String, ?> data = new HashMap<>(dataSource.getAll());
+
+        // No markers: initialization would write them, the estimate must not
+        MigrationEstimate.estimate(context, config());
+
+        assertEquals(data, dataSource.getAll());
+        assertTrue(keyStorage.getAll().isEmpty());
+        assertNull(configSource.getString(PREF_KEY_ALGORITHM, null));
+        assertNull(configSource.getString(PREF_STORAGE_ALGORITHM, null));
+        assertNull(MigrationBackup.getBackupStatus(configSource, config()));
+        assertFalse(PreferencesSnapshot.of(context, NAMESPACE).exists());
+    }
+
+    // -------------------------------------------------------------------------
+    // Strategy
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void estimate_sameAlgorithms_requiresNoMigration() throws Exception {
+        saveAlgorithms("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_GCM_NoPadding");
+        populate(20, 40);
+
+        MigrationEstimate estimate = MigrationEstimate.estimate(context, config());
+
+        assertFalse(estimate.requiresMigration());
+        assertEquals(MigrationEstimate.STRATEGY_NONE, estimate.getStrategy());
+        assertEquals(20, estimate.getEntries());
+        assertEquals(0, estimate.getSampledEntries());
+        assertEquals(0, estimate.getEstimatedMillis());
+        assertEquals(0, estimate.getEstimatedPeakMemoryBytes());
+    }
+
+    @Test
+    public void estimate_onlyKeyAlgorithmChanged_rewrapsKey() throws Exception {
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_GCM_NoPadding");
+        populate(20, 40);
+
+        MigrationEstimate estimate = MigrationEstimate.estimate(context, config());
+
+        assertEquals(MigrationEstimate.STRATEGY_REWRAP, estimate.getStrategy());
+        assertTrue(estimate.blocksInitialization());
+        assertEquals(0, estimate.getEstimatedPeakMemoryBytes());
+    }
+
+    @Test
+    public void estimate_storageAlgorithmChanged_followsMigrationOptions() throws Exception {
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_CBC_PKCS7Padding");
+        populate(20, 48);
+
+        assertEquals(MigrationEstimate.STRATEGY_CHUNKED,
+                MigrationEstimate.estimate(context, config()).getStrategy());
+        assertEquals(MigrationEstimate.STRATEGY_BACKUP, MigrationEstimate.estimate(context,
+                config(FlutterSecureStorageConfig.PREF_OPTION_MIGRATE_WITH_BACKUP, "true")).getStrategy());
+
+        MigrationEstimate lazy = MigrationEstimate.estimate(context,
+                config(FlutterSecureStorageConfig.PREF_OPTION_LAZY_MIGRATION, "true"));
+        assertEquals(MigrationEstimate.STRATEGY_LAZY, lazy.getStrategy());
+        assertFalse(lazy.blocksInitialization());
+    }
+
+    @Test
+    public void estimate_backupInProgress_isNotLazy() throws Exception {
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_CBC_PKCS7Padding");
+        populate(5, 48);
+        FlutterSecureStorageConfig config = config(
+                FlutterSecureStorageConfig.PREF_OPTION_MIGRATE_WITH_BACKUP, "true",
+                FlutterSecureStorageConfig.PREF_OPTION_LAZY_MIGRATION, "true");
+        MigrationBackup.setBackupStatus(configSource, config, MigrationBackup.STATUS_STARTED);
+
+        MigrationEstimate estimate = MigrationEstimate.estimate(context, config);
+
+        assertEquals(MigrationEstimate.STRATEGY_BACKUP, estimate.getStrategy());
+    }
+
+    @Test
+    public void estimate_biometricKey_requiresAuthenticationAndDoesNotDecrypt() throws Exception {
+        saveAlgorithms("AES_GCM_NoPadding", "AES_GCM_NoPadding");
+        populate(8, 40);
+
+        MigrationEstimate estimate = MigrationEstimate.estimate(context, config());
+
+        assertTrue(estimate.requiresAuthentication());
+        assertEquals(MigrationEstimate.STRATEGY_BIOMETRIC, estimate.getStrategy());
+        assertEquals(8, estimate.getSampledEntries());
+        assertEquals(0, estimate.getDecryptedSamples());
+        assertEquals(0, estimate.getFailedSamples());
+        assertEquals(1, estimate.getWorkers());
+    }
+
+    // -------------------------------------------------------------------------
+    // Sampling and extrapolation
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void estimate_samplesAtMostSampleSizeEntries() throws Exception {
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_CBC_PKCS7Padding");
+        populate(MigrationEstimate.SAMPLE_SIZE * 5 + 3, 48);
+
+        MigrationEstimate estimate = MigrationEstimate.estimate(context, config());
+
+        assertEquals(MigrationEstimate.SAMPLE_SIZE, estimate.getSampledEntries());
+        // No wrapped key is stored, so nothing can be decrypted and nothing is generated
+        assertEquals(0, estimate.getDecryptedSamples());
+        assertTrue(keyStorage.getAll().isEmpty());
+    }
+
+    @Test
+    public void estimate_chunked_holdsChunkPlaintextAndAllStagedValues() throws Exception {
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_CBC_PKCS7Padding");
+        populate(100, 48);
+
+        MigrationEstimate estimate = MigrationEstimate.estimate(context, config(
+                FlutterSecureStorageConfig.PREF_OPTION_MIGRATION_CHUNK_SIZE, "10",
+                FlutterSecureStorageConfig.PREF_OPTION_MIGRATION_PARALLELISM, "1"));
+
+        // Below the parallel threshold a single worker holds one chunk of 32-byte plaintexts
+        assertEquals(1, estimate.getWorkers());
+        assertEquals(10 * 32 + estimate.getStoredBytes(), estimate.getEstimatedPeakMemoryBytes());
+    }
+
+    @Test
+    public void estimate_backup_holdsAllPlaintext() throws Exception {
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_CBC_PKCS7Padding");
+        populate(100, 48);
+
+        MigrationEstimate estimate = MigrationEstimate.estimate(context, config(
+                FlutterSecureStorageConfig.PREF_OPTION_MIGRATE_WITH_BACKUP, "true",
+                FlutterSecureStorageConfig.PREF_OPTION_MIGRATION_CHUNK_SIZE, "10"));
+
+        assertEquals(100 * 32 + 10 * (estimate.getStoredBytes() / 100), estimate.getEstimatedPeakMemoryBytes());
+    }
+
+    @Test
+    public void estimate_largeStore_usesParallelWorkers() throws Exception {
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_CBC_PKCS7Padding");
+        populate(ChunkedMigration.PARALLEL_MIN_ENTRIES, 48);
+
+        MigrationEstimate estimate = MigrationEstimate.estimate(context, config(
+                FlutterSecureStorageConfig.PREF_OPTION_MIGRATION_CHUNK_SIZE, "64",
+                FlutterSecureStorageConfig.PREF_OPTION_MIGRATION_PARALLELISM, "4"));
+
+        assertEquals(4, estimate.getWorkers());
+    }
+
+    @Test
+    public void toMap_containsEstimate() throws Exception {
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_CBC_PKCS7Padding");
+        populate(4, 48);
+
+        MigrationEstimate estimate = MigrationEstimate.estimate(context, config());
+        Map<String, Object> map = estimate.toMap();
+
+        assertEquals(true, map.get("requiresMigration"));
+        assertEquals(MigrationEstimate.STRATEGY_CHUNKED, map.get("strategy"));
+        assertEquals(4, map.get("entries"));
+        assertEquals(4L * 48, map.get("ciphertextBytes"));
+        assertEquals(estimate.getEstimatedMillis(), map.get("estimatedMillis"));
+        assertEquals("AES_GCM_NoPadding", map.get("currentStorageAlgorithm"));
+    }
+}
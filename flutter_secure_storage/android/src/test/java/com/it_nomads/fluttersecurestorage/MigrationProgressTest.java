@@ -0,0 +1,146 @@
+package com.it_nomads.fluttersecurestorage;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class MigrationProgressTest {
+
+    private final List<Map<String, Object>> events = Collections.synchronizedList(new ArrayList<>());
+    private final MigrationProgress.Listener listener = events::add;
+
+    // -------------------------------------------------------------------------
+    // Events
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void startPhase_emitsEventWithAllFields() {
+        MigrationProgress progress = new MigrationProgress("storage", listener, 0);
+
+        progress.startPhase(MigrationProgress.PHASE_ENCRYPT, 42);
+
+        assertEquals(1, events.size());
+        Map<String, Object> event = events.get(0);
+        assertEquals("storage", event.get("storage"));
+        assertEquals(MigrationProgress.PHASE_ENCRYPT, event.get("phase"));
+        assertEquals(0, event.get("processed"));
+        assertEquals(42, event.get("total"));
+        assertEquals(0L, event.get("bytes"));
+        assertTrue((Long) event.get("elapsedMillis") >= 0);
+        assertFalse(event.containsKey("error"));
+    }
+
+    @Test
+    public void advance_withoutInterval_emitsEveryCall() {
+        MigrationProgress progress = new MigrationProgress("storage", listener, 0);
+        progress.startPhase(MigrationProgress.PHASE_DECRYPT, 10);
+
+        progress.advance(4, 40);
+        progress.advance(6, 60);
+
+        assertEquals(3, events.size());
+        assertEquals(4, events.get(1).get("processed"));
+        assertEquals(10, events.get(2).get("processed"));
+        assertEquals(100L, events.get(2).get("bytes"));
+    }
+
+    @Test
+    public void advance_withinInterval_onlyEmitsCompletedPhase() {
+        MigrationProgress progress = new MigrationProgress("storage", listener, 60_000);
+        progress.startPhase(MigrationProgress.PHASE_ENCRYPT, 1000);
+
+        for (int i = 0; i < 1000; i++) {
+            progress.advance(1, 10);
+        }
+
+        // The start of the phase and its last entry
+        assertEquals(2, events.size());
+        assertEquals(1000, events.get(1).get("processed"));
+        assertEquals(10_000L, events.get(1).get("bytes"));
+    }
+
+    @Test
+    public void startPhase_resetsCounts() {
+        MigrationProgress progress = new MigrationProgress("storage", listener, 0);
+        progress.startPhase(MigrationProgress.PHASE_BACKUP, 2);
+        progress.advance(2, 20);
+
+        progress.startPhase(MigrationProgress.PHASE_ENCRYPT, 5);
+
+        Map<String, Object> event = events.get(events.size() - 1);
+        assertEquals(MigrationProgress.PHASE_ENCRYPT, event.get("phase"));
+        assertEquals(0, event.get("processed"));
+        assertEquals(5, event.get("total"));
+        assertEquals(0L, event.get("bytes"));
+    }
+
+    @Test
+    public void finish_success_emitsDone() {
+        MigrationProgress progress = new MigrationProgress("storage", listener, 60_000);
+
+        progress.finish(null);
+
+        assertEquals(MigrationProgress.PHASE_DONE, events.get(0).get("phase"));
+        assertFalse(events.get(0).containsKey("error"));
+    }
+
+    @Test
+    public void finish_failure_emitsFailedWithError() {
+        MigrationProgress progress = new MigrationProgress("storage", listener, 60_000);
+
+        progress.finish(new Exception("Disk full"));
+
+        assertEquals(MigrationProgress.PHASE_FAILED, events.get(0).get("phase"));
+        assertEquals("Disk full", events.get(0).get("error"));
+    }
+
+    @Test
+    public void none_neverEmits() {
+        MigrationProgress.NONE.startPhase(MigrationProgress.PHASE_ENCRYPT, 1);
+        MigrationProgress.NONE.advance(1, 1);
+        MigrationProgress.NONE.finish(null);
+
+        assertTrue(events.isEmpty());
+    }
+
+    // -------------------------------------------------------------------------
+    // Concurrency
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void advance_fromSeveralThreads_countsEveryEntry() throws Exception {
+        MigrationProgress progress = new MigrationProgress("storage", listener, 60_000);
+        final int threads = 4;
+        final int perThread = 5000;
+        progress.startPhase(MigrationProgress.PHASE_VERIFY, threads * perThread);
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    progress.advance(1, 1);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(2, events.size());
+        assertEquals(threads * perThread, events.get(1).get("processed"));
+    }
+}
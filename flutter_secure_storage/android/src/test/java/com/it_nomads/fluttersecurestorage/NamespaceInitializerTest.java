@@ -0,0 +1,284 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class NamespaceInitializerTest {
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    private static FlutterSecureStorageConfig namespaceConfig(String namespace, String keyCipherAlgorithm) {
+        HashMap<String, Object> options = new HashMap<>();
+        options.put(FlutterSecureStorageConfig.PREF_OPTION_STORAGE_NAMESPACE, namespace);
+        if (keyCipherAlgorithm != null) {
+            options.put(FlutterSecureStorageConfig.PREF_OPTION_KEY_CIPHER_ALGORITHM, keyCipherAlgorithm);
+        }
+        return new FlutterSecureStorageConfig(options);
+    }
+
+    /** Storage whose initialize() runs a test-supplied action instead of touching the KeyStore. */
+    private static class FakeStorage extends FlutterSecureStorage {
+        interface Action {
+            void run(SecurePreferencesCallback<Void> callback) throws Exception;
+        }
+
+        private final Action action;
+        final AtomicInteger initializeCalls = new AtomicInteger();
+
+        FakeStorage(Context context, Action action) {
+            super(context);
+            this.action = action;
+        }
+
+        @Override
+        public void initialize(FlutterSecureStorageConfig config, SecurePreferencesCallback<Void> callback) {
+            initializeCalls.incrementAndGet();
+            try {
+                action.run(callback);
+            } catch (Exception e) {
+                callback.onError(e);
+            }
+        }
+    }
+
+    private static class RecordingCallback implements SecurePreferencesCallback<Void> {
+        final AtomicInteger successes = new AtomicInteger();
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onSuccess(Void result) {
+            successes.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            error.set(e);
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("initialization did not finish", done.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // initializeAll
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void initializeAll_emptyMap_succeedsImmediately() {
+        RecordingCallback callback = new RecordingCallback();
+
+        NamespaceInitializer.initializeAll(new LinkedHashMap<>(), callback);
+
+        assertEquals(1, callback.successes.get());
+        assertNull(callback.error.get());
+    }
+
+    @Test
+    public void initializeAll_runsNamespacesConcurrently() throws Exception {
+        final int namespaces = 6;
+        // Every initialize() waits until all of them have started; this only completes
+        // if they run at the same time.
+        final CountDownLatch allStarted = new CountDownLatch(namespaces);
+        Map<FlutterSecureStorage, FlutterSecureStorageConfig> storages = new LinkedHashMap<>();
+        for (int i = 0; i < namespaces; i++) {
+            storages.put(new FakeStorage(context, callback -> {
+                allStarted.countDown();
+                if (allStarted.await(5, TimeUnit.SECONDS)) {
+                    callback.onSuccess(null);
+                } else {
+                    callback.onError(new Exception("namespaces were initialized sequentially"));
+                }
+            }), namespaceConfig("ns" + i, null));
+        }
+        RecordingCallback callback = new RecordingCallback();
+
+        NamespaceInitializer.initializeAll(storages, callback);
+        callback.await();
+
+        assertNull(callback.error.get());
+        assertEquals(1, callback.successes.get());
+        for (FlutterSecureStorage storage : storages.keySet()) {
+            assertEquals(1, ((FakeStorage) storage).initializeCalls.get());
+        }
+    }
+
+    @Test
+    public void initializeAll_waitsForAllAndReportsFailure() throws Exception {
+        final Exception failure = new Exception("boom");
+        final AtomicInteger completed = new AtomicInteger();
+        Map<FlutterSecureStorage, FlutterSecureStorageConfig> storages = new LinkedHashMap<>();
+        storages.put(new FakeStorage(context, callback -> {
+            throw failure;
+        }), namespaceConfig("failing", null));
+        storages.put(new FakeStorage(context, callback -> {
+            Thread.sleep(100);
+            completed.incrementAndGet();
+            callback.onSuccess(null);
+        }), namespaceConfig("slow", null));
+        RecordingCallback callback = new RecordingCallback();
+
+        NamespaceInitializer.initializeAll(storages, callback);
+        callback.await();
+
+        assertEquals(1, completed.get());
+        assertEquals(0, callback.successes.get());
+        assertNotNull(callback.error.get());
+        assertSame(failure, callback.error.get().getCause());
+    }
+
+    @Test
+    public void initializeAll_asynchronousCallbacks_areAwaited() throws Exception {
+        Map<FlutterSecureStorage, FlutterSecureStorageConfig> storages = new LinkedHashMap<>();
+        final AtomicInteger completed = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            storages.put(new FakeStorage(context, callback -> new Thread(() -> {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                }
+                completed.incrementAndGet();
+                callback.onSuccess(null);
+            }).start()), namespaceConfig("async" + i, null));
+        }
+        RecordingCallback callback = new RecordingCallback();
+
+        NamespaceInitializer.initializeAll(storages, callback);
+        callback.await();
+
+        assertEquals(3, completed.get());
+        assertEquals(1, callback.successes.get());
+    }
+
+    @Test
+    public void initializeAll_duplicateCallbacks_countedOnce() throws Exception {
+        final AtomicInteger slowCompleted = new AtomicInteger();
+        Map<FlutterSecureStorage, FlutterSecureStorageConfig> storages = new LinkedHashMap<>();
+        storages.put(new FakeStorage(context, callback -> {
+            callback.onError(new Exception("first"));
+            callback.onSuccess(null);
+        }), namespaceConfig("twice", null));
+        storages.put(new FakeStorage(context, callback -> {
+            Thread.sleep(100);
+            slowCompleted.incrementAndGet();
+            callback.onSuccess(null);
+        }), namespaceConfig("slow", null));
+        RecordingCallback callback = new RecordingCallback();
+
+        NamespaceInitializer.initializeAll(storages, callback);
+        callback.await();
+
+        assertEquals(1, slowCompleted.get());
+        assertNotNull(callback.error.get());
+    }
+
+    @Test
+    public void initializeAll_authenticationBoundNamespaces_runOneAtATime() throws Exception {
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        Map<FlutterSecureStorage, FlutterSecureStorageConfig> storages = new LinkedHashMap<>();
+        for (int i = 0; i < 3; i++) {
+            storages.put(new FakeStorage(context, callback -> {
+                int now = active.incrementAndGet();
+                maxActive.set(Math.max(maxActive.get(), now));
+                // Simulate a biometric prompt answered on another thread
+                new Thread(() -> {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException ignored) {
+                    }
+                    active.decrementAndGet();
+                    callback.onSuccess(null);
+                }).start();
+            }), namespaceConfig("bio" + i, "AES_GCM_NoPadding"));
+        }
+        RecordingCallback callback = new RecordingCallback();
+
+        NamespaceInitializer.initializeAll(storages, callback);
+        callback.await();
+
+        assertEquals(1, callback.successes.get());
+        assertEquals(1, maxActive.get());
+    }
+
+    @Test
+    public void initializeAll_savedAuthenticationBoundAlgorithm_runsOnAuthenticationLane() throws Exception {
+        // Namespace migrating away from the biometric key algorithm can still prompt
+        new NamespacedConfigSource(context, "migrating").edit()
+                .putString("FlutterSecureSAlgorithmKey", "AES_GCM_NoPadding_BIOMETRIC")
+                .commit();
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        Map<FlutterSecureStorage, FlutterSecureStorageConfig> storages = new LinkedHashMap<>();
+        FakeStorage.Action tracked = callback -> {
+            int now = active.incrementAndGet();
+            maxActive.set(Math.max(maxActive.get(), now));
+            Thread.sleep(50);
+            active.decrementAndGet();
+            callback.onSuccess(null);
+        };
+        storages.put(new FakeStorage(context, tracked), namespaceConfig("migrating", null));
+        storages.put(new FakeStorage(context, tracked), namespaceConfig("bio", "AES_GCM_NoPadding"));
+
+        RecordingCallback callback = new RecordingCallback();
+        NamespaceInitializer.initializeAll(storages, callback);
+        callback.await();
+
+        assertEquals(1, maxActive.get());
+    }
+
+    @Test
+    public void initializeAll_unansweredPrompt_doesNotBlockCaller() throws Exception {
+        final AtomicReference<SecurePreferencesCallback<Void>> pending = new AtomicReference<>();
+        Map<FlutterSecureStorage, FlutterSecureStorageConfig> storages = new LinkedHashMap<>();
+        // A prompt nobody answers yet: the callback is kept, not invoked
+        storages.put(new FakeStorage(context, pending::set), namespaceConfig("bio", "AES_GCM_NoPadding"));
+        storages.put(new FakeStorage(context, callback -> callback.onSuccess(null)), namespaceConfig("plain", null));
+        RecordingCallback callback = new RecordingCallback();
+
+        NamespaceInitializer.initializeAll(storages, callback);
+
+        assertEquals(1, callback.done.getCount());
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (pending.get() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        pending.get().onSuccess(null);
+        callback.await();
+        assertEquals(1, callback.successes.get());
+    }
+}
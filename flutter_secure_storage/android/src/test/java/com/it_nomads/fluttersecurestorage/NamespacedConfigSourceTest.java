@@ -12,6 +12,7 @@ import org.robolectric.annotation.Config;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
@@ -129,4 +130,126 @@ public class NamespacedConfigSourceTest {
         source.edit().putString("key", "value").commit();
         assertFalse(legacyPrefs.contains("key"));
     }
+
+    // -------------------------------------------------------------------------
+    // snapshot
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void snapshot_readsMergedValues_namespacedTakesPrecedence() {
+        namespacedPrefs.edit().putString("key", "namespaced").putBoolean("flag", false).commit();
+        legacyPrefs.edit().putString("key", "legacy").putString("legacyOnly", "legacy")
+                .putBoolean("flag", true).commit();
+
+        source.takeSnapshot();
+
+        assertEquals("namespaced", source.getString("key", "default"));
+        assertEquals("legacy", source.getString("legacyOnly", "default"));
+        assertFalse(source.getBoolean("flag", true));
+        assertTrue(source.contains("legacyOnly"));
+        assertFalse(source.contains("missing"));
+        assertEquals("default", source.getString("missing", "default"));
+    }
+
+    @Test
+    public void snapshot_getAll_returnsNamespacedEntriesOnly() {
+        namespacedPrefs.edit().putString("key", "namespaced").commit();
+        legacyPrefs.edit().putString("legacyOnly", "legacy").commit();
+
+        source.takeSnapshot();
+
+        assertEquals(1, source.getAll().size());
+        assertEquals("namespaced", source.getAll().get("key"));
+    }
+
+    @Test
+    public void snapshot_editPut_updatesSnapshotAndWritesThrough() {
+        source.takeSnapshot();
+
+        source.edit().putBoolean("key_MIGRATED", true).commit();
+
+        assertTrue(source.contains("key_MIGRATED"));
+        assertTrue(source.getBoolean("key_MIGRATED", false));
+        assertTrue(namespacedPrefs.getBoolean("key_MIGRATED", false));
+        assertFalse(legacyPrefs.contains("key_MIGRATED"));
+    }
+
+    @Test
+    public void snapshot_editApply_updatesSnapshot() {
+        source.takeSnapshot();
+
+        source.edit().putString("key", "applied").apply();
+
+        assertEquals("applied", source.getString("key", null));
+    }
+
+    @Test
+    public void snapshot_editRemove_fallsBackToLegacyValue() {
+        namespacedPrefs.edit().putString("key", "namespaced").commit();
+        legacyPrefs.edit().putString("key", "legacy").commit();
+        source.takeSnapshot();
+
+        source.edit().remove("key").commit();
+
+        assertEquals("legacy", source.getString("key", null));
+        assertFalse(namespacedPrefs.contains("key"));
+    }
+
+    @Test
+    public void snapshot_editClear_keepsLegacyAndNewEntries() {
+        namespacedPrefs.edit().putString("old", "namespaced").commit();
+        legacyPrefs.edit().putString("legacyOnly", "legacy").commit();
+        source.takeSnapshot();
+
+        source.edit().clear().putString("new", "value").commit();
+
+        assertFalse(source.contains("old"));
+        assertEquals("value", source.getString("new", null));
+        assertEquals("legacy", source.getString("legacyOnly", null));
+        assertEquals(1, source.getAll().size());
+    }
+
+    @Test
+    public void snapshot_lastOperationPerKeyWins() {
+        source.takeSnapshot();
+
+        source.edit().putString("key", "value").remove("key").commit();
+        assertFalse(source.contains("key"));
+
+        source.edit().remove("key").putString("key", "value").commit();
+        assertEquals("value", source.getString("key", null));
+    }
+
+    @Test
+    public void snapshot_uncommittedEdits_areNotVisible() {
+        source.takeSnapshot();
+
+        source.edit().putString("key", "value");
+
+        assertFalse(source.contains("key"));
+    }
+
+    @Test
+    public void snapshot_ignoresWritesBypassingSource_untilRetaken() {
+        source.takeSnapshot();
+        namespacedPrefs.edit().putString("key", "direct").commit();
+
+        assertFalse(source.contains("key"));
+
+        source.takeSnapshot();
+        assertEquals("direct", source.getString("key", null));
+    }
+
+    // -------------------------------------------------------------------------
+    // Prefs names
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void getDataPrefsNameOfConfig_invertsNamespacedConfigName() {
+        String configName = NamespacedConfigSource.getNamespacedConfigPrefsName("settings");
+
+        assertEquals("settings", NamespacedConfigSource.getDataPrefsNameOfConfig(configName));
+        assertNull(NamespacedConfigSource.getDataPrefsNameOfConfig(NamespacedConfigSource.LEGACY_GLOBAL_CONFIG_NAME));
+        assertNull(NamespacedConfigSource.getDataPrefsNameOfConfig("settings"));
+    }
 }
@@ -0,0 +1,80 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class PreferencesPreloaderTest {
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+    }
+
+    @Test
+    public void await_returnsDataPrefsOfConfig() throws Exception {
+        HashMap<String, Object> options = new HashMap<>();
+        options.put(FlutterSecureStorageConfig.PREF_OPTION_STORAGE_NAMESPACE, "Preload");
+        FlutterSecureStorageConfig config = new FlutterSecureStorageConfig(options);
+        context.getSharedPreferences("Preload", Context.MODE_PRIVATE).edit().putString("key", "value").commit();
+
+        SharedPreferences data = PreferencesPreloader.start(context, config).await();
+
+        assertNotNull(data);
+        assertSame(context.getSharedPreferences("Preload", Context.MODE_PRIVATE), data);
+        assertEquals("value", data.getString("key", null));
+    }
+
+    @Test
+    public void await_defaultConfig_returnsLegacyDataPrefs() throws Exception {
+        FlutterSecureStorageConfig config = new FlutterSecureStorageConfig(new HashMap<>());
+
+        SharedPreferences data = PreferencesPreloader.start(context, config).await();
+
+        assertSame(context.getSharedPreferences("FlutterSecureStorage", Context.MODE_PRIVATE), data);
+    }
+
+    @Test
+    public void preloadKnownStorages_withExistingNamespaces_doesNotThrow() {
+        new NamespacedConfigSource(context, "KnownNS").edit().putString("marker", "x").commit();
+        context.getSharedPreferences("KnownNS", Context.MODE_PRIVATE).edit().putString("key", "value").commit();
+
+        PreferencesPreloader.preloadKnownStorages(context);
+
+        assertEquals("value", context.getSharedPreferences("KnownNS", Context.MODE_PRIVATE).getString("key", null));
+    }
+
+    @Test
+    public void preloadKnownStorages_manyNamespaces_boundedThreads() {
+        for (int i = 0; i < 40; i++) {
+            new NamespacedConfigSource(context, "ManyNS" + i).edit().putString("marker", "x").commit();
+        }
+
+        PreferencesPreloader.preloadKnownStorages(context);
+
+        int threads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("com.it_nomads.fluttersecurestorage.preload")) {
+                threads++;
+            }
+        }
+        assertTrue(threads + " preload threads", threads <= 4);
+    }
+}
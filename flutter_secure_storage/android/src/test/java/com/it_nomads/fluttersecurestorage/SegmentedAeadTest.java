@@ -0,0 +1,292 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class SegmentedAeadTest {
+
+    private static final int SEGMENT_SIZE = 64;
+
+    private Context context;
+    private SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        key = newKey();
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    private SecretKeySpec newKey() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return new SecretKeySpec(bytes, "AES");
+    }
+
+    private byte[] encrypt(byte[] plaintext, int segmentSize) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream encrypting = SegmentedAead.encrypt(out, key, segmentSize, random)) {
+            encrypting.write(plaintext);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] ciphertext) throws Exception {
+        try (InputStream in = SegmentedAead.decrypt(new ByteArrayInputStream(ciphertext), key)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[100];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static int segmentOffset(int index) {
+        return SegmentedAead.HEADER_LENGTH + index * (SEGMENT_SIZE + SegmentedAead.TAG_SIZE);
+    }
+
+    /** Endless pseudo-random bytes, so a large stream never exists in memory as a whole. */
+    private static class GeneratedStream extends InputStream {
+        private final Random random;
+        private long remaining;
+
+        GeneratedStream(long length, long seed) {
+            this.random = new Random(seed);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining == 0) {
+                return -1;
+            }
+            int count = (int) Math.min(len, remaining);
+            for (int i = off; i < off + count; i++) {
+                b[i] = (byte) random.nextInt();
+            }
+            remaining -= count;
+            return count;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Round trips
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void roundTrip_lengthsAroundSegmentBoundaries() throws Exception {
+        int[] lengths = {0, 1, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, 3 * SEGMENT_SIZE, 3 * SEGMENT_SIZE + 5};
+        for (int length : lengths) {
+            byte[] plaintext = randomBytes(length, length);
+
+            byte[] ciphertext = encrypt(plaintext, SEGMENT_SIZE);
+
+            assertEquals("length " + length, SegmentedAead.ciphertextLength(length, SEGMENT_SIZE), ciphertext.length);
+            assertArrayEquals(plaintext, decrypt(ciphertext));
+        }
+    }
+
+    @Test
+    public void roundTrip_singleByteWritesAndReads() throws Exception {
+        byte[] plaintext = randomBytes(200, 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream encrypting = SegmentedAead.encrypt(out, key, SEGMENT_SIZE, random)) {
+            for (byte b : plaintext) {
+                encrypting.write(b);
+            }
+        }
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        try (InputStream in = SegmentedAead.decrypt(new ByteArrayInputStream(out.toByteArray()), key)) {
+            int b;
+            while ((b = in.read()) >= 0) {
+                decrypted.write(b);
+            }
+        }
+
+        assertArrayEquals(plaintext, decrypted.toByteArray());
+    }
+
+    @Test
+    public void encrypt_samePlaintextTwice_differs() throws Exception {
+        byte[] plaintext = randomBytes(100, 2);
+
+        assertFalse(Arrays.equals(encrypt(plaintext, SEGMENT_SIZE), encrypt(plaintext, SEGMENT_SIZE)));
+    }
+
+    @Test
+    public void encrypt_invalidSegmentSize_throws() {
+        assertThrows(IllegalArgumentException.class,
+                () -> SegmentedAead.encrypt(new ByteArrayOutputStream(), key, 0, random));
+        assertThrows(IllegalArgumentException.class,
+                () -> SegmentedAead.encrypt(new ByteArrayOutputStream(), key, 32 * 1024 * 1024, random));
+    }
+
+    @Test
+    public void write_afterClose_throws() throws Exception {
+        OutputStream encrypting = SegmentedAead.encrypt(new ByteArrayOutputStream(), key, SEGMENT_SIZE, random);
+        encrypting.close();
+
+        assertThrows(IOException.class, () -> encrypting.write(1));
+    }
+
+    // -------------------------------------------------------------------------
+    // Tampering
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void decrypt_wrongKey_throws() throws Exception {
+        byte[] ciphertext = encrypt(randomBytes(100, 3), SEGMENT_SIZE);
+        key = newKey();
+
+        assertThrows(IOException.class, () -> decrypt(ciphertext));
+    }
+
+    @Test
+    public void decrypt_flippedBit_throws() throws Exception {
+        byte[] ciphertext = encrypt(randomBytes(300, 4), SEGMENT_SIZE);
+        ciphertext[segmentOffset(2) + 5] ^= 1;
+
+        assertThrows(IOException.class, () -> decrypt(ciphertext));
+    }
+
+    @Test
+    public void decrypt_tamperedHeader_throws() throws Exception {
+        byte[] ciphertext = encrypt(randomBytes(100, 5), SEGMENT_SIZE);
+        ciphertext[SegmentedAead.HEADER_LENGTH - 1] ^= 1;
+
+        assertThrows(IOException.class, () -> decrypt(ciphertext));
+    }
+
+    @Test
+    public void decrypt_truncatedAtSegmentBoundary_throws() throws Exception {
+        // Three segments, the last one partial
+        byte[] partial = encrypt(randomBytes(2 * SEGMENT_SIZE + 5, 6), SEGMENT_SIZE);
+        // Two full segments, the last one full
+        byte[] full = encrypt(randomBytes(2 * SEGMENT_SIZE, 7), SEGMENT_SIZE);
+
+        assertThrows(IOException.class, () -> decrypt(Arrays.copyOf(partial, segmentOffset(2))));
+        assertThrows(IOException.class, () -> decrypt(Arrays.copyOf(full, segmentOffset(1))));
+    }
+
+    @Test
+    public void decrypt_truncatedWithinSegment_throws() throws Exception {
+        byte[] ciphertext = encrypt(randomBytes(100, 8), SEGMENT_SIZE);
+
+        assertThrows(IOException.class, () -> decrypt(Arrays.copyOf(ciphertext, ciphertext.length - 1)));
+        assertThrows(IOException.class, () -> decrypt(Arrays.copyOf(ciphertext, SegmentedAead.HEADER_LENGTH + 3)));
+        assertThrows(IOException.class, () -> decrypt(Arrays.copyOf(ciphertext, 5)));
+    }
+
+    @Test
+    public void decrypt_reorderedSegments_throws() throws Exception {
+        byte[] ciphertext = encrypt(randomBytes(3 * SEGMENT_SIZE, 9), SEGMENT_SIZE);
+        byte[] first = Arrays.copyOfRange(ciphertext, segmentOffset(0), segmentOffset(1));
+        System.arraycopy(ciphertext, segmentOffset(1), ciphertext, segmentOffset(0), first.length);
+        System.arraycopy(first, 0, ciphertext, segmentOffset(1), first.length);
+
+        assertThrows(IOException.class, () -> decrypt(ciphertext));
+    }
+
+    @Test
+    public void decrypt_appendedData_throws() throws Exception {
+        byte[] ciphertext = encrypt(randomBytes(2 * SEGMENT_SIZE, 10), SEGMENT_SIZE);
+        // A copy of the last segment after it
+        byte[] extended = Arrays.copyOf(ciphertext, ciphertext.length + SEGMENT_SIZE + SegmentedAead.TAG_SIZE);
+        System.arraycopy(ciphertext, segmentOffset(1), extended, ciphertext.length, SEGMENT_SIZE + SegmentedAead.TAG_SIZE);
+
+        assertThrows(IOException.class, () -> decrypt(extended));
+    }
+
+    @Test
+    public void decrypt_invalidSegmentSizeInHeader_throws() throws Exception {
+        byte[] ciphertext = encrypt(randomBytes(10, 11), SEGMENT_SIZE);
+        ciphertext[0] = (byte) 0x7F;
+
+        assertThrows(IOException.class, () -> decrypt(ciphertext));
+    }
+
+    // -------------------------------------------------------------------------
+    // Files
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void roundTrip_largeStreamThroughFile() throws Exception {
+        final int length = 4 * 1024 * 1024;
+        final File file = new File(context.getCacheDir(), "SegmentedAeadTest");
+        final byte[] buffer = new byte[8192];
+
+        // Neither side ever holds more than the copy buffer and one segment
+        try (InputStream in = new GeneratedStream(length, 1);
+             OutputStream out = SegmentedAead.encrypt(new BufferedOutputStream(new FileOutputStream(file)), key,
+                     SegmentedAead.DEFAULT_SEGMENT_SIZE, random)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        assertEquals(SegmentedAead.ciphertextLength(length, SegmentedAead.DEFAULT_SEGMENT_SIZE), file.length());
+
+        final InputStream expected = new GeneratedStream(length, 1);
+        final byte[] expectedBuffer = new byte[buffer.length];
+        long total = 0;
+        try (InputStream in = SegmentedAead.decrypt(new BufferedInputStream(new FileInputStream(file)), key)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                assertEquals(read, expected.read(expectedBuffer, 0, read));
+                assertArrayEquals(Arrays.copyOf(expectedBuffer, read), Arrays.copyOf(buffer, read));
+                total += read;
+            }
+        }
+        assertEquals(length, total);
+        assertTrue(file.delete());
+    }
+}
@@ -0,0 +1,78 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Storage ciphers standing in for the KeyStore-backed ones in tests.
+ */
+final class TestStorageCiphers {
+
+    private TestStorageCiphers() {
+    }
+
+    /** Returns an AES-GCM cipher with a new random key that only lives in memory. */
+    static SoftwareCipher software() {
+        return new SoftwareCipher();
+    }
+
+    /** Returns an AES-GCM cipher over the given raw AES key. */
+    static SoftwareCipher software(byte[] rawKey) {
+        return new SoftwareCipher(rawKey);
+    }
+
+    /** Software AES-GCM cipher writing the IV followed by the ciphertext. */
+    static class SoftwareCipher implements StorageCipher {
+        private static final int IV_SIZE = 12;
+        private final SecretKeySpec key;
+        private final SecureRandom random = new SecureRandom();
+
+        SoftwareCipher() {
+            this(randomKey());
+        }
+
+        SoftwareCipher(byte[] rawKey) {
+            key = new SecretKeySpec(rawKey, "AES");
+        }
+
+        /** Creates a cipher sharing the key of the given one. */
+        SoftwareCipher(SoftwareCipher source) {
+            key = source.key;
+        }
+
+        private static byte[] randomKey() {
+            byte[] raw = new byte[16];
+            new SecureRandom().nextBytes(raw);
+            return raw;
+        }
+
+        @Override
+        public byte[] encrypt(byte[] input) throws Exception {
+            byte[] iv = new byte[IV_SIZE];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+            byte[] payload = cipher.doFinal(input);
+            return ByteBuffer.allocate(IV_SIZE + payload.length).put(iv).put(payload).array();
+        }
+
+        @Override
+        public byte[] decrypt(byte[] input) throws Exception {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, input, 0, IV_SIZE));
+            return cipher.doFinal(input, IV_SIZE, input.length - IV_SIZE);
+        }
+
+        @Override
+        public void deleteKey(Context context) {
+        }
+    }
+}
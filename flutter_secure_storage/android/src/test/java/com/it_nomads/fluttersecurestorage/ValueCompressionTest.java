@@ -0,0 +1,173 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class ValueCompressionTest {
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+    }
+
+    // -------------------------------------------------------------------------
+    // Helpers
+    // -------------------------------------------------------------------------
+
+    /** A cached user profile as JSON, roughly the size and shape apps store. */
+    private static String profileJson(Random random) {
+        StringBuilder json = new StringBuilder("{\"user\":{\"id\":\"" + Long.toHexString(random.nextLong())
+                + "\",\"name\":\"Jane Doe\",\"email\":\"jane.doe@example.com\",\"locale\":\"en_US\"},\"groups\":[");
+        for (int i = 0; i < 40; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"id\":").append(random.nextInt(100_000))
+                    .append(",\"role\":\"member\",\"permissions\":[\"read\",\"write\",\"share\"],\"active\":true}");
+        }
+        return json.append("],\"refreshToken\":\"").append(Long.toHexString(random.nextLong()))
+                .append(Long.toHexString(random.nextLong())).append("\"}").toString();
+    }
+
+    // -------------------------------------------------------------------------
+    // encode / decode
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void encode_belowThreshold_isPlainUtf8() {
+        assertArrayEquals("short".getBytes(StandardCharsets.UTF_8), ValueCompression.encode("short", 64));
+    }
+
+    @Test
+    public void encode_thresholdZero_disablesCompression() {
+        String large = profileJson(new Random(1));
+
+        assertArrayEquals(large.getBytes(StandardCharsets.UTF_8), ValueCompression.encode(large, 0));
+    }
+
+    @Test
+    public void encode_largeCompressibleValue_isCompressedAndRoundTrips() throws Exception {
+        String large = profileJson(new Random(1));
+
+        byte[] encoded = ValueCompression.encode(large, 64);
+
+        assertTrue(ValueCompression.isCompressed(encoded));
+        assertTrue(encoded.length * 3 < large.length());
+        assertEquals(large, ValueCompression.decode(encoded));
+    }
+
+    @Test
+    public void encode_incompressibleValue_isStoredUncompressed() {
+        // A short random token; Deflate cannot save more than the flag and length cost
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+        Random random = new Random(2);
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            token.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        String value = token.toString();
+
+        byte[] encoded = ValueCompression.encode(value, 16);
+
+        assertFalse(ValueCompression.isCompressed(encoded));
+        assertArrayEquals(value.getBytes(StandardCharsets.UTF_8), encoded);
+    }
+
+    @Test
+    public void decode_uncompressedValue_isUtf8() throws Exception {
+        String value = "grüße 🔑";
+
+        assertEquals(value, ValueCompression.decode(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void decode_nonAsciiCompressedValue_roundTrips() throws Exception {
+        String value = "schlüssel-ß-🔑 ".repeat(100);
+
+        assertEquals(value, ValueCompression.decode(ValueCompression.encode(value, 1)));
+    }
+
+    @Test
+    public void isCompressed_neverTrueForUtf8Text() {
+        // 0xFF never occurs in UTF-8, so existing values cannot be mistaken for compressed ones
+        for (String value : new String[]{"", "a", "ÿ", "￿", "🔑"}) {
+            assertFalse(ValueCompression.isCompressed(value.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    @Test
+    public void decode_truncatedCompressedValue_throws() {
+        byte[] encoded = ValueCompression.encode(profileJson(new Random(3)), 64);
+        byte[] truncated = Arrays.copyOf(encoded, encoded.length / 2);
+
+        assertThrows(DataFormatException.class, () -> ValueCompression.decode(truncated));
+        assertThrows(DataFormatException.class, () -> ValueCompression.decode(new byte[]{ValueCompression.MARKER, 0}));
+    }
+
+    @Test
+    public void encryptedCompressedValue_survivesEnvelopeRoundTrip() throws Exception {
+        StorageCipher cipher = TestStorageCiphers.software();
+        String value = profileJson(new Random(4));
+
+        String stored = ValueEnvelope.encode(cipher, cipher.encrypt(ValueCompression.encode(value, 256)));
+
+        assertEquals(value, ValueCompression.decode(cipher.decrypt(ValueEnvelope.parse(stored).getCiphertextFor(cipher))));
+    }
+
+    // -------------------------------------------------------------------------
+    // Preferences file
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void compressedJsonValues_shrinkThePreferencesFile() throws Exception {
+        final int count = 100;
+        final StorageCipher cipher = TestStorageCiphers.software();
+        final Random random = new Random(5);
+        final String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = profileJson(random);
+        }
+        final long[] fileBytes = new long[2];
+        final int[] thresholds = {0, 256};
+
+        for (int t = 0; t < thresholds.length; t++) {
+            final String name = "CompressionFile" + thresholds[t];
+            final SharedPreferences preferences = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+            final SharedPreferences.Editor editor = preferences.edit();
+            for (int i = 0; i < count; i++) {
+                editor.putString("key" + i, ValueEnvelope.encode(cipher, cipher.encrypt(ValueCompression.encode(values[i], thresholds[t]))));
+            }
+            assertTrue(editor.commit());
+            fileBytes[t] = new File(context.getApplicationInfo().dataDir, "shared_prefs/" + name + ".xml").length();
+
+            for (int i = 0; i < count; i++) {
+                String stored = preferences.getString("key" + i, null);
+                assertEquals(values[i], ValueCompression.decode(cipher.decrypt(ValueEnvelope.parse(stored).getCiphertextFor(cipher))));
+            }
+        }
+
+        assertTrue(fileBytes[1] < fileBytes[0]);
+    }
+}
@@ -0,0 +1,249 @@
+package com.it_nomads.fluttersecurestorage;
+
+import android.content.Context;
+import android.util.Base64;
+
+import com.it_nomads.fluttersecurestorage.ciphers.IdentifiedStorageCipher;
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipher;
+import com.it_nomads.fluttersecurestorage.ciphers.StorageCipherAlgorithm;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class ValueEnvelopeTest {
+
+    // Longer than the IV of every algorithm
+    private static final byte[] CIPHERTEXT = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, -1, -2, -3};
+
+    /**
+     * Cipher that names an algorithm and key without encrypting anything.
+     */
+    private static class IdentifiedCipher implements IdentifiedStorageCipher {
+        private final StorageCipherAlgorithm algorithm;
+        private final int keyId;
+
+        IdentifiedCipher(StorageCipherAlgorithm algorithm, int keyId) {
+            this.algorithm = algorithm;
+            this.keyId = keyId;
+        }
+
+        @Override
+        public byte[] encrypt(byte[] input) {
+            return input;
+        }
+
+        @Override
+        public byte[] decrypt(byte[] input) {
+            return input;
+        }
+
+        @Override
+        public void deleteKey(Context context) {
+        }
+
+        @Override
+        public StorageCipherAlgorithm getAlgorithm() {
+            return algorithm;
+        }
+
+        @Override
+        public int getKeyId() {
+            return keyId;
+        }
+    }
+
+    /**
+     * Cipher that cannot name its algorithm.
+     */
+    private static class AnonymousCipher implements StorageCipher {
+        @Override
+        public byte[] encrypt(byte[] input) {
+            return input;
+        }
+
+        @Override
+        public byte[] decrypt(byte[] input) {
+            return input;
+        }
+
+        @Override
+        public void deleteKey(Context context) {
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // encode / parse
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void encode_thenParse_returnsHeaderAndCiphertext() throws Exception {
+        for (StorageCipherAlgorithm algorithm : StorageCipherAlgorithm.values()) {
+            String stored = ValueEnvelope.encode(algorithm, IdentifiedStorageCipher.KEY_ID_KEYSTORE, CIPHERTEXT);
+            ValueEnvelope envelope = ValueEnvelope.parse(stored);
+
+            assertEquals(algorithm, envelope.getAlgorithm());
+            assertEquals(IdentifiedStorageCipher.KEY_ID_KEYSTORE, envelope.getKeyId());
+            assertEquals(algorithm.getIvLength(), envelope.getIvLength());
+            assertArrayEquals(CIPHERTEXT, envelope.getCiphertext());
+        }
+    }
+
+    @Test
+    public void encode_startsWithMarkerAndCurrentVersion() {
+        String stored = ValueEnvelope.encode(StorageCipherAlgorithm.AES_GCM_NoPadding,
+                IdentifiedStorageCipher.KEY_ID_WRAPPED, CIPHERTEXT);
+
+        assertEquals(ValueEnvelope.MARKER, stored.charAt(0));
+        assertTrue(ValueEnvelope.isEnveloped(stored));
+        assertEquals(ValueEnvelope.VERSION, Base64.decode(stored.substring(1), Base64.NO_WRAP)[0]);
+    }
+
+    @Test
+    public void encode_identifiedCipher_writesEnvelope() throws Exception {
+        StorageCipher cipher = new IdentifiedCipher(StorageCipherAlgorithm.AES_CBC_PKCS7Padding,
+                IdentifiedStorageCipher.KEY_ID_WRAPPED);
+
+        ValueEnvelope envelope = ValueEnvelope.parse(ValueEnvelope.encode(cipher, CIPHERTEXT));
+
+        assertEquals(StorageCipherAlgorithm.AES_CBC_PKCS7Padding, envelope.getAlgorithm());
+        assertEquals(IdentifiedStorageCipher.KEY_ID_WRAPPED, envelope.getKeyId());
+        assertArrayEquals(CIPHERTEXT, envelope.getCiphertext());
+    }
+
+    @Test
+    public void encode_anonymousCipher_writesPlainBase64() {
+        String stored = ValueEnvelope.encode(new AnonymousCipher(), CIPHERTEXT);
+
+        assertFalse(ValueEnvelope.isEnveloped(stored));
+        assertArrayEquals(CIPHERTEXT, Base64.decode(stored, 0));
+    }
+
+    @Test
+    public void parse_valueWithoutEnvelope_hasNoAlgorithm() throws Exception {
+        String stored = Base64.encodeToString(CIPHERTEXT, 0);
+
+        ValueEnvelope envelope = ValueEnvelope.parse(stored);
+
+        assertFalse(ValueEnvelope.isEnveloped(stored));
+        assertNull(envelope.getAlgorithm());
+        assertArrayEquals(CIPHERTEXT, envelope.getCiphertext());
+    }
+
+    @Test
+    public void parse_emptyValue_hasNoAlgorithm() throws Exception {
+        ValueEnvelope envelope = ValueEnvelope.parse("");
+
+        assertNull(envelope.getAlgorithm());
+        assertEquals(0, envelope.getCiphertext().length);
+    }
+
+    // -------------------------------------------------------------------------
+    // getCiphertextFor
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void getCiphertextFor_matchingCipher_returnsCiphertext() throws Exception {
+        StorageCipher cipher = new IdentifiedCipher(StorageCipherAlgorithm.AES_GCM_NoPadding,
+                IdentifiedStorageCipher.KEY_ID_WRAPPED);
+
+        ValueEnvelope envelope = ValueEnvelope.parse(ValueEnvelope.encode(cipher, CIPHERTEXT));
+
+        assertArrayEquals(CIPHERTEXT, envelope.getCiphertextFor(cipher));
+    }
+
+    @Test
+    public void getCiphertextFor_otherAlgorithm_throws() throws Exception {
+        ValueEnvelope envelope = ValueEnvelope.parse(ValueEnvelope.encode(StorageCipherAlgorithm.AES_GCM_NoPadding,
+                IdentifiedStorageCipher.KEY_ID_WRAPPED, CIPHERTEXT));
+
+        assertCiphertextForFails(envelope, new IdentifiedCipher(StorageCipherAlgorithm.AES_CBC_PKCS7Padding,
+                IdentifiedStorageCipher.KEY_ID_WRAPPED));
+    }
+
+    @Test
+    public void getCiphertextFor_otherKey_throws() throws Exception {
+        ValueEnvelope envelope = ValueEnvelope.parse(ValueEnvelope.encode(StorageCipherAlgorithm.AES_GCM_NoPadding,
+                IdentifiedStorageCipher.KEY_ID_KEYSTORE, CIPHERTEXT));
+
+        assertCiphertextForFails(envelope, new IdentifiedCipher(StorageCipherAlgorithm.AES_GCM_NoPadding,
+                IdentifiedStorageCipher.KEY_ID_WRAPPED));
+    }
+
+    @Test
+    public void getCiphertextFor_valueWithoutEnvelope_isNotChecked() throws Exception {
+        ValueEnvelope envelope = ValueEnvelope.parse(Base64.encodeToString(CIPHERTEXT, 0));
+        StorageCipher cipher = new IdentifiedCipher(StorageCipherAlgorithm.AES_GCM_NoPadding,
+                IdentifiedStorageCipher.KEY_ID_WRAPPED);
+
+        assertArrayEquals(CIPHERTEXT, envelope.getCiphertextFor(cipher));
+    }
+
+    @Test
+    public void getCiphertextFor_anonymousCipher_isNotChecked() throws Exception {
+        ValueEnvelope envelope = ValueEnvelope.parse(ValueEnvelope.encode(StorageCipherAlgorithm.AES_GCM_NoPadding,
+                IdentifiedStorageCipher.KEY_ID_KEYSTORE, CIPHERTEXT));
+
+        assertArrayEquals(CIPHERTEXT, envelope.getCiphertextFor(new AnonymousCipher()));
+    }
+
+    // -------------------------------------------------------------------------
+    // Invalid envelopes
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void parse_unknownVersion_throws() {
+        byte[] data = {9, (byte) StorageCipherAlgorithm.AES_GCM_NoPadding.getId(), 1, 2, 3};
+
+        assertParseFails(ValueEnvelope.MARKER + Base64.encodeToString(data, Base64.NO_WRAP));
+    }
+
+    @Test
+    public void parse_unknownAlgorithm_throws() {
+        byte[] data = {ValueEnvelope.VERSION, 99, 0, 12, 1, 2, 3};
+
+        assertParseFails(ValueEnvelope.MARKER + Base64.encodeToString(data, Base64.NO_WRAP));
+    }
+
+    @Test
+    public void parse_truncatedHeader_throws() {
+        byte[] data = {ValueEnvelope.VERSION, (byte) StorageCipherAlgorithm.AES_GCM_NoPadding.getId(), 0};
+
+        assertParseFails(ValueEnvelope.MARKER + Base64.encodeToString(data, Base64.NO_WRAP));
+    }
+
+    @Test
+    public void parse_ciphertextShorterThanIv_throws() {
+        byte[] data = {ValueEnvelope.VERSION, (byte) StorageCipherAlgorithm.AES_GCM_NoPadding.getId(), 0, 12, 1, 2, 3};
+
+        assertParseFails(ValueEnvelope.MARKER + Base64.encodeToString(data, Base64.NO_WRAP));
+    }
+
+    private static void assertParseFails(String stored) {
+        try {
+            ValueEnvelope.parse(stored);
+            fail("Expected parse to fail for " + stored);
+        } catch (Exception expected) {
+            // Expected
+        }
+    }
+
+    private static void assertCiphertextForFails(ValueEnvelope envelope, StorageCipher cipher) {
+        try {
+            envelope.getCiphertextFor(cipher);
+            fail("Expected a mismatch for " + cipher.getClass().getSimpleName());
+        } catch (Exception expected) {
+            // Expected
+        }
+    }
+}
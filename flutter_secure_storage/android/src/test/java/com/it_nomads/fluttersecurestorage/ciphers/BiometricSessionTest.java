@@ -0,0 +1,152 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+import android.content.Context;
+
+import com.it_nomads.fluttersecurestorage.FlutterSecureStorageConfig;
+import com.it_nomads.fluttersecurestorage.NamespacedConfigSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class BiometricSessionTest {
+
+    private static final long VALIDITY = 60_000;
+
+    private Context context;
+    private final Key key = new SecretKeySpec(new byte[32], "AES");
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+    }
+
+    private static FlutterSecureStorageConfig config(String namespace, int sessionSeconds) {
+        Map<String, Object> options = new HashMap<>();
+        options.put(FlutterSecureStorageConfig.PREF_OPTION_STORAGE_NAMESPACE, namespace);
+        options.put(FlutterSecureStorageConfig.PREF_OPTION_KEY_CIPHER_ALGORITHM, "AES_GCM_NoPadding");
+        options.put(FlutterSecureStorageConfig.PREF_OPTION_STORAGE_CIPHER_ALGORITHM, "AES_GCM_NoPadding");
+        options.put(FlutterSecureStorageConfig.PREF_OPTION_BIOMETRIC_SESSION_SECONDS, String.valueOf(sessionSeconds));
+        return new FlutterSecureStorageConfig(options);
+    }
+
+    /** Stands in for the KeyStore cipher that the biometric prompt unlocks. */
+    private static Cipher authenticatedCipher() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        byte[] iv = new byte[12];
+        new SecureRandom().nextBytes(iv);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[16], "AES"), new GCMParameterSpec(128, iv));
+        return cipher;
+    }
+
+    // -------------------------------------------------------------------------
+    // Session window
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void get_withinWindow_returnsKey() {
+        BiometricSession.unlocked("window", "blob", key, VALIDITY, 1_000);
+
+        assertSame(key, BiometricSession.get("window", "blob", 1_000 + VALIDITY - 1));
+    }
+
+    @Test
+    public void get_afterWindow_forgetsKey() {
+        BiometricSession.unlocked("expired", "blob", key, VALIDITY, 1_000);
+
+        assertNull(BiometricSession.get("expired", "blob", 1_000 + VALIDITY));
+        // Forgotten, not only hidden: going back in time does not bring it back
+        assertNull(BiometricSession.get("expired", "blob", 1_000));
+    }
+
+    @Test
+    public void get_namespacesWithDifferentWindows_expireIndependently() {
+        Key longKey = new SecretKeySpec(new byte[16], "AES");
+        BiometricSession.unlocked("shortWindow", "blob", key, VALIDITY, 1_000);
+        BiometricSession.unlocked("longWindow", "blob", longKey, VALIDITY * 10, 1_000);
+
+        // The short window passing does not evict the key of the longer one
+        assertNull(BiometricSession.get("shortWindow", "blob", 1_000 + VALIDITY));
+        assertSame(longKey, BiometricSession.get("longWindow", "blob", 1_000 + VALIDITY));
+        assertSame(longKey, BiometricSession.get("longWindow", "blob", 1_000 + VALIDITY * 10 - 1));
+        assertNull(BiometricSession.get("longWindow", "blob", 1_000 + VALIDITY * 10));
+    }
+
+    @Test
+    public void get_storedKeyChanged_returnsNull() {
+        BiometricSession.unlocked("changed", "blob", key, VALIDITY, 1_000);
+
+        assertNull(BiometricSession.get("changed", "regenerated", 1_000));
+        assertNull(BiometricSession.get("changed", null, 1_000));
+    }
+
+    @Test
+    public void get_otherNamespace_returnsNull() {
+        BiometricSession.unlocked("unlocked", "blob", key, VALIDITY, 1_000);
+
+        assertNull(BiometricSession.get("locked", "blob", 1_000));
+    }
+
+    // -------------------------------------------------------------------------
+    // Storage cipher
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void fromSession_reusesUnlockedApplicationKey() throws Exception {
+        FlutterSecureStorageConfig config = config("session", 300);
+        StorageCipherImplementationAES23 unlocked =
+            new StorageCipherImplementationAES23(context, null, authenticatedCipher(), config);
+        byte[] encrypted = unlocked.encrypt("value".getBytes(StandardCharsets.UTF_8));
+
+        StorageCipherImplementationAES23 reused = StorageCipherImplementationAES23.fromSession(context, config);
+
+        assertNotNull(reused);
+        assertArrayEquals("value".getBytes(StandardCharsets.UTF_8), reused.decrypt(encrypted));
+    }
+
+    @Test
+    public void fromSession_withoutSession_returnsNull() throws Exception {
+        FlutterSecureStorageConfig config = config("noSession", 0);
+        new StorageCipherImplementationAES23(context, null, authenticatedCipher(), config);
+
+        assertNull(StorageCipherImplementationAES23.fromSession(context, config));
+    }
+
+    @Test
+    public void fromSession_afterKeyDeleted_returnsNull() throws Exception {
+        FlutterSecureStorageConfig config = config("deleted", 300);
+        new StorageCipherImplementationAES23(context, null, authenticatedCipher(), config).deleteKey(context);
+
+        assertNull(StorageCipherImplementationAES23.fromSession(context, config));
+    }
+
+    @Test
+    public void factory_rsaKeyAlgorithm_noSessionCipher() throws Exception {
+        FlutterSecureStorageConfig config = config("rsa", 300);
+        new StorageCipherImplementationAES23(context, null, authenticatedCipher(), config);
+        StorageCipherFactory factory = new StorageCipherFactory(new NamespacedConfigSource(context, "rsa"),
+            "RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_GCM_NoPadding", config);
+
+        assertNull(factory.getSessionStorageCipher(context));
+    }
+}
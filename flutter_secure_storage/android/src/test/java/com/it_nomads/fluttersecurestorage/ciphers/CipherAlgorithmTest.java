@@ -62,6 +62,12 @@ public class CipherAlgorithmTest {
         assertEquals(StorageCipherAlgorithm.AES_GCM_NoPadding, StorageCipherAlgorithm.fromString("AES_GCM_NoPadding"));
     }
 
+    @Test
+    public void storageCipher_fromString_ChaCha20_Poly1305_NoPadding() {
+        assertEquals(StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding,
+                StorageCipherAlgorithm.fromString("ChaCha20_Poly1305_NoPadding"));
+    }
+
     @Test
     public void storageCipher_fromString_legacyBiometricName_mapsToAES_GCM() {
         // Legacy name used before the rename — must still resolve to the correct value
@@ -81,6 +87,37 @@ public class CipherAlgorithmTest {
         assertThrows(IllegalArgumentException.class, () -> StorageCipherAlgorithm.fromString(""));
     }
 
+    // -------------------------------------------------------------------------
+    // StorageCipherAlgorithm ids
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void storageCipher_ids_areStable() {
+        // Ids are persisted in stored values and must never change
+        assertEquals(1, StorageCipherAlgorithm.AES_CBC_PKCS7Padding.getId());
+        assertEquals(2, StorageCipherAlgorithm.AES_GCM_NoPadding.getId());
+        assertEquals(3, StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding.getId());
+    }
+
+    @Test
+    public void storageCipher_fromId_roundTrips() {
+        for (StorageCipherAlgorithm algorithm : StorageCipherAlgorithm.values()) {
+            assertEquals(algorithm, StorageCipherAlgorithm.fromId(algorithm.getId()));
+        }
+    }
+
+    @Test
+    public void storageCipher_fromId_unknownId_throwsIllegalArgumentException() {
+        assertThrows(IllegalArgumentException.class, () -> StorageCipherAlgorithm.fromId(0));
+    }
+
+    @Test
+    public void storageCipher_ivLengths_matchImplementations() {
+        assertEquals(16, StorageCipherAlgorithm.AES_CBC_PKCS7Padding.getIvLength());
+        assertEquals(12, StorageCipherAlgorithm.AES_GCM_NoPadding.getIvLength());
+        assertEquals(12, StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding.getIvLength());
+    }
+
     // -------------------------------------------------------------------------
     // Enum completeness — guards against accidental removal of values
     // -------------------------------------------------------------------------
@@ -92,6 +129,6 @@ public class CipherAlgorithmTest {
 
     @Test
     public void storageCipher_hasExpectedNumberOfValues() {
-        assertEquals(2, StorageCipherAlgorithm.values().length);
+        assertEquals(3, StorageCipherAlgorithm.values().length);
     }
 }
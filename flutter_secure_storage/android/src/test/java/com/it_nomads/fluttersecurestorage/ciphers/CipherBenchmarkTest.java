@@ -0,0 +1,138 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class CipherBenchmarkTest {
+
+    // -------------------------------------------------------------------------
+    // candidates
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void candidates_rsaKeyCipher_areAuthenticatedAlgorithms() {
+        List<StorageCipherAlgorithm> candidates = CipherBenchmark.candidates(KeyCipherAlgorithm.RSA_ECB_OAEPwithSHA_256andMGF1Padding);
+
+        assertEquals(Arrays.asList(StorageCipherAlgorithm.AES_GCM_NoPadding, StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding),
+                candidates);
+    }
+
+    @Test
+    public void candidates_keyStoreKeyCipher_excludeChaCha20() {
+        assertEquals(Collections.singletonList(StorageCipherAlgorithm.AES_GCM_NoPadding),
+                CipherBenchmark.candidates(KeyCipherAlgorithm.AES_GCM_NoPadding));
+    }
+
+    // -------------------------------------------------------------------------
+    // pickFastest
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void pickFastest_clearlyFasterCandidate_replacesPreferred() {
+        long[][] nanos = {{1000, 4000, 60000}, {500, 2000, 30000}};
+
+        assertEquals(1, CipherBenchmark.pickFastest(nanos, 0));
+    }
+
+    @Test
+    public void pickFastest_marginallyFasterCandidate_keepsPreferred() {
+        long[][] nanos = {{1000, 4000, 60000}, {950, 3900, 57000}};
+
+        assertEquals(0, CipherBenchmark.pickFastest(nanos, 0));
+    }
+
+    @Test
+    public void pickFastest_weighsEverySizeEqually() {
+        // Faster on large values only, by less than it is slower on small ones
+        long[][] nanos = {{1000, 2000, 100000}, {3000, 6000, 80000}};
+
+        assertEquals(0, CipherBenchmark.pickFastest(nanos, -1));
+    }
+
+    @Test
+    public void pickFastest_withoutPreferred_picksLowestScore() {
+        long[][] nanos = {{1000, 4000, 60000}, {950, 3900, 57000}};
+
+        assertEquals(1, CipherBenchmark.pickFastest(nanos, -1));
+    }
+
+    // -------------------------------------------------------------------------
+    // select / measure
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void measure_returnsTimePerValueForEverySize() throws Exception {
+        StorageCipher cipher = StorageCipherFactory.createScratchStorageCipher(null, StorageCipherAlgorithm.AES_GCM_NoPadding);
+
+        long[] nanos = CipherBenchmark.measure(cipher, new int[]{16, 256}, 1_000_000L);
+
+        assertEquals(2, nanos.length);
+        assertTrue(nanos[0] > 0);
+        assertTrue(nanos[1] > 0);
+    }
+
+    @Test
+    public void select_singleCandidate_measuresNothing() {
+        CipherBenchmark benchmark = CipherBenchmark.select(Collections.singletonList(StorageCipherAlgorithm.AES_GCM_NoPadding));
+
+        assertEquals(StorageCipherAlgorithm.AES_GCM_NoPadding, benchmark.getSelectedAlgorithm());
+        assertNull(benchmark.getNanosPerValue(StorageCipherAlgorithm.AES_GCM_NoPadding));
+    }
+
+    @Test
+    public void select_measuresEveryCandidate() {
+        List<StorageCipherAlgorithm> candidates =
+                Arrays.asList(StorageCipherAlgorithm.AES_GCM_NoPadding, StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding);
+
+        CipherBenchmark benchmark = CipherBenchmark.select(candidates);
+
+        assertTrue(candidates.contains(benchmark.getSelectedAlgorithm()));
+        for (StorageCipherAlgorithm algorithm : candidates) {
+            assertEquals(CipherBenchmark.VALUE_SIZES.length, benchmark.getNanosPerValue(algorithm).length);
+        }
+        assertNull(benchmark.getNanosPerValue(StorageCipherAlgorithm.AES_CBC_PKCS7Padding));
+    }
+
+    @Test
+    public void select_reusesMeasurementsWithinProcess() {
+        List<StorageCipherAlgorithm> candidates =
+                Arrays.asList(StorageCipherAlgorithm.AES_GCM_NoPadding, StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding);
+
+        CipherBenchmark first = CipherBenchmark.select(candidates);
+        CipherBenchmark second = CipherBenchmark.select(candidates);
+
+        assertEquals(first.getSelectedAlgorithm(), second.getSelectedAlgorithm());
+        assertTrue(Arrays.equals(first.getNanosPerValue(StorageCipherAlgorithm.AES_GCM_NoPadding),
+                second.getNanosPerValue(StorageCipherAlgorithm.AES_GCM_NoPadding)));
+    }
+
+    @Test
+    public void toMap_containsSelectionAndMeasurements() {
+        CipherBenchmark benchmark = CipherBenchmark.select(
+                Arrays.asList(StorageCipherAlgorithm.AES_GCM_NoPadding, StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding));
+
+        Map<String, Object> map = benchmark.toMap();
+
+        assertEquals(benchmark.getSelectedAlgorithm().name(), map.get("selectedAlgorithm"));
+        assertEquals(Arrays.asList(64, 1024, 16 * 1024), map.get("valueSizes"));
+        Map<?, ?> measurements = (Map<?, ?>) map.get("nanosPerValue");
+        assertNotNull(measurements.get("AES_GCM_NoPadding"));
+        assertNotNull(measurements.get("ChaCha20_Poly1305_NoPadding"));
+        assertFalse(measurements.containsKey("AES_CBC_PKCS7Padding"));
+    }
+}
@@ -0,0 +1,93 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.security.AlgorithmParameters;
+import java.security.Key;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class CryptoProvidersTest {
+
+    // Only implemented by the providers installed here, so that no other test resolves it first
+    private static final String TEST_TRANSFORMATION = "CryptoProvidersTest";
+
+    /** Cipher that is never used, only looked up. */
+    public static class UnusedCipherSpi extends CipherSpi {
+        @Override protected void engineSetMode(String mode) {}
+        @Override protected void engineSetPadding(String padding) {}
+        @Override protected int engineGetBlockSize() { return 16; }
+        @Override protected int engineGetOutputSize(int inputLen) { return inputLen; }
+        @Override protected byte[] engineGetIV() { return null; }
+        @Override protected AlgorithmParameters engineGetParameters() { return null; }
+        @Override protected void engineInit(int opmode, Key key, SecureRandom random) {}
+        @Override protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params, SecureRandom random) {}
+        @Override protected void engineInit(int opmode, Key key, AlgorithmParameters params, SecureRandom random) {}
+        @Override protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) { return null; }
+        @Override protected int engineUpdate(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) { return 0; }
+        @Override protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen) { return null; }
+        @Override protected int engineDoFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) { return 0; }
+    }
+
+    private static class TestProvider extends Provider {
+        TestProvider(String name) {
+            super(name, "1.0", "Test provider");
+            put("Cipher." + TEST_TRANSFORMATION, UnusedCipherSpi.class.getName());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Security.removeProvider("FirstInOrder");
+        Security.removeProvider("Conscrypt");
+    }
+
+    @Test
+    public void getProvider_prefersConscryptOverProviderOrder() throws Exception {
+        Security.insertProviderAt(new TestProvider("FirstInOrder"), 1);
+        Security.addProvider(new TestProvider("Conscrypt"));
+
+        assertEquals("FirstInOrder", Cipher.getInstance(TEST_TRANSFORMATION).getProvider().getName());
+        assertEquals("Conscrypt", CryptoProviders.getProvider(TEST_TRANSFORMATION).getName());
+        assertEquals("Conscrypt", CryptoProviders.getCipher(TEST_TRANSFORMATION).getProvider().getName());
+    }
+
+    @Test
+    public void getProvider_resolvedOncePerProcess() throws Exception {
+        Provider provider = CryptoProviders.getProvider(StorageCipherImplementationGCM.TRANSFORMATION);
+
+        assertSame(provider, CryptoProviders.getProvider(StorageCipherImplementationGCM.TRANSFORMATION));
+        assertSame(provider, CryptoProviders.getCipher(StorageCipherImplementationGCM.TRANSFORMATION).getProvider());
+    }
+
+    @Test
+    public void getProvider_withoutPreferredProvider_keepsPlatformChoice() throws Exception {
+        // Neither AndroidOpenSSL nor Conscrypt is installed on this JVM
+        assertEquals(Cipher.getInstance(StorageCipherImplementationGCM.TRANSFORMATION).getProvider().getName(),
+            CryptoProviders.getProvider(StorageCipherImplementationGCM.TRANSFORMATION).getName());
+    }
+
+    @Test
+    public void getProviderName_namesProviderOfEveryAvailableAlgorithm() {
+        for (StorageCipherAlgorithm algorithm : StorageCipherAlgorithm.values()) {
+            if (algorithm.isAvailable()) {
+                assertNotNull(algorithm.name(), CryptoProviders.getProviderName(algorithm));
+            }
+        }
+    }
+}
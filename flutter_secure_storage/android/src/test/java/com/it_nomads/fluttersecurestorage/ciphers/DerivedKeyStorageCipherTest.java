@@ -0,0 +1,327 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import com.it_nomads.fluttersecurestorage.FlutterSecureStorageConfig;
+import com.it_nomads.fluttersecurestorage.NamespacedConfigSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class DerivedKeyStorageCipherTest {
+
+    // Must match the private constants in StorageCipherFactory and MasterKeyAccess
+    private static final String PREF_KEY_ALGORITHM     = "FlutterSecureSAlgorithmKey";
+    private static final String PREF_STORAGE_ALGORITHM = "FlutterSecureSAlgorithmStorage";
+    private static final String PREF_KEY_DERIVATION    = "FlutterSecureSAlgorithmKeyDerivation";
+    private static final String MASTER_KEY_STORAGE     = "FlutterSecureKeyStorage:FlutterSecureStorageMasterKey";
+    private static final String MASTER_KEY_ENTRY       = "FlutterSecureMasterKey.";
+    private static final String OAEP = "RSA_ECB_OAEPwithSHA_256andMGF1Padding";
+
+    private Context context;
+
+    /** KeyCipher that wraps by encoding the raw key bytes and counts its unwraps. */
+    private static class CountingKeyCipher implements KeyCipher {
+        final AtomicInteger unwraps = new AtomicInteger();
+
+        @Override public byte[] wrap(Key key) { return key.getEncoded(); }
+        @Override public Key unwrap(byte[] wrappedKey, String algorithm) {
+            unwraps.incrementAndGet();
+            return new SecretKeySpec(wrappedKey, algorithm);
+        }
+        @Override public Cipher getCipher(Context context) { return null; }
+        @Override public void deleteKey() {}
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.getApplication();
+        // The AndroidKeyStore is not available here; stand in for the master key of the default key algorithm
+        MasterKeyAccess.getMasterKey(context, OAEP, (c, config) -> new CountingKeyCipher());
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static FlutterSecureStorageConfig config(String namespace, boolean derive) {
+        Map<String, Object> options = new HashMap<>();
+        options.put(FlutterSecureStorageConfig.PREF_OPTION_STORAGE_NAMESPACE, namespace);
+        options.put(FlutterSecureStorageConfig.PREF_OPTION_DERIVE_NAMESPACE_KEYS, String.valueOf(derive));
+        return new FlutterSecureStorageConfig(options);
+    }
+
+    private StorageCipherFactory factory(String namespace, boolean derive, String keyAlg, String storageAlg) {
+        NamespacedConfigSource configSource = new NamespacedConfigSource(context, namespace);
+        return new StorageCipherFactory(configSource, keyAlg, storageAlg, config(namespace, derive));
+    }
+
+    private void saveMarkers(String namespace, String keyAlg, String storageAlg, boolean derived) {
+        SharedPreferences.Editor editor = new NamespacedConfigSource(context, namespace).edit()
+                .putString(PREF_KEY_ALGORITHM, keyAlg)
+                .putString(PREF_STORAGE_ALGORITHM, storageAlg);
+        if (derived) {
+            editor.putString(PREF_KEY_DERIVATION, "HKDF");
+        }
+        editor.commit();
+    }
+
+    // -------------------------------------------------------------------------
+    // HKDF — RFC 5869 test vectors
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void hkdf_rfc5869TestCase1() throws Exception {
+        byte[] okm = Hkdf.derive(
+                hex("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b"),
+                hex("000102030405060708090a0b0c"),
+                hex("f0f1f2f3f4f5f6f7f8f9"),
+                42);
+
+        assertArrayEquals(hex("3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865"), okm);
+    }
+
+    @Test
+    public void hkdf_rfc5869TestCase3_emptySaltAndInfo() throws Exception {
+        byte[] okm = Hkdf.derive(hex("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b"), null, new byte[0], 42);
+
+        assertArrayEquals(hex("8da4e775a563c18f715f802a063c5a31b8a11f5c5ee1879ec3454e5f3c738d2d9d201395faa4b61a96c8"), okm);
+    }
+
+    @Test
+    public void hkdf_invalidLength_throws() {
+        assertThrows(IllegalArgumentException.class, () -> Hkdf.derive(new byte[32], null, new byte[0], 0));
+        assertThrows(IllegalArgumentException.class, () -> Hkdf.derive(new byte[32], null, new byte[0], 255 * 32 + 1));
+    }
+
+    // -------------------------------------------------------------------------
+    // Data key derivation
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void deriveDataKey_isStablePerNamespaceAndAlgorithm() throws Exception {
+        byte[] master = new byte[32];
+        Key first = DerivedKeyStorageCipher.deriveDataKey(master, "FlutterSecureKeyStorage:a", StorageCipherAlgorithm.AES_GCM_NoPadding);
+        Key again = DerivedKeyStorageCipher.deriveDataKey(master, "FlutterSecureKeyStorage:a", StorageCipherAlgorithm.AES_GCM_NoPadding);
+        Key otherNamespace = DerivedKeyStorageCipher.deriveDataKey(master, "FlutterSecureKeyStorage:b", StorageCipherAlgorithm.AES_GCM_NoPadding);
+        Key otherAlgorithm = DerivedKeyStorageCipher.deriveDataKey(master, "FlutterSecureKeyStorage:a", StorageCipherAlgorithm.AES_CBC_PKCS7Padding);
+
+        assertArrayEquals(first.getEncoded(), again.getEncoded());
+        assertFalse(Arrays.equals(first.getEncoded(), otherNamespace.getEncoded()));
+        assertFalse(Arrays.equals(first.getEncoded(), otherAlgorithm.getEncoded()));
+        assertEquals(16, first.getEncoded().length);
+    }
+
+    @Test
+    public void deriveDataKey_chacha20_is256Bits() throws Exception {
+        Key key = DerivedKeyStorageCipher.deriveDataKey(new byte[32], "FlutterSecureKeyStorage:a",
+                StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding);
+
+        assertEquals(32, key.getEncoded().length);
+        assertEquals("ChaCha20", key.getAlgorithm());
+    }
+
+    @Test
+    public void derivedCipher_decryptsWhatAnotherInstanceOfTheNamespaceEncrypted() throws Exception {
+        byte[] master = new byte[32];
+        master[0] = 7;
+        StorageCipher writer = DerivedKeyStorageCipher.create(context, "FlutterSecureKeyStorage:a", StorageCipherAlgorithm.AES_GCM_NoPadding, master);
+        StorageCipher reader = DerivedKeyStorageCipher.create(context, "FlutterSecureKeyStorage:a", StorageCipherAlgorithm.AES_GCM_NoPadding, master);
+        StorageCipher otherNamespace = DerivedKeyStorageCipher.create(context, "FlutterSecureKeyStorage:b", StorageCipherAlgorithm.AES_GCM_NoPadding, master);
+
+        byte[] ciphertext = writer.encrypt("secret".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("secret", new String(reader.decrypt(ciphertext), StandardCharsets.UTF_8));
+        assertThrows(Exception.class, () -> otherNamespace.decrypt(ciphertext));
+    }
+
+    @Test
+    public void derivedCipher_isIdentifiedAsDerivedAndForkable() throws Exception {
+        DerivedKeyStorageCipher cipher = DerivedKeyStorageCipher.create(context, "FlutterSecureKeyStorage:a",
+                StorageCipherAlgorithm.AES_CBC_PKCS7Padding, new byte[32]);
+        StorageCipher fork = cipher.fork();
+
+        assertEquals(IdentifiedStorageCipher.KEY_ID_DERIVED, cipher.getKeyId());
+        assertEquals(StorageCipherAlgorithm.AES_CBC_PKCS7Padding, cipher.getAlgorithm());
+        assertTrue(fork instanceof DerivedKeyStorageCipher);
+        assertArrayEquals(new byte[]{1, 2, 3}, fork.decrypt(cipher.encrypt(new byte[]{1, 2, 3})));
+    }
+
+    // -------------------------------------------------------------------------
+    // Master key
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void masterKey_generatedOnceAndStoredWrapped() throws Exception {
+        AtomicInteger keyCiphers = new AtomicInteger();
+        KeyCipherFunction function = (c, config) -> {
+            keyCiphers.incrementAndGet();
+            return new CountingKeyCipher();
+        };
+
+        byte[] first = MasterKeyAccess.getMasterKey(context, "generatedOnce", function);
+        byte[] second = MasterKeyAccess.getMasterKey(context, "generatedOnce", function);
+
+        assertSame(first, second);
+        assertEquals(32, first.length);
+        assertEquals(1, keyCiphers.get());
+        String stored = context.getSharedPreferences(MASTER_KEY_STORAGE, Context.MODE_PRIVATE)
+                .getString(MASTER_KEY_ENTRY + "generatedOnce", null);
+        assertArrayEquals(first, Base64.decode(stored, Base64.DEFAULT));
+    }
+
+    @Test
+    public void masterKey_unwrappedOnceForAnyNumberOfNamespaces() throws Exception {
+        byte[] master = new byte[32];
+        master[31] = 42;
+        context.getSharedPreferences(MASTER_KEY_STORAGE, Context.MODE_PRIVATE).edit()
+                .putString(MASTER_KEY_ENTRY + "unwrappedOnce", Base64.encodeToString(master, Base64.DEFAULT))
+                .commit();
+        CountingKeyCipher keyCipher = new CountingKeyCipher();
+
+        for (int i = 0; i < 20; i++) {
+            byte[] key = MasterKeyAccess.getMasterKey(context, "unwrappedOnce", (c, config) -> keyCipher);
+            assertArrayEquals(master, key);
+            DerivedKeyStorageCipher.create(context, "FlutterSecureKeyStorage:ns" + i, StorageCipherAlgorithm.AES_GCM_NoPadding, key);
+        }
+
+        assertEquals(1, keyCipher.unwraps.get());
+    }
+
+    @Test
+    public void masterKey_keyCipherUsesReservedNamespace() throws Exception {
+        AtomicInteger checked = new AtomicInteger();
+        MasterKeyAccess.getMasterKey(context, "reservedNamespace", (c, config) -> {
+            assertEquals("." + MasterKeyAccess.MASTER_KEY_NAMESPACE, config.getKeyAliasSuffix());
+            checked.incrementAndGet();
+            return new CountingKeyCipher();
+        });
+
+        assertEquals(1, checked.get());
+    }
+
+    // -------------------------------------------------------------------------
+    // StorageCipherFactory with derived keys
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void factory_derivedKeys_namespacesGetDifferentKeysFromOneMasterKey() throws Exception {
+        saveMarkers("first", OAEP, "AES_GCM_NoPadding", true);
+        saveMarkers("second", OAEP, "AES_GCM_NoPadding", true);
+        StorageCipherFactory first = factory("first", true, OAEP, "AES_GCM_NoPadding");
+        StorageCipherFactory second = factory("second", true, OAEP, "AES_GCM_NoPadding");
+
+        assertFalse(first.requiresReEncryption());
+        assertTrue(first.derivesCurrentKey());
+        StorageCipher firstCipher = first.getCurrentStorageCipher(context, null);
+        StorageCipher secondCipher = second.getCurrentStorageCipher(context, null);
+        byte[] ciphertext = firstCipher.encrypt(new byte[]{9});
+
+        assertArrayEquals(new byte[]{9}, factory("first", true, OAEP, "AES_GCM_NoPadding")
+                .getCurrentStorageCipher(context, null).decrypt(ciphertext));
+        assertThrows(Exception.class, () -> secondCipher.decrypt(ciphertext));
+        // Nothing is stored in the key storage of the namespaces
+        assertTrue(context.getSharedPreferences("FlutterSecureKeyStorage:first", Context.MODE_PRIVATE).getAll().isEmpty());
+        assertTrue(first.hasSavedWrappedKey(context));
+    }
+
+    @Test
+    public void factory_turningDerivationOn_requiresMigrationWithoutRewrap() {
+        saveMarkers("switched", OAEP, "AES_GCM_NoPadding", false);
+        StorageCipherFactory factory = factory("switched", true, OAEP, "AES_GCM_NoPadding");
+
+        assertTrue(factory.requiresReEncryption());
+        assertTrue(factory.changedKeyDerivation());
+        assertFalse(factory.changedStorageAlgorithm());
+        assertNull(factory.getRewrappableKeyEntry());
+        assertTrue(factory.replacesSavedKeyCipher());
+        assertTrue(factory.replacesSavedDataKey());
+    }
+
+    @Test
+    public void factory_turningDerivationOff_keepsKeyCipherOfNamespace() {
+        saveMarkers("switchedBack", OAEP, "AES_GCM_NoPadding", true);
+        StorageCipherFactory factory = factory("switchedBack", false, OAEP, "AES_GCM_NoPadding");
+
+        assertTrue(factory.requiresReEncryption());
+        assertTrue(factory.changedKeyDerivation());
+        assertFalse(factory.derivesCurrentKey());
+        assertFalse(factory.replacesSavedKeyCipher());
+        assertTrue(factory.replacesSavedDataKey());
+    }
+
+    @Test
+    public void factory_derivedKeys_onlyKeyAlgorithmChanged_isNotRewrapped() {
+        saveMarkers("rewrap", "RSA_ECB_PKCS1Padding", "AES_GCM_NoPadding", true);
+        StorageCipherFactory factory = factory("rewrap", true, OAEP, "AES_GCM_NoPadding");
+
+        assertFalse(factory.changedKeyDerivation());
+        assertNull(factory.getRewrappableKeyEntry());
+    }
+
+    @Test
+    public void factory_biometricKeyAlgorithm_ignoresDerivation() {
+        saveMarkers("biometric", "AES_GCM_NoPadding", "AES_GCM_NoPadding", false);
+        StorageCipherFactory factory = factory("biometric", true, "AES_GCM_NoPadding", "AES_GCM_NoPadding");
+
+        assertFalse(factory.derivesCurrentKey());
+        assertFalse(factory.requiresReEncryption());
+    }
+
+    @Test
+    public void factory_storeAlgorithms_writesAndRemovesDerivationMarker() {
+        saveMarkers("markers", OAEP, "AES_GCM_NoPadding", false);
+        NamespacedConfigSource configSource = new NamespacedConfigSource(context, "markers");
+        StorageCipherFactory factory = factory("markers", true, OAEP, "AES_GCM_NoPadding");
+
+        SharedPreferences.Editor current = configSource.edit();
+        factory.storeCurrentAlgorithms(current);
+        current.commit();
+        assertEquals("HKDF", configSource.getString(PREF_KEY_DERIVATION, null));
+
+        SharedPreferences.Editor saved = configSource.edit();
+        factory.storeSavedAlgorithms(saved);
+        saved.commit();
+        assertNull(configSource.getString(PREF_KEY_DERIVATION, null));
+    }
+
+    @Test
+    public void factory_derivedCipher_envelopeKeyIdDiffersFromWrappedKey() throws Exception {
+        saveMarkers("envelope", OAEP, "AES_GCM_NoPadding", true);
+        IdentifiedStorageCipher cipher = (IdentifiedStorageCipher) factory("envelope", true, OAEP, "AES_GCM_NoPadding")
+                .getCurrentStorageCipher(context, null);
+
+        assertNotEquals(IdentifiedStorageCipher.KEY_ID_WRAPPED, cipher.getKeyId());
+    }
+}
@@ -0,0 +1,152 @@
+package com.it_nomads.fluttersecurestorage.ciphers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.it_nomads.fluttersecurestorage.FlutterSecureStorageConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class NonceGeneratorTest {
+
+    private Context context;
+    private SharedPreferences counters;
+
+    /** KeyCipher that wraps by encoding the raw key bytes. */
+    private static class FakeKeyCipher implements KeyCipher {
+        @Override public byte[] wrap(Key key) { return key.getEncoded(); }
+        @Override public Key unwrap(byte[] wrappedKey, String algorithm) { return new SecretKeySpec(wrappedKey, algorithm); }
+        @Override public Cipher getCipher(Context context) { return null; }
+        @Override public void deleteKey() {}
+    }
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        counters = context.getSharedPreferences("NonceGeneratorTest", Context.MODE_PRIVATE);
+        counters.edit().clear().commit();
+    }
+
+    private static long counterOf(byte[] nonce) {
+        return ByteBuffer.wrap(nonce, 4, 8).getLong();
+    }
+
+    private static FlutterSecureStorageConfig config(String namespace) {
+        Map<String, Object> options = new HashMap<>();
+        options.put(FlutterSecureStorageConfig.PREF_OPTION_STORAGE_NAMESPACE, namespace);
+        return new FlutterSecureStorageConfig(options);
+    }
+
+    // -------------------------------------------------------------------------
+    // Nonces
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void next_prefixFollowedByIncreasingCounter() throws Exception {
+        NonceGenerator generator = new NonceGenerator(counters, "key");
+
+        byte[] first = generator.next();
+        byte[] second = generator.next();
+
+        assertEquals(NonceGenerator.NONCE_SIZE, first.length);
+        assertArrayEquals(Arrays.copyOf(first, 4), Arrays.copyOf(second, 4));
+        assertEquals(0, counterOf(first));
+        assertEquals(1, counterOf(second));
+    }
+
+    @Test
+    public void next_neverRepeats() throws Exception {
+        NonceGenerator generator = new NonceGenerator(counters, "key");
+        Set<String> seen = new HashSet<>();
+
+        for (int i = 0; i < 20_000; i++) {
+            assertTrue(seen.add(Arrays.toString(generator.next())));
+        }
+    }
+
+    @Test
+    public void next_reservesCountersBeforeUsingThem() throws Exception {
+        NonceGenerator generator = new NonceGenerator(counters, "key");
+        generator.next();
+
+        long reserved = counters.getLong("key", 0);
+        assertTrue(reserved > 0);
+
+        // A restart, even after a crash, continues past everything handed out before
+        NonceGenerator restarted = new NonceGenerator(counters, "key");
+        assertEquals(reserved, counterOf(restarted.next()));
+    }
+
+    @Test
+    public void next_counterExhausted_throws() throws Exception {
+        counters.edit().putLong("key", Long.MAX_VALUE - 1).commit();
+        NonceGenerator generator = new NonceGenerator(counters, "key");
+
+        assertEquals(Long.MAX_VALUE - 1, counterOf(generator.next()));
+        assertThrows(Exception.class, generator::next);
+    }
+
+    @Test
+    public void inMemory_storesNothing() throws Exception {
+        NonceGenerator generator = NonceGenerator.inMemory();
+
+        assertEquals(0, counterOf(generator.next()));
+        assertEquals(1, counterOf(generator.next()));
+    }
+
+    // -------------------------------------------------------------------------
+    // Sharing
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void forKeyStorage_sharedPerKeyStorage() {
+        assertSame(NonceGenerator.forKeyStorage(context, "FlutterSecureKeyStorage:shared"),
+            NonceGenerator.forKeyStorage(context, "FlutterSecureKeyStorage:shared"));
+        assertFalse(NonceGenerator.forKeyStorage(context, "FlutterSecureKeyStorage:shared")
+            == NonceGenerator.forKeyStorage(context, "FlutterSecureKeyStorage:other"));
+    }
+
+    @Test
+    public void ciphersOfOneNamespace_neverShareANonce() throws Exception {
+        FlutterSecureStorageConfig config = config("sharedNonces");
+        StorageCipherImplementationGCM first = new StorageCipherImplementationGCM(context, new FakeKeyCipher(), null, config);
+        StorageCipherImplementationGCM second = new StorageCipherImplementationGCM(context, new FakeKeyCipher(), null, config);
+        StorageCipher fork = first.fork();
+        byte[] plaintext = "value".getBytes(StandardCharsets.UTF_8);
+        Set<String> nonces = new HashSet<>();
+
+        for (int i = 0; i < 100; i++) {
+            for (StorageCipher cipher : new StorageCipher[]{first, second, fork}) {
+                byte[] encrypted = cipher.encrypt(plaintext);
+                assertTrue(nonces.add(Arrays.toString(Arrays.copyOf(encrypted, NonceGenerator.NONCE_SIZE))));
+                assertArrayEquals(plaintext, first.decrypt(encrypted));
+            }
+        }
+    }
+}
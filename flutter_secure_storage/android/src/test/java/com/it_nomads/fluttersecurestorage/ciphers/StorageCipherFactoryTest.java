@@ -33,6 +33,8 @@ public class StorageCipherFactoryTest {
     // Must match the private constants in StorageCipherFactory
     private static final String PREF_KEY_ALGORITHM     = "FlutterSecureSAlgorithmKey";
     private static final String PREF_STORAGE_ALGORITHM = "FlutterSecureSAlgorithmStorage";
+    // Must match the private constant in LazyMigration
+    private static final String PREF_LAZY_MIGRATION_TARGET = "FlutterSecureStorageLazyMigration";
     private static final String NAMESPACED_PREFS_NAME  = "FlutterSecureStorageConfiguration:TestNamespace";
 
     private NamespacedConfigSource configSource;
@@ -146,6 +148,93 @@ public class StorageCipherFactoryTest {
                 .changedKeyAlgorithm());
     }
 
+    // -------------------------------------------------------------------------
+    // changedStorageAlgorithm
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void changedStorageAlgorithm_trueWhenStorageAlgorithmChanged() {
+        saveAlgorithms("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_CBC_PKCS7Padding");
+
+        assertTrue(factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_GCM_NoPadding")
+                .changedStorageAlgorithm());
+    }
+
+    @Test
+    public void changedStorageAlgorithm_falseWhenOnlyKeyAlgorithmChanged() {
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_GCM_NoPadding");
+
+        StorageCipherFactory f = factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_GCM_NoPadding");
+
+        // Both ciphers share the wrapped key entry, so the saved one must not delete it
+        assertFalse(f.changedStorageAlgorithm());
+        assertTrue(f.changedKeyAlgorithm());
+    }
+
+    // -------------------------------------------------------------------------
+    // getRewrappableKeyEntry
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void rewrappableKeyEntry_onlyRsaKeyAlgorithmChanged_isWrappedKeyOfStorageAlgorithm() {
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_CBC_PKCS7Padding");
+        assertEquals(StorageCipherImplementationAES18.SHARED_PREFERENCES_KEY,
+                factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_CBC_PKCS7Padding").getRewrappableKeyEntry());
+
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_GCM_NoPadding");
+        assertEquals(StorageCipherImplementationGCM.SHARED_PREFERENCES_KEY,
+                factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_GCM_NoPadding").getRewrappableKeyEntry());
+    }
+
+    @Test
+    public void rewrappableKeyEntry_noSavedMarkers_comparesWithLegacyDefaults() {
+        assertEquals(StorageCipherImplementationAES18.SHARED_PREFERENCES_KEY,
+                factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_CBC_PKCS7Padding").getRewrappableKeyEntry());
+    }
+
+    @Test
+    public void rewrappableKeyEntry_nullWhenStorageAlgorithmChanged() {
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_CBC_PKCS7Padding");
+
+        assertNull(factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_GCM_NoPadding").getRewrappableKeyEntry());
+    }
+
+    @Test
+    public void rewrappableKeyEntry_nullWhenNothingChanged() {
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_CBC_PKCS7Padding");
+
+        assertNull(factory("RSA_ECB_PKCS1Padding", "AES_CBC_PKCS7Padding").getRewrappableKeyEntry());
+    }
+
+    @Test
+    public void rewrappableKeyEntry_nullWhenKeyStoreKeyAlgorithmInvolved() {
+        // The KeyStore key algorithm keeps the data key itself in the KeyStore; there is nothing to re-wrap
+        saveAlgorithms("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_GCM_NoPadding");
+        assertNull(factory("AES_GCM_NoPadding", "AES_GCM_NoPadding").getRewrappableKeyEntry());
+
+        saveAlgorithms("AES_GCM_NoPadding", "AES_GCM_NoPadding");
+        assertNull(factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_GCM_NoPadding").getRewrappableKeyEntry());
+    }
+
+    // -------------------------------------------------------------------------
+    // storeSavedAlgorithms
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void storeSavedAlgorithms_noSavedMarkers_writesLegacyDefaults() {
+        StorageCipherFactory f = factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_GCM_NoPadding");
+
+        SharedPreferences.Editor editor = configSource.edit();
+        f.storeSavedAlgorithms(editor);
+        editor.commit();
+
+        // Replaces the current markers the constructor wrote for a store without markers
+        assertEquals("RSA_ECB_PKCS1Padding", configSource.getString(PREF_KEY_ALGORITHM, null));
+        assertEquals("AES_CBC_PKCS7Padding", configSource.getString(PREF_STORAGE_ALGORITHM, null));
+        assertEquals(StorageCipherAlgorithm.AES_CBC_PKCS7Padding, f.getSavedStorageAlgorithm());
+        assertEquals(StorageCipherAlgorithm.AES_GCM_NoPadding, f.getCurrentStorageAlgorithm());
+    }
+
     // -------------------------------------------------------------------------
     // Legacy algorithm name compatibility
     // -------------------------------------------------------------------------
@@ -207,6 +296,63 @@ public class StorageCipherFactoryTest {
         assertNull(namespacedPrefs.getString(PREF_STORAGE_ALGORITHM, null));
     }
 
+    // -------------------------------------------------------------------------
+    // forInspection — reads markers without writing them or any key
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void forInspection_noSavedMarkers_doesNotWriteAlgorithmsToPrefs() {
+        StorageCipherFactory inspection = StorageCipherFactory.forInspection(configSource, config);
+
+        assertTrue(inspection.requiresReEncryption());
+        assertEquals(KeyCipherAlgorithm.RSA_ECB_PKCS1Padding, inspection.getSavedKeyAlgorithm());
+        assertEquals(StorageCipherAlgorithm.AES_CBC_PKCS7Padding, inspection.getSavedStorageAlgorithm());
+        assertNull(namespacedPrefs.getString(PREF_KEY_ALGORITHM, null));
+        assertNull(namespacedPrefs.getString(PREF_STORAGE_ALGORITHM, null));
+    }
+
+    @Test
+    public void hasSavedWrappedKey_checksEntryOfSavedStorageAlgorithm() {
+        Context context = RuntimeEnvironment.getApplication();
+        SharedPreferences keyStorage = context.getSharedPreferences(config.getEffectiveKeyStoragePrefsName(), Context.MODE_PRIVATE);
+        keyStorage.edit().clear().commit();
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_CBC_PKCS7Padding");
+        StorageCipherFactory inspection = StorageCipherFactory.forInspection(configSource, config);
+
+        keyStorage.edit().putString(StorageCipherImplementationGCM.SHARED_PREFERENCES_KEY, "wrapped").commit();
+        assertFalse(inspection.hasSavedWrappedKey(context));
+
+        keyStorage.edit().putString(StorageCipherImplementationAES18.SHARED_PREFERENCES_KEY, "wrapped").commit();
+        assertTrue(inspection.hasSavedWrappedKey(context));
+        keyStorage.edit().clear().commit();
+    }
+
+    @Test
+    public void hasSavedWrappedKey_keyStoreKeyAlgorithm_returnsFalse() {
+        Context context = RuntimeEnvironment.getApplication();
+        SharedPreferences keyStorage = context.getSharedPreferences(config.getEffectiveKeyStoragePrefsName(), Context.MODE_PRIVATE);
+        saveAlgorithms("AES_GCM_NoPadding", "AES_GCM_NoPadding");
+        keyStorage.edit().putString(StorageCipherImplementationGCM.SHARED_PREFERENCES_KEY, "wrapped").commit();
+
+        assertFalse(StorageCipherFactory.forInspection(configSource, config).hasSavedWrappedKey(context));
+        keyStorage.edit().clear().commit();
+    }
+
+    @Test
+    public void createScratchStorageCipher_usesCurrentAlgorithmWithoutStoringKey() throws Exception {
+        Context context = RuntimeEnvironment.getApplication();
+        SharedPreferences keyStorage = context.getSharedPreferences(config.getEffectiveKeyStoragePrefsName(), Context.MODE_PRIVATE);
+        keyStorage.edit().clear().commit();
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "AES_CBC_PKCS7Padding");
+
+        StorageCipher scratch = StorageCipherFactory.forInspection(configSource, config).createScratchStorageCipher();
+
+        assertTrue(scratch instanceof StorageCipherImplementationGCM);
+        byte[] plaintext = "scratch".getBytes();
+        assertEquals("scratch", new String(scratch.decrypt(scratch.encrypt(plaintext))));
+        assertTrue(keyStorage.getAll().isEmpty());
+    }
+
     @Test
     public void storeCurrentAlgorithms_doesNotWriteSavedAlgorithms() {
         // Saved = PKCS1/CBC, current = OAEP/GCM — stored values should reflect current, not saved
@@ -259,4 +405,112 @@ public class StorageCipherFactoryTest {
         assertNotNull(result);
         assertTrue(result instanceof StorageCipherImplementationAES18);
     }
+
+    @Test
+    public void createStorageCipher_chacha20Algorithm_returnsChaCha20Implementation() throws Exception {
+        Context context = RuntimeEnvironment.getApplication();
+        StorageCipher result = factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "ChaCha20_Poly1305_NoPadding")
+                .createStorageCipher(context, new FakeKeyCipher(), null, StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding);
+        assertTrue(result instanceof StorageCipherImplementationChaCha20);
+    }
+
+    // -------------------------------------------------------------------------
+    // ChaCha20-Poly1305
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void chacha20_fromAesGcm_requiresReEncryptionWithoutRewrap() {
+        saveAlgorithms("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_GCM_NoPadding");
+        StorageCipherFactory f = factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "ChaCha20_Poly1305_NoPadding");
+
+        assertEquals(StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding, f.getCurrentStorageAlgorithm());
+        assertTrue(f.requiresReEncryption());
+        assertTrue(f.changedStorageAlgorithm());
+        assertNull(f.getRewrappableKeyEntry());
+    }
+
+    @Test
+    public void chacha20_onlyKeyAlgorithmChanged_rewrapsChaCha20Key() {
+        saveAlgorithms("RSA_ECB_PKCS1Padding", "ChaCha20_Poly1305_NoPadding");
+
+        assertEquals(StorageCipherImplementationChaCha20.SHARED_PREFERENCES_KEY,
+                factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "ChaCha20_Poly1305_NoPadding").getRewrappableKeyEntry());
+    }
+
+    @Test
+    public void chacha20_scratchCipher_usesChaCha20() throws Exception {
+        saveAlgorithms("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_GCM_NoPadding");
+
+        StorageCipher scratch = StorageCipherFactory.forInspection(configSource, new FlutterSecureStorageConfig(
+                optionsWith(FlutterSecureStorageConfig.PREF_OPTION_STORAGE_CIPHER_ALGORITHM, "ChaCha20_Poly1305_NoPadding")))
+                .createScratchStorageCipher();
+
+        assertTrue(scratch instanceof StorageCipherImplementationChaCha20);
+    }
+
+    // -------------------------------------------------------------------------
+    // AUTO — fastest storage algorithm selected on first initialization
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void auto_noSavedMarkers_selectsAndStoresAnAuthenticatedAlgorithm() {
+        StorageCipherFactory f = factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", StorageCipherFactory.AUTOMATIC_STORAGE_ALGORITHM);
+
+        assertNotNull(f.getCipherBenchmark());
+        assertEquals(f.getCipherBenchmark().getSelectedAlgorithm(), f.getCurrentStorageAlgorithm());
+        assertTrue(CipherBenchmark.candidates(KeyCipherAlgorithm.RSA_ECB_OAEPwithSHA_256andMGF1Padding)
+                .contains(f.getCurrentStorageAlgorithm()));
+        assertEquals(f.getCurrentStorageAlgorithm().name(), namespacedPrefs.getString(PREF_STORAGE_ALGORITHM, null));
+    }
+
+    @Test
+    public void auto_savedCandidate_keepsItWithoutMeasuring() {
+        saveAlgorithms("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "ChaCha20_Poly1305_NoPadding");
+        StorageCipherFactory f = factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", StorageCipherFactory.AUTOMATIC_STORAGE_ALGORITHM);
+
+        assertEquals(StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding, f.getCurrentStorageAlgorithm());
+        assertNull(f.getCipherBenchmark());
+        assertFalse(f.requiresReEncryption());
+    }
+
+    @Test
+    public void auto_savedCbc_selectsAnotherAlgorithm() {
+        saveAlgorithms("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_CBC_PKCS7Padding");
+        StorageCipherFactory f = factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", StorageCipherFactory.AUTOMATIC_STORAGE_ALGORITHM);
+
+        assertNotNull(f.getCipherBenchmark());
+        assertTrue(f.changedStorageAlgorithm());
+        // The markers keep naming the saved algorithm until the migration has finished
+        assertEquals("AES_CBC_PKCS7Padding", namespacedPrefs.getString(PREF_STORAGE_ALGORITHM, null));
+    }
+
+    @Test
+    public void auto_unfinishedLazyMigration_keepsItsTargetWithoutMeasuring() {
+        saveAlgorithms("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_CBC_PKCS7Padding");
+        configSource.edit().putString(PREF_LAZY_MIGRATION_TARGET, "ChaCha20_Poly1305_NoPadding").commit();
+        StorageCipherFactory f = factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", StorageCipherFactory.AUTOMATIC_STORAGE_ALGORITHM);
+
+        assertEquals(StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding, f.getCurrentStorageAlgorithm());
+        assertNull(f.getCipherBenchmark());
+        assertTrue(f.changedStorageAlgorithm());
+    }
+
+    @Test
+    public void auto_keyStoreKeyCipher_selectsAesGcmWithoutMeasuring() {
+        StorageCipherFactory f = factory("AES_GCM_NoPadding", StorageCipherFactory.AUTOMATIC_STORAGE_ALGORITHM);
+
+        assertEquals(StorageCipherAlgorithm.AES_GCM_NoPadding, f.getCurrentStorageAlgorithm());
+        assertNull(f.getCipherBenchmark().getNanosPerValue(StorageCipherAlgorithm.AES_GCM_NoPadding));
+    }
+
+    @Test
+    public void configuredAlgorithm_hasNoCipherBenchmark() {
+        assertNull(factory("RSA_ECB_OAEPwithSHA_256andMGF1Padding", "AES_GCM_NoPadding").getCipherBenchmark());
+    }
+
+    private static HashMap<String, Object> optionsWith(String key, Object value) {
+        HashMap<String, Object> options = new HashMap<>();
+        options.put(key, value);
+        return options;
+    }
 }
@@ -19,8 +19,12 @@ import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(sdk = 34)
@@ -103,7 +107,7 @@ public class StorageCipherTest {
         byte[] first = cipher.encrypt(plaintext);
         byte[] second = cipher.encrypt(plaintext);
 
-        // GCM uses a random IV each time, so ciphertext must differ
+        // GCM uses a fresh nonce each time, so ciphertext must differ
         assertNotEquals(true, java.util.Arrays.equals(first, second));
     }
 
@@ -132,6 +136,25 @@ public class StorageCipherTest {
         assertArrayEquals(plaintext, fresh.decrypt(fresh.encrypt(plaintext)));
     }
 
+    @Test
+    public void gcm_identifiesAlgorithmAndWrappedKey() throws Exception {
+        StorageCipherImplementationGCM cipher = new StorageCipherImplementationGCM(context, new FakeKeyCipher(), null, defaultConfig);
+
+        assertEquals(StorageCipherAlgorithm.AES_GCM_NoPadding, cipher.getAlgorithm());
+        assertEquals(IdentifiedStorageCipher.KEY_ID_WRAPPED, cipher.getKeyId());
+    }
+
+    @Test
+    public void gcm_fork_sharesKeyButNotCipher() throws Exception {
+        StorageCipherImplementationGCM cipher = new StorageCipherImplementationGCM(context, new FakeKeyCipher(), null, defaultConfig);
+        StorageCipher fork = cipher.fork();
+        byte[] plaintext = "forked".getBytes(StandardCharsets.UTF_8);
+
+        assertNotSame(cipher, fork);
+        assertArrayEquals(plaintext, fork.decrypt(cipher.encrypt(plaintext)));
+        assertArrayEquals(plaintext, cipher.decrypt(fork.encrypt(plaintext)));
+    }
+
     // -------------------------------------------------------------------------
     // StorageCipherImplementationAES18
     // -------------------------------------------------------------------------
@@ -147,6 +170,17 @@ public class StorageCipherTest {
         assertArrayEquals(plaintext, decrypted);
     }
 
+    @Test
+    public void aes18_fork_sharesKeyButNotCipher() throws Exception {
+        StorageCipherImplementationAES18 cipher = new StorageCipherImplementationAES18(context, new FakeKeyCipher(), null, defaultConfig);
+        StorageCipher fork = cipher.fork();
+        byte[] plaintext = "forked".getBytes(StandardCharsets.UTF_8);
+
+        assertNotSame(cipher, fork);
+        assertArrayEquals(plaintext, fork.decrypt(cipher.encrypt(plaintext)));
+        assertArrayEquals(plaintext, cipher.decrypt(fork.encrypt(plaintext)));
+    }
+
     @Test
     public void aes18_encrypt_producesNonEmptyOutput() throws Exception {
         StorageCipherImplementationAES18 cipher = new StorageCipherImplementationAES18(context, new FakeKeyCipher(), null, defaultConfig);
@@ -201,4 +235,84 @@ public class StorageCipherTest {
         byte[] plaintext = "after delete".getBytes(StandardCharsets.UTF_8);
         assertArrayEquals(plaintext, fresh.decrypt(fresh.encrypt(plaintext)));
     }
+
+    @Test
+    public void aes18_identifiesAlgorithmAndWrappedKey() throws Exception {
+        StorageCipherImplementationAES18 cipher = new StorageCipherImplementationAES18(context, new FakeKeyCipher(), null, defaultConfig);
+
+        assertEquals(StorageCipherAlgorithm.AES_CBC_PKCS7Padding, cipher.getAlgorithm());
+        assertEquals(IdentifiedStorageCipher.KEY_ID_WRAPPED, cipher.getKeyId());
+    }
+
+    // -------------------------------------------------------------------------
+    // StorageCipherImplementationChaCha20
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void chacha20_encryptDecrypt_roundTrip() throws Exception {
+        StorageCipherImplementationChaCha20 cipher = new StorageCipherImplementationChaCha20(context, new FakeKeyCipher(), null, defaultConfig);
+        byte[] plaintext = "hello secure world".getBytes(StandardCharsets.UTF_8);
+
+        byte[] encrypted = cipher.encrypt(plaintext);
+
+        // 12-byte nonce, ciphertext of the same length and a 16-byte Poly1305 tag
+        assertEquals(12 + plaintext.length + 16, encrypted.length);
+        assertArrayEquals(plaintext, cipher.decrypt(encrypted));
+        // Reading the same value again must not trip over nonce reuse checks
+        assertArrayEquals(plaintext, cipher.decrypt(encrypted));
+    }
+
+    @Test
+    public void chacha20_encrypt_differentCallsProduceDifferentCiphertext() throws Exception {
+        StorageCipherImplementationChaCha20 cipher = new StorageCipherImplementationChaCha20(context, new FakeKeyCipher(), null, defaultConfig);
+        byte[] plaintext = "same input".getBytes(StandardCharsets.UTF_8);
+
+        assertNotEquals(true, java.util.Arrays.equals(cipher.encrypt(plaintext), cipher.encrypt(plaintext)));
+    }
+
+    @Test
+    public void chacha20_decrypt_tamperedCiphertext_throws() throws Exception {
+        StorageCipherImplementationChaCha20 cipher = new StorageCipherImplementationChaCha20(context, new FakeKeyCipher(), null, defaultConfig);
+        byte[] encrypted = cipher.encrypt("authenticated".getBytes(StandardCharsets.UTF_8));
+        encrypted[encrypted.length - 1] ^= 1;
+
+        assertThrows(Exception.class, () -> cipher.decrypt(encrypted));
+    }
+
+    @Test
+    public void chacha20_keyPersistedAcrossInstances_separateFromAesKeys() throws Exception {
+        StorageCipherImplementationChaCha20 first = new StorageCipherImplementationChaCha20(context, new FakeKeyCipher(), null, defaultConfig);
+        StorageCipherImplementationGCM gcm = new StorageCipherImplementationGCM(context, new FakeKeyCipher(), null, defaultConfig);
+        byte[] plaintext = "persistent key test".getBytes(StandardCharsets.UTF_8);
+        byte[] encrypted = first.encrypt(plaintext);
+
+        StorageCipherImplementationChaCha20 second = new StorageCipherImplementationChaCha20(context, new FakeKeyCipher(), null, defaultConfig);
+
+        assertArrayEquals(plaintext, second.decrypt(encrypted));
+        assertArrayEquals(plaintext, gcm.decrypt(gcm.encrypt(plaintext)));
+    }
+
+    @Test
+    public void chacha20_identifiesAlgorithmAndWrappedKey() throws Exception {
+        StorageCipherImplementationChaCha20 cipher = new StorageCipherImplementationChaCha20(context, new FakeKeyCipher(), null, defaultConfig);
+
+        assertEquals(StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding, cipher.getAlgorithm());
+        assertEquals(IdentifiedStorageCipher.KEY_ID_WRAPPED, cipher.getKeyId());
+    }
+
+    @Test
+    public void chacha20_fork_sharesKeyButNotCipher() throws Exception {
+        StorageCipherImplementationChaCha20 cipher = new StorageCipherImplementationChaCha20(context, new FakeKeyCipher(), null, defaultConfig);
+        StorageCipher fork = cipher.fork();
+        byte[] plaintext = "forked".getBytes(StandardCharsets.UTF_8);
+
+        assertNotSame(cipher, fork);
+        assertArrayEquals(plaintext, fork.decrypt(cipher.encrypt(plaintext)));
+        assertArrayEquals(plaintext, cipher.decrypt(fork.encrypt(plaintext)));
+    }
+
+    @Test
+    public void chacha20_isAvailableOnThisJvm() {
+        assertTrue(StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding.isAvailable());
+    }
 }
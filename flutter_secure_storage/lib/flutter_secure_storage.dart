@@ -379,6 +379,122 @@ class FlutterSecureStorage {
               .onCupertinoProtectedDataAvailabilityChanged
           : null;
 
+  /// Android only feature
+  ///
+  /// Progress of data migrations, such as a change of storage algorithm or a
+  /// migration from EncryptedSharedPreferences. See
+  /// [MethodChannelFlutterSecureStorage.onAndroidMigrationProgress] for the
+  /// events. On all unsupported platforms returns null
+  Stream<Map<String, Object?>>? get onAndroidMigrationProgress =>
+      _platform is MethodChannelFlutterSecureStorage
+          ? (_platform as MethodChannelFlutterSecureStorage)
+              .onAndroidMigrationProgress
+          : null;
+
+  /// Android only feature
+  ///
+  /// Estimates what migrating the data to the algorithms configured in
+  /// [aOptions] would cost, without migrating or modifying it, so that
+  /// `migrateOnAlgorithmChange` can be enabled with known cost. See
+  /// [MethodChannelFlutterSecureStorage.estimateAndroidMigration] for the
+  /// result. On all unsupported platforms returns null
+  Future<Map<String, Object?>?> estimateAndroidMigration({
+    AndroidOptions? aOptions,
+  }) async =>
+      _platform is MethodChannelFlutterSecureStorage
+          ? await (_platform as MethodChannelFlutterSecureStorage)
+              .estimateAndroidMigration(
+              options: aOptions?.params ?? this.aOptions.params,
+            )
+          : null;
+
+  /// Android only feature
+  ///
+  /// Returns the measurements by which the storage cipher algorithm was
+  /// selected when [aOptions] use `StorageCipherAlgorithm.AUTO`. See
+  /// [MethodChannelFlutterSecureStorage.getAndroidCipherBenchmark] for the
+  /// result. On all unsupported platforms returns null
+  Future<Map<String, Object?>?> getAndroidCipherBenchmark({
+    AndroidOptions? aOptions,
+  }) async =>
+      _platform is MethodChannelFlutterSecureStorage
+          ? await (_platform as MethodChannelFlutterSecureStorage)
+              .getAndroidCipherBenchmark(
+              options: aOptions?.params ?? this.aOptions.params,
+            )
+          : null;
+
+  /// Android only feature
+  ///
+  /// Returns which algorithms and security provider the storage of
+  /// [aOptions] encrypts with. See
+  /// [MethodChannelFlutterSecureStorage.getAndroidCipherDiagnostics] for the
+  /// result. On all unsupported platforms returns null
+  Future<Map<String, Object?>?> getAndroidCipherDiagnostics({
+    AndroidOptions? aOptions,
+  }) async =>
+      _platform is MethodChannelFlutterSecureStorage
+          ? await (_platform as MethodChannelFlutterSecureStorage)
+              .getAndroidCipherDiagnostics(
+              options: aOptions?.params ?? this.aOptions.params,
+            )
+          : null;
+
+  /// Android only feature
+  ///
+  /// Initializes the storage of every options in [aOptions] concurrently, such
+  /// as one per `storageNamespace`. See
+  /// [MethodChannelFlutterSecureStorage.initializeAndroidNamespaces]. Does
+  /// nothing on all unsupported platforms
+  Future<void> initializeAndroidNamespaces(List<AndroidOptions> aOptions) async {
+    if (_platform is MethodChannelFlutterSecureStorage) {
+      await (_platform as MethodChannelFlutterSecureStorage)
+          .initializeAndroidNamespaces(
+        namespaces: aOptions.map((options) => options.params).toList(),
+      );
+    }
+  }
+
+  /// Android only feature
+  ///
+  /// Writes the bytes of [data] as the value of [key] in chunks, so that
+  /// values of several megabytes, such as offline keys or certificates, are
+  /// never held in memory as a whole. Listeners of [key] are not notified.
+  /// See [MethodChannelFlutterSecureStorage.writeAndroidStream]. Throws an
+  /// [UnsupportedError] on all unsupported platforms
+  Future<void> writeAndroidStream({
+    required String key,
+    required Stream<List<int>> data,
+    AndroidOptions? aOptions,
+  }) {
+    if (_platform is! MethodChannelFlutterSecureStorage) {
+      throw UnsupportedError(_unsupportedPlatform);
+    }
+    return (_platform as MethodChannelFlutterSecureStorage).writeAndroidStream(
+      key: key,
+      data: data,
+      options: aOptions?.params ?? this.aOptions.params,
+    );
+  }
+
+  /// Android only feature
+  ///
+  /// Reads the value of [key] in chunks; see
+  /// [MethodChannelFlutterSecureStorage.readAndroidStream]. Throws an
+  /// [UnsupportedError] on all unsupported platforms
+  Stream<Uint8List> readAndroidStream({
+    required String key,
+    AndroidOptions? aOptions,
+  }) {
+    if (_platform is! MethodChannelFlutterSecureStorage) {
+      throw UnsupportedError(_unsupportedPlatform);
+    }
+    return (_platform as MethodChannelFlutterSecureStorage).readAndroidStream(
+      key: key,
+      options: aOptions?.params ?? this.aOptions.params,
+    );
+  }
+
   /// iOS and macOS only feature.
   ///
   /// On macOS this is only available on macOS 12 or newer. On older versions
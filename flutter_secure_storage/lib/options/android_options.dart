@@ -38,6 +38,22 @@ enum StorageCipherAlgorithm {
 
   /// AES/GCM/NoPadding (default, API 23+).
   AES_GCM_NoPadding,
+
+  /// ChaCha20/Poly1305/NoPadding (API 28+).
+  ///
+  /// Faster than AES-GCM on devices without AES instructions, such as many
+  /// ARMv7 handsets. Requires an RSA `KeyCipherAlgorithm`. Falls back to
+  /// AES_GCM_NoPadding where no security provider implements it.
+  ChaCha20_Poly1305_NoPadding,
+
+  /// Selects the fastest authenticated algorithm on the device.
+  ///
+  /// When a storage is first initialized, AES_GCM_NoPadding and, where
+  /// available, ChaCha20_Poly1305_NoPadding are timed on representative value
+  /// sizes. The selection is saved and kept on later runs. AES_GCM_NoPadding
+  /// is kept unless the other one is clearly faster. See
+  /// `FlutterSecureStorage.getAndroidCipherBenchmark` for the measurements.
+  AUTO,
 }
 
 /// Specific options for Android platform.
@@ -79,6 +95,13 @@ class AndroidOptions extends Options {
     this.sharedPreferencesName,
     this.preferencesKeyPrefix,
     this.storageNamespace,
+    this.migrationChunkSize,
+    this.migrationParallelism,
+    this.lazyMigration,
+    this.compressionThreshold,
+    this.largeValueThreshold,
+    this.deriveNamespaceKeys,
+    this.biometricSessionSeconds,
     this.biometricPromptTitle,
     this.biometricPromptSubtitle,
   })  : _encryptedSharedPreferences = encryptedSharedPreferences,
@@ -114,6 +137,13 @@ class AndroidOptions extends Options {
     this.sharedPreferencesName,
     this.preferencesKeyPrefix,
     this.storageNamespace,
+    this.migrationChunkSize,
+    this.migrationParallelism,
+    this.lazyMigration,
+    this.compressionThreshold,
+    this.largeValueThreshold,
+    this.deriveNamespaceKeys,
+    this.biometricSessionSeconds,
     this.biometricPromptTitle,
     this.biometricPromptSubtitle,
   })  : _encryptedSharedPreferences = encryptedSharedPreferences,
@@ -212,6 +242,76 @@ class AndroidOptions extends Options {
   /// Prefer this over `sharedPreferencesName` for new code.
   final String? storageNamespace;
 
+  /// Number of entries decrypted and re-encrypted at a time when data is
+  /// migrated to a new algorithm. Only one chunk of plaintext is held in
+  /// memory at once, so smaller values lower peak memory on large stores at
+  /// a small cost in speed.
+  ///
+  /// Defaults to 256 when not set.
+  final int? migrationChunkSize;
+
+  /// Maximum number of threads used to re-encrypt data when it is migrated
+  /// to a new algorithm. Large stores are split across threads, each with its
+  /// own cipher instances; small stores and biometric-bound keys are always
+  /// migrated on one thread. Set to 1 to disable parallel migration.
+  ///
+  /// Defaults to the number of CPU cores, up to 4, when not set.
+  final int? migrationParallelism;
+
+  /// Migrate data to a new storageCipherAlgorithm in the background instead
+  /// of before the first read. Values are converted when they are read and by
+  /// a low-priority sweeper, so startup time does not depend on the number of
+  /// stored values. Biometric keys and changes of only the keyCipherAlgorithm
+  /// are always migrated before the first read.
+  ///
+  /// Defaults to false when not set.
+  final bool? lazyMigration;
+
+  /// Compress values of at least this many bytes with Deflate before they are
+  /// encrypted, which makes large values such as JSON documents several times
+  /// smaller on disk and faster to load. Values that do not get smaller are
+  /// stored as they are. Compressed values are always read, also after this
+  /// is unset again.
+  ///
+  /// Compression reveals how compressible a value is through its stored
+  /// length. Do not enable it for values that mix a secret with data an
+  /// attacker can choose and observe the size of.
+  ///
+  /// Defaults to no compression when not set.
+  final int? compressionThreshold;
+
+  /// Store values of at least this many bytes, after compression, in an
+  /// encrypted file of their own in the app's no-backup directory, keeping
+  /// only a small pointer in SharedPreferences. SharedPreferences loads and
+  /// rewrites its whole file on every change, so this keeps a few large
+  /// values such as certificates or cached documents from slowing down every
+  /// other read and write. Values in files are always read, also after this
+  /// is unset again.
+  ///
+  /// Defaults to keeping every value in SharedPreferences when not set.
+  final int? largeValueThreshold;
+
+  /// Derive the data key of this storage from one master key shared by every
+  /// storage with this option, instead of giving it a KeyStore key and a
+  /// wrapped data key of its own. The master key is unwrapped once per
+  /// process and the data keys are derived from it with HKDF, so opening any
+  /// number of namespaces costs a single KeyStore operation. Existing data is
+  /// migrated when this is turned on or off. Ignored with biometric keys,
+  /// which are bound to a KeyStore key per storage.
+  ///
+  /// Defaults to false when not set.
+  final bool? deriveNamespaceKeys;
+
+  /// Keep biometric storages unlocked for this many seconds after a
+  /// successful prompt, so storages of other namespaces, or the same ones
+  /// rebuilt after an engine restart, do not prompt again within the window.
+  /// On Android 11 and above, biometric keys generated while this is set are
+  /// usable for the window after any authentication, so one prompt unlocks
+  /// all of them; keys generated before only reuse their unlocked data key.
+  ///
+  /// Defaults to prompting for every storage (0) when not set.
+  final int? biometricSessionSeconds;
+
   /// The title shown in the biometric authentication prompt.
   final String? biometricPromptTitle;
 
@@ -234,6 +334,19 @@ class AndroidOptions extends Options {
         'sharedPreferencesName': sharedPreferencesName ?? '',
         'preferencesKeyPrefix': preferencesKeyPrefix ?? '',
         'storageNamespace': storageNamespace ?? '',
+        if (migrationChunkSize != null)
+          'migrationChunkSize': '$migrationChunkSize',
+        if (migrationParallelism != null)
+          'migrationParallelism': '$migrationParallelism',
+        if (lazyMigration != null) 'lazyMigration': '$lazyMigration',
+        if (compressionThreshold != null)
+          'compressionThreshold': '$compressionThreshold',
+        if (largeValueThreshold != null)
+          'largeValueThreshold': '$largeValueThreshold',
+        if (deriveNamespaceKeys != null)
+          'deriveNamespaceKeys': '$deriveNamespaceKeys',
+        if (biometricSessionSeconds != null)
+          'biometricSessionSeconds': '$biometricSessionSeconds',
         'biometricPromptTitle':
             biometricPromptTitle ?? 'Authenticate to access',
         'biometricPromptSubtitle':
@@ -256,6 +369,13 @@ class AndroidOptions extends Options {
         'KeyStore aliases and key storage.')
     String? sharedPreferencesName,
     String? storageNamespace,
+    int? migrationChunkSize,
+    int? migrationParallelism,
+    bool? lazyMigration,
+    int? compressionThreshold,
+    int? largeValueThreshold,
+    bool? deriveNamespaceKeys,
+    int? biometricSessionSeconds,
     String? biometricPromptTitle,
     String? biometricPromptSubtitle,
   }) =>
@@ -277,6 +397,14 @@ class AndroidOptions extends Options {
             sharedPreferencesName ?? this.sharedPreferencesName,
         preferencesKeyPrefix: preferencesKeyPrefix ?? this.preferencesKeyPrefix,
         storageNamespace: storageNamespace ?? this.storageNamespace,
+        migrationChunkSize: migrationChunkSize ?? this.migrationChunkSize,
+        migrationParallelism: migrationParallelism ?? this.migrationParallelism,
+        lazyMigration: lazyMigration ?? this.lazyMigration,
+        compressionThreshold: compressionThreshold ?? this.compressionThreshold,
+        largeValueThreshold: largeValueThreshold ?? this.largeValueThreshold,
+        deriveNamespaceKeys: deriveNamespaceKeys ?? this.deriveNamespaceKeys,
+        biometricSessionSeconds:
+            biometricSessionSeconds ?? this.biometricSessionSeconds,
         biometricPromptTitle: biometricPromptTitle ?? this.biometricPromptTitle,
         biometricPromptSubtitle:
             biometricPromptSubtitle ?? this.biometricPromptSubtitle,
@@ -28,13 +28,20 @@ void main() {
   const channel = MethodChannel('plugins.it_nomads.com/flutter_secure_storage');
   final methodStorage = MethodChannelFlutterSecureStorage();
   final log = <MethodCall>[];
+  // Chunks the mocked readStreamChunk returns, in order, then null
+  final readChunks = <Uint8List>[];
 
-  Future<bool?>? handler(MethodCall methodCall) async {
+  Future<Object?>? handler(MethodCall methodCall) async {
     log.add(methodCall);
     if (methodCall.method == 'containsKey') {
       return true;
     } else if (methodCall.method == 'isProtectedDataAvailable') {
       return true;
+    } else if (methodCall.method == 'openWriteStream' ||
+        methodCall.method == 'openReadStream') {
+      return 7;
+    } else if (methodCall.method == 'readStreamChunk') {
+      return readChunks.isEmpty ? null : readChunks.removeAt(0);
     }
     return null;
   }
@@ -50,6 +57,7 @@ void main() {
         .setMockMethodCallHandler(channel, handler);
 
     log.clear(); // Clear logs before each test
+    readChunks.clear();
   });
 
   tearDown(() {
@@ -427,6 +435,17 @@ void main() {
       });
     });
 
+    test('AndroidOptions passes ChaCha20_Poly1305_NoPadding by name', () {
+      const options = AndroidOptions(
+        storageCipherAlgorithm: StorageCipherAlgorithm.ChaCha20_Poly1305_NoPadding,
+      );
+
+      expect(
+        options.toMap()['storageCipherAlgorithm'],
+        'ChaCha20_Poly1305_NoPadding',
+      );
+    });
+
     test('AndroidOptions.biometric constructor should have correct defaults',
         () {
       const options = AndroidOptions.biometric();
@@ -658,6 +677,139 @@ void main() {
       expect(copied.toMap()['migrateOnAlgorithmChange'], 'true');
     });
 
+    test('AndroidOptions migrationChunkSize is omitted by default', () {
+      const options = AndroidOptions.defaultOptions;
+
+      expect(options.toMap().containsKey('migrationChunkSize'), isFalse);
+    });
+
+    test('AndroidOptions with migrationChunkSize', () {
+      const options = AndroidOptions(migrationChunkSize: 64);
+
+      expect(options.toMap()['migrationChunkSize'], '64');
+    });
+
+    test('copyWith can set migrationChunkSize', () {
+      const original = AndroidOptions.defaultOptions;
+      final copied = original.copyWith(migrationChunkSize: 128);
+
+      expect(copied.toMap()['migrationChunkSize'], '128');
+    });
+
+    test('AndroidOptions migrationParallelism is omitted by default', () {
+      const options = AndroidOptions.defaultOptions;
+
+      expect(options.toMap().containsKey('migrationParallelism'), isFalse);
+    });
+
+    test('AndroidOptions with migrationParallelism', () {
+      const options = AndroidOptions(migrationParallelism: 1);
+
+      expect(options.toMap()['migrationParallelism'], '1');
+    });
+
+    test('copyWith can set migrationParallelism', () {
+      const original = AndroidOptions(migrationChunkSize: 64);
+      final copied = original.copyWith(migrationParallelism: 2);
+
+      expect(copied.toMap()['migrationParallelism'], '2');
+      expect(copied.toMap()['migrationChunkSize'], '64');
+    });
+
+    test('AndroidOptions lazyMigration is omitted by default', () {
+      const options = AndroidOptions.defaultOptions;
+
+      expect(options.toMap().containsKey('lazyMigration'), isFalse);
+    });
+
+    test('AndroidOptions with lazyMigration', () {
+      const options = AndroidOptions(lazyMigration: true);
+
+      expect(options.toMap()['lazyMigration'], 'true');
+    });
+
+    test('copyWith can set lazyMigration', () {
+      const original = AndroidOptions(migrationChunkSize: 64);
+      final copied = original.copyWith(lazyMigration: true);
+
+      expect(copied.toMap()['lazyMigration'], 'true');
+      expect(copied.toMap()['migrationChunkSize'], '64');
+    });
+
+    test('AndroidOptions compressionThreshold is omitted by default', () {
+      const options = AndroidOptions.defaultOptions;
+
+      expect(options.toMap().containsKey('compressionThreshold'), isFalse);
+    });
+
+    test('AndroidOptions with compressionThreshold', () {
+      const options = AndroidOptions(compressionThreshold: 512);
+
+      expect(options.toMap()['compressionThreshold'], '512');
+    });
+
+    test('copyWith can set compressionThreshold', () {
+      const original = AndroidOptions(lazyMigration: true);
+      final copied = original.copyWith(compressionThreshold: 256);
+
+      expect(copied.toMap()['compressionThreshold'], '256');
+      expect(copied.toMap()['lazyMigration'], 'true');
+    });
+
+    test('AndroidOptions largeValueThreshold is omitted by default', () {
+      const options = AndroidOptions.defaultOptions;
+
+      expect(options.toMap().containsKey('largeValueThreshold'), isFalse);
+    });
+
+    test('AndroidOptions.biometric with largeValueThreshold', () {
+      const options = AndroidOptions.biometric(largeValueThreshold: 8192);
+
+      expect(options.toMap()['largeValueThreshold'], '8192');
+    });
+
+    test('copyWith can set largeValueThreshold', () {
+      const original = AndroidOptions(compressionThreshold: 512);
+      final copied = original.copyWith(largeValueThreshold: 4096);
+
+      expect(copied.toMap()['largeValueThreshold'], '4096');
+      expect(copied.toMap()['compressionThreshold'], '512');
+    });
+
+    test('AndroidOptions deriveNamespaceKeys is omitted by default', () {
+      const options = AndroidOptions.defaultOptions;
+
+      expect(options.toMap().containsKey('deriveNamespaceKeys'), isFalse);
+    });
+
+    test('copyWith can set deriveNamespaceKeys', () {
+      const original = AndroidOptions(storageNamespace: 'settings');
+      final copied = original.copyWith(deriveNamespaceKeys: true);
+
+      expect(copied.toMap()['deriveNamespaceKeys'], 'true');
+      expect(copied.toMap()['storageNamespace'], 'settings');
+    });
+
+    test('AndroidOptions.biometric includes biometricSessionSeconds', () {
+      const options = AndroidOptions.biometric(biometricSessionSeconds: 300);
+
+      expect(options.toMap()['biometricSessionSeconds'], '300');
+      expect(
+        AndroidOptions.defaultOptions
+            .toMap()
+            .containsKey('biometricSessionSeconds'),
+        isFalse,
+      );
+    });
+
+    test('copyWith keeps biometricSessionSeconds', () {
+      const original = AndroidOptions.biometric(biometricSessionSeconds: 60);
+      final copied = original.copyWith(storageNamespace: 'vault');
+
+      expect(copied.toMap()['biometricSessionSeconds'], '60');
+      expect(copied.toMap()['storageNamespace'], 'vault');
+    });
+
     test('Deprecated encryptedSharedPreferences still functions', () {
       const options = AndroidOptions(encryptedSharedPreferences: true);
 
@@ -1076,6 +1228,341 @@ void main() {
     });
   });
 
+  group('Android Migration Progress Tests', () {
+    test('onAndroidMigrationProgress returns stream for MethodChannel platform',
+        () {
+      FlutterSecureStoragePlatform.instance = methodStorage;
+      const methodChannelStorage = FlutterSecureStorage();
+
+      final result = methodChannelStorage.onAndroidMigrationProgress;
+
+      expect(result, isNotNull);
+      expect(result, isA<Stream<Map<String, Object?>>>());
+
+      // Restore original platform
+      FlutterSecureStoragePlatform.instance = mockPlatform;
+    });
+
+    test(
+        'onAndroidMigrationProgress returns null '
+        'for non-MethodChannel platform', () {
+      expect(storage.onAndroidMigrationProgress, isNull);
+    });
+  });
+
+  group('Android Migration Estimate Tests', () {
+    test('estimateAndroidMigration invokes estimateMigration on Android',
+        () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.android;
+      const options = <String, String>{'migrateOnAlgorithmChange': 'true'};
+
+      await methodStorage.estimateAndroidMigration(options: options);
+
+      expect(
+        log,
+        <Matcher>[
+          isMethodCall(
+            'estimateMigration',
+            arguments: <String, Object>{
+              'options': options,
+            },
+          ),
+        ],
+      );
+      debugDefaultTargetPlatformOverride = null;
+    });
+
+    test('estimateAndroidMigration returns null on other platforms', () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.iOS;
+
+      final result =
+          await methodStorage.estimateAndroidMigration(options: const {});
+
+      expect(result, isNull);
+      expect(log, isEmpty);
+      debugDefaultTargetPlatformOverride = null;
+    });
+
+    test(
+        'estimateAndroidMigration returns null '
+        'for non-MethodChannel platform', () async {
+      expect(await storage.estimateAndroidMigration(), isNull);
+    });
+  });
+
+  group('Android Cipher Benchmark Tests', () {
+    test('getAndroidCipherBenchmark invokes getCipherBenchmark on Android',
+        () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.android;
+      const options = <String, String>{'storageCipherAlgorithm': 'AUTO'};
+
+      await methodStorage.getAndroidCipherBenchmark(options: options);
+
+      expect(
+        log,
+        <Matcher>[
+          isMethodCall(
+            'getCipherBenchmark',
+            arguments: <String, Object>{
+              'options': options,
+            },
+          ),
+        ],
+      );
+      debugDefaultTargetPlatformOverride = null;
+    });
+
+    test('getAndroidCipherBenchmark returns null on other platforms',
+        () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.iOS;
+
+      final result =
+          await methodStorage.getAndroidCipherBenchmark(options: const {});
+
+      expect(result, isNull);
+      expect(log, isEmpty);
+      debugDefaultTargetPlatformOverride = null;
+    });
+
+    test(
+        'getAndroidCipherBenchmark returns null '
+        'for non-MethodChannel platform', () async {
+      expect(await storage.getAndroidCipherBenchmark(), isNull);
+    });
+
+    test('getAndroidCipherDiagnostics invokes getCipherDiagnostics on Android',
+        () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.android;
+      const options = <String, String>{'storageNamespace': 'settings'};
+
+      await methodStorage.getAndroidCipherDiagnostics(options: options);
+
+      expect(
+        log,
+        <Matcher>[
+          isMethodCall(
+            'getCipherDiagnostics',
+            arguments: <String, Object>{
+              'options': options,
+            },
+          ),
+        ],
+      );
+      debugDefaultTargetPlatformOverride = null;
+    });
+
+    test('getAndroidCipherDiagnostics returns null on other platforms',
+        () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.iOS;
+
+      final result =
+          await methodStorage.getAndroidCipherDiagnostics(options: const {});
+
+      expect(result, isNull);
+      expect(log, isEmpty);
+      debugDefaultTargetPlatformOverride = null;
+    });
+
+    test(
+        'getAndroidCipherDiagnostics returns null '
+        'for non-MethodChannel platform', () async {
+      expect(await storage.getAndroidCipherDiagnostics(), isNull);
+    });
+
+    test('initializeAndroidNamespaces invokes initializeNamespaces on Android',
+        () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.android;
+      const namespaces = <Map<String, String>>[
+        {'storageNamespace': 'settings'},
+        {'storageNamespace': 'tokens'},
+      ];
+
+      await methodStorage.initializeAndroidNamespaces(namespaces: namespaces);
+
+      expect(
+        log,
+        <Matcher>[
+          isMethodCall(
+            'initializeNamespaces',
+            arguments: <String, Object>{
+              'namespaces': namespaces,
+            },
+          ),
+        ],
+      );
+      debugDefaultTargetPlatformOverride = null;
+    });
+
+    test('initializeAndroidNamespaces does nothing on other platforms',
+        () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.iOS;
+
+      await methodStorage.initializeAndroidNamespaces(
+        namespaces: const [<String, String>{}],
+      );
+
+      expect(log, isEmpty);
+      debugDefaultTargetPlatformOverride = null;
+    });
+
+    test(
+        'initializeAndroidNamespaces does nothing '
+        'for non-MethodChannel platform', () async {
+      await storage.initializeAndroidNamespaces(const [AndroidOptions()]);
+
+      expect(log, isEmpty);
+    });
+
+    test('AndroidOptions passes AUTO by name', () {
+      const options = AndroidOptions(
+        storageCipherAlgorithm: StorageCipherAlgorithm.AUTO,
+      );
+
+      expect(options.toMap()['storageCipherAlgorithm'], 'AUTO');
+    });
+  });
+
+  group('Android Value Stream Tests', () {
+    test('writeAndroidStream sends fixed-size chunks, then closes', () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.android;
+      const options = <String, String>{};
+      const chunkSize =
+          MethodChannelFlutterSecureStorage.androidStreamChunkSize;
+      final data = Stream<List<int>>.fromIterable([
+        List<int>.filled(chunkSize - 10, 1),
+        List<int>.filled(20, 2),
+        List<int>.filled(chunkSize, 3),
+      ]);
+
+      await methodStorage.writeAndroidStream(
+        key: 'cert',
+        data: data,
+        options: options,
+      );
+
+      expect(log.map((call) => call.method).toList(), [
+        'openWriteStream',
+        'writeStreamChunk',
+        'writeStreamChunk',
+        'writeStreamChunk',
+        'closeWriteStream',
+      ]);
+      expect(
+        log.first,
+        isMethodCall(
+          'openWriteStream',
+          arguments: <String, Object>{'key': 'cert', 'options': options},
+        ),
+      );
+      final chunks = log
+          .where((call) => call.method == 'writeStreamChunk')
+          .map((call) => (call.arguments as Map)['chunk'] as Uint8List)
+          .toList();
+      expect(chunks.map((chunk) => chunk.length), [chunkSize, chunkSize, 10]);
+      expect(chunks[0][chunkSize - 11], 1);
+      expect(chunks[0][chunkSize - 10], 2);
+      expect(chunks[1].first, 2);
+      expect(chunks[1][10], 3);
+      expect(chunks[2].first, 3);
+      expect((log.last.arguments as Map)['handle'], 7);
+      debugDefaultTargetPlatformOverride = null;
+    });
+
+    test('writeAndroidStream aborts when the data fails', () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.android;
+      final data = Stream<List<int>>.error(StateError('source failed'));
+
+      await expectLater(
+        methodStorage.writeAndroidStream(
+          key: 'cert',
+          data: data,
+          options: const {},
+        ),
+        throwsStateError,
+      );
+
+      expect(log.map((call) => call.method).toList(), [
+        'openWriteStream',
+        'abortWriteStream',
+      ]);
+      debugDefaultTargetPlatformOverride = null;
+    });
+
+    test('readAndroidStream reads chunks until the end', () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.android;
+      readChunks.addAll([
+        Uint8List.fromList([1, 2, 3]),
+        Uint8List.fromList([4]),
+      ]);
+
+      final chunks = await methodStorage
+          .readAndroidStream(key: 'cert', options: const {})
+          .toList();
+
+      expect(chunks, [
+        [1, 2, 3],
+        [4],
+      ]);
+      expect(log.map((call) => call.method).toList(), [
+        'openReadStream',
+        'readStreamChunk',
+        'readStreamChunk',
+        'readStreamChunk',
+      ]);
+      debugDefaultTargetPlatformOverride = null;
+    });
+
+    test('readAndroidStream closes the stream when cancelled', () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.android;
+      readChunks.addAll([
+        Uint8List.fromList([1]),
+        Uint8List.fromList([2]),
+      ]);
+
+      final first = await methodStorage
+          .readAndroidStream(key: 'cert', options: const {})
+          .first;
+
+      expect(first, [1]);
+      expect(log.last.method, 'closeReadStream');
+      expect((log.last.arguments as Map)['handle'], 7);
+      debugDefaultTargetPlatformOverride = null;
+    });
+
+    test('value streams are unsupported on other platforms', () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.iOS;
+
+      await expectLater(
+        methodStorage.writeAndroidStream(
+          key: 'cert',
+          data: const Stream.empty(),
+          options: const {},
+        ),
+        throwsUnsupportedError,
+      );
+      await expectLater(
+        methodStorage.readAndroidStream(key: 'cert', options: const {}),
+        emitsError(isUnsupportedError),
+      );
+      expect(log, isEmpty);
+      debugDefaultTargetPlatformOverride = null;
+    });
+
+    test('value streams throw for non-MethodChannel platform', () {
+      expect(
+        () => storage.writeAndroidStream(
+          key: 'cert',
+          data: const Stream.empty(),
+        ),
+        throwsUnsupportedError,
+      );
+      expect(
+        () => storage.readAndroidStream(key: 'cert'),
+        throwsUnsupportedError,
+      );
+    });
+  });
+
   group('iOS/macOS Cupertino Protected Data Tests', () {
     test(
         'onCupertinoProtectedDataAvailabilityChanged returns stream '
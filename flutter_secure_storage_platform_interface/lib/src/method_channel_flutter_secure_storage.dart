@@ -6,6 +6,10 @@ const MethodChannel _channel =
 const EventChannel _eventChannel =
     EventChannel('plugins.it_nomads.com/flutter_secure_storage/events');
 
+const EventChannel _migrationProgressChannel = EventChannel(
+  'plugins.it_nomads.com/flutter_secure_storage/migration_progress',
+);
+
 /// The `MethodChannelFlutterSecureStorage` class implements the
 /// `FlutterSecureStoragePlatform` interface using method channels to
 /// communicate with native platform code.
@@ -21,6 +25,266 @@ class MethodChannelFlutterSecureStorage extends FlutterSecureStoragePlatform {
       .where((event) => event is bool)
       .map((event) => event as bool);
 
+  /// A stream of progress events of data migrations on Android, such as a
+  /// change of storage algorithm or a migration from
+  /// EncryptedSharedPreferences. It is only relevant on Android.
+  ///
+  /// Every event is a map with the keys `storage`, `phase`, `processed`,
+  /// `total`, `bytes` and `elapsedMillis`. A migration ends with the phase
+  /// `done` or `failed`, the latter with an additional `error` message.
+  /// Events within a phase are throttled.
+  Stream<Map<String, Object?>> get onAndroidMigrationProgress =>
+      _migrationProgressChannel
+          .receiveBroadcastStream()
+          .where((event) => event is Map)
+          .map((event) => (event as Map).cast<String, Object?>());
+
+  /// Estimates what migrating the Android storage described by [options] to
+  /// its configured algorithms would cost, without initializing or modifying
+  /// it. It is only supported on Android.
+  ///
+  /// Returns:
+  /// - A [Future] resolving to:
+  ///   - a map with, among others, the keys `requiresMigration`, `strategy`
+  ///     (`none`, `rewrap`, `lazy`, `chunked`, `backup` or `biometric`),
+  ///     `requiresAuthentication`, `entries`, `ciphertextBytes`,
+  ///     `estimatedMillis` and `estimatedPeakMemoryBytes`.
+  ///   - `null` if the platform does not support this functionality.
+  Future<Map<String, Object?>?> estimateAndroidMigration({
+    required Map<String, String> options,
+  }) async {
+    if (kIsWeb || defaultTargetPlatform != TargetPlatform.android) {
+      return null;
+    }
+    final result = await _channel.invokeMethod<Map<Object?, Object?>>(
+      'estimateMigration',
+      {
+        'options': options,
+      },
+    );
+    return result?.cast<String, Object?>();
+  }
+
+  /// Returns the measurements by which the `AUTO` storage cipher algorithm of
+  /// the Android storage described by [options] was selected. Initializes the
+  /// storage first. It is only supported on Android.
+  ///
+  /// Returns:
+  /// - A [Future] resolving to:
+  ///   - a map with the keys `selectedAlgorithm`, `valueSizes` and
+  ///     `nanosPerValue`, the latter mapping each measured algorithm to the
+  ///     time one value of each size took to encrypt and decrypt.
+  ///   - `null` if no selection was measured since the app started, because
+  ///     another algorithm is configured or the selection was made earlier,
+  ///     or if the platform does not support this functionality.
+  Future<Map<String, Object?>?> getAndroidCipherBenchmark({
+    required Map<String, String> options,
+  }) async {
+    if (kIsWeb || defaultTargetPlatform != TargetPlatform.android) {
+      return null;
+    }
+    final result = await _channel.invokeMethod<Map<Object?, Object?>>(
+      'getCipherBenchmark',
+      {
+        'options': options,
+      },
+    );
+    return result?.cast<String, Object?>();
+  }
+
+  /// Returns which algorithms the Android storage described by [options]
+  /// encrypts with and which security provider runs its storage cipher.
+  /// Initializes the storage first. It is only supported on Android.
+  ///
+  /// Returns:
+  /// - A [Future] resolving to:
+  ///   - a map with the keys `keyCipherAlgorithm`, `storageCipherAlgorithm`,
+  ///     `storageCipherProvider`, such as `AndroidOpenSSL` for Conscrypt, and
+  ///     `derivedKey`, whether the data key is derived from a shared master
+  ///     key.
+  ///   - `null` if the platform does not support this functionality.
+  Future<Map<String, Object?>?> getAndroidCipherDiagnostics({
+    required Map<String, String> options,
+  }) async {
+    if (kIsWeb || defaultTargetPlatform != TargetPlatform.android) {
+      return null;
+    }
+    final result = await _channel.invokeMethod<Map<Object?, Object?>>(
+      'getCipherDiagnostics',
+      {
+        'options': options,
+      },
+    );
+    return result?.cast<String, Object?>();
+  }
+
+  /// Initializes the Android storages described by [namespaces], one options
+  /// map per storage, concurrently. Storages that may show a biometric prompt
+  /// are initialized one after another. Calling this at startup for every
+  /// `storageNamespace` an app uses avoids initializing them one by one on
+  /// first access. It does nothing on other platforms.
+  ///
+  /// Completes once every storage is ready, or with an error naming how many
+  /// storages failed to initialize.
+  Future<void> initializeAndroidNamespaces({
+    required List<Map<String, String>> namespaces,
+  }) async {
+    if (kIsWeb || defaultTargetPlatform != TargetPlatform.android) {
+      return;
+    }
+    await _channel.invokeMethod<void>(
+      'initializeNamespaces',
+      {
+        'namespaces': namespaces,
+      },
+    );
+  }
+
+  /// Size of the chunks [writeAndroidStream] moves over the method channel.
+  static const int androidStreamChunkSize = 64 * 1024;
+
+  /// Writes the bytes of [data] as the value of [key] in the Android storage
+  /// described by [options], without holding the whole value in memory on
+  /// either side. The bytes are moved over the method channel in chunks of
+  /// [androidStreamChunkSize] bytes and encrypted in segments into a file of
+  /// their own. The previous value of [key] is replaced once [data] is done;
+  /// if [data] or a write fails, it is kept. It is only supported on Android.
+  ///
+  /// Throws an [UnsupportedError] on other platforms.
+  Future<void> writeAndroidStream({
+    required String key,
+    required Stream<List<int>> data,
+    required Map<String, String> options,
+  }) async {
+    if (kIsWeb || defaultTargetPlatform != TargetPlatform.android) {
+      throw UnsupportedError('Streaming values is only supported on Android');
+    }
+    final handle = await _channel.invokeMethod<int>(
+      'openWriteStream',
+      {
+        'key': key,
+        'options': options,
+      },
+    );
+    try {
+      var chunk = Uint8List(androidStreamChunkSize);
+      var filled = 0;
+      await for (final bytes in data) {
+        var offset = 0;
+        while (offset < bytes.length) {
+          final remaining = chunk.length - filled;
+          final count = bytes.length - offset < remaining
+              ? bytes.length - offset
+              : remaining;
+          chunk.setRange(filled, filled + count, bytes, offset);
+          filled += count;
+          offset += count;
+          if (filled == chunk.length) {
+            await _writeStreamChunk(handle, chunk, options);
+            chunk = Uint8List(androidStreamChunkSize);
+            filled = 0;
+          }
+        }
+      }
+      if (filled > 0) {
+        await _writeStreamChunk(
+          handle,
+          Uint8List.sublistView(chunk, 0, filled),
+          options,
+        );
+      }
+      await _channel.invokeMethod<void>(
+        'closeWriteStream',
+        {
+          'handle': handle,
+          'options': options,
+        },
+      );
+    } catch (_) {
+      try {
+        await _channel.invokeMethod<void>(
+          'abortWriteStream',
+          {
+            'handle': handle,
+            'options': options,
+          },
+        );
+      } on PlatformException {
+        // The original error is the one worth reporting
+      }
+      rethrow;
+    }
+  }
+
+  Future<void> _writeStreamChunk(
+    int? handle,
+    Uint8List chunk,
+    Map<String, String> options,
+  ) =>
+      _channel.invokeMethod<void>(
+        'writeStreamChunk',
+        {
+          'handle': handle,
+          'chunk': chunk,
+          'options': options,
+        },
+      );
+
+  /// Reads the value of [key] in the Android storage described by [options]
+  /// in chunks of at most [androidStreamChunkSize] bytes, decrypting a value
+  /// written with [writeAndroidStream] one segment at a time. Other values
+  /// are returned as their UTF-8 bytes. The stream is empty if there is no
+  /// value for [key]. Cancelling the subscription closes the stream on the
+  /// native side. It is only supported on Android.
+  ///
+  /// Throws an [UnsupportedError] on other platforms.
+  Stream<Uint8List> readAndroidStream({
+    required String key,
+    required Map<String, String> options,
+  }) async* {
+    if (kIsWeb || defaultTargetPlatform != TargetPlatform.android) {
+      throw UnsupportedError('Streaming values is only supported on Android');
+    }
+    final handle = await _channel.invokeMethod<int>(
+      'openReadStream',
+      {
+        'key': key,
+        'options': options,
+      },
+    );
+    if (handle == null) {
+      return;
+    }
+    var done = false;
+    try {
+      while (true) {
+        final chunk = await _channel.invokeMethod<Uint8List>(
+          'readStreamChunk',
+          {
+            'handle': handle,
+            'options': options,
+          },
+        );
+        if (chunk == null) {
+          // The native side closes the stream at its end
+          done = true;
+          return;
+        }
+        yield chunk;
+      }
+    } finally {
+      if (!done) {
+        await _channel.invokeMethod<void>(
+          'closeReadStream',
+          {
+            'handle': handle,
+            'options': options,
+          },
+        );
+      }
+    }
+  }
+
   /// Checks if Cupertino protected data is currently available on the device.
   /// It is only supported on iOS and macOS platforms.
   ///